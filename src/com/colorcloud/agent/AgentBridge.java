@@ -0,0 +1,84 @@
+package com.colorcloud.agent;
+
+import com.colorcloud.wifichat.MessageRow;
+
+/**
+ * in-process link between the chat transport and the agents of the local JADE container.
+ *
+ * Rows from the peers go to the endpoint, the ManagerAgent, which hands them on to the local agents
+ * that subscribed, with intra-platform messages. Rows from local agents go to the transport, the
+ * ConnectionService, and out over the chat connection like a typed message. Chat rows never take the
+ * HTTP MTP between the devices' platforms; agent chat costs what the socket path costs plus one
+ * in-process hop.
+ *
+ * Either side may be missing, a row is then not bridged. Any thread.
+ */
+public final class AgentBridge {
+
+	/** ontology of the chat messages between local agents and the manager. */
+	public static final String CHAT_ONTOLOGY = "wifichat";
+	/** user defined parameter with the sender of a chat row. */
+	public static final String PARAM_SENDER = "sender";
+
+	/**
+	 * the chat transport, sends a row to the peers and shows it locally.
+	 */
+	public interface Transport {
+		void send(MessageRow row);
+	}
+
+	/**
+	 * the agent side, takes rows that came from the peers.
+	 */
+	public interface Endpoint {
+		void deliver(MessageRow row);
+	}
+
+	private static volatile Transport sTransport = null;
+	private static volatile Endpoint sEndpoint = null;
+
+	private AgentBridge() {}
+
+	public static void setTransport(Transport transport) {
+		sTransport = transport;
+	}
+
+	public static synchronized void setEndpoint(Endpoint endpoint) {
+		sEndpoint = endpoint;
+	}
+
+	/**
+	 * detach the endpoint, only if it is still the one attached.
+	 */
+	public static synchronized void clearEndpoint(Endpoint endpoint) {
+		if (sEndpoint == endpoint) {
+			sEndpoint = null;
+		}
+	}
+
+	/**
+	 * a row from the peers, to the local agents.
+	 * @return false if no agent side is attached.
+	 */
+	public static boolean fromPeers(MessageRow row) {
+		Endpoint endpoint = sEndpoint;
+		if (endpoint == null) {
+			return false;
+		}
+		endpoint.deliver(row);
+		return true;
+	}
+
+	/**
+	 * a row from a local agent, to the peers.
+	 * @return false if the chat transport is not up.
+	 */
+	public static boolean toPeers(MessageRow row) {
+		Transport transport = sTransport;
+		if (transport == null) {
+			return false;
+		}
+		transport.send(row);
+		return true;
+	}
+}
@@ -1,5 +1,6 @@
 package com.colorcloud.agent;
 
+import com.colorcloud.wifichat.MessageRow;
 import com.colorcloud.wifichat.WifiDirectUtils;
 
 import jade.android.AndroidHelper;
@@ -19,10 +20,16 @@ import android.os.Message;
 import android.util.Log;
 import android.widget.Toast;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.HashMap;
+import java.util.Map;
 
-public class ManagerAgent extends Agent implements ManagerInterface {
+/**
+ * the device's manager agent. It says hello to the manager of the group owner's platform, and bridges chat rows
+ * between the chat transport and the local agents: an agent subscribes with a SUBSCRIBE of the chat ontology and
+ * gets every row from the peers as an INFORM, and an INFORM of the chat ontology it sends to the manager goes out
+ * to the peers. See AgentBridge.
+ */
+public class ManagerAgent extends Agent implements ManagerInterface, AgentBridge.Endpoint {
 
     private static final String TAG = "ReceivedMessage";
     private static final long serialVersionUID = 1594371294421614291L;
@@ -31,6 +38,13 @@ public class ManagerAgent extends Agent implements ManagerInterface {
     private Context context;
     private String ipAddress = "133.19.63.184";
     private String agentName = "manager";
+    private static final int BRIDGE_QUEUE_SIZE = 1024;    // rows from the peers waiting for the agent thread
+
+    // agent thread only. The receivers of the pooled message are the subscribed agents; the platform copies the
+    // message for each receiver on send, so one instance serves every row.
+    private final ACLMessage mRowMessage = new ACLMessage(ACLMessage.INFORM);
+    private final ACLMessage mHelloMessage = new ACLMessage(ACLMessage.INFORM);
+    private final Map<String, AID> mManagerAids = new HashMap<String, AID>();   // other managers, by address
 
     protected void setup() {
         Object[] args = getArguments();
@@ -40,9 +54,15 @@ public class ManagerAgent extends Agent implements ManagerInterface {
             }
         }
 
+        mRowMessage.setOntology(AgentBridge.CHAT_ONTOLOGY);
+        mHelloMessage.setLanguage(codec.getName());
+        mHelloMessage.setConversationId("C-" + getLocalName());
+
         // Activate the GUI
         registerO2AInterface(ManagerInterface.class, this);
+        setEnabledO2ACommunication(true, BRIDGE_QUEUE_SIZE);
         addBehaviour(new ParticipantsManager(this));
+        AgentBridge.setEndpoint(this);
 
         Intent broadcast = new Intent();
         broadcast.setAction("jade.demo.agent.SEND_MESSAGE");
@@ -62,34 +82,101 @@ public class ManagerAgent extends Agent implements ManagerInterface {
         }
 
         public void action() {
+            boolean busy = false;
+            // rows from the peers, put by the bridge
+            Object o;
+            while ((o = myAgent.getO2AObject()) != null) {
+                deliverLocal((MessageRow) o);
+                busy = true;
+            }
             // Listening for incomming
-            ACLMessage msg = myAgent.receive();
-            if (msg != null) {
+            ACLMessage msg;
+            while ((msg = myAgent.receive()) != null) {
+                busy = true;
                 try {
+                    if (AgentBridge.CHAT_ONTOLOGY.equals(msg.getOntology())) {
+                        onChatMessage(msg);
+                        continue;
+                    }
                     //Get message
                     String content = msg.getContent();
                     if (content == null || "".equals(content)) {
-                        msg.getSender().getName();
-                        String localName = msg.getSender().getName();
-                        if (localName.contains("@") && localName.contains(":")) {
-                            WifiDirectUtils.OTHER_DEVICE_ADDRESS = localName.split(":")[0].split("@")[1];
+                        // hello of the other manager, its name is manager@host:port/JADE
+                        String host = hostOf(msg.getSender().getName());
+                        if (host != null) {
+                            WifiDirectUtils.OTHER_DEVICE_ADDRESS = host;
                         }
-                        //Start chat fragment
-
-                    } else {
-                        //Show content at chat fragment
-
+                        Log.d(TAG, "@@@ other device address:" + WifiDirectUtils.OTHER_DEVICE_ADDRESS);
                     }
-
-                    Log.d(TAG, "@@@ other device address:" + WifiDirectUtils.OTHER_DEVICE_ADDRESS);
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
-            } else {
+            }
+            if (!busy) {
                 block();
             }
         }
     }
+
+    /**
+     * a chat message of a local agent: subscribe, unsubscribe, or a row for the peers.
+     */
+    private void onChatMessage(ACLMessage msg) {
+        switch (msg.getPerformative()) {
+        case ACLMessage.SUBSCRIBE:
+            mRowMessage.removeReceiver(msg.getSender());   // once per agent
+            mRowMessage.addReceiver(msg.getSender());
+            break;
+        case ACLMessage.CANCEL:
+            mRowMessage.removeReceiver(msg.getSender());
+            break;
+        case ACLMessage.INFORM:
+            String sender = msg.getUserDefinedParameter(AgentBridge.PARAM_SENDER);
+            if (sender == null) {
+                sender = msg.getSender().getLocalName();
+            }
+            AgentBridge.toPeers(new MessageRow(sender, msg.getContent(), System.currentTimeMillis()));
+            break;
+        default:
+            break;
+        }
+    }
+
+    /**
+     * hand a row from the peers to the subscribed agents.
+     */
+    private void deliverLocal(MessageRow row) {
+        if (!mRowMessage.getAllReceiver().hasNext()) {
+            return;
+        }
+        mRowMessage.setContent(row.mMsg);
+        mRowMessage.addUserDefinedParameter(AgentBridge.PARAM_SENDER, row.mSender);
+        send(mRowMessage);
+    }
+
+    /**
+     * a row from the peers, called on the connection thread. Queued for the agent thread.
+     */
+    @Override
+    public void deliver(MessageRow row) {
+        try {
+            putO2AObject(row, false);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * the host of an agent name, the part between '@' and ':', null if the name has none.
+     */
+    static String hostOf(String name) {
+        int at = name.indexOf('@');
+        int colon = name.indexOf(':', at + 1);
+        if (at < 0 || colon < 0) {
+            return null;
+        }
+        return name.substring(at + 1, colon);
+    }
     
     class OneShotMessage extends OneShotBehaviour {
 		private static final long serialVersionUID = 7197253550536422665L;
@@ -102,21 +189,31 @@ public class ManagerAgent extends Agent implements ManagerInterface {
 
         @Override
         public void action() {
-            ACLMessage message = new ACLMessage(ACLMessage.INFORM);
-            message.setLanguage(codec.getName());
-            String convId = "C-" + myAgent.getLocalName();
-            message.setConversationId(convId);
-            message.setContent(mMessage);
-            AID dummyAid = new AID();
-            dummyAid.setName(agentName + "@" + mAddress + ":1099/JADE");
-            dummyAid.addAddresses("http://" + mAddress + ":7778/acc");
-            message.addReceiver(dummyAid);
-            myAgent.send(message);
-            Log.i(TAG, "@@@Send message:" + message.getContent());
+            // the other manager is on the other device's platform, only this hello takes the http mtp.
+            mHelloMessage.clearAllReceiver();
+            mHelloMessage.addReceiver(managerAid(mAddress));
+            mHelloMessage.setContent(mMessage);
+            myAgent.send(mHelloMessage);
+            Log.i(TAG, "@@@Send message:" + mHelloMessage.getContent());
+        }
+    }
+
+    /**
+     * the AID of the manager on the device at address, made once.
+     */
+    private AID managerAid(String address) {
+        AID aid = mManagerAids.get(address);
+        if (aid == null) {
+            aid = new AID();
+            aid.setName(agentName + "@" + address + ":1099/JADE");
+            aid.addAddresses("http://" + address + ":7778/acc");
+            mManagerAids.put(address, aid);
         }
+        return aid;
     }
 
     protected void takeDown() {
+        AgentBridge.clearEndpoint(this);
     }
     
 	@Override
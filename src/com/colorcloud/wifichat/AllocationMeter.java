@@ -0,0 +1,75 @@
+package com.colorcloud.wifichat;
+
+import java.lang.reflect.Method;
+
+/**
+ * bytes allocated by the current thread, for benchmarks. Uses the HotSpot thread mx bean on a desktop JVM,
+ * and dalvik's per thread allocation counter on a device. Returns -1 when neither is available.
+ * Looked up by reflection so the class loads on both runtimes.
+ */
+public final class AllocationMeter {
+
+	private static Object sThreadBean = null;
+	private static Method sBeanAllocated = null;
+	private static Method sDalvikAllocSize = null;
+
+	static {
+		try {
+			Class<?> factory = Class.forName("java.lang.management.ManagementFactory");
+			Object bean = factory.getMethod("getThreadMXBean").invoke(null);
+			Class<?> sunBean = Class.forName("com.sun.management.ThreadMXBean");
+			if (sunBean.isInstance(bean)) {
+				sBeanAllocated = sunBean.getMethod("getThreadAllocatedBytes", long.class);
+				sThreadBean = bean;
+			}
+		} catch (Throwable t) {
+			// not a HotSpot style runtime.
+		}
+		if (sThreadBean == null) {
+			try {
+				Class<?> debug = Class.forName("android.os.Debug");
+				debug.getMethod("startAllocCounting").invoke(null);
+				sDalvikAllocSize = debug.getMethod("getThreadAllocSize");
+			} catch (Throwable t) {
+				// no allocation counter on this runtime.
+			}
+		}
+	}
+
+	private AllocationMeter() {}
+
+	/**
+	 * @return bytes allocated by the calling thread so far, -1 if unknown.
+	 */
+	public static long threadAllocatedBytes() {
+		try {
+			if (sThreadBean != null) {
+				return (Long)sBeanAllocated.invoke(sThreadBean, Thread.currentThread().getId());
+			}
+			if (sDalvikAllocSize != null) {
+				return ((Integer)sDalvikAllocSize.invoke(null)).longValue();
+			}
+		} catch (Exception e) {
+			// fall through
+		}
+		return -1;
+	}
+
+	/**
+	 * @return bytes allocated by another thread so far, -1 if unknown. Desktop JVM only.
+	 */
+	public static long threadAllocatedBytes(Thread thread) {
+		try {
+			if (sThreadBean != null) {
+				return (Long)sBeanAllocated.invoke(sThreadBean, thread.getId());
+			}
+		} catch (Exception e) {
+			// fall through
+		}
+		return -1;
+	}
+
+	public static boolean isAvailable() {
+		return sThreadBean != null || sDalvikAllocSize != null;
+	}
+}
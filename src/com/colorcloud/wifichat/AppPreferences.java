@@ -35,6 +35,7 @@ public class AppPreferences {
     public static final String PREF_NAME = Constants.PACKAGE_NAME;
     
     public static final String P2P_ENABLED = "p2pEnabled";
+    public static final String INCOMING_BATCH_WINDOW = "incomingBatchWindow";   // ms, see IncomingBatcher
 
     private WiFiDirectApp mApp;
     private SharedPreferences mPref;
@@ -97,6 +98,21 @@ public class AppPreferences {
     	}
     }
     
+    /**
+     * Get a number stored as a string, the default if it is not set or not a number.
+     */
+    public static long getLongFromPref(Context ctx, String preferenceFileName, String key, long defValue) {
+    	String value = getStringFromPref(ctx, preferenceFileName, key);
+    	if( value == null ){
+    		return defValue;
+    	}
+    	try {
+    		return Long.parseLong(value.trim());
+    	} catch (NumberFormatException e) {
+    		return defValue;
+    	}
+    }
+    
     /**
      * Get the value of a key from a different preference in the same application
      * adb shell cat /data/data/com.motorola.contextual.smartrules/shared_prefs/com.motorola.contextual.virtualsensor.locationsensor.xml
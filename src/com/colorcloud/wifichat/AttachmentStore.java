@@ -0,0 +1,239 @@
+package com.colorcloud.wifichat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * received attachments, stored once per content. A blob is named by the sha-256 of its bytes, plus the extension
+ * of the first name it came with so viewers can open it. The same image shared again, by anyone, maps to the
+ * blob already on disk.
+ *
+ * The store keeps its bytes under a cap and evicts the least recently used blobs. A lookup or a put counts as a
+ * use, and touches the file, so the order survives a restart through the files' modification times.
+ *
+ * Thread safe. The first use scans the directory and puts may delete evicted blobs, so the StreamMux calls it
+ * on its writer thread only, never on the selector thread.
+ */
+public class AttachmentStore {
+
+	public static final int HASH_LEN = 32;
+	private static final String DIGEST = "SHA-256";
+	private static final String PART_SUFFIX = ".part";
+	private static final int MAX_EXT_LEN = 8;
+	private static final int HASH_BUF_SIZE = 64*1024;
+
+	private final File mDir;
+	private final long mMaxBytes;
+	private final LinkedHashMap<String, Blob> mBlobs = new LinkedHashMap<String, Blob>(16, 0.75f, true);   // lru order
+	private long mBytes = 0;     // sum of the recorded blob sizes, right even if a blob vanished from disk.
+	private boolean mLoaded = false;
+
+	/**
+	 * a stored blob and the size it was counted with.
+	 */
+	private static class Blob {
+		final File mFile;
+		final long mSize;
+
+		Blob(File file) {
+			mFile = file;
+			mSize = file.length();
+		}
+	}
+
+	public AttachmentStore(File dir, long maxBytes) {
+		mDir = dir;
+		mMaxBytes = maxBytes;
+	}
+
+	public File getDir() {
+		return mDir;
+	}
+
+	/**
+	 * the blob with the content, null if not stored.
+	 */
+	public synchronized File get(byte[] hash, long size) {
+		load();
+		String key = toHex(hash);
+		Blob b = mBlobs.get(key);
+		if (b == null) {
+			return null;
+		}
+		File f = b.mFile;
+		if (!f.isFile() || f.length() != size) {
+			mBlobs.remove(key);
+			mBytes -= b.mSize;
+			return null;
+		}
+		f.setLastModified(System.currentTimeMillis());
+		return f;
+	}
+
+	/**
+	 * move a received file in as the blob of the hash. If the content is stored already the file is dropped.
+	 * Evicts the least recently used blobs over the cap, never the one just put.
+	 * @return the blob, null if the file could not be moved.
+	 */
+	public synchronized File put(File part, byte[] hash, String name) {
+		load();
+		String key = toHex(hash);
+		Blob b = mBlobs.get(key);
+		if (b != null && b.mFile.isFile()) {
+			part.delete();
+			b.mFile.setLastModified(System.currentTimeMillis());
+			return b.mFile;
+		}
+		if (b != null) {
+			mBlobs.remove(key);     // vanished from disk.
+			mBytes -= b.mSize;
+		}
+		File f = new File(mDir, key + extension(name));
+		if (!part.renameTo(f)) {
+			part.delete();
+			return null;
+		}
+		b = new Blob(f);
+		mBlobs.put(key, b);
+		mBytes += b.mSize;
+		evict(f);
+		return f;
+	}
+
+	public synchronized long getBytes() {
+		load();
+		return mBytes;
+	}
+
+	public synchronized int getCount() {
+		load();
+		return mBlobs.size();
+	}
+
+	private void evict(File keep) {
+		Iterator<Map.Entry<String, Blob>> it = mBlobs.entrySet().iterator();
+		while (mBytes > mMaxBytes && it.hasNext()) {
+			Blob b = it.next().getValue();
+			if (b.mFile == keep) {
+				continue;
+			}
+			mBytes -= b.mSize;
+			b.mFile.delete();
+			it.remove();
+		}
+	}
+
+	/**
+	 * index the blobs on disk on first use, oldest first, and drop parts a crash left behind.
+	 */
+	private void load() {
+		if (mLoaded) {
+			return;
+		}
+		mLoaded = true;
+		File[] files = mDir.listFiles();
+		if (files == null) {
+			return;
+		}
+		List<File> blobs = new ArrayList<File>();
+		for (File f : files) {
+			if (f.getName().endsWith(PART_SUFFIX)) {
+				f.delete();
+			} else if (f.isFile() && keyOf(f) != null) {
+				blobs.add(f);
+			}
+		}
+		Collections.sort(blobs, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				long d = a.lastModified() - b.lastModified();
+				return d < 0 ? -1 : (d > 0 ? 1 : 0);
+			}
+		});
+		for (File f : blobs) {
+			Blob b = new Blob(f);
+			mBlobs.put(keyOf(f), b);
+			mBytes += b.mSize;
+		}
+		evict(null);
+	}
+
+	private static String keyOf(File f) {
+		String name = f.getName();
+		if (name.length() < HASH_LEN * 2) {
+			return null;
+		}
+		String key = name.substring(0, HASH_LEN * 2);
+		for (int i = 0; i < key.length(); i++) {
+			if (Character.digit(key.charAt(i), 16) < 0) {
+				return null;
+			}
+		}
+		return key;
+	}
+
+	private static String extension(String name) {
+		int dot = name.lastIndexOf('.');
+		if (dot < 0 || name.length() - dot > MAX_EXT_LEN + 1) {
+			return "";
+		}
+		String ext = name.substring(dot);
+		return ext.matches("\\.[A-Za-z0-9]+") ? ext : "";
+	}
+
+	public static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(DIGEST);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(DIGEST + " not available");
+		}
+	}
+
+	/**
+	 * the content hash of the first size bytes of the file. Reads at absolute positions, the channel's
+	 * position does not move.
+	 */
+	public static byte[] hash(FileChannel file, long size) throws IOException {
+		MessageDigest md = newDigest();
+		update(md, file, size);
+		return md.digest();
+	}
+
+	/**
+	 * feed the first size bytes of the file into a digest, like hash().
+	 */
+	public static void update(MessageDigest md, FileChannel file, long size) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(HASH_BUF_SIZE);
+		long pos = 0;
+		while (pos < size) {
+			buf.clear();
+			buf.limit((int)Math.min(buf.capacity(), size - pos));
+			int n = file.read(buf, pos);
+			if (n < 0) {
+				throw new IOException("file shorter than " + size);
+			}
+			pos += n;
+			buf.flip();
+			md.update(buf);
+		}
+	}
+
+	public static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+}
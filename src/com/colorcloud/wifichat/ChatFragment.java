@@ -1,26 +1,24 @@
 package com.colorcloud.wifichat;
 
-import java.util.ArrayList;
-import java.util.List;
-
-import org.json.JSONArray;
-import org.json.JSONException;
+import static com.colorcloud.wifichat.Constants.*;
 
 import android.app.Activity;
 import android.app.ListFragment;
 import android.content.Context;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.inputmethod.InputMethodManager;
-import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.ListView;
 import android.widget.TextView;
 
-import com.colorcloud.wifichat.WiFiDirectApp.PTPLog;
 
 /**
  * chat fragment attached to main activity.
@@ -31,8 +29,21 @@ public class ChatFragment extends ListFragment {
 	WiFiDirectApp mApp = null; 
 	private static MainActivity mActivity = null;
 	
-	private ArrayList<MessageRow> mMessageList = null;   // a list of chat msgs.
-    private ArrayAdapter<MessageRow> mAdapter= null;
+	private static final long UPDATE_FRAME_MS = 16;    // new rows are shown at most once per frame.
+	
+	private ChatListModel mMessageList = null;   // windowed view of the chat history.
+    private ChatMessageAdapter mAdapter= null;
+    private final Handler mUiHandler = new Handler(Looper.getMainLooper());
+    private boolean mUpdatePending = false;     // guarded by mUiHandler
+    
+    private final Runnable mUpdateRunnable = new Runnable() {
+    	@Override public void run() {
+    		synchronized (mUiHandler) {
+    			mUpdatePending = false;
+    		}
+    		showNewRows();
+    	}
+    };
     
     // private String mMyAddr;
     
@@ -67,8 +78,8 @@ public class ChatFragment extends ListFragment {
     @Override
     public void onSaveInstanceState(Bundle outState){
     	super.onSaveInstanceState(outState);
-    	outState.putParcelableArrayList("MSG_LIST", mMessageList);
-    	Log.d(TAG, "onSaveInstanceState. " + mMessageList.get(0).mMsg);
+    	// nothing to save, the chat history is in the message store.
+    	Log.d(TAG, "onSaveInstanceState. ");
     }
     
     /**
@@ -89,11 +100,14 @@ public class ChatFragment extends ListFragment {
 				inputEditText.setText("");
 				InputMethodManager imm = (InputMethodManager)mActivity.getSystemService(Context.INPUT_METHOD_SERVICE);
 				imm.hideSoftInputFromWindow(inputEditText.getWindowToken(), 0);
-				MessageRow row = new MessageRow(mApp.mDeviceName, inputMsg, null);
-				appendChatMessage(row);
-				String jsonMsg = mApp.shiftInsertMessage(row);
-				PTPLog.d(TAG, "sendButton clicked: sendOut data : " + jsonMsg);
-				mActivity.pushOutMessage(jsonMsg);
+				final MessageRow row = new MessageRow(mApp.mDeviceName, inputMsg, null);
+				mApp.shiftInsertMessage(row, mUiHandler, new Runnable() {
+					@Override public void run() {
+						appendChatMessage(row);
+					}
+				});
+				PTPLog.d(TAG, "sendButton clicked: sendOut data : {}", row.mMsg);
+				mActivity.pushOutMessage(row);
 			}
         });
         
@@ -101,19 +115,24 @@ public class ChatFragment extends ListFragment {
         String msg = getArguments().getString("initMsg");
         PTPLog.d(TAG, "onCreateView : fragment view created: msg :" + msg);
         
-    	if( savedInstanceState != null ){
-            mMessageList = savedInstanceState.getParcelableArrayList("MSG_LIST");
-            Log.d(TAG, "onCreate : savedInstanceState: " + mMessageList.get(0).mMsg);
-        }else if( mMessageList == null ){
+    	if( mMessageList == null ){
         	// no need to setContentView, just setListAdapter, but listview must be android:id="@android:id/list"
-            mMessageList = new ArrayList<MessageRow>();
-            jsonArrayToList(mApp.mMessageArray, mMessageList);
-            Log.d(TAG, "onCreate : jsonArrayToList : " + mMessageList.size() );
+            mMessageList = new ChatListModel(mApp.mMessageStore);   // rows are paged in as the list shows them.
+            Log.d(TAG, "onCreate : message history : " + mMessageList.size() );
+            if( mApp.mMessageStore == null ){
+            	// still opening, show the history once it is.
+            	mApp.postToStore(new Runnable() {
+            		@Override public void run() {
+            			appendChatMessage(null);
+            		}
+            	});
+            }
         }else {
+        	mMessageList.refresh();
         	Log.d(TAG, "onCreate : setRetainInstance good : ");
         }
         
-        mAdapter = new ChatMessageAdapter(mActivity, mMessageList);
+        mAdapter = new ChatMessageAdapter(mActivity);
         
         setListAdapter(mAdapter);  // list fragment data adapter 
         
@@ -124,6 +143,10 @@ public class ChatFragment extends ListFragment {
     @Override 
     public void onDestroyView(){ 
     	super.onDestroyView(); 
+    	mUiHandler.removeCallbacks(mUpdateRunnable);
+    	synchronized (mUiHandler) {
+    		mUpdatePending = false;
+    	}
     	Log.d(TAG, "onDestroyView: ");
     }
 
@@ -140,25 +163,36 @@ public class ChatFragment extends ListFragment {
     }
     
     /**
-     * add a chat message to the list, return the format the message as " sender_addr : msg "
+     * a chat message was added to the message store, show it. Can be called from any thread.
+     * A burst of messages is coalesced into one list update on the next frame.
      */
     public void appendChatMessage(MessageRow row) {
-    	Log.d(TAG, "appendChatMessage: chat fragment append msg: " + row.mSender + " ; " + row.mMsg);
-    	mMessageList.add(row);
-    	getListView().smoothScrollToPosition(mMessageList.size()-1);
-    	mAdapter.notifyDataSetChanged();  // notify the attached observer and views to refresh.
-    	return;
+    	synchronized (mUiHandler) {
+    		if( mUpdatePending ){
+    			return;
+    		}
+    		mUpdatePending = true;
+    	}
+    	mUiHandler.postDelayed(mUpdateRunnable, UPDATE_FRAME_MS);
     }
     
-    private void jsonArrayToList(JSONArray jsonarray, List<MessageRow> list) {
-    	try{
-    		for(int i=0;i<jsonarray.length();i++){
-    			MessageRow row = MessageRow.parseMesssageRow(jsonarray.getJSONObject(i));
-    			PTPLog.d(TAG, "jsonArrayToList: row : " + row.mMsg);
-    			list.add(row);
-    		}
-    	}catch(JSONException e){
-    		PTPLog.e(TAG, "jsonArrayToList: " + e.toString());
+    /**
+     * pick up the rows appended since the last update, rebind once, and follow the tail if the user was at the bottom.
+     */
+    private void showNewRows() {
+    	if( mAdapter == null || getView() == null ){
+    		return;
+    	}
+    	int oldCount = mMessageList.size();
+    	mMessageList.setStore(mApp.mMessageStore);
+    	if( !mMessageList.refresh() ){
+    		return;
+    	}
+    	ListView listView = getListView();
+    	boolean atBottom = listView.getLastVisiblePosition() >= oldCount - 1;
+    	mAdapter.notifyDataSetChanged();  // notify the attached observer and views to refresh.
+    	if( atBottom ){
+    		listView.setSelection(mMessageList.size()-1);
     	}
     }
     
@@ -166,18 +200,41 @@ public class ChatFragment extends ListFragment {
      * chat message adapter from list adapter.
      * Responsible for how to show data to list fragment list view.
      */
-    final class ChatMessageAdapter extends ArrayAdapter<MessageRow> {
+    final class ChatMessageAdapter extends BaseAdapter {
 
     	public static final int VIEW_TYPE_MYMSG = 0;
     	public static final int VIEW_TYPE_INMSG = 1;
     	public static final int VIEW_TYPE_COUNT = 2;    // msg sent by me, or all incoming msgs
     	private LayoutInflater mInflater;
     	
-		public ChatMessageAdapter(Context context, List<MessageRow> objects){
-			super(context, 0, objects);
+    	/**
+    	 * child views of a recycled row view, saves the findViewById on every bind.
+    	 */
+    	final class RowViews {
+    		TextView mSender;
+    		TextView mMsg;
+    		TextView mTime;
+    	}
+    	
+		public ChatMessageAdapter(Context context){
             mInflater = (LayoutInflater)context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
         }
 		
+		@Override
+		public int getCount() {
+			return mMessageList.size();
+		}
+		
+		@Override
+		public MessageRow getItem(int position) {
+			return mMessageList.get(position);
+		}
+		
+		@Override
+		public long getItemId(int position) {
+			return position;
+		}
+		
 		@Override
         public int getViewTypeCount() {
             return VIEW_TYPE_COUNT;
@@ -193,43 +250,37 @@ public class ChatFragment extends ListFragment {
 		}
 		
 		/**
-		 * assemble each row view in the list view.
+		 * assemble each row view in the list view. Only visible rows are bound, their data paged in from the model.
 		 * http://dl.google.com/googleio/2010/android-world-of-listview-android.pdf
 		 */
 		@Override
         public View getView(int position, View convertView, ViewGroup parent) {
 			View view = convertView;  // old view to re-use if possible. Useful for Heterogeneous list with diff item view type.
 			MessageRow item = this.getItem(position);
-			boolean mymsg = false;
+			boolean mymsg = (getItemViewType(position) == VIEW_TYPE_MYMSG);
 			
-			if ( getItemViewType(position) == VIEW_TYPE_MYMSG){
-				if( view == null ){
+			if( view == null ){
+				if( mymsg ){
 	            	view = mInflater.inflate(R.layout.chat_row_mymsg, null);  // inflate chat row as list view row.
-	            }
-				mymsg = true;
-				// view.setBackgroundResource(R.color.my_msg_background);
-			} else {
-				if( view == null ){
+				} else {
 	            	view = mInflater.inflate(R.layout.chat_row_inmsg, null);  // inflate chat row as list view row.
+				}
+				RowViews rv = new RowViews();
+				rv.mSender = (TextView)view.findViewById(R.id.sender);
+				rv.mMsg = (TextView)view.findViewById(R.id.msg_row);
+				rv.mTime = (TextView)view.findViewById(R.id.time);
+				if( mymsg ){
+	            	rv.mMsg.setBackgroundResource(R.color.my_msg_background);	
+	            }else{
+	            	rv.mMsg.setBackgroundResource(R.color.in_msg_background);
 	            }
-				// view.setBackgroundResource(R.color.in_msg_background);
-			}
-			
-            TextView sender = (TextView)view.findViewById(R.id.sender);
-            sender.setText(item.mSender);
-            
-            TextView msgRow = (TextView)view.findViewById(R.id.msg_row);
-            msgRow.setText(item.mMsg);
-            if( mymsg ){
-            	msgRow.setBackgroundResource(R.color.my_msg_background);	
-            }else{
-            	msgRow.setBackgroundResource(R.color.in_msg_background);
+				view.setTag(rv);
             }
-            
-            TextView time = (TextView)view.findViewById(R.id.time);
-            time.setText(item.mTime);
-            
-            Log.d(TAG, "getView : " + item.mSender + " " + item.mMsg + " " + item.mTime);
+			
+			RowViews rv = (RowViews)view.getTag();
+            rv.mSender.setText(item.mSender);
+            rv.mMsg.setText(item.mMsg);
+            rv.mTime.setText(item.mTime);
             return view;
 		}
     }
@@ -0,0 +1,133 @@
+package com.colorcloud.wifichat;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * windowed view of the chat history for the chat list. Position i of the list is message firstSeq + i of the
+ * message store. Rows are paged in from the store when the list view asks for them, and only the last few
+ * pages touched are kept, so memory stays flat however long the history is.
+ *
+ * The size is a snapshot taken by refresh(); the list only sees new rows after the UI thread refreshes,
+ * which lets a burst of incoming rows become a single list update. Not thread safe, UI thread only.
+ */
+public class ChatListModel {
+
+	public static final int PAGE_SIZE = 50;
+	private static final int MAX_PAGES = 8;
+
+	private static final MessageRow MISSING_ROW = new MessageRow("", "", 0L);   // page could not be read.
+
+	/**
+	 * rows of one page, starting at mStart. A page can start after its boundary when old segments were deleted.
+	 */
+	private static class Page {
+		final long mStart;
+		final List<MessageRow> mRows;
+
+		Page(long start, List<MessageRow> rows) {
+			mStart = start;
+			mRows = rows;
+		}
+	}
+
+	private MessageStore mStore;
+	private long mFirstSeq = 0;
+	private int mCount = 0;
+
+	// page number (seq / PAGE_SIZE) -> rows, access ordered LRU.
+	private final LinkedHashMap<Long, Page> mPages = new LinkedHashMap<Long, Page>(MAX_PAGES + 1, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Page> eldest) {
+			return size() > MAX_PAGES;
+		}
+	};
+
+	/**
+	 * @param store the message store, null if there is no history or it is not open yet.
+	 */
+	public ChatListModel(MessageStore store) {
+		mStore = store;
+		refresh();
+	}
+
+	/**
+	 * the store once it is open, if the model was created before.
+	 */
+	public void setStore(MessageStore store) {
+		if (mStore == null && store != null) {
+			mStore = store;
+		}
+	}
+
+	public int size() {
+		return mCount;
+	}
+
+	/**
+	 * the row at a list position, paging it in from the store if needed.
+	 */
+	public MessageRow get(int position) {
+		long seq = mFirstSeq + position;
+		long pageNo = seq / PAGE_SIZE;
+		Page page = mPages.get(pageNo);
+		if (page == null) {
+			page = loadPage(pageNo);
+			if (page == null) {
+				return MISSING_ROW;
+			}
+			mPages.put(pageNo, page);
+		}
+		int idx = (int)(seq - page.mStart);
+		if (idx < 0 || idx >= page.mRows.size()) {
+			return MISSING_ROW;
+		}
+		return page.mRows.get(idx);
+	}
+
+	private Page loadPage(long pageNo) {
+		if (mStore == null) {
+			return null;
+		}
+		long from = Math.max(pageNo * PAGE_SIZE, mFirstSeq);
+		try {
+			return new Page(from, mStore.readPage(from, (int)((pageNo + 1) * PAGE_SIZE - from)));
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * take a new snapshot of the store size. The last page is dropped if it was short, it has new rows now.
+	 * @return true if the list changed.
+	 */
+	public boolean refresh() {
+		if (mStore == null) {
+			return false;
+		}
+		long firstSeq;
+		long size;
+		synchronized (mStore) {
+			firstSeq = mStore.firstSeq();
+			size = mStore.size();
+		}
+		int count = (int)Math.min(Integer.MAX_VALUE, size - firstSeq);
+		if (firstSeq == mFirstSeq && count == mCount) {
+			return false;
+		}
+		if (firstSeq < mFirstSeq || size < mFirstSeq + mCount) {
+			mPages.clear();      // the store was cleared.
+		} else if (mCount > 0) {
+			mPages.remove((mFirstSeq + mCount - 1) / PAGE_SIZE);
+			if (firstSeq != mFirstSeq) {
+				mPages.remove(firstSeq / PAGE_SIZE);   // its first rows are gone.
+			}
+		}
+		mFirstSeq = firstSeq;
+		mCount = count;
+		return true;
+	}
+}
@@ -1,54 +1,160 @@
 package com.colorcloud.wifichat;
 
+import static com.colorcloud.wifichat.Constants.*;
+
+import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
 
-import android.content.Context;
-import android.util.Log;
-
-import com.colorcloud.wifichat.WiFiDirectApp.PTPLog;
 
 /**
  * this class encapsulate the NIO buffer and NIO channel on top of socket. It is all abt NIO style.
  * SSLServerSocketChannel, ServerSocketChannel, SocketChannel, Selector, ByteBuffer, etc. 
  * NIO buffer (ByteBuffer) either in writing mode or in reading mode. Need to flip the mode before reading or writing.
  *
- * You know when a socket channel disconnected when you read -1 or write exception. You need app level ACK.
+ * You know when a socket channel disconnected when you read -1 or write exception. The app level acks are in
+ * ReliableSession: rows to a peer are numbered and kept until acked, and only the missing ones are resent
+ * when the peer comes back.
+ *
+ * All connection state is confined to the SelectorLoop thread, which also runs every callback from the channels.
+ * The public entry points called from the service or the UI hand themselves over to the loop, so nothing here
+ * needs a lock.
+ *
+ * The device side, storage and the service, is behind the Host, so the manager runs off a device as well, in
+ * the LoopbackSimulator.
  */
 public class ConnectionManager {
 	
 	private final String TAG = "PTP_ConnMan";
 	
-	private Context mContext;
-	ConnectionService mService;
-	WiFiDirectApp mApp;
+	/**
+	 * what the manager needs from the device. Called on the loop thread.
+	 */
+	public interface Host {
+		/** where received files are written, and the attachment store kept. */
+		File getReceiveDir();
+		/** the address this device got on the group. */
+		void setMyAddr(String addr);
+		/** a new row from a peer, relayed already, to be stored and shown. */
+		void onRowIn(MessageRow row);
+		/** a file stream from a peer completed, or its content was in the attachment store already. */
+		void onFileReceived(String origin, String name, File file);
+	}
+	
+	private final Host mHost;
+	private final int mPort;          // the group owner's chat server socket.
+	private String mLocalAddr = null; // bind connects to this address, null for any.
+	private boolean mIsServer = false;
 	
-	// Server knows all clients. key is ip addr, value is socket channel. 
+	// Server knows all clients. key is ip addr, value is the peer connection wrapping the socket channel. 
 	// when remote client screen on, a new connection with the same ip addr is established.
-	private Map<String, SocketChannel> mClientChannels = new HashMap<String, SocketChannel>();
+	private Map<String, PeerConnection> mClientChannels = new HashMap<String, PeerConnection>();
 	
-	// global selector and channels
-	private Selector mClientSelector = null;
-	private Selector mServerSelector = null;
+	// the loop owns the one selector, the channels and all the state below.
+	private final SelectorLoop mLoop;
 	private ServerSocketChannel mServerSocketChannel = null;
 	private SocketChannel mClientSocketChannel = null;
+	private PeerConnection mServerConn = null;     // client side, the connection to group owner.
+	private LinkState mServerLink = null;          // server side, keeps the server socket listening.
+	private LinkState mClientLink = null;          // client side, keeps the connection to group owner up.
 	String mClientAddr = null;
 	String mServerAddr = null;
 	
+	// per peer outbound queue policy, a slow peer must not stall or corrupt the fan-out to others.
+	private OutboundQueue.OverflowPolicy mQueuePolicy = OutboundQueue.OverflowPolicy.DROP_OLDEST;
+	private int mHighWatermark = WRITE_QUEUE_HIGH_WATERMARK;
+	private int mLowWatermark = WRITE_QUEUE_LOW_WATERMARK;
+	
+	// binary row encoder shared by all connections, a broadcast row is encoded once per wire format.
+	private final MessageCodec.Encoder mEncoder = new MessageCodec.Encoder();
+	
+	// reliable delivery state per peer, kept across reconnects. Server: keyed by client addr.
+	private Map<String, ReliableSession> mSessions = new HashMap<String, ReliableSession>();
+	private ReliableSession mServerSession = null;   // client side, the session with group owner.
+	private final long mEpoch = (new Random().nextLong() & Long.MAX_VALUE) | 1;   // tells peers we restarted.
+	
+	// file streams multiplexed over the chat connections, pulled by the loop after the chat frames.
+	private final StreamMux mStreamMux;
+	
+	// mesh relay: routes and duplicate suppression over mesh capable links. A group owner bridges to another
+	// group through its uplink, a client connection to that group's owner on the same selector.
+	private final MeshRouter mRouter = new MeshRouter(mEpoch, MESH_MAX_TTL, MESH_DEDUP_ORIGINS);
+	private PeerConnection mUplinkConn = null;
+	private ReliableSession mUplinkSession = null;
+	private LinkState mUplinkLink = null;
+	
+	// per peer transport metrics, null while disabled.
+	private TransportMetrics mMetrics = null;
+	
 	/**
-	 * constructor
+	 * constructor, the group owner listens on port and clients connect to it.
 	 */
-	public ConnectionManager(ConnectionService service) {
-		mService = service;
-		mApp = (WiFiDirectApp)mService.getApplication();
+	public ConnectionManager(Host host, int port) {
+		mHost = host;
+		mPort = port;
+		File receiveDir = host.getReceiveDir();
+		AttachmentStore store = new AttachmentStore(new File(receiveDir, ATTACH_STORE_DIR), ATTACH_STORE_MAX_BYTES);
+		mStreamMux = new StreamMux(FRAME_HEADER_MODE, receiveDir, store, new StreamMux.Callback() {
+			@Override
+			public void requestFlush(PeerConnection conn) {
+				mLoop.requestFlush(conn);
+			}
+			@Override
+			public void onFileReceived(String origin, String name, File file) {
+				mHost.onFileReceived(origin, name, file);
+			}
+			@Override
+			public void onStreamFailed(String peer, String name) {
+				PTPLog.e(TAG, "onStreamFailed : file stream aborted: " + name + " peer: " + peer);
+			}
+		});
+		try {
+			mLoop = new SelectorLoop(this);
+		} catch (IOException e) {
+			throw new IllegalStateException("can not open selector: " + e.toString());
+		}
+		mLoop.start();
+	}
+	
+	public StreamMux getStreamMux() {
+		return mStreamMux;
+	}
+	
+	/**
+	 * stop the loop, it closes every channel, and the stream reader. The manager can not be started again.
+	 */
+	public void shutdown() {
+		mLoop.shutdown();
+		mStreamMux.shutdown();
+	}
+	
+	/**
+	 * bind the connections this device opens to a local address, for a device with several interfaces.
+	 * The simulator gives each of its clients its own loopback address this way. Applies to later connects.
+	 */
+	public void setLocalAddress(final String addr) {
+		if( !mLoop.inLoop() ){
+			mLoop.execute(new Runnable() {
+				@Override
+				public void run() {
+					setLocalAddress(addr);
+				}
+			});
+			return;
+		}
+		mLocalAddr = addr;
 	}
 	
 	public void configIPV4() {
@@ -57,6 +163,47 @@ public class ConnectionManager {
 		java.lang.System.setProperty("java.net.preferIPv6Addresses", "false");
 	}
 	
+	/**
+	 * configure how per peer outbound queues handle a slow peer. Applies to connections created afterwards.
+	 */
+	public void setWriteQueuePolicy(final OutboundQueue.OverflowPolicy policy, final int highWatermark, final int lowWatermark) {
+		if( !mLoop.inLoop() ){
+			mLoop.execute(new Runnable() {
+				@Override
+				public void run() {
+					setWriteQueuePolicy(policy, highWatermark, lowWatermark);
+				}
+			});
+			return;
+		}
+		mQueuePolicy = policy;
+		mHighWatermark = highWatermark;
+		mLowWatermark = lowWatermark;
+	}
+	
+	/**
+	 * wrap a connected socket channel with its frame decoder and outbound queue.
+	 */
+	public PeerConnection createPeerConnection(SocketChannel schannel, String peeraddr) {
+		FrameDecoder decoder = new FrameDecoder(FRAME_HEADER_MODE, peeraddr);
+		OutboundQueue outqueue = new OutboundQueue(mQueuePolicy, mHighWatermark, mLowWatermark, WRITE_QUEUE_BLOCK_TIMEOUT);
+		outqueue.setWriter(mLoop.getThread());    // the loop produces for every peer, it must not block on one.
+		PeerConnection conn = new PeerConnection(schannel, peeraddr, decoder, outqueue);
+		conn.setFrameSource(mStreamMux.attach(conn));
+		if( mMetrics != null ){
+			attachMetrics(conn);
+		}
+		return conn;
+	}
+	
+	/**
+	 * attach a session to its new connection, timing rows for the metrics while enabled.
+	 */
+	private void attachSession(ReliableSession session, PeerConnection conn) {
+		session.setTimed(mMetrics != null);
+		session.attach(conn);
+	}
+	
 	/**
 	 * create a server socket channel to listen to the port for incoming connections.
 	 */
@@ -65,259 +212,855 @@ public class ConnectionManager {
 	    ServerSocketChannel ssChannel = ServerSocketChannel.open();
 	    ssChannel.configureBlocking(false);
 	    ServerSocket serverSocket = ssChannel.socket();
-	    serverSocket.bind(new InetSocketAddress(port));  // bind to the port to listen.
+	    try {
+	    	serverSocket.setReuseAddress(true);   // re-open right away after a restart.
+	    	serverSocket.bind(new InetSocketAddress(port));  // bind to the port to listen.
+	    } catch (IOException e) {
+	    	ssChannel.close();
+	    	throw e;
+	    }
 	    return ssChannel;
 	}
 	
 	/**
-	 * Creates a non-blocking socket channel to connect to specified host name and port.
-	 * connect() is called on the new channel before it is returned.
+	 * Creates a non-blocking socket channel to connect to specified host name and port, from the local
+	 * address if not null. connect() is called on the new channel before it is returned.
 	 */
-	public static SocketChannel createSocketChannel(String hostName, int port) throws IOException {
+	public static SocketChannel createSocketChannel(String hostName, int port, String localAddr) throws IOException {
 	    // Create a non-blocking socket channel
 	    SocketChannel sChannel = SocketChannel.open();
-	    sChannel.configureBlocking(false);
+	    try {
+	    	sChannel.configureBlocking(false);
+	    	if( localAddr != null ){
+	    		sChannel.socket().bind(new InetSocketAddress(localAddr, 0));
+	    	}
 
-	    // Send a connection request to the server; this method is non-blocking
-	    sChannel.connect(new InetSocketAddress(hostName, port));
+	    	// Send a connection request to the server; this method is non-blocking
+	    	sChannel.connect(new InetSocketAddress(hostName, port));
+	    } catch (IOException e) {
+	    	sChannel.close();
+	    	throw e;
+	    }
 	    return sChannel;
 	}
 
-	
-	/**
-	 * create a socket channel and connect to the host.
-	 * after return, the socket channel guarantee to be connected.
-	 */
-	public SocketChannel connectTo(String hostname, int port) throws Exception {
-		SocketChannel sChannel = null;
-		
-		sChannel = createSocketChannel(hostname, port);  // connect to the remote host, port
 
-		// Before the socket is usable, the connection must be completed. finishConnect().
-		while (!sChannel.finishConnect()) {
-				// blocking spin lock
-		}
-		
-		// Socket channel is now ready to use
-		return sChannel;
-	}
-	
 	/**
 	 * client, after p2p connection available, connect to group owner and select monitoring the sockets.
-	 * start blocking selector monitoring in an async task, infinite loop
+	 * The connect completes on the loop, and the connection is brought back whenever it breaks until closeClient.
+	 * Rows sent meanwhile are buffered in the session. Blocks the caller until the connect started.
 	 */
-	public int startClientSelector(String host) {
+	public int startClientSelector(final String host) {
+		if( !mLoop.inLoop() ){
+			return mLoop.call(new Callable<Integer>() {
+				@Override
+				public Integer call() {
+					return startClientSelector(host);
+				}
+			}, -1);
+		}
 		closeServer();   // close linger server.
 		
-		if( mClientSocketChannel != null){
-			Log.d(TAG, "startClientSelector : client already connected to server: " + mClientSocketChannel.socket().getLocalAddress().getHostAddress());
-			return -1;
+		if( mClientLink != null ){
+			if( host.equals(mClientLink.getHost()) ){
+				PTPLog.d(TAG, "startClientSelector : client already connecting to server: " + mClientLink);
+				return -1;
+			}
+			closeClient();   // the group owner changed.
 		}
-		
-		try {
-			// connected to the server upon start client.
-			SocketChannel sChannel = connectTo(host, 1080);  
-			
-			mClientSelector = Selector.open();
-		    mClientSocketChannel = sChannel;
-		    mClientAddr = mClientSocketChannel.socket().getLocalAddress().getHostName();
-		    sChannel.register(mClientSelector, SelectionKey.OP_READ );
-		    mApp.setMyAddr(mClientAddr);
-		    mApp.clearMessages();
-		    PTPLog.d(TAG, "startClientSelector : started: " + mClientSocketChannel.socket().getLocalAddress().getHostAddress());
-		    
-			// start selector monitoring, blocking
-			new SelectorAsyncTask(mService, mClientSelector).execute();
-			return 0;
-
-		} catch(Exception e) {
-			PTPLog.e(TAG, "startClientSelector : exception: " + e.toString());
-			mClientSelector = null;
-			mClientSocketChannel = null;
-			mApp.setMyAddr(null);
-			
-			return -1;
-		}		
+		if( mServerSession == null || !host.equals(mServerSession.getPeerKey()) ){
+			mServerSession = new ReliableSession(host, RELIABLE_MAX_UNACKED, RELIABLE_ACK_EVERY);
+		}
+		mClientLink = new LinkState(host, mPort, RECONNECT_MIN_DELAY, RECONNECT_MAX_DELAY);
+		connect(mClientLink);
+		PTPLog.d(TAG, "startClientSelector : started: " + mClientLink);
+		return 0;
 	}
 	
 	/**
 	 * create a selector to manage a server socket channel
 	 * The registration process yields an object called a selection key which identifies the selector/socket channel pair
+	 * The server socket is re-opened whenever it fails until closeServer. Blocks the caller until it started.
 	 */
 	public int startServerSelector() {
+		if( !mLoop.inLoop() ){
+			return mLoop.call(new Callable<Integer>() {
+				@Override
+				public Integer call() {
+					return startServerSelector();
+				}
+			}, -1);
+		}
+		if( mServerLink != null ){
+			PTPLog.d(TAG, "startServerSelector : server already started: " + mServerLink);
+			return -1;
+		}
 		closeClient();   // close linger client, if exists.
-		
-		try {			
-			// create server socket and register to selector to listen OP_ACCEPT event
-		    ServerSocketChannel sServerChannel = createServerSocketChannel(1080); // BindException if already bind.
-		    mServerSocketChannel = sServerChannel;
-		    mServerAddr = mServerSocketChannel.socket().getInetAddress().getHostAddress();
-		    if( "0.0.0.0".equals(mServerAddr)){
-		    	mServerAddr = "Master";
-		    }
-		    ((WiFiDirectApp)mService.getApplication()).setMyAddr(mServerAddr);
-		    
-		    mServerSelector = Selector.open();
-		    SelectionKey acceptKey = sServerChannel.register(mServerSelector, SelectionKey.OP_ACCEPT);
-		    acceptKey.attach("accept_channel");
-		    mApp.mIsServer = true;
-		    
-		    //SocketChannel sChannel = createSocketChannel("hostname.com", 80);
-		    //sChannel.register(selector, SelectionKey.OP_CONNECT);  // listen to connect event.
-		    Log.d(TAG, "startServerSelector : started: " + sServerChannel.socket().getLocalSocketAddress().toString());
-		    
-		    new SelectorAsyncTask(mService, mServerSelector).execute();
-			return 0;
-			
+		mServerSession = null;
+		mIsServer = true;
+		mServerLink = new LinkState(null, mPort, RECONNECT_MIN_DELAY, RECONNECT_MAX_DELAY);
+		listen(mServerLink);
+		return 0;
+	}
+	
+	/**
+	 * open the server socket and register it to the selector to listen OP_ACCEPT event.
+	 */
+	private void listen(LinkState link) {
+		ServerSocketChannel sServerChannel = null;
+		try {
+			sServerChannel = createServerSocketChannel(link.getPort()); // BindException while a linger socket holds the port.
+			link.startAttempt(sServerChannel);
+			mLoop.register(sServerChannel, SelectionKey.OP_ACCEPT, link);
+			mServerSocketChannel = sServerChannel;
+			mServerAddr = mServerSocketChannel.socket().getInetAddress().getHostAddress();
+			if( "0.0.0.0".equals(mServerAddr)){
+				mServerAddr = "Master";
+			}
+			mHost.setMyAddr(mServerAddr);
+			long down = link.onConnected(System.currentTimeMillis());
+			PTPLog.d(TAG, "listen : started: " + sServerChannel.socket().getLocalSocketAddress().toString() + (down > 0 ? " down ms: " + down : ""));
 		} catch (Exception e) {
-			Log.e(TAG, "startServerSelector : exception: " + e.toString());
-			return -1;
+			PTPLog.e(TAG, "listen : exception: " + e.toString());
+			closeChannel(sServerChannel);
+			mServerSocketChannel = null;
+			retry(link);
+		}
+	}
+	
+	/**
+	 * start a non-blocking connect, the loop finishes it on OP_CONNECT, or the connect timeout gives up on it.
+	 */
+	private void connect(final LinkState link) {
+		SocketChannel sChannel = null;
+		try {
+			sChannel = createSocketChannel(link.getHost(), link.getPort(), mLocalAddr);
+			final int attempt = link.startAttempt(sChannel);
+			if( sChannel.isConnected() ){
+				onConnected(link, mLoop.register(sChannel, SelectionKey.OP_READ, null));   // connected right away.
+				return;
+			}
+			mLoop.register(sChannel, SelectionKey.OP_CONNECT, link);
+			mLoop.schedule(new Runnable() {
+				@Override
+				public void run() {
+					if( link.isPending(attempt, LinkState.Phase.CONNECTING) ){
+						PTPLog.e(TAG, "connect : timed out: " + link);
+						onConnectFailed(link);
+					}
+				}
+			}, CONNECT_TIMEOUT);
+		} catch (Exception e) {
+			PTPLog.e(TAG, "connect : " + link + " exception: " + e.toString());
+			closeChannel(sChannel);
+			retry(link);
 		}
 	}
 	
 	/**
-	 * handle selector error, re-start
+	 * the selector reported OP_CONNECT, complete the connect.
+	 */
+	public void onFinishConnect(SelectionKey key){
+		LinkState link = (LinkState)key.attachment();
+		SocketChannel schannel = (SocketChannel)key.channel();
+		try {
+			if( !schannel.finishConnect() ){
+				return;    // not yet, keep waiting for OP_CONNECT.
+			}
+		} catch (IOException e) {
+			PTPLog.e(TAG, "onFinishConnect : " + link + " exception: " + e.toString());
+			onConnectFailed(link);
+			return;
+		}
+		onConnected(link, key);
+	}
+	
+	/**
+	 * the link's connect completed, the channel becomes a peer connection.
+	 */
+	private void onConnected(LinkState link, SelectionKey key){
+		SocketChannel schannel = (SocketChannel)key.channel();
+		PeerConnection conn = createPeerConnection(schannel, link.getHost());
+		key.interestOps(SelectionKey.OP_READ);
+		key.attach(conn);
+		conn.setKey(key);
+		long down = link.onConnected(System.currentTimeMillis());
+		if( link == mClientLink ){
+			mClientSocketChannel = schannel;
+			mClientAddr = schannel.socket().getLocalAddress().getHostAddress();
+			mServerConn = conn;
+			attachSession(mServerSession, conn);   // resume: the session frame carries our last received seq.
+			mHost.setMyAddr(mClientAddr);
+		}else{
+			mUplinkConn = conn;
+			attachSession(mUplinkSession, conn);
+		}
+		if( down > 0 && conn.getMetrics() != null ){
+			conn.getMetrics().onRecovered(down);
+		}
+		PTPLog.d(TAG, "onConnected : " + link + (down > 0 ? " back after ms: " + down : ""));
+		sendHello(conn);
+		sendSession(conn);
+	}
+	
+	/**
+	 * the connect attempt failed, close its channel and try again after the backoff.
+	 */
+	private void onConnectFailed(LinkState link){
+		closeChannel(link.getChannel());
+		retry(link);
+	}
+	
+	/**
+	 * schedule the next attempt of a link that went down, unless it was closed.
+	 */
+	private void retry(final LinkState link){
+		long delay = link.onFailed(System.currentTimeMillis());
+		if( delay < 0 ){
+			return;
+		}
+		final int attempt = link.getAttempt();
+		PTPLog.d(TAG, "retry : " + link + " in ms: " + delay);
+		mLoop.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if( !link.isPending(attempt, LinkState.Phase.BACKOFF) ){
+					return;
+				}
+				if( link == mServerLink ){
+					listen(link);
+				}else{
+					connect(link);
+				}
+			}
+		}, delay);
+	}
+	
+	/**
+	 * stop a link for good, and close the channel of its connect in progress.
+	 */
+	private void closeLink(LinkState link){
+		if( link != null ){
+			closeChannel(link.close());
+		}
+	}
+	
+	private static void closeChannel(SelectableChannel channel){
+		if( channel != null ){
+			try {
+				channel.close();    // also cancels its key.
+			} catch (IOException e) {
+				// closed.
+			}
+		}
+	}
+	
+	/**
+	 * the loop rebuilt its selector after an error and moved every registered channel to the new one.
+	 * A connection whose channel did not survive is handled as broken, its link brings it back.
 	 */
 	public void onSelectorError() {
-		Log.e(TAG, " onSelectorError : do nothing for now.");
-		// new SelectorAsyncTask(mService, mSelector).execute();
+		PTPLog.e(TAG, "onSelectorError : selector rebuilt, check the channels.");
+		for( PeerConnection conn : mClientChannels.values().toArray(new PeerConnection[mClientChannels.size()]) ){
+			checkKey(conn);
+		}
+		checkKey(mServerConn);
+		checkKey(mUplinkConn);
+		if( mServerLink != null && mServerLink.getPhase() == LinkState.Phase.CONNECTED
+				&& (mServerSocketChannel == null || !mServerSocketChannel.isOpen()) ){
+			retry(mServerLink);
+		}
+	}
+	
+	private void checkKey(PeerConnection conn){
+		if( conn != null && (conn.getKey() == null || !conn.getKey().isValid()) ){
+			onBrokenConn(conn);
+		}
 	}
 	
+	/**
+	 * the selector failed on a key. A peer connection is broken, a failed server socket or connect is retried.
+	 */
+	public void onKeyError(SelectionKey key){
+		Object attachment = key.attachment();
+		key.cancel();
+		if( attachment instanceof PeerConnection ){
+			onBrokenConn((PeerConnection)attachment);
+		}else if( attachment == mServerLink && mServerLink != null ){
+			PTPLog.e(TAG, "onKeyError : server socket failed, reopen.");
+			closeChannel(mServerSocketChannel);
+			mServerSocketChannel = null;
+			retry(mServerLink);
+		}else if( attachment instanceof LinkState ){
+			onConnectFailed((LinkState)attachment);
+		}
+	}
+
+	
 	/**
 	 * a device can only be either group owner, or group client, not both.
 	 * when we start as client, close server, if existing due to linger connection.
 	 */
 	public void closeServer() {
-		if( mServerSocketChannel != null ){
-			try{
-				mServerSocketChannel.close();
-				mServerSelector.close();
-			}catch(Exception e){
-				
-			}finally{
-				mApp.mIsServer = false;
-				mServerSocketChannel = null;
-				mServerSelector = null;
-				mServerAddr = null;
-				mClientChannels.clear();
+		if( !mLoop.inLoop() ){
+			mLoop.execute(new Runnable() {
+				@Override
+				public void run() {
+					closeServer();
+				}
+			});
+			return;
+		}
+		if( mServerLink != null ){
+			closeLink(mServerLink);
+			closeChannel(mServerSocketChannel);
+			mIsServer = false;
+			mServerLink = null;
+			mServerSocketChannel = null;
+			mServerAddr = null;
+			for( PeerConnection conn : mClientChannels.values() ){
+				mStreamMux.detach(conn);
+				mRouter.removeLink(conn);
+				conn.close();   // release producers blocked on the channel, and close it.
 			}
+			mClientChannels.clear();
+			mSessions.clear();
+			closeUplink();
 		}
 	}
 	
+	/**
+	 * stop the connection to group owner, and its reconnects.
+	 */
 	public void closeClient() {
-		if( mClientSocketChannel != null ){
-			try{
-				mClientSocketChannel.close();
-				mClientSelector.close();
-			}catch(Exception e){
-				
-			}finally{
-				mClientSocketChannel = null;
-				mClientSelector = null;
-				mClientAddr = null;
-			}
+		if( !mLoop.inLoop() ){
+			mLoop.execute(new Runnable() {
+				@Override
+				public void run() {
+					closeClient();
+				}
+			});
+			return;
+		}
+		closeLink(mClientLink);
+		mClientLink = null;
+		if( mServerConn != null ){
+			mStreamMux.detach(mServerConn);
+			mRouter.removeLink(mServerConn);
+			mServerConn.close();
 		}
+		mClientSocketChannel = null;
+		mServerConn = null;
+		mClientAddr = null;
 	}
 	
 	/**
-	 * read out -1, connection broken, remove it from clients collection
+	 * read out -1, connection broken, remove it from clients collection.
+	 * A connection we opened ourselves is brought back after its backoff.
 	 */
-	public void onBrokenConn(SocketChannel schannel){
+	public void onBrokenConn(PeerConnection conn){
+		LinkState link = null;
 		try{
-			String peeraddr = schannel.socket().getInetAddress().getHostAddress();
-			if( mApp.mIsServer ){
-				mClientChannels.remove(peeraddr);
-				Log.d(TAG, "onBrokenConn : client down: " + peeraddr);
-			}else{
-				Log.d(TAG, "onBrokenConn : set null client channel after server down: " + peeraddr);
-				closeClient();
+			String peeraddr = conn.getPeerAddr();
+			if( conn == mUplinkConn ){
+				PTPLog.d(TAG, "onBrokenConn : uplink down: " + peeraddr);
+				mUplinkConn = null;
+				link = mUplinkLink;
+			}else if( conn == mServerConn ){
+				PTPLog.d(TAG, "onBrokenConn : set null client channel after server down: " + peeraddr);
+				mServerConn = null;
+				mClientSocketChannel = null;
+				link = mClientLink;
+			}else if( mIsServer ){
+				if( mClientChannels.get(peeraddr) == conn ){  // the peer may have reconnected already.
+					mClientChannels.remove(peeraddr);
+				}
+				PTPLog.d(TAG, "onBrokenConn : client down: " + peeraddr);
+			}
+			ReliableSession session = conn.getSession();
+			if( session != null ){
+				session.detach(conn, System.currentTimeMillis());   // rows for the peer are buffered until it returns.
+			}
+			mStreamMux.detach(conn);   // aborts its file streams, resumable parts are kept for a reconnect.
+			if( mRouter.removeLink(conn) ){
+				advertiseRoutes();
 			}
-			schannel.close();
+			conn.close();
 		}catch(Exception e){
 			PTPLog.e(TAG, "onBrokenConn: close channel: " + e.toString());
 		}
+		if( link != null ){
+			retry(link);
+		}
 	}
 	
 	/**
 	 * Server handle new client coming in.
 	 */
-	public void onNewClient(SocketChannel schannel){
-		String ipaddr = schannel.socket().getInetAddress().getHostAddress();
-		Log.d(TAG, "onNewClient : server added remote client: " + ipaddr);
-		mClientChannels.put(ipaddr, schannel);
+	public void onNewClient(PeerConnection conn){
+		String ipaddr = conn.getPeerAddr();
+		PTPLog.d(TAG, "onNewClient : server added remote client: " + ipaddr);
+		PeerConnection stale = mClientChannels.put(ipaddr, conn);
+		if( stale != null && stale != conn ){
+			stale.close();
+		}
+		ReliableSession session = mSessions.get(ipaddr);
+		if( session == null ){
+			session = new ReliableSession(ipaddr, RELIABLE_MAX_UNACKED, RELIABLE_ACK_EVERY);
+			mSessions.put(ipaddr, session);
+		}
+		attachSession(session, conn);
+		sendHello(conn);
+		sendSession(conn);
+	}
+	
+	/**
+	 * announce the best wire format we read. The peer keeps sending json until it gets this.
+	 */
+	private void sendHello(PeerConnection conn){
+		writeBody(conn, MessageCodec.encodeHello());
+	}
+	
+	/**
+	 * our session frame, the peer resends what we miss and learns what we miss from it.
+	 */
+	private void sendSession(PeerConnection conn){
+		writeBody(conn, conn.getSession().sessionBody(mEpoch));
+	}
+	
+	/**
+	 * the peer announced the wire format it reads. Binary rows to it define their senders as they go out.
+	 */
+	public void onPeerHello(PeerConnection conn, int format, int caps){
+		PTPLog.d(TAG, "onPeerHello : " + conn.getPeerAddr() + " reads format: " + format + " caps: " + caps);
+		conn.setWireFormat(format);
+		conn.setCaps(caps);
+		if( FRAME_COMPRESSION && conn.isDeflateCapable() && FrameCompressor.SUPPORTED ){
+			conn.enableCompression();
+		}
+		if( conn.isMeshLink() ){
+			mRouter.addLink(conn);
+			writeBody(conn, mRouter.routesBody(conn));
+		}
+		
+		ReliableSession session = conn.getSession();
+		if( !conn.isReliable() && session != null && session.getUnackedCount() > 0 ){
+			// rows buffered while disconnected, the peer can not take them sequenced.
+			for( Iterator<ReliableSession.Unacked> it = session.drainUnacked(); it.hasNext(); ){
+				writeFrame(conn, it.next().mRow);
+			}
+			requestFlush(conn);
+		}
+	}
+	
+	/**
+	 * the peer's session handshake. Resend the rows it has not acked yet, then rows go out sequenced.
+	 */
+	public void onPeerSession(PeerConnection conn, long[] info){
+		ReliableSession session = conn.getSession();
+		if( session == null || session.getConn() != conn ){
+			return;   // stale connection.
+		}
+		session.onSession(conn, mEpoch, info);
+		PTPLog.d(TAG, "onPeerSession : " + session + " resend: " + session.getUnackedCount());
+		resend(session, session.getAckedSeq());
 	}
 	
 	/**
-	 * Client's connect to server success, 
+	 * cumulative ack from the peer, a nack asks to go back and resend after the acked seq.
 	 */
-	public void onFinishConnect(SocketChannel schannel){
-		String clientaddr = schannel.socket().getLocalAddress().getHostAddress();
-		String serveraddr = schannel.socket().getInetAddress().getHostAddress();
-		Log.d(TAG, "onFinishConnect : client connect to server succeed : " + clientaddr + " -> " + serveraddr);
-		mClientSocketChannel = schannel;
-		mClientAddr = clientaddr;
-		((WiFiDirectApp)mService.getApplication()).setMyAddr(mClientAddr);
+	public void onPeerAck(PeerConnection conn, long ack){
+		ReliableSession session = conn.getSession();
+		if( session == null || session.getConn() != conn || !session.isEstablished() ){
+			return;
+		}
+		long latency;
+		if( ack < 0 ){
+			long seq = -ack - 1;
+			latency = session.onAck(seq);
+			PTPLog.d(TAG, "onPeerAck : nack, resend after: " + seq + " " + session);
+			resend(session, seq);
+		}else{
+			latency = session.onAck(ack);
+		}
+		if( latency >= 0 && conn.getMetrics() != null ){
+			conn.getMetrics().onAckLatency(latency);
+		}
+	}
+	
+	/**
+	 * the peer can not resend the rows before seq any more, they fell out of its retransmit buffer. Count them
+	 * lost and take the rows after them, an ack tells the peer.
+	 */
+	public void onPeerSkip(PeerConnection conn, long seq){
+		ReliableSession session = conn.getSession();
+		if( session == null || session.getConn() != conn ){
+			return;
+		}
+		long skipped = session.onSkip(seq);
+		if( skipped > 0 ){
+			PTPLog.e(TAG, "onPeerSkip : lost rows: " + skipped + " " + session);
+			writeBody(conn, session.ackBody());
+		}
+	}
+	
+	/**
+	 * check the seq of an incoming row, ack it when due.
+	 * @return false if the row must be dropped: a duplicate, or after a gap that the peer will resend.
+	 */
+	private boolean acceptData(PeerConnection conn, long seq){
+		ReliableSession session = conn.getSession();
+		if( seq == 0 || session == null ){
+			return true;    // not sequenced.
+		}
+		switch( session.onData(seq) ){
+		case ReliableSession.DUPLICATE:
+			return false;
+		case ReliableSession.GAP:
+			sendNack(session);
+			return false;
+		default:
+			if( session.isAckDue() ){
+				writeBody(conn, session.ackBody());
+			}else if( session.scheduleAck() ){
+				final ReliableSession timed = session;
+				mLoop.schedule(new Runnable() {
+					@Override
+					public void run() {
+						onAckTimer(timed);
+					}
+				}, RELIABLE_ACK_DELAY);
+			}
+			return true;
+		}
+	}
+	
+	/**
+	 * delayed ack, for the rows received since the last ack.
+	 */
+	private void onAckTimer(ReliableSession session){
+		session.onAckTimer();
+		PeerConnection conn = session.getConn();
+		if( conn != null && session.hasUnackedRecv() ){
+			writeBody(conn, session.ackBody());
+		}
+	}
+	
+	/**
+	 * nack the gap, unless it was nacked within the retry time, and keep a retry timer running while it is open.
+	 * The nack or the resent rows may be lost too, and no further row may come to trigger another nack.
+	 */
+	private void sendNack(final ReliableSession session){
+		PeerConnection conn = session.getConn();
+		if( conn == null || !session.hasGap() ){
+			return;
+		}
+		ByteBuffer nack = session.nackBody(System.currentTimeMillis(), RELIABLE_NACK_RETRY);
+		if( nack != null ){
+			writeBody(conn, nack);
+		}
+		if( session.scheduleNack() ){
+			mLoop.schedule(new Runnable() {
+				@Override
+				public void run() {
+					session.onNackTimer();
+					sendNack(session);
+				}
+			}, RELIABLE_NACK_RETRY);
+		}
+	}
+	
+	/**
+	 * resend the unacked rows after seq on the session's connection. If rows after seq fell out of the retransmit
+	 * buffer, a skip goes first so the peer does not wait for them.
+	 */
+	private void resend(ReliableSession session, long seq){
+		PeerConnection conn = session.getConn();
+		int n = 0;
+		long first = session.getFirstResendable();
+		if( first > seq + 1 ){
+			PTPLog.e(TAG, "resend : rows lost after: " + seq + " first resendable: " + first + " " + session);
+			writeBody(conn, ReliableSession.encodeSkip(first));
+		}
+		for( Iterator<ReliableSession.Unacked> it = session.unackedAfter(seq); it.hasNext(); ){
+			ReliableSession.Unacked u = it.next();
+			writeSeqFrame(conn, u.mSeq, u.mRow);
+			n++;
+		}
+		if( n > 0 ){
+			requestFlush(conn);
+		}
+	}
+	
+	/**
+	 * a row arrived on the connection, with the seq of its SEQ frame or 0. Duplicates are dropped, the row is
+	 * relayed on the loop right away, then handed to the service once to be stored and shown.
+	 */
+	public void onRowIn(PeerConnection conn, MessageRow row, long seq){
+		if( !acceptData(conn, seq) ){
+			return;   // duplicate of a resent row, or out of order after a gap.
+		}
+		if( !acceptMeshRow(row) ){
+			return;   // came around the mesh another way already.
+		}
+		if( conn.getMetrics() != null ){
+			conn.getMetrics().onRowIn();
+		}
+		onDataIn(conn, row);   // pub to all client if this device is server.
+		mHost.onRowIn(row);
 	}
 	
 	/**
 	 * client send data into server, server pub to all clients.
 	 */
-	public void onDataIn(SocketChannel schannel, String data){
-		Log.d(TAG, "connection onDataIn : " + data);
-		if( mApp.mIsServer ){  // push all _other_ clients if the device is the server
-			pubDataToAllClients(data, schannel);
+	private void onDataIn(PeerConnection conn, MessageRow row){
+		if( mIsServer ){  // push all _other_ clients if the device is the server
+			pubDataToAllClients(row, conn);
+			if( conn != mUplinkConn ){
+				sendToUplink(row);    // bridge into the other group.
+			}
 		}
 	}
+	
+	/**
+	 * encode a message row in the given wire format.
+	 */
+	private ByteBuffer encodeRow(MessageRow row, int format){
+		if( format >= MessageCodec.FORMAT_BINARY_V1 ){
+			return mEncoder.encode(row);
+		}
+		return MessageCodec.encodeJson(row);
+	}
 
 	/**
-	 * write byte buf to the socket channel.
+	 * queue the row as one length prefixed frame, in the peer's wire format, on the peer's outbound queue.
+	 * The loop writes it out after the current task or event, or when the channel is writable again.
 	 */
-	private int writeData(SocketChannel sChannel, String jsonString){
-		byte[] buf = jsonString.getBytes();
-		ByteBuffer bytebuf = ByteBuffer.wrap(buf);  // wrap the buf into byte buffer
-		int nwritten = 0;
-		try {
-		    //bytebuf.flip();  // no flip after creating from wrap.
-		    Log.d(TAG, "writeData: start:limit = " + bytebuf.position() + " : " + bytebuf.limit());
-		    nwritten = sChannel.write(bytebuf);
-		} catch (Exception e) {
-		    // Connection may have been closed
-			Log.e(TAG, "writeData: exception : " + e.toString());
-			onBrokenConn(sChannel);
+	private int writeData(PeerConnection conn, MessageRow row){
+		int len = writeFrame(conn, row);
+		requestFlush(conn);
+		return len;
+	}
+	
+	/**
+	 * queue the row unsequenced, without flush.
+	 */
+	private int writeFrame(PeerConnection conn, MessageRow row){
+		ByteBuffer body = encodeRow(row, conn.getWireFormat());
+		return writeRowFrame(conn, row, rowHeader(conn, row, 0, body.remaining()), body, false);
+	}
+	
+	/**
+	 * queue the row with its seq frame in front, without flush. Pinned, a dropped sequenced row would leave a gap.
+	 */
+	private int writeSeqFrame(PeerConnection conn, long seq, MessageRow row){
+		ByteBuffer body = encodeRow(row, conn.getWireFormat());
+		return writeRowFrame(conn, row, rowHeader(conn, row, seq, body.remaining()), body, seq > 0);
+	}
+	
+	/**
+	 * queue a row frame, counted in the peer's metrics. A binary row's sender is defined to the peer first.
+	 */
+	private int writeRowFrame(PeerConnection conn, MessageRow row, ByteBuffer header, ByteBuffer body, boolean pinned){
+		if( conn.getWireFormat() >= MessageCodec.FORMAT_BINARY_V1 && !defineSender(conn, row.mSender) ){
+			return 0;
+		}
+		int len = writeFrame(conn, header, body, pinned);
+		if( len > 0 && conn.getMetrics() != null ){
+			conn.getMetrics().onRowOut();
+		}
+		return len;
+	}
+	
+	/**
+	 * the per peer header of a row frame: the mesh envelope on mesh links, the seq frame when sequenced,
+	 * and the length header of the body.
+	 */
+	private ByteBuffer rowHeader(PeerConnection conn, MessageRow row, long seq, int bodyLen){
+		if( row.mOrigin != 0 && conn.isMeshLink() ){
+			return MeshRouter.encodeHeader(FRAME_HEADER_MODE, row, mRouter.ttl(row), seq, bodyLen);
+		}
+		if( seq > 0 ){
+			return ReliableSession.encodeSeqHeader(FRAME_HEADER_MODE, seq, bodyLen);
+		}
+		return FrameDecoder.encodeHeader(FRAME_HEADER_MODE, bodyLen);
+	}
+	
+	/**
+	 * whether the row goes to the peer: a mesh link only gets it while the row's ttl allows another hop.
+	 * Peers without mesh support are leaves and get every row.
+	 */
+	private boolean forwardsTo(PeerConnection conn, MessageRow row){
+		return row.mOrigin == 0 || mRouter.ttl(row) >= 0 || !conn.isMeshLink();
+	}
+	
+	/**
+	 * queue the definition of the sender's id to the peer, once per connection, pinned so that the queue
+	 * can not drop it from under the rows that use it. Flushed with the row.
+	 * @return false if the peer was dropped.
+	 */
+	private boolean defineSender(PeerConnection conn, String sender){
+		int id = mEncoder.senderId(sender);
+		if( id < 0 || !conn.defineSender(id) ){
+			return true;    // inline sender, or defined before.
+		}
+		ByteBuffer body = mEncoder.senderDefinition(id);
+		return writeFrame(conn, FrameDecoder.encodeHeader(FRAME_HEADER_MODE, body.remaining()), body, true) > 0;
+	}
+	
+	/**
+	 * frame an encoded control body, queue it pinned and ask the loop to flush.
+	 */
+	private int writeBody(PeerConnection conn, ByteBuffer body){
+		ByteBuffer header = FrameDecoder.encodeHeader(FRAME_HEADER_MODE, body.remaining());
+		int len = writeFrame(conn, header, body, true);
+		requestFlush(conn);
+		return len;
+	}
+	
+	/**
+	 * queue an encoded frame on the peer's outbound queue, apply the queue's overflow result.
+	 * Pinned frames are never dropped, the peer is disconnected instead.
+	 * @return the bytes queued, 0 if the frame was dropped.
+	 */
+	private int writeFrame(PeerConnection conn, ByteBuffer header, ByteBuffer body, boolean pinned){
+		int len = header.remaining() + body.remaining();
+		int result = conn.enqueue(header, body, pinned);
+		switch( result ){
+		case OutboundQueue.ENQUEUED:
+			break;
+		case OutboundQueue.OVERFLOW:
+			PTPLog.e(TAG, "writeFrame: peer too slow, disconnect: " + conn.getPeerAddr() + " queued: " + conn.getOutQueue().getQueuedBytes());
+			onBrokenConn(conn);
+			return 0;
+		default:
+			PTPLog.e(TAG, "writeFrame: frame dropped for: " + conn.getPeerAddr() + " result: " + result);
+			return 0;
 		}
-		Log.d(TAG, "writeData: content: " + new String(buf) + "  : len: " + nwritten);
-		return nwritten;
+		return len;
 	}
 	
 	/**
-	 * server publish data to all the connected clients
+	 * write out the peer's pending frames once the loop is done with the current task or event.
 	 */
-	private void pubDataToAllClients(String msg, SocketChannel incomingChannel){
-		Log.d(TAG, "pubDataToAllClients : isServer ? " + mApp.mIsServer + " msg: " + msg );
-		if( !mApp.mIsServer ){
+	private void requestFlush(PeerConnection conn) {
+		mLoop.requestFlush(conn);
+	}
+	
+	/**
+	 * server publish data to all the connected clients.
+	 * The message is encoded once per wire format into shared read only bodies, every peer queue gets its own
+	 * duplicate view, so each extra client costs a queue insert and no encoding or copy. Sequenced peers get
+	 * a small per peer seq header in front of the shared body. Peers that are away get the row buffered in
+	 * their session until they come back, or their session lingers out.
+	 */
+	private void pubDataToAllClients(MessageRow row, PeerConnection incomingConn){
+		if( !mIsServer ){
 			return;
 		}
 		
-		for( SocketChannel s: mClientChannels.values()) {
-			if ( s != incomingChannel){
-				String peeraddr = s.socket().getInetAddress().getHostAddress();
-				Log.d(TAG, "pubDataToAllClients : Server pub data to:  " + peeraddr);
-				writeData(s, msg);
+		ByteBuffer[] bodies = new ByteBuffer[MessageCodec.MAX_FORMAT + 1];   // lazily encoded, per format.
+		ByteBuffer[] headers = new ByteBuffer[MessageCodec.MAX_FORMAT + 1];
+		int npeers = 0;
+		
+		for( PeerConnection conn : mClientChannels.values().toArray(new PeerConnection[mClientChannels.size()]) ) {  // writeFrame may drop a slow peer.
+			if ( conn == incomingConn || !forwardsTo(conn, row) ){
+				continue;
+			}
+			ReliableSession session = conn.getSession();
+			boolean sequenced = session != null && (conn.isReliable() || session.isKnownPeer());
+			long seq = 0;
+			if( sequenced ){
+				seq = session.assignSeq(row);
+				if( !session.isEstablished() ){
+					continue;    // buffered, goes out after the session handshake.
+				}
+			}
+			int format = conn.getWireFormat();
+			if( bodies[format] == null ){
+				bodies[format] = encodeRow(row, format);
+				headers[format] = FrameDecoder.encodeHeader(FRAME_HEADER_MODE, bodies[format].remaining());
+			}
+			ByteBuffer header = sequenced || conn.isMeshLink() ? rowHeader(conn, row, seq, bodies[format].remaining())
+															   : headers[format].duplicate();
+			if ( writeRowFrame(conn, row, header, bodies[format].duplicate(), sequenced) > 0 ){
+				mLoop.queueFlush(conn);
+				npeers++;
+			}
+		}
+		
+		long now = System.currentTimeMillis();
+		for( Iterator<ReliableSession> it = mSessions.values().iterator(); it.hasNext(); ){
+			ReliableSession session = it.next();
+			if( session.getConn() != null ){
+				continue;
+			}
+			if( session.isExpired(now, RELIABLE_SESSION_LINGER) ){
+				PTPLog.d(TAG, "pubDataToAllClients : session expired: " + session);
+				it.remove();
+			}else if( session.isKnownPeer() ){
+				session.assignSeq(row);
 			}
 		}
+		PTPLog.d(TAG, "pubDataToAllClients : to peers: {}", npeers);
+	}
+	
+	/**
+	 * send a file over the chat connection as a multiplexed stream.
+	 * A client sends to the group owner, or through it to the client at target. The group owner sends to the
+	 * client at target, or to its only client when target is null.
+	 * With offer, peers that speak attachments are offered the content by its hash first and skip the transfer
+	 * if they have it. The mux hashes the file off the loop thread.
+	 * @return false if there is no connection that speaks streams, the caller still owns the source then.
+	 */
+	public boolean sendFile(final FileChannel source, final long size, final String name, final String target, final boolean offer) {
+		if( !mLoop.inLoop() ){
+			return mLoop.call(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					return sendFile(source, size, name, target, offer);
+				}
+			}, false);
+		}
+		PeerConnection conn;
+		String relay = null;
+		if( mIsServer ){
+			conn = target != null ? mClientChannels.get(target) : (mClientChannels.size() == 1 ? mClientChannels.values().iterator().next() : null);
+		}else{
+			conn = mServerConn;
+			relay = target;
+		}
+		if( conn == null || !conn.isStreamCapable() ){
+			PTPLog.d(TAG, "sendFile : no stream capable connection for: " + name);
+			return false;
+		}
+		PTPLog.d(TAG, "sendFile : " + name + " size: " + size + " -> " + conn.getPeerAddr() + (relay != null ? " -> " + relay : ""));
+		return mStreamMux.sendFile(conn, source, size, name, relay, offer);
 	}
 	
 	/**
 	 * the device want to push out data.
 	 * If the device is client, the only channel is to the server.
 	 * If the device is server, it just pub the data to all clients for now.
+	 * Any thread, the row is sent from the loop.
 	 */
-	public int pushOutData(String jsonString){
-		if( !mApp.mIsServer ){   // device is client, can only send to server
-			sendDataToServer(jsonString);
+	public int pushOutData(final MessageRow row){
+		if( !mLoop.inLoop() ){
+			mLoop.execute(new Runnable() {
+				@Override
+				public void run() {
+					pushOutData(row);
+				}
+			});
+			return 0;
+		}
+		mRouter.originate(row);
+		if( !mIsServer ){   // device is client, can only send to server
+			sendDataToServer(row);
 		}else{
 			// server pub to all clients, msg already appended with sender addr inside send button handler.
-			pubDataToAllClients(jsonString, null);
+			pubDataToAllClients(row, null);
+			sendToUplink(row);
 		}
 		return 0;
 	}
@@ -325,12 +1068,199 @@ public class ConnectionManager {
 	/**
 	 * whenever client write to server, carry the format of "client_addr : msg "
 	 */
-	private int sendDataToServer(String jsonString) {
-		if(mClientSocketChannel == null) {
-			Log.d(TAG, "sendDataToServer: channel not connected ! waiting...");
+	private int sendDataToServer(MessageRow row) {
+		return sendUpstream(mServerConn, mServerSession, row);
+	}
+	
+	/**
+	 * a bridging group owner relays to the other group through its uplink.
+	 */
+	private int sendToUplink(MessageRow row) {
+		if( mUplinkSession == null ){
 			return 0;
 		}
-		Log.d(TAG, "sendDataToServer: " + mClientAddr + " -> " + mClientSocketChannel.socket().getInetAddress().getHostAddress() + " : " +  jsonString);
-		return writeData(mClientSocketChannel, jsonString);
+		return sendUpstream(mUplinkConn, mUplinkSession, row);
+	}
+	
+	/**
+	 * send a row on a client connection to a group owner, sequenced once the peer speaks sessions.
+	 */
+	private int sendUpstream(PeerConnection conn, ReliableSession session, MessageRow row) {
+		if( conn != null && !forwardsTo(conn, row) ){
+			return 0;
+		}
+		if( session != null && (conn == null || conn.isReliable() || session.isKnownPeer()) ){
+			long seq = session.assignSeq(row);
+			if( !session.isEstablished() ){
+				PTPLog.d(TAG, "sendUpstream: buffered until the session resumes: {}", seq);
+				return 0;
+			}
+			int len = writeSeqFrame(conn, seq, row);
+			requestFlush(conn);
+			return len;
+		}
+		if(conn == null) {
+			PTPLog.d(TAG, "sendUpstream: channel not connected ! waiting...");
+			return 0;
+		}
+		PTPLog.d(TAG, "sendUpstream: {} -> {} : {}", mClientAddr, conn.getPeerAddr(), row.mMsg);
+		return writeData(conn, row);
+	}
+	
+	/**
+	 * as group owner, also connect as a client to the owner of another group, and relay rows between the two.
+	 * The uplink is one more connection on the loop's selector, brought back like the client's when it breaks.
+	 */
+	public int startUplink(final String host) {
+		if( !mLoop.inLoop() ){
+			return mLoop.call(new Callable<Integer>() {
+				@Override
+				public Integer call() {
+					return startUplink(host);
+				}
+			}, -1);
+		}
+		if( !mIsServer || mServerLink == null ){
+			PTPLog.e(TAG, "startUplink : only a running group owner can bridge to: " + host);
+			return -1;
+		}
+		if( mUplinkLink != null ){
+			PTPLog.d(TAG, "startUplink : uplink already started: " + mUplinkLink);
+			return -1;
+		}
+		if( mUplinkSession == null || !host.equals(mUplinkSession.getPeerKey()) ){
+			mUplinkSession = new ReliableSession(host, RELIABLE_MAX_UNACKED, RELIABLE_ACK_EVERY);
+		}
+		mUplinkLink = new LinkState(host, mPort, RECONNECT_MIN_DELAY, RECONNECT_MAX_DELAY);
+		connect(mUplinkLink);
+		PTPLog.d(TAG, "startUplink : bridging to group owner: " + host);
+		return 0;
+	}
+	
+	private void closeUplink() {
+		closeLink(mUplinkLink);
+		mUplinkLink = null;
+		if( mUplinkConn != null ){
+			mStreamMux.detach(mUplinkConn);
+			mRouter.removeLink(mUplinkConn);
+			mUplinkConn.close();
+			mUplinkConn = null;
+		}
+		mUplinkSession = null;
+	}
+	
+	/**
+	 * turn the transport metrics on or off, any thread. While on, the metrics are dumped to the log every
+	 * dumpInterval ms, if dumpInterval > 0. Turning them off drops what was collected.
+	 */
+	public void setMetricsEnabled(final boolean enabled, final long dumpInterval) {
+		if( !mLoop.inLoop() ){
+			mLoop.execute(new Runnable() {
+				@Override
+				public void run() {
+					setMetricsEnabled(enabled, dumpInterval);
+				}
+			});
+			return;
+		}
+		if( enabled == (mMetrics != null) ){
+			return;
+		}
+		mMetrics = enabled ? new TransportMetrics() : null;
+		for( PeerConnection conn : mClientChannels.values() ){
+			attachMetrics(conn);
+		}
+		attachMetrics(mServerConn);
+		attachMetrics(mUplinkConn);
+		for( ReliableSession session : mSessions.values() ){
+			session.setTimed(enabled);
+		}
+		if( mServerSession != null ){
+			mServerSession.setTimed(enabled);
+		}
+		if( mUplinkSession != null ){
+			mUplinkSession.setTimed(enabled);
+		}
+		PTPLog.d(TAG, "setMetricsEnabled : " + enabled);
+		if( enabled && dumpInterval > 0 ){
+			scheduleMetricsDump(mMetrics, dumpInterval);
+		}
+	}
+	
+	/**
+	 * give the connection its peer's metrics, or none while disabled.
+	 */
+	private void attachMetrics(PeerConnection conn) {
+		if( conn == null ){
+			return;
+		}
+		if( mMetrics == null ){
+			conn.setMetrics(null);
+			return;
+		}
+		TransportMetrics.PeerMetrics metrics = mMetrics.peer(conn.getPeerAddr());
+		metrics.attach(conn);
+		conn.setMetrics(metrics);
+	}
+	
+	private void scheduleMetricsDump(final TransportMetrics metrics, final long interval) {
+		mLoop.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if( mMetrics != metrics ){
+					return;    // turned off, or on again with a new registry.
+				}
+				PTPLog.i(TAG, metrics.snapshot(mLoop).dump());
+				scheduleMetricsDump(metrics, interval);
+			}
+		}, interval);
+	}
+	
+	/**
+	 * a copy of the transport metrics, any thread.
+	 * @return null while the metrics are off.
+	 */
+	public TransportMetrics getMetricsSnapshot() {
+		if( !mLoop.inLoop() ){
+			return mLoop.call(new Callable<TransportMetrics>() {
+				@Override
+				public TransportMetrics call() {
+					return getMetricsSnapshot();
+				}
+			}, null);
+		}
+		return mMetrics != null ? mMetrics.snapshot(mLoop) : null;
+	}
+	
+	/**
+	 * a mesh neighbor advertised its routes.
+	 */
+	public void onMeshRoutes(PeerConnection conn, long[] advert) {
+		if( mRouter.onRoutes(conn, advert) ){
+			PTPLog.d(TAG, "onMeshRoutes : routes changed: " + mRouter);
+			advertiseRoutes();
+		}
+	}
+	
+	/**
+	 * triggered update, every mesh link gets our routes.
+	 */
+	private void advertiseRoutes() {
+		for( PeerConnection conn : mRouter.getLinks() ){
+			writeBody(conn, mRouter.routesBody(conn));
+		}
+	}
+	
+	/**
+	 * mesh duplicate suppression for a received row, after the per link acceptData. A row from a peer without
+	 * mesh support enters the mesh here.
+	 * @return false if the row was seen before.
+	 */
+	private boolean acceptMeshRow(MessageRow row) {
+		if( row.mOrigin == 0 ){
+			mRouter.originate(row);
+			return true;
+		}
+		return mRouter.accept(row);
 	}
 }
@@ -2,7 +2,11 @@ package com.colorcloud.wifichat;
 
 import static com.colorcloud.wifichat.Constants.*;
 
-import java.nio.channels.SocketChannel;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.List;
 
 import android.app.Notification;
 import android.app.NotificationManager;
@@ -11,6 +15,7 @@ import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.net.NetworkInfo;
+import android.net.Uri;
 import android.net.wifi.p2p.WifiP2pDevice;
 import android.net.wifi.p2p.WifiP2pDeviceList;
 import android.net.wifi.p2p.WifiP2pInfo;
@@ -18,15 +23,16 @@ import android.net.wifi.p2p.WifiP2pManager;
 import android.net.wifi.p2p.WifiP2pManager.ChannelListener;
 import android.net.wifi.p2p.WifiP2pManager.ConnectionInfoListener;
 import android.net.wifi.p2p.WifiP2pManager.PeerListListener;
-import android.os.AsyncTask;
-import android.os.Bundle;
 import android.os.Handler;
+import android.os.Build;
+import android.os.Environment;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
-import android.util.Log;
+import android.os.ParcelFileDescriptor;
+
+import com.colorcloud.agent.AgentBridge;
 
-import com.colorcloud.wifichat.WiFiDirectApp.PTPLog;
 
 public class ConnectionService extends Service implements ChannelListener, PeerListListener, ConnectionInfoListener {  // callback of requestPeers{
 	
@@ -36,6 +42,9 @@ public class ConnectionService extends Service implements ChannelListener, PeerL
 
 	private  WorkHandler mWorkHandler;
     private  MessageHandler mHandler;
+    private  IncomingBatcher mIncoming;
+    private  final ArrayDeque<MessageRow> mInbox = new ArrayDeque<MessageRow>();   // latest unseen rows, for the notification
+    private  int mUnseen = 0;
     
     boolean retryChannel = false;
     
@@ -57,11 +66,42 @@ public class ConnectionService extends Service implements ChannelListener, PeerL
         mHandler = new MessageHandler(mWorkHandler.getLooper());
         
         mApp = (WiFiDirectApp)getApplication();
+        long window = AppPreferences.getLongFromPref(mApp, AppPreferences.PREF_NAME, AppPreferences.INCOMING_BATCH_WINDOW, INCOMING_BATCH_WINDOW);
+        mIncoming = new IncomingBatcher(mHandler, MSG_FLUSH_INCOMING, window);
         mApp.mP2pMan = (WifiP2pManager) getSystemService(Context.WIFI_P2P_SERVICE);
         mApp.mP2pChannel = mApp.mP2pMan.initialize(this, mWorkHandler.getLooper(), null);
         PTPLog.d(TAG, "_initialize, get p2p service and init channel !!!");
         
-        mConnMan = new ConnectionManager(this);
+        mConnMan = new ConnectionManager(new ConnectionManager.Host() {
+        	@Override
+        	public File getReceiveDir() {
+        		return new File(Environment.getExternalStorageDirectory(), mApp.getPackageName());
+        	}
+        	@Override
+        	public void setMyAddr(String addr) {
+        		mApp.setMyAddr(addr);
+        	}
+        	@Override
+        	public void onRowIn(MessageRow row) {
+        		mHandler.obtainMessage(MSG_PULLIN_DATA, row).sendToTarget();
+        		AgentBridge.fromPeers(row);   // local agents get it from here, not through the service thread.
+        	}
+        	@Override
+        	public void onFileReceived(String origin, String name, File file) {
+        		Message msg = mHandler.obtainMessage(MSG_FILE_RECEIVED, file);
+        		msg.getData().putString("FROM", origin);
+        		msg.getData().putString("NAME", name);
+        		mHandler.sendMessage(msg);
+        	}
+        }, CHAT_PORT);
+        AgentBridge.setTransport(new AgentBridge.Transport() {
+        	@Override
+        	public void send(MessageRow row) {
+        		// a row from a local agent: stored and shown like one pulled in, and sent like one typed.
+        		mHandler.obtainMessage(MSG_PULLIN_DATA, row).sendToTarget();
+        		mConnMan.pushOutData(row);
+        	}
+        });
     }
     
     public static ConnectionService getInstance(){
@@ -139,14 +179,15 @@ public class ConnectionService extends Service implements ChannelListener, PeerL
               NetworkInfo networkInfo = (NetworkInfo) intent.getParcelableExtra(WifiP2pManager.EXTRA_NETWORK_INFO);
               PTPLog.d(TAG, "processIntent: WIFI_P2P_CONNECTION_CHANGED_ACTION : " + networkInfo.getReason() + " : " + networkInfo.toString());
               if (networkInfo.isConnected()) {
-            	  Log.d(TAG, "processIntent: WIFI_P2P_CONNECTION_CHANGED_ACTION: p2p connected ");
+            	  PTPLog.d(TAG, "processIntent: WIFI_P2P_CONNECTION_CHANGED_ACTION: p2p connected ");
                   // Connected with the other device, request connection info for group owner IP. Callback inside details fragment.
                   mApp.mP2pMan.requestConnectionInfo(mApp.mP2pChannel, this);  
               } else {
-            	  Log.d(TAG, "processIntent: WIFI_P2P_CONNECTION_CHANGED_ACTION: p2p disconnected, mP2pConnected = false..closeClient.."); // It's a disconnect
+            	  PTPLog.d(TAG, "processIntent: WIFI_P2P_CONNECTION_CHANGED_ACTION: p2p disconnected, mP2pConnected = false..closeClient.."); // It's a disconnect
             	  mApp.mP2pConnected = false;
             	  mApp.mP2pInfo = null;   // reset connection info after connection done.
             	  mConnMan.closeClient();
+            	  mApp.mPeers.clear();    // the list view is cleared, the next peer list is all new.
             	  
             	  if( mApp.mHomeActivity != null ){
             		  mApp.mHomeActivity.resetData();
@@ -171,6 +212,7 @@ public class ConnectionService extends Service implements ChannelListener, PeerL
     	if( !retryChannel ){
     		PTPLog.d(TAG, "onChannelDisconnected : retry initialize() ");
     		mApp.mP2pChannel = mApp.mP2pMan.initialize(this, mWorkHandler.getLooper(), null);
+    		mApp.mPeers.clear();
     		if( mApp.mHomeActivity != null) {
     			mApp.mHomeActivity.resetData();
     		}
@@ -185,13 +227,13 @@ public class ConnectionService extends Service implements ChannelListener, PeerL
     }
     
     /**
-     * the callback of requestPeers upon WIFI_P2P_PEERS_CHANGED_ACTION intent.
+     * the callback of requestPeers upon WIFI_P2P_PEERS_CHANGED_ACTION intent. Only the changes against the
+     * list before go to the activity.
      */
     @Override
     public void onPeersAvailable(WifiP2pDeviceList peerList) {
-    	mApp.mPeers.clear();
-    	mApp.mPeers.addAll(peerList.getDeviceList());
-		PTPLog.d(TAG, "onPeersAvailable : update peer list...");
+    	PeerRegistry.Delta delta = mApp.mPeers.update(peerList.getDeviceList(), System.currentTimeMillis());
+		PTPLog.d(TAG, "onPeersAvailable : update peer list {} : {}", mApp.mPeers.size(), delta);
 		
     	WifiP2pDevice connectedPeer = mApp.getConnectedPeer();
     	if( connectedPeer != null ){
@@ -211,8 +253,8 @@ public class ConnectionService extends Service implements ChannelListener, PeerL
     		}
     	}
     	
-    	if( mApp.mHomeActivity != null){
-    		mApp.mHomeActivity.onPeersAvailable(peerList);
+    	if( mApp.mHomeActivity != null && !delta.isEmpty() ){
+    		mApp.mHomeActivity.onPeersChanged(delta);
     	}
     }
     
@@ -222,7 +264,7 @@ public class ConnectionService extends Service implements ChannelListener, PeerL
      */
     @Override
     public void onConnectionInfoAvailable(final WifiP2pInfo info) {
-    	Log.d(TAG, "@@@onConnectionInfoAvailable: " + info.groupOwnerAddress.getHostAddress());
+    	PTPLog.d(TAG, "@@@onConnectionInfoAvailable: " + info.groupOwnerAddress.getHostAddress());
         if (info.groupFormed && info.isGroupOwner ) {
 			// XXX server path goes to peer connected.
             //new FileServerAsyncTask(getActivity(), mContentView.findViewById(R.id.status_text)).execute();
@@ -285,34 +327,28 @@ public class ConnectionService extends Service implements ChannelListener, PeerL
         	break;
         case MSG_STARTCLIENT:
         	PTPLog.d(TAG, "processMessage: startClientSelector...");
-        	//TODO
-//        	if( mConnMan.startClientSelector((String)msg.obj) >= 0){
+        	if( mConnMan.startClientSelector((String)msg.obj) >= 0){
         		enableStartChatActivity();
-//        	}
-        	break;
-        case MSG_NEW_CLIENT:
-        	PTPLog.d(TAG, "processMessage:  onNewClient...");
-        	mConnMan.onNewClient((SocketChannel)msg.obj);
-        	break;
-        case MSG_FINISH_CONNECT:
-        	PTPLog.d(TAG, "processMessage:  onFinishConnect...");
-        	mConnMan.onFinishConnect((SocketChannel)msg.obj);
+        	}
         	break;
         case MSG_PULLIN_DATA:
         	PTPLog.d(TAG, "processMessage:  onPullIndata ...");
-        	onPullInData((SocketChannel)msg.obj, msg.getData());
+        	onPullInData((MessageRow)msg.obj);
+        	break;
+        case MSG_FLUSH_INCOMING:
+        	onFlushIncoming();
         	break;
-        case MSG_PUSHOUT_DATA:
-        	PTPLog.d(TAG, "processMessage: onPushOutData...");
-        	onPushOutData((String)msg.obj);
+        case MSG_START_UPLINK:
+        	PTPLog.d(TAG, "processMessage: startUplink...");
+        	mConnMan.startUplink((String)msg.obj);
         	break;
-        case MSG_SELECT_ERROR:
-        	PTPLog.d(TAG, "processMessage: onSelectorError...");
-        	mConnMan.onSelectorError();
+        case MSG_SEND_FILE:
+        	PTPLog.d(TAG, "processMessage: onSendFile...");
+        	onSendFile((String)msg.obj, msg.getData().getString("HOST"));
         	break;
-        case MSG_BROKEN_CONN:
-        	PTPLog.d(TAG, "processMessage: onBrokenConn...");
-        	mConnMan.onBrokenConn((SocketChannel)msg.obj);
+        case MSG_FILE_RECEIVED:
+        	PTPLog.d(TAG, "processMessage: onFileReceived...");
+        	onFileReceived(msg.getData().getString("FROM"), msg.getData().getString("NAME"), (File)msg.obj);
         	break;
         default:
         	break;
@@ -323,99 +359,195 @@ public class ConnectionService extends Service implements ChannelListener, PeerL
      * register the activity that uses this service.
      */
     private void onActivityRegister(MainActivity activity, int register){
-    	Log.d(TAG, "onActivityRegister : activity register itself to service : " + register);
+    	PTPLog.d(TAG, "onActivityRegister : activity register itself to service : " + register);
     	if( register == 1){
     		mActivity = activity;
+    		mInbox.clear();    // the user sees the chat, start the notification over.
+    		mUnseen = 0;
     	}else{
     		mActivity = null;    // set to null explicitly to avoid mem leak.
     	}
     }
     
     /**
-     * service handle data in come from socket channel
+     * service handle data in come from socket channel. The connection loop already dropped duplicates
+     * and relayed the row to the other peers. The row is stored right away, and shown with the others
+     * that are stored within the batch window.
      */
-    private String onPullInData(SocketChannel schannel, Bundle b){
-    	String data = b.getString("DATA");
-    	Log.d(TAG, "onDataIn : recvd msg : " + data);
-    	mConnMan.onDataIn(schannel, data);  // pub to all client if this device is server.
-    	MessageRow row = MessageRow.parseMessageRow(data);
-    	// now first add to app json array
-    	mApp.shiftInsertMessage(row);
-    	showNotification(row);
-    	// add to activity if it is on focus.
-    	showInActivity(row);
-    	return data;
+    private MessageRow onPullInData(MessageRow row){
+    	PTPLog.d(TAG, "onDataIn : recvd msg : {}", row.mMsg);
+    	storeIncoming(row);
+    	return row;
     }
     
     /**
-     * handle data push out request. 
-     * If the sender is the server, pub to all client.
-     * If the sender is client, only can send to the server.
+     * append the row to the chat history on the store thread, batch it for showing once it is stored.
      */
-    private void onPushOutData(String data){
-    	Log.d(TAG, "onPushOutData : " + data);
-    	mConnMan.pushOutData(data);
+    private void storeIncoming(final MessageRow row){
+    	mApp.shiftInsertMessage(row, mHandler, new Runnable() {
+    		@Override public void run() {
+    			mIncoming.add(row);
+    		}
+    	});
     }
     
     /**
-     * sync call to send data using conn man's channel, as conn man now is blocking on select
+     * the batch window closed, one notification update and one activity update for all its rows.
      */
-    public int connectionSendData(String jsonstring) {
-    	Log.d(TAG, "connectionSendData : " + jsonstring);
-    	new SendDataAsyncTask(mConnMan, jsonstring).execute();
-    	return 0;
+    private void onFlushIncoming() {
+    	List<MessageRow> rows = mIncoming.take();
+    	if( rows.isEmpty() ){
+    		return;
+    	}
+    	PTPLog.d(TAG, "onFlushIncoming : {} rows", rows.size());
+    	showNotification(rows);
+    	// add to activity if it is on focus.
+    	showInActivity(rows.get(rows.size()-1));
     }
     
     /**
-     * write data in an async task to avoid NetworkOnMainThreadException.
+     * the incoming batch window, ms. Rows pulled in within it share one notification update and one ui post,
+     * 0 shows every row on its own. Kept in the app preferences.
      */
-    public class SendDataAsyncTask extends AsyncTask<Void, Void, Integer> {
-    	private String data;
-    	private ConnectionManager connman;
-    	
-    	public SendDataAsyncTask(ConnectionManager conn, String jsonstring) {
-    		connman = conn;
-    		data = jsonstring;
+    public void setIncomingBatchWindow(final long window) {
+    	AppPreferences.setStringToPref(mApp, AppPreferences.PREF_NAME, AppPreferences.INCOMING_BATCH_WINDOW, Long.toString(window));
+    	mHandler.post(new Runnable() {
+    		@Override public void run() {
+    			mIncoming.setWindow(window);
+    		}
+    	});
+    }
+    
+    /**
+     * send a file to the peers. It goes over the chat connection when the peer speaks file streams,
+     * otherwise over a separate FileTransferService connection to the group owner at host. The group owner
+     * passes a null host, it has no such fallback.
+     */
+    public void sendFile(String uri, String host) {
+    	Message msg = mHandler.obtainMessage(MSG_SEND_FILE, uri);
+    	msg.getData().putString("HOST", host);
+    	mHandler.sendMessage(msg);
+    }
+    
+    private void onSendFile(String uri, String host) {
+    	Uri u = Uri.parse(uri);
+    	ParcelFileDescriptor pfd = null;
+    	try {
+    		pfd = getContentResolver().openFileDescriptor(u, "r");
+    		long size = pfd.getStatSize();
+    		if( size >= 0 ){
+    			FileChannel source = new ParcelFileDescriptor.AutoCloseInputStream(pfd).getChannel();
+    			// offered by content hash, peers that have the file already skip it. Hashed by the mux, off this thread.
+    			if( mConnMan.sendFile(source, size, u.getLastPathSegment(), null, true) ){
+    				return;    // the stream owns the descriptor now.
+    			}
+    		}
+    	} catch (Exception e) {
+    		PTPLog.e(TAG, "onSendFile : " + e.toString());
     	}
-    	
-		@Override
-		protected Integer doInBackground(Void... params) {
-			return connman.pushOutData(data);
-		}
-		 
-		@Override
-		protected void onPostExecute(Integer result) {
-			Log.d(TAG, "SendDataAsyncTask : onPostExecute:  " + data + " len: " + result);
-		}
+    	if( pfd != null ){
+    		try {
+    			pfd.close();
+    		} catch (IOException e) {
+    			// closed.
+    		}
+    	}
+    	if( host == null ){
+    		PTPLog.e(TAG, "onSendFile : no stream capable peer, and no group owner to fall back to: " + uri);
+    		return;
+    	}
+    	PTPLog.d(TAG, "onSendFile : fall back to a separate transfer connection: " + uri);
+    	Intent serviceIntent = new Intent(this, FileTransferService.class);
+    	serviceIntent.setAction(FileTransferService.ACTION_SEND_FILE);
+    	serviceIntent.putExtra(FileTransferService.EXTRAS_FILE_PATH, uri);
+    	serviceIntent.putExtra(FileTransferService.EXTRAS_GROUP_OWNER_ADDRESS, host);
+    	serviceIntent.putExtra(FileTransferService.EXTRAS_GROUP_OWNER_PORT, 8988);
+    	startService(serviceIntent);
+    }
+    
+    /**
+     * a file stream from a peer completed, or its content was stored already, show it in the chat like a message.
+     */
+    private void onFileReceived(String from, String name, File file) {
+    	PTPLog.d(TAG, "onFileReceived : {} from {} at {}", name, from, file);
+    	MessageRow row = new MessageRow(from, "file received: " + name, System.currentTimeMillis());
+    	storeIncoming(row);
+    }
+    
+    /**
+     * send data using conn man's channel, from any thread. The connection loop encodes, fans out and writes it.
+     * If the sender is the server, pub to all client.
+     * If the sender is client, only can send to the server.
+     */
+    public int connectionSendData(MessageRow row) {
+    	PTPLog.d(TAG, "connectionSendData : {}", row.mMsg);
+    	return mConnMan.pushOutData(row);
     }
     
     /**
      * send a notification upon recv data, click the notification will bcast the pending intent, which
-     * will launch the chatactivity fragment.
+     * will launch the chatactivity fragment. One update per batch: the latest row as the ticker, and an
+     * inbox of the latest unseen rows on Jelly Bean and later.
      */
-    public void showNotification(MessageRow row) {
+    private void showNotification(List<MessageRow> rows) {
+    	MessageRow row = rows.get(rows.size()-1);
+    	for( MessageRow r : rows ){
+    		if( mInbox.size() == INBOX_LINES ){
+    			mInbox.pollFirst();
+    		}
+    		mInbox.addLast(r);
+    	}
+    	mUnseen += rows.size();
     	
     	NotificationManager notificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
-    	Notification notification = new Notification(R.drawable.ic_action_discover, row.mMsg, System.currentTimeMillis());
-    	notification.defaults |= Notification.DEFAULT_VIBRATE;
-    	CharSequence title = row.mSender;
-    	CharSequence text = row.mMsg;
+    	CharSequence title = mUnseen > 1 ? mUnseen + " new messages" : row.mSender;
+    	CharSequence text = mUnseen > 1 ? row.mSender + ": " + row.mMsg : row.mMsg;
 
     	//Intent notificationIntent = new Intent(this, WiFiDirectActivity.class);
     	Intent notificationIntent = mApp.getLauchActivityIntent(MainActivity.class, row.mMsg);
     	// pendingIntent that will start a new activity.
     	PendingIntent contentIntent = PendingIntent.getActivity(this, 0, notificationIntent, PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_ONE_SHOT);
 
-    	notification.setLatestEventInfo(this, title, text, contentIntent);
+    	Notification.Builder builder = new Notification.Builder(this)
+    		.setSmallIcon(R.drawable.ic_action_discover)
+    		.setTicker(row.mMsg)
+    		.setWhen(System.currentTimeMillis())
+    		.setContentTitle(title)
+    		.setContentText(text)
+    		.setContentIntent(contentIntent)
+    		.setDefaults(Notification.DEFAULT_VIBRATE);
+    	Notification notification;
+    	if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN ){
+    		if( mUnseen > 1 ){
+    			builder.setNumber(mUnseen);
+    			notification = inboxStyle(builder, title).build();
+    		} else {
+    			notification = builder.build();
+    		}
+    	} else {
+    		notification = builder.getNotification();
+    	}
     	notificationManager.notify(1, notification);
-    	PTPLog.d(TAG, "showNotification: " + row.mMsg);
+    	PTPLog.d(TAG, "showNotification: {} rows, {}", rows.size(), row.mMsg);
+    }
+    
+    private Notification.InboxStyle inboxStyle(Notification.Builder builder, CharSequence title) {
+    	Notification.InboxStyle style = new Notification.InboxStyle(builder).setBigContentTitle(title);
+    	for( MessageRow r : mInbox ){
+    		style.addLine(r.mSender + ": " + r.mMsg);
+    	}
+    	if( mUnseen > mInbox.size() ){
+    		style.setSummaryText("+" + (mUnseen - mInbox.size()) + " more");
+    	}
+    	return style;
     }
     
     /**
-     * show the message in activity
+     * show the message in activity. The fragment picks up every row stored since its last update, so
+     * the last row of a batch shows them all.
      */
     private void showInActivity(final MessageRow row){
-    	PTPLog.d(TAG, "showInActivity : " + row.mMsg);
+    	PTPLog.d(TAG, "showInActivity : {}", row.mMsg);
     	if( mActivity != null ){
     		mActivity.showMessage(row);
     	} else {
@@ -1,5 +1,7 @@
 package com.colorcloud.wifichat;
 
+import java.nio.charset.Charset;
+
 public final class Constants {
 	
 	public static final String PACKAGE_NAME = Constants.class.getPackage().getName();
@@ -9,18 +11,41 @@ public final class Constants {
 	public static final int MSG_STARTCLIENT = 1002;
 	public static final int MSG_CONNECT = 1003;
 	public static final int MSG_DISCONNECT = 1004;   // p2p disconnect
-	public static final int MSG_PUSHOUT_DATA = 1005;
-	public static final int MSG_NEW_CLIENT = 1006;
-	public static final int MSG_FINISH_CONNECT = 1007;
-	public static final int MSG_PULLIN_DATA = 1008;
+	public static final int MSG_PULLIN_DATA = 1008;   // a new row from the connection loop, to store and show
 	public static final int MSG_REGISTER_ACTIVITY = 1009;
+	public static final int MSG_SEND_FILE = 1014;     // send a file over the chat connection
+	public static final int MSG_FILE_RECEIVED = 1015; // a file stream completed
+	public static final int MSG_START_UPLINK = 1017;  // group owner bridges to another group
+	public static final int MSG_FLUSH_INCOMING = 1018; // show the rows pulled in within the batch window
 	
-	public static final int MSG_SELECT_ERROR = 2001;
-	public static final int MSG_BROKEN_CONN = 2002;  // network disconnect
+	public static final Charset UTF8 = Charset.forName("UTF-8");
+	public static final int FRAME_HEADER_MODE = FrameDecoder.HEADER_VARINT;   // both ends must agree.
+	public static final boolean FRAME_COMPRESSION = true;     // compress frames to peers that inflate them
+	public static final int WRITE_QUEUE_HIGH_WATERMARK = 256*1024;   // per peer pending bytes
+	public static final int WRITE_QUEUE_LOW_WATERMARK = 64*1024;
+	public static final long WRITE_QUEUE_BLOCK_TIMEOUT = 2000;       // max producer block, ms
+	public static final int RELIABLE_MAX_UNACKED = 512;       // per peer retransmit buffer, rows
+	public static final int RELIABLE_ACK_EVERY = 16;          // ack at least every 16 rows
+	public static final long RELIABLE_ACK_DELAY = 200;        // or 200 ms after the last unacked row
+	public static final long RELIABLE_NACK_RETRY = 500;       // repeat the nack while a gap stays open, ms
+	public static final long RELIABLE_SESSION_LINGER = 5*60*1000;   // keep a gone peer's session, ms
+	public static final int CHAT_PORT = 1080;                 // the group owner's chat server socket
+	public static final long CONNECT_TIMEOUT = 3000;          // give up on a connect attempt, ms
+	public static final long RECONNECT_MIN_DELAY = 100;       // first retry after a link went down, ms
+	public static final long RECONNECT_MAX_DELAY = 8000;      // retry backoff doubles up to this, ms
+	public static final int MESH_MAX_TTL = 8;                 // mesh hops a row may be forwarded
+	public static final int MESH_DEDUP_ORIGINS = 256;         // origins tracked for duplicate suppression
+	public static final int LOG_RING_SIZE = 256;             // log lines queued for the log thread
+	public static final long INCOMING_BATCH_WINDOW = 250;     // rows pulled in within this share one notification, ms
+	public static final int INBOX_LINES = 5;                  // recent rows listed in the notification
 	
 	public static final int MSG_SIZE = 50;    // the lastest 50 messages
+	public static final String MSG_STORE_DIR = "history";   // chat history segments, under the app files dir.
+	public static final String ATTACH_STORE_DIR = "attachments";   // received files by content, under the receive dir.
+	public static final long ATTACH_STORE_MAX_BYTES = 64L*1024*1024;   // evict the least recently used over this.
 	public static final String MSG_SENDER = "sender";
 	public static final String MSG_TIME = "time";
+	public static final String MSG_TIMESTAMP = "ts";
 	public static final String MSG_CONTENT = "msg";
 	
 	// analytics tracking category, action, label and value
@@ -17,12 +17,11 @@
 package com.colorcloud.wifichat;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
 
 import android.app.Activity;
 import android.app.Fragment;
@@ -46,7 +45,6 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.colorcloud.wifichat.DeviceListFragment.DeviceActionListener;
-import com.colorcloud.wifichat.WiFiDirectApp.PTPLog;
 
 /**
  * A fragment that manages a particular peer and allows interaction with device
@@ -132,16 +130,24 @@ public class DeviceDetailFragment extends Fragment {
 
     @Override
     public void onActivityResult(int requestCode, int resultCode, Intent data) {
-        // User has picked an image. Transfer it to group owner i.e peer using
-        // FileTransferService.
+        // User has picked an image. Transfer it to group owner i.e peer over the chat connection,
+        // the connection service falls back to FileTransferService for peers without file streams.
+        // The group owner has no such fallback, FileTransferService only sends to the group owner.
         Uri uri = data.getData();
         TextView statusText = (TextView) mContentView.findViewById(R.id.status_text);
         statusText.setText("Sending: " + uri);
         Log.d(WiFiDirectActivity.TAG, "Intent----------- " + uri);
+        String host = info.isGroupOwner ? null : info.groupOwnerAddress.getHostAddress();
+        if (ConnectionService.getInstance() != null || host == null) {
+            if (ConnectionService.getInstance() != null) {
+                ConnectionService.getInstance().sendFile(uri.toString(), host);
+            }
+            return;
+        }
         Intent serviceIntent = new Intent(getActivity(), FileTransferService.class);
         serviceIntent.setAction(FileTransferService.ACTION_SEND_FILE);
         serviceIntent.putExtra(FileTransferService.EXTRAS_FILE_PATH, uri.toString());
-        serviceIntent.putExtra(FileTransferService.EXTRAS_GROUP_OWNER_ADDRESS, info.groupOwnerAddress.getHostAddress());
+        serviceIntent.putExtra(FileTransferService.EXTRAS_GROUP_OWNER_ADDRESS, host);
         serviceIntent.putExtra(FileTransferService.EXTRAS_GROUP_OWNER_PORT, 8988);
         getActivity().startService(serviceIntent);
     }
@@ -225,8 +231,8 @@ public class DeviceDetailFragment extends Fragment {
     }
 
     /**
-     * A simple server socket that accepts connection and writes some data on
-     * the stream.
+     * A server socket that accepts the parallel streams of a file transfer and
+     * writes the chunks into a partial file, resumable if the sender drops.
      */
     public static class FileServerAsyncTask extends AsyncTask<Void, Void, String> {
 
@@ -244,31 +250,28 @@ public class DeviceDetailFragment extends Fragment {
 
         @Override
         protected String doInBackground(Void... params) {
+            ServerSocketChannel serverChannel = null;
             try {
-                ServerSocket serverSocket = new ServerSocket(8988);
+                serverChannel = ServerSocketChannel.open();
+                serverChannel.socket().setReuseAddress(true);
+                serverChannel.socket().bind(new InetSocketAddress(8988));
                 Log.d(WiFiDirectActivity.TAG, "Server: Socket opened");
                 
-                Socket client = serverSocket.accept();
-                Log.d(WiFiDirectActivity.TAG, "Server: connection done");
-                
-                
-                final File f = new File(Environment.getExternalStorageDirectory() + "/"
-                        + context.getPackageName() + "/wifip2pshared-" + System.currentTimeMillis()
-                        + ".jpg");
-
-                File dirs = new File(f.getParent());
-                if (!dirs.exists())
-                    dirs.mkdirs();
-                f.createNewFile();
-
-                Log.d(WiFiDirectActivity.TAG, "server: copying files " + f.toString());
-                InputStream inputstream = client.getInputStream();
-                copyFile(inputstream, new FileOutputStream(f));
-                serverSocket.close();
+                File dir = new File(Environment.getExternalStorageDirectory() + "/" + context.getPackageName());
+                File f = new FileTransferEngine.Receiver(dir).receive(serverChannel);
+                Log.d(WiFiDirectActivity.TAG, "server: file received " + f.toString());
                 return f.getAbsolutePath();
             } catch (IOException e) {
-                Log.e(WiFiDirectActivity.TAG, e.getMessage());
+                Log.e(WiFiDirectActivity.TAG, e.toString());
                 return null;
+            } finally {
+                if (serverChannel != null) {
+                    try {
+                        serverChannel.close();
+                    } catch (IOException e) {
+                        // closed
+                    }
+                }
             }
         }
 
@@ -300,7 +303,7 @@ public class DeviceDetailFragment extends Fragment {
     }
 
     public static boolean copyFile(InputStream inputStream, OutputStream out) {
-        byte buf[] = new byte[1024];
+        byte buf[] = new byte[64*1024];
         int len;
         try {
             while ((len = inputStream.read(buf)) != -1) {
@@ -36,7 +36,6 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import com.colorcloud.wifichat.WiFiDirectApp.PTPLog;
 
 /**
  * A ListFragment that displays available peers on discovery and requests the
@@ -59,7 +58,7 @@ public class DeviceListFragment extends ListFragment {  // callback of requestPe
         // set list adapter with row layout to adapter data
         this.setListAdapter(new WiFiPeerListAdapter(getActivity(), R.layout.row_devices, peers));
         mApp = (WiFiDirectApp)getActivity().getApplication();
-        onPeersAvailable(mApp.mPeers);
+        onPeersAvailable(mApp.mPeers.getDevices());
     }
 
     @Override
@@ -163,6 +162,41 @@ public class DeviceListFragment extends ListFragment {  // callback of requestPe
         }
     }
 
+    /**
+     * apply the changes since the last peer list, the rows of unchanged peers stay as they are.
+     */
+    public void onPeersChanged(PeerRegistry.Delta delta) {
+        if (progressDialog != null && progressDialog.isShowing()) {  // dismiss progressbar first.
+            progressDialog.dismiss();
+        }
+        for (WifiP2pDevice d : delta.mRemoved) {
+            int i = indexOf(d.deviceAddress);
+            if (i >= 0) {
+                peers.remove(i);
+            }
+        }
+        for (WifiP2pDevice d : delta.mChanged) {
+            int i = indexOf(d.deviceAddress);
+            if (i >= 0) {
+                peers.set(i, d);
+            } else {
+                peers.add(d);
+            }
+        }
+        peers.addAll(delta.mAdded);
+        ((WiFiPeerListAdapter) getListAdapter()).notifyDataSetChanged();
+        PTPLog.d(TAG, "onPeersChanged : {} peers, {}", peers.size(), delta);
+    }
+
+    private int indexOf(String address) {
+        for (int i = 0; i < peers.size(); i++) {
+            if (peers.get(i).deviceAddress.equals(address)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     public void clearPeers() {
     	getActivity().runOnUiThread(new Runnable() {
     		@Override public void run() {
@@ -0,0 +1,585 @@
+package com.colorcloud.wifichat;
+
+import static com.colorcloud.wifichat.Constants.*;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * chunked, resumable file transfer over N parallel tcp streams.
+ *
+ * The file is split into fixed size chunks. Every stream opens with an offer of the file, the receiver answers
+ * with the bitmap of the chunks it already has, and the sender streams the missing chunks, each one checksummed
+ * and acked on its own. The receiver persists the bitmap next to the partial file, so a transfer that dropped at
+ * 90% resumes at 90% the next time the same file is offered. Chunk data moves with FileChannel.transferTo and
+ * transferFrom, the kernel copies between file and socket without going through java buffers.
+ *
+ *   OFFER   [magic][transfer id:8][size:8][chunk size][name len:2][utf8 name]   sender, once per stream
+ *   HAVE    [chunks][bitmap]                                                 receiver, bit set: chunk done
+ *   CHUNK   [index][crc32][data]                                             sender, index -1 ends the stream
+ *   RESULT  [index][ok:1]                                                    receiver, a bad chunk is resent
+ *
+ * All integers are big endian, 4 bytes unless noted. Streams share one chunk queue on the sender; a stream that
+ * fails puts its chunk back, reconnects and picks up whatever is left. A chunk that keeps failing its checksum
+ * fails the transfer after MAX_CHUNK_RETRIES resends.
+ */
+public class FileTransferEngine {
+
+	public static final int MAGIC = 0x57464331;     // "WFC1"
+	public static final int DEFAULT_CHUNK_SIZE = 256*1024;
+	public static final int DEFAULT_STREAMS = 4;
+	private static final int MAX_STREAM_RETRIES = 3;
+	private static final int MAX_CHUNK_RETRIES = 5;     // resends of a chunk the receiver rejected.
+	private static final long RETRY_BACKOFF = 500;      // ms, doubled per retry.
+	private static final int END_OF_CHUNKS = -1;
+	private static final int CRC_BUF_SIZE = 64*1024;
+	private static final int MAX_NAME_LEN = 255;
+	private static final String PART_SUFFIX = ".part";
+	private static final String MAP_SUFFIX = ".map";
+
+	public static int chunkCount(long size, int chunkSize) {
+		return (int)((size + chunkSize - 1) / chunkSize);
+	}
+
+	public static int chunkLength(long size, int chunkSize, int index) {
+		return (int)Math.min(chunkSize, size - (long)index * chunkSize);
+	}
+
+	/**
+	 * a stable id for a file, the same file offered again resumes the same partial transfer. The content hash,
+	 * see AttachmentStore.hash, keeps a file changed in place from resuming the chunks of its old content.
+	 */
+	public static long transferId(String source, long size, byte[] hash) {
+		long h = 0xcbf29ce484222325L;    // FNV-1a 64
+		for (int i = 0; i < source.length(); i++) {
+			h ^= source.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		for (int i = 0; i < hash.length; i++) {
+			h ^= hash[i] & 0xFF;
+			h *= 0x100000001b3L;
+		}
+		return h ^ size;
+	}
+
+	/**
+	 * crc32 of a file range, read through the reused heap buffer.
+	 */
+	static int crc(FileChannel file, long pos, int len, ByteBuffer buf, CRC32 crc) throws IOException {
+		crc.reset();
+		int done = 0;
+		while (done < len) {
+			buf.clear();
+			buf.limit(Math.min(buf.capacity(), len - done));
+			int n = file.read(buf, pos + done);
+			if (n < 0) {
+				throw new EOFException("file shorter than expected");
+			}
+			crc.update(buf.array(), 0, n);
+			done += n;
+		}
+		return (int)crc.getValue();
+	}
+
+	/**
+	 * a file name in dir for a received file, the sender's name made safe, not clashing with an existing file.
+	 */
+	static File uniqueFile(File dir, String name) {
+		String clean = name.replaceAll("[/\\\\:*?\"<>|]", "_");
+		if (clean.length() == 0 || clean.startsWith(".")) {
+			clean = "wifip2pshared-" + clean;
+		}
+		File f = new File(dir, clean);
+		if (f.exists()) {
+			f = new File(dir, System.currentTimeMillis() + "-" + clean);
+		}
+		return f;
+	}
+
+	static void readFully(SocketChannel ch, ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			if (ch.read(buf) < 0) {
+				throw new EOFException("stream closed by peer");
+			}
+		}
+		buf.flip();
+	}
+
+	static void writeFully(SocketChannel ch, ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			ch.write(buf);
+		}
+	}
+
+	/**
+	 * sending side. One instance per file, send() runs the streams and returns when the file is done or every
+	 * stream gave up. Calling send() again, even from a new process, resumes from the receiver's bitmap.
+	 */
+	public static class Sender {
+		private final FileChannel mSource;
+		private final long mSize;
+		private final String mName;
+		private final long mTransferId;
+		private final int mChunkSize;
+		private final int mStreams;
+
+		private ArrayDeque<Integer> mPending = null;   // chunks to send, null until the first HAVE.
+		private int[] mRejects = null;                 // checksum failures per chunk.
+		private int mRemaining = -1;                   // chunks not acked yet.
+		private boolean mFailed = false;               // a chunk ran out of retries.
+		private long mBytesSent = 0;
+		private IOException mLastError = null;
+
+		public Sender(FileChannel source, long size, String name, long transferId, int chunkSize, int streams) {
+			mSource = source;
+			mSize = size;
+			mName = name;
+			mTransferId = transferId;
+			mChunkSize = chunkSize;
+			mStreams = Math.max(1, streams);
+		}
+
+		/**
+		 * run the streams to the receiver. Blocks.
+		 * @return true when the receiver has every chunk.
+		 */
+		public boolean send(final InetSocketAddress addr, final int timeout) throws InterruptedException {
+			Thread[] threads = new Thread[mStreams - 1];
+			for (int i = 0; i < threads.length; i++) {
+				threads[i] = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						runStream(addr, timeout);
+					}
+				}, "FileTransfer-" + i);
+				threads[i].start();
+			}
+			runStream(addr, timeout);
+			for (Thread t : threads) {
+				t.join();
+			}
+			return isDone();
+		}
+
+		public synchronized boolean isDone() {
+			return mRemaining == 0;
+		}
+
+		/**
+		 * whether the transfer gave up on a chunk the receiver kept rejecting, see getLastError().
+		 */
+		public synchronized boolean isFailed() {
+			return mFailed;
+		}
+
+		public synchronized long getBytesSent() {
+			return mBytesSent;
+		}
+
+		public synchronized IOException getLastError() {
+			return mLastError;
+		}
+
+		private void runStream(InetSocketAddress addr, int timeout) {
+			long backoff = RETRY_BACKOFF;
+			for (int attempt = 0; attempt <= MAX_STREAM_RETRIES && !isDone() && !isFailed(); attempt++) {
+				try {
+					streamChunks(addr, timeout);
+					return;
+				} catch (IOException e) {
+					synchronized (this) {
+						mLastError = e;
+					}
+					try {
+						Thread.sleep(backoff);
+					} catch (InterruptedException ie) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+					backoff <<= 1;
+				}
+			}
+		}
+
+		private void streamChunks(InetSocketAddress addr, int timeout) throws IOException {
+			SocketChannel ch = SocketChannel.open();
+			try {
+				ch.socket().connect(addr, timeout);
+				writeFully(ch, offer());
+				initPending(readHave(ch));
+
+				ByteBuffer hdr = ByteBuffer.allocate(8);
+				ByteBuffer reply = ByteBuffer.allocate(5);
+				ByteBuffer crcbuf = ByteBuffer.allocate(CRC_BUF_SIZE);
+				CRC32 crc = new CRC32();
+				int index;
+				while ((index = nextChunk()) >= 0) {
+					boolean acked = false;
+					boolean rejected = false;
+					try {
+						long pos = (long)index * mChunkSize;
+						int len = chunkLength(mSize, mChunkSize, index);
+						hdr.clear();
+						hdr.putInt(index).putInt(crc(mSource, pos, len, crcbuf, crc)).flip();
+						writeFully(ch, hdr);
+						long sent = 0;
+						while (sent < len) {
+							sent += mSource.transferTo(pos + sent, len - sent, ch);
+						}
+						reply.clear();
+						readFully(ch, reply);
+						if (reply.getInt() != index) {
+							throw new IOException("chunk result out of order");
+						}
+						acked = reply.get() == 1;
+						if (acked) {
+							chunkDone(len);
+						} else {
+							rejected = true;
+							chunkRejected(index);
+						}
+					} finally {
+						if (!acked && !rejected) {
+							requeue(index);   // the stream broke.
+						}
+					}
+				}
+				hdr.clear();
+				hdr.putInt(END_OF_CHUNKS).putInt(0).flip();
+				writeFully(ch, hdr);
+			} finally {
+				ch.close();
+			}
+		}
+
+		private ByteBuffer offer() {
+			byte[] name = mName.getBytes(UTF8);
+			int namelen = Math.min(name.length, MAX_NAME_LEN);
+			ByteBuffer buf = ByteBuffer.allocate(4 + 8 + 8 + 4 + 2 + namelen);
+			buf.putInt(MAGIC).putLong(mTransferId).putLong(mSize).putInt(mChunkSize);
+			buf.putShort((short)namelen).put(name, 0, namelen);
+			buf.flip();
+			return buf;
+		}
+
+		private byte[] readHave(SocketChannel ch) throws IOException {
+			ByteBuffer n = ByteBuffer.allocate(4);
+			readFully(ch, n);
+			int nchunks = n.getInt();
+			if (nchunks != chunkCount(mSize, mChunkSize)) {
+				throw new IOException("receiver chunk count mismatch: " + nchunks);
+			}
+			ByteBuffer bitmap = ByteBuffer.allocate((nchunks + 7) / 8);
+			readFully(ch, bitmap);
+			return bitmap.array();
+		}
+
+		/**
+		 * the first HAVE decides what is left to send, later streams join the same queue.
+		 */
+		private synchronized void initPending(byte[] bitmap) {
+			if (mPending != null) {
+				return;
+			}
+			mPending = new ArrayDeque<Integer>();
+			int nchunks = chunkCount(mSize, mChunkSize);
+			mRejects = new int[nchunks];
+			for (int i = 0; i < nchunks; i++) {
+				if ((bitmap[i >> 3] & (1 << (i & 7))) == 0) {
+					mPending.addLast(i);
+				}
+			}
+			mRemaining = mPending.size();
+		}
+
+		private synchronized int nextChunk() {
+			Integer index = mFailed ? null : mPending.pollFirst();
+			return index == null ? -1 : index;
+		}
+
+		private synchronized void requeue(int index) {
+			mPending.addFirst(index);
+		}
+
+		/**
+		 * the receiver got a bad checksum for the chunk, resend it, or fail the transfer once it used its retries.
+		 */
+		private synchronized void chunkRejected(int index) {
+			if (++mRejects[index] <= MAX_CHUNK_RETRIES) {
+				mPending.addFirst(index);
+				return;
+			}
+			mFailed = true;
+			mPending.clear();
+			mLastError = new IOException("chunk " + index + " failed its checksum " + mRejects[index] + " times");
+		}
+
+		private synchronized void chunkDone(int len) {
+			mRemaining--;
+			mBytesSent += len;
+		}
+	}
+
+	/**
+	 * a partial file on the receiving side, shared by all streams of the transfer.
+	 */
+	static class Transfer {
+		final long mId;
+		final long mSize;
+		final int mChunkSize;
+		final int mChunks;
+		final File mPartFile;
+		final File mMapFile;
+		final File mFinalFile;
+		final FileChannel mData;
+		final RandomAccessFile mMap;
+		final byte[] mBitmap;
+		int mMissing;
+		boolean mCompleted = false;
+
+		private static final int MAP_HEADER = 8 + 8 + 4;
+
+		Transfer(File dir, long id, long size, int chunkSize, String name) throws IOException {
+			mId = id;
+			mSize = size;
+			mChunkSize = chunkSize;
+			mChunks = chunkCount(size, chunkSize);
+			String base = Long.toHexString(id);
+			mPartFile = new File(dir, base + PART_SUFFIX);
+			mMapFile = new File(dir, base + MAP_SUFFIX);
+			mFinalFile = uniqueFile(dir, name);
+			mBitmap = new byte[(mChunks + 7) / 8];
+
+			mMap = new RandomAccessFile(mMapFile, "rw");
+			boolean resume = false;
+			if (mMap.length() == MAP_HEADER + mBitmap.length) {
+				resume = mMap.readLong() == id && mMap.readLong() == size && mMap.readInt() == chunkSize;
+			}
+			if (resume) {
+				mMap.readFully(mBitmap);
+			} else {
+				mMap.setLength(0);
+				mMap.writeLong(id);
+				mMap.writeLong(size);
+				mMap.writeInt(chunkSize);
+				mMap.write(mBitmap);
+			}
+			mMissing = 0;
+			for (int i = 0; i < mChunks; i++) {
+				if (!isDone(i)) {
+					mMissing++;
+				}
+			}
+			RandomAccessFile data = new RandomAccessFile(mPartFile, "rw");
+			data.setLength(size);
+			mData = data.getChannel();
+		}
+
+		synchronized boolean isDone(int index) {
+			return (mBitmap[index >> 3] & (1 << (index & 7))) != 0;
+		}
+
+		synchronized byte[] have() {
+			return mBitmap.clone();
+		}
+
+		/**
+		 * a verified chunk, persist its bit.
+		 * @return true if this was the last missing chunk.
+		 */
+		synchronized boolean markDone(int index) throws IOException {
+			if (isDone(index)) {
+				return false;
+			}
+			int b = index >> 3;
+			mBitmap[b] |= (1 << (index & 7));
+			mMap.seek(MAP_HEADER + b);
+			mMap.write(mBitmap[b]);
+			return --mMissing == 0;
+		}
+
+		/**
+		 * all chunks in, move the part file to its final name and drop the bitmap.
+		 */
+		synchronized void complete() throws IOException {
+			if (mCompleted) {
+				return;
+			}
+			mCompleted = true;
+			mData.force(false);
+			mData.close();
+			mMap.close();
+			if (!mPartFile.renameTo(mFinalFile)) {
+				throw new IOException("rename failed: " + mFinalFile);
+			}
+			mMapFile.delete();
+		}
+
+		synchronized void close() {
+			try {
+				mData.close();
+				mMap.close();
+			} catch (IOException e) {
+				// nothing to keep.
+			}
+		}
+	}
+
+	/**
+	 * receiving side. Accepts the streams of a transfer on a server channel, each on its own thread, and returns
+	 * the file once all chunks are in. Partial transfers stay in the directory for the next offer of the same file.
+	 */
+	public static class Receiver {
+		private static final long ACCEPT_POLL = 500;   // ms between completion checks.
+
+		private final File mDir;
+		private final Map<Long, Transfer> mTransfers = new HashMap<Long, Transfer>();
+		private File mCompleted = null;
+
+		public Receiver(File dir) {
+			mDir = dir;
+		}
+
+		/**
+		 * accept streams until a transfer completes.
+		 * @return the received file.
+		 */
+		public File receive(ServerSocketChannel server) throws IOException {
+			if (!mDir.isDirectory() && !mDir.mkdirs()) {
+				throw new IOException("can not create " + mDir);
+			}
+			Selector selector = Selector.open();
+			try {
+				server.configureBlocking(false);
+				server.register(selector, SelectionKey.OP_ACCEPT);
+				while (true) {
+					synchronized (this) {
+						if (mCompleted != null) {
+							return mCompleted;
+						}
+					}
+					if (selector.select(ACCEPT_POLL) == 0) {
+						continue;
+					}
+					selector.selectedKeys().clear();
+					final SocketChannel ch = server.accept();
+					if (ch == null) {
+						continue;
+					}
+					ch.configureBlocking(true);
+					new Thread(new Runnable() {
+						@Override
+						public void run() {
+							handleStream(ch);
+						}
+					}, "FileReceive").start();
+				}
+			} finally {
+				selector.close();
+			}
+		}
+
+		private void handleStream(SocketChannel ch) {
+			Transfer transfer = null;
+			try {
+				transfer = openTransfer(ch);
+				byte[] have = transfer.have();
+				ByteBuffer hdr = ByteBuffer.allocate(4 + have.length);
+				hdr.putInt(transfer.mChunks).put(have).flip();
+				writeFully(ch, hdr);
+				receiveChunks(ch, transfer);
+			} catch (IOException e) {
+				// the sender reconnects and resumes.
+			} finally {
+				try {
+					ch.close();
+				} catch (IOException e) {
+					// closed.
+				}
+			}
+		}
+
+		private Transfer openTransfer(SocketChannel ch) throws IOException {
+			ByteBuffer hdr = ByteBuffer.allocate(4 + 8 + 8 + 4 + 2);
+			readFully(ch, hdr);
+			if (hdr.getInt() != MAGIC) {
+				throw new IOException("not a file transfer stream");
+			}
+			long id = hdr.getLong();
+			long size = hdr.getLong();
+			int chunkSize = hdr.getInt();
+			int namelen = hdr.getShort() & 0xFFFF;
+			if (size < 0 || chunkSize <= 0 || namelen > MAX_NAME_LEN) {
+				throw new IOException("bad offer");
+			}
+			ByteBuffer name = ByteBuffer.allocate(namelen);
+			readFully(ch, name);
+			synchronized (this) {
+				Transfer t = mTransfers.get(id);
+				if (t == null || t.mCompleted) {
+					t = new Transfer(mDir, id, size, chunkSize, new String(name.array(), UTF8));
+					mTransfers.put(id, t);
+				}
+				if (t.mMissing == 0) {
+					finish(t);
+				}
+				return t;
+			}
+		}
+
+		private void receiveChunks(SocketChannel ch, Transfer t) throws IOException {
+			ByteBuffer hdr = ByteBuffer.allocate(8);
+			ByteBuffer reply = ByteBuffer.allocate(5);
+			ByteBuffer crcbuf = ByteBuffer.allocate(CRC_BUF_SIZE);
+			CRC32 crc = new CRC32();
+			while (true) {
+				hdr.clear();
+				readFully(ch, hdr);
+				int index = hdr.getInt();
+				int expect = hdr.getInt();
+				if (index == END_OF_CHUNKS) {
+					return;
+				}
+				if (index < 0 || index >= t.mChunks) {
+					throw new IOException("bad chunk index " + index);
+				}
+				long pos = (long)index * t.mChunkSize;
+				int len = chunkLength(t.mSize, t.mChunkSize, index);
+				long got = 0;
+				while (got < len) {
+					long n = t.mData.transferFrom(ch, pos + got, len - got);
+					if (n <= 0) {
+						throw new EOFException("stream closed in chunk " + index);
+					}
+					got += n;
+				}
+				boolean ok = crc(t.mData, pos, len, crcbuf, crc) == expect;
+				if (ok && t.markDone(index)) {
+					finish(t);
+				}
+				reply.clear();
+				reply.putInt(index).put((byte)(ok ? 1 : 0)).flip();
+				writeFully(ch, reply);
+			}
+		}
+
+		private synchronized void finish(Transfer t) throws IOException {
+			t.complete();
+			mTransfers.remove(t.mId);
+			mCompleted = t.mFinalFile;
+		}
+	}
+}
@@ -7,18 +7,23 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.nio.channels.FileChannel;
 
 /**
- * A service that process each file transfer request i.e Intent by opening a
- * socket connection with the WiFi Direct Group Owner and writing the file
+ * A service that process each file transfer request i.e Intent by opening
+ * parallel socket streams to the WiFi Direct Group Owner and sending the file
+ * in checksummed chunks. A transfer that broke off resumes where it stopped
+ * when the same file is sent again.
  */
 public class FileTransferService extends IntentService {
 
@@ -27,6 +32,7 @@ public class FileTransferService extends IntentService {
     public static final String EXTRAS_FILE_PATH = "file_url";
     public static final String EXTRAS_GROUP_OWNER_ADDRESS = "go_host";
     public static final String EXTRAS_GROUP_OWNER_PORT = "go_port";
+    public static final String EXTRAS_STREAMS = "streams";    // optional, parallel streams
 
     public FileTransferService(String name) {
         super(name);
@@ -47,37 +53,62 @@ public class FileTransferService extends IntentService {
         if (intent.getAction().equals(ACTION_SEND_FILE)) {
             String fileUri = intent.getExtras().getString(EXTRAS_FILE_PATH);
             String host = intent.getExtras().getString(EXTRAS_GROUP_OWNER_ADDRESS);
-            Socket socket = new Socket();
             int port = intent.getExtras().getInt(EXTRAS_GROUP_OWNER_PORT);
+            int streams = intent.getExtras().getInt(EXTRAS_STREAMS, FileTransferEngine.DEFAULT_STREAMS);
 
+            ParcelFileDescriptor pfd = null;
+            File spool = null;
+            FileInputStream source = null;
             try {
-                Log.d(WiFiDirectActivity.TAG, "Opening client socket - ");
-                socket.bind(null);
-                socket.connect((new InetSocketAddress(host, port)), SOCKET_TIMEOUT);
-
-                Log.d(WiFiDirectActivity.TAG, "Client socket - " + socket.isConnected());
-                OutputStream stream = socket.getOutputStream();
                 ContentResolver cr = context.getContentResolver();
-                InputStream is = null;
+                Uri uri = Uri.parse(fileUri);
+                long size = -1;
                 try {
-                    is = cr.openInputStream(Uri.parse(fileUri));
+                    pfd = cr.openFileDescriptor(uri, "r");
+                    size = pfd.getStatSize();
                 } catch (FileNotFoundException e) {
                     Log.d(WiFiDirectActivity.TAG, e.toString());
                 }
-                DeviceDetailFragment.copyFile(is, stream);
-                Log.d(WiFiDirectActivity.TAG, "Client: Data written");
+                if (pfd != null && size >= 0) {
+                    source = new FileInputStream(pfd.getFileDescriptor());
+                } else {
+                    // stream only provider, spool to a file so chunks can be read at any offset.
+                    spool = File.createTempFile("send", null, getCacheDir());
+                    InputStream is = cr.openInputStream(uri);
+                    if (is == null || !DeviceDetailFragment.copyFile(is, new FileOutputStream(spool))) {
+                        throw new IOException("can not read " + fileUri);
+                    }
+                    source = new FileInputStream(spool);
+                    size = spool.length();
+                }
+
+                FileChannel channel = source.getChannel();
+                String name = uri.getLastPathSegment() != null ? uri.getLastPathSegment() : "file";
+                byte[] hash = AttachmentStore.hash(channel, size);   // a changed file must not resume the old chunks.
+                FileTransferEngine.Sender sender = new FileTransferEngine.Sender(channel, size, name,
+                        FileTransferEngine.transferId(fileUri, size, hash), FileTransferEngine.DEFAULT_CHUNK_SIZE, streams);
+                Log.d(WiFiDirectActivity.TAG, "Client: sending " + size + " bytes on " + streams + " streams");
+                boolean done = sender.send(new InetSocketAddress(host, port), SOCKET_TIMEOUT);
+                Log.d(WiFiDirectActivity.TAG, "Client: Data written: " + sender.getBytesSent() + " done: " + done
+                        + (done ? "" : " last error: " + sender.getLastError()));
             } catch (IOException e) {
-                Log.e(WiFiDirectActivity.TAG, e.getMessage());
+                Log.e(WiFiDirectActivity.TAG, e.toString());
+            } catch (InterruptedException e) {
+                Log.e(WiFiDirectActivity.TAG, "Client: transfer interrupted, resumes on next send");
             } finally {
-                if (socket != null) {
-                    if (socket.isConnected()) {
-                        try {
-                            socket.close();
-                        } catch (IOException e) {
-                            // Give up
-                            e.printStackTrace();
-                        }
+                try {
+                    if (source != null) {
+                        source.close();
+                    }
+                    if (pfd != null) {
+                        pfd.close();
                     }
+                } catch (IOException e) {
+                    // Give up
+                    e.printStackTrace();
+                }
+                if (spool != null) {
+                    spool.delete();
                 }
             }
 
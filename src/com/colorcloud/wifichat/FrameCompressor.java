@@ -0,0 +1,258 @@
+package com.colorcloud.wifichat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * per connection frame compression, both directions.
+ *
+ *   DEFLATE  [type][original length][raw deflate bytes]   a frame body of any other type, compressed.
+ *
+ * One deflate stream runs for the life of the connection and every compressed frame ends in a sync flush, so
+ * a frame can reference the bytes of all frames before it within the 32 KB window. That history is the
+ * per connection dictionary: a short chat row repeats the json keys, the sender and the words of the rows
+ * before it, and shrinks to a fraction even at BEST_SPEED. The receiver inflates with the same history.
+ *
+ * The history only holds if frames are compressed in the order they hit the wire, and none of them is dropped
+ * afterwards. So the outbound queue compresses a frame only when it hands the frame to the channel, and never
+ * drops it after that, and the file frames the connection pulls are compressed as they are pulled.
+ *
+ * Frames below COMPRESS_MIN_BYTES go out as they are, a sync flush alone costs more than they could save.
+ * Larger frames that look like compressed media, jpeg, zip, video, are passed through without touching the
+ * history: a sample of their bytes is near uniform. Compression is only used towards a peer whose hello
+ * announced CAP_DEFLATE, and only on a runtime with sync flush, Android 4.4 and later. Any device inflates.
+ *
+ * Connection loop thread only.
+ */
+public class FrameCompressor implements OutboundQueue.FrameTransform {
+
+	public static final byte FRAME_DEFLATE = 0x0F;
+
+	public static final int COMPRESS_MIN_BYTES = 48;
+	private static final int SAMPLE_MIN_BYTES = 1024;     // smaller frames are always compressed.
+	private static final int SAMPLE_SIZE = 256;
+	private static final int SAMPLE_MAX_DISTINCT = 128;   // distinct byte values in the sample, random data has ~160.
+
+	public static final boolean SUPPORTED = hasSyncFlush();
+
+	private final int mHeaderMode;
+	private Deflater mDeflater = null;       // created on the first frame out.
+	private Inflater mInflater = null;       // created on the first frame in.
+	private byte[] mIn = new byte[1024];
+	private byte[] mOut = new byte[1024];
+	private byte[] mZin = new byte[1024];     // inflate side, a frame in may be handled while one goes out.
+	private byte[] mZout = new byte[1024];
+	private final byte[] mTail = new byte[1];
+	private ByteBuffer mReuse = null;         // output for the pulled frame, written before the next pull.
+	private final boolean[] mSeen = new boolean[256];
+
+	// counters, read through PeerConnection into the transport metrics.
+	private long mRawBytes = 0;       // bodies compressed, before
+	private long mWireBytes = 0;      // and after.
+	private long mPassedFrames = 0;   // looked compressed, sent as they are.
+	private long mDeflateNanos = 0;
+	private long mInflateNanos = 0;
+	private long mInflatedBytes = 0;
+
+	public FrameCompressor(int headerMode) {
+		mHeaderMode = headerMode;
+	}
+
+	@Override
+	public void transform(ByteBuffer[] frame) {
+		compress(frame, false);
+	}
+
+	/**
+	 * replace the header and body of the frame with their compressed form, when it pays off. The header may
+	 * carry whole frames before the length of the body, a seq or mesh envelope, they stay as they are.
+	 * @param reuse put the result in a buffer owned by the compressor, valid until the next reuse call.
+	 */
+	public void compress(ByteBuffer[] frame, boolean reuse) {
+		ByteBuffer body = frame[1];
+		int len = body.remaining();
+		if (len < COMPRESS_MIN_BYTES) {
+			return;
+		}
+		if (len >= SAMPLE_MIN_BYTES && looksCompressed(body)) {
+			mPassedFrames++;
+			return;
+		}
+		long start = System.nanoTime();
+		if (mDeflater == null) {
+			mDeflater = new Deflater(Deflater.BEST_SPEED, true);
+		}
+		if (mIn.length < len) {
+			mIn = new byte[Math.max(len, mIn.length * 2)];
+		}
+		body.duplicate().get(mIn, 0, len);
+		mDeflater.setInput(mIn, 0, len);
+		int out = 0;
+		while (true) {
+			if (out == mOut.length) {
+				byte[] grown = new byte[mOut.length * 2];
+				System.arraycopy(mOut, 0, grown, 0, out);
+				mOut = grown;
+			}
+			out += mDeflater.deflate(mOut, out, mOut.length - out, Deflater.SYNC_FLUSH);
+			if (out < mOut.length) {
+				break;     // the flush fit, all input is out.
+			}
+		}
+		int size = 1 + 5 + out;
+		ByteBuffer zbody;
+		if (reuse) {
+			if (mReuse == null || mReuse.capacity() < size) {
+				mReuse = ByteBuffer.allocate(Math.max(size, 1 + 5 + StreamMux.DATA_CHUNK + 64));
+			}
+			zbody = mReuse;
+			zbody.clear();
+		} else {
+			zbody = ByteBuffer.allocate(size);
+		}
+		zbody.put(FRAME_DEFLATE);
+		MessageCodec.putVarLong(zbody, len);
+		zbody.put(mOut, 0, out);
+		zbody.flip();
+		frame[0] = header(frame[0], len, zbody.remaining());
+		frame[1] = zbody;
+		mRawBytes += len;
+		mWireBytes += zbody.remaining();
+		mDeflateNanos += System.nanoTime() - start;
+	}
+
+	/**
+	 * the header with the length of the body replaced, the frames in front of it kept.
+	 */
+	private ByteBuffer header(ByteBuffer old, int len, int zlen) {
+		int prefix = old.remaining() - FrameDecoder.headerLength(mHeaderMode, len);
+		if (prefix <= 0) {
+			return FrameDecoder.encodeHeader(mHeaderMode, zlen);
+		}
+		ByteBuffer header = ByteBuffer.allocate(prefix + FrameDecoder.headerLength(mHeaderMode, zlen));
+		ByteBuffer front = old.duplicate();
+		front.limit(front.position() + prefix);
+		header.put(front);
+		FrameDecoder.putHeader(mHeaderMode, header, zlen);
+		header.flip();
+		return header;
+	}
+
+	/**
+	 * near uniform bytes in a spread out sample, the body is compressed already.
+	 */
+	private boolean looksCompressed(ByteBuffer body) {
+		int len = body.remaining();
+		int step = len / SAMPLE_SIZE;
+		int distinct = 0;
+		for (int i = 0; i < SAMPLE_SIZE; i++) {
+			int b = body.get(body.position() + i * step) & 0xFF;
+			if (!mSeen[b]) {
+				mSeen[b] = true;
+				distinct++;
+			}
+		}
+		for (int i = 0; i < mSeen.length; i++) {
+			mSeen[i] = false;
+		}
+		return distinct > SAMPLE_MAX_DISTINCT;
+	}
+
+	/**
+	 * the original body of a DEFLATE frame. The result is only valid until the next call, like a frame
+	 * in the decoder buffer.
+	 */
+	public ByteBuffer inflate(ByteBuffer frame) throws IOException {
+		long start = System.nanoTime();
+		frame.get();   // FRAME_DEFLATE
+		int len = (int)MessageCodec.getVarLong(frame);
+		int zlen = frame.remaining();
+		if (len < 0 || len > FrameDecoder.MAX_FRAME_SIZE) {
+			throw new IOException("bad inflated length " + len);
+		}
+		if (mInflater == null) {
+			mInflater = new Inflater(true);
+		}
+		if (mZin.length < zlen) {
+			mZin = new byte[Math.max(zlen, mZin.length * 2)];
+		}
+		if (mZout.length < len) {
+			mZout = new byte[Math.max(len, mZout.length * 2)];
+		}
+		frame.get(mZin, 0, zlen);
+		mInflater.setInput(mZin, 0, zlen);
+		int out = 0;
+		try {
+			while (out < len) {
+				int n = mInflater.inflate(mZout, out, len - out);
+				if (n == 0 && (mInflater.needsInput() || mInflater.finished())) {
+					break;
+				}
+				out += n;
+			}
+			// the sync flush marker is left, it inflates to nothing.
+			if (out == len && !mInflater.needsInput() && mInflater.inflate(mTail, 0, 1) != 0) {
+				throw new IOException("deflate frame longer than " + len);
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("corrupt deflate frame: " + e.getMessage());
+		}
+		if (out != len || !mInflater.needsInput()) {
+			throw new IOException("deflate frame inflated to " + out + " of " + len);
+		}
+		mInflatedBytes += len;
+		mInflateNanos += System.nanoTime() - start;
+		return ByteBuffer.wrap(mZout, 0, len);
+	}
+
+	public long getRawBytes() {
+		return mRawBytes;
+	}
+
+	public long getWireBytes() {
+		return mWireBytes;
+	}
+
+	public long getPassedFrames() {
+		return mPassedFrames;
+	}
+
+	public long getDeflateNanos() {
+		return mDeflateNanos;
+	}
+
+	public long getInflateNanos() {
+		return mInflateNanos;
+	}
+
+	public long getInflatedBytes() {
+		return mInflatedBytes;
+	}
+
+	/**
+	 * release the native zlib state, the connection is gone.
+	 */
+	public void close() {
+		if (mDeflater != null) {
+			mDeflater.end();
+		}
+		if (mInflater != null) {
+			mInflater.end();
+		}
+	}
+
+	private static boolean hasSyncFlush() {
+		Deflater d = new Deflater();
+		try {
+			d.deflate(new byte[16], 0, 16, Deflater.SYNC_FLUSH);
+			return true;
+		} catch (Throwable t) {
+			return false;     // before Android 4.4.
+		} finally {
+			d.end();
+		}
+	}
+}
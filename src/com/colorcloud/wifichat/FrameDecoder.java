@@ -0,0 +1,209 @@
+package com.colorcloud.wifichat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * per channel incremental frame decoder, attached to the channel's selection key.
+ * Each frame on the wire is a length header followed by the payload. The header is either a 4 bytes
+ * big endian int, or a varint (7 bits per byte, high bit set means more bytes follow).
+ *
+ * Bytes read from the channel accumulate in one buffer that is reused across OP_READ events. A partial frame
+ * stays in the buffer until the rest of it arrives, and one read can carry zero, one or many frames.
+ * The buffer only grows when a single frame is bigger than the current capacity.
+ */
+public class FrameDecoder {
+
+	public static final int HEADER_FIXED = 0;     // 4 bytes big endian length
+	public static final int HEADER_VARINT = 1;    // 1-5 bytes varint length
+
+	public static final int MAX_FRAME_SIZE = 1024*1024;   // refuse anything bigger, the peer is broken.
+	private static final int INIT_BUF_SIZE = 1024*8;
+	private static final int MAX_VARINT_BYTES = 5;
+
+	/**
+	 * callback for each complete frame. The frame buffer is a view into the decoder's buffer, only valid during the call.
+	 */
+	public interface FrameHandler {
+		void onFrame(ByteBuffer frame) throws IOException;
+	}
+
+	private final int mHeaderMode;
+	private final String mPeer;     // remote peer, for logging only.
+	private ByteBuffer mBuf;        // always in write mode between reads.
+	private long mBytesRead = 0;
+
+	public FrameDecoder(int headerMode, String peer) {
+		mHeaderMode = headerMode;
+		mPeer = peer;
+		mBuf = ByteBuffer.allocate(INIT_BUF_SIZE);
+	}
+
+	public String getPeer() {
+		return mPeer;
+	}
+
+	/**
+	 * bytes read from the channel so far.
+	 */
+	public long getBytesRead() {
+		return mBytesRead;
+	}
+
+	/**
+	 * drain the readable channel and hand every complete frame to the handler.
+	 * @return the number of frames decoded, or -1 when the channel reached end of stream.
+	 */
+	public int readFrames(ReadableByteChannel channel, FrameHandler handler) throws IOException {
+		int nframes = 0;
+		while (true) {
+			int nread = channel.read(mBuf);
+			if (nread > 0) {
+				mBytesRead += nread;
+				nframes += drainFrames(handler);
+			}
+			if (nread < 0) {
+				return -1;
+			}
+			if (nread == 0 && mBuf.hasRemaining()) {
+				return nframes;    // socket buffer is empty, wait for next OP_READ.
+			}
+		}
+	}
+
+	/**
+	 * extract all complete frames from the buffer, keep the trailing partial frame for next read.
+	 */
+	private int drainFrames(FrameHandler handler) throws IOException {
+		int nframes = 0;
+		mBuf.flip();    // read mode
+		try {
+			while (true) {
+				int start = mBuf.position();
+				int len = readHeader(mBuf);
+				if (len < 0) {
+					mBuf.position(start);     // header not complete yet.
+					break;
+				}
+				if (len > MAX_FRAME_SIZE) {
+					throw new IOException("frame too large from " + mPeer + " : " + len);
+				}
+				if (mBuf.remaining() < len) {
+					mBuf.position(start);
+					ensureCapacity(headerLength(len) + len);
+					break;
+				}
+
+				int end = mBuf.position() + len;
+				int limit = mBuf.limit();
+				mBuf.limit(end);
+				handler.onFrame(mBuf.slice());
+				mBuf.limit(limit);
+				mBuf.position(end);
+				nframes++;
+			}
+		} finally {
+			mBuf.compact();   // back to write mode, partial frame moved to the front.
+		}
+		return nframes;
+	}
+
+	/**
+	 * grow the buffer when a single frame does not fit. Called in read mode, before compact().
+	 */
+	private void ensureCapacity(int framesize) {
+		if (framesize <= mBuf.capacity()) {
+			return;
+		}
+		int cap = mBuf.capacity();
+		while (cap < framesize) {
+			cap <<= 1;
+		}
+		ByteBuffer newbuf = ByteBuffer.allocate(cap);
+		newbuf.put(mBuf);
+		newbuf.flip();
+		mBuf = newbuf;
+	}
+
+	/**
+	 * read the frame length header.
+	 * @return the frame length, or -1 if the header is not complete yet.
+	 */
+	private int readHeader(ByteBuffer buf) throws IOException {
+		if (mHeaderMode == HEADER_FIXED) {
+			if (buf.remaining() < 4) {
+				return -1;
+			}
+			int len = buf.getInt();
+			if (len < 0) {
+				throw new IOException("bad frame length from " + mPeer + " : " + len);
+			}
+			return len;
+		}
+
+		int len = 0;
+		for (int i = 0; i < MAX_VARINT_BYTES; i++) {
+			if (!buf.hasRemaining()) {
+				return -1;
+			}
+			byte b = buf.get();
+			len |= (b & 0x7F) << (7*i);
+			if ((b & 0x80) == 0) {
+				if (len < 0) {
+					throw new IOException("bad frame length from " + mPeer + " : " + len);
+				}
+				return len;
+			}
+		}
+		throw new IOException("bad varint frame header from " + mPeer);
+	}
+
+	/**
+	 * the number of header bytes needed for a frame of the given length.
+	 */
+	public static int headerLength(int headerMode, int len) {
+		if (headerMode == HEADER_FIXED) {
+			return 4;
+		}
+		int n = 1;
+		while ((len >>>= 7) != 0) {
+			n++;
+		}
+		return n;
+	}
+
+	private int headerLength(int len) {
+		return headerLength(mHeaderMode, len);
+	}
+
+	/**
+	 * write the frame length header into the buffer.
+	 */
+	public static void putHeader(int headerMode, ByteBuffer dst, int len) {
+		if (headerMode == HEADER_FIXED) {
+			dst.putInt(len);
+			return;
+		}
+		while ((len & ~0x7F) != 0) {
+			dst.put((byte)((len & 0x7F) | 0x80));
+			len >>>= 7;
+		}
+		dst.put((byte)len);
+	}
+
+	/**
+	 * encode the length header of a frame body into a read only buffer, ready for channel write.
+	 */
+	public static ByteBuffer encodeHeader(int headerMode, int len) {
+		ByteBuffer header = ByteBuffer.allocate(headerLength(headerMode, len));
+		putHeader(headerMode, header, len);
+		header.flip();
+		return header.asReadOnlyBuffer();
+	}
+
+	@Override
+	public String toString() {
+		return "FrameDecoder " + mPeer;
+	}
+}
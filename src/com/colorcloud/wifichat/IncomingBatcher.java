@@ -0,0 +1,63 @@
+package com.colorcloud.wifichat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.os.Handler;
+
+/**
+ * coalesces the rows pulled in within a short window into one batch, so a burst of messages costs one
+ * notification update and one ui post instead of one of each per message.
+ *
+ * The first row of a batch schedules a flush message on the service handler, window ms later; the rows after
+ * it join the batch. Rows are handed out in the order they came in, and a batch is only taken after the one
+ * before it, both on the handler thread. A window of 0 flushes on the next message, after the rows already queued.
+ *
+ * Service handler thread only.
+ */
+public class IncomingBatcher {
+
+	private final Handler mHandler;
+	private final int mFlushWhat;
+	private long mWindow;
+	private ArrayList<MessageRow> mPending = new ArrayList<MessageRow>();
+	private ArrayList<MessageRow> mSpare = new ArrayList<MessageRow>();   // the batch handed out last, reused.
+
+	/**
+	 * @param flushWhat the message the handler gets to flush, it calls take().
+	 */
+	public IncomingBatcher(Handler handler, int flushWhat, long window) {
+		mHandler = handler;
+		mFlushWhat = flushWhat;
+		mWindow = window;
+	}
+
+	public void setWindow(long window) {
+		mWindow = Math.max(0, window);
+	}
+
+	public long getWindow() {
+		return mWindow;
+	}
+
+	/**
+	 * add a row to the batch, the first one schedules the flush.
+	 */
+	public void add(MessageRow row) {
+		mPending.add(row);
+		if( mPending.size() == 1 ){
+			mHandler.sendEmptyMessageDelayed(mFlushWhat, mWindow);
+		}
+	}
+
+	/**
+	 * the rows of the batch, oldest first, and start a new one. The list is valid until the next take().
+	 */
+	public List<MessageRow> take() {
+		ArrayList<MessageRow> batch = mPending;
+		mSpare.clear();
+		mPending = mSpare;
+		mSpare = batch;
+		return batch;
+	}
+}
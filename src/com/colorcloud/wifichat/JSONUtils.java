@@ -20,7 +20,6 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import com.colorcloud.wifichat.WiFiDirectApp.PTPLog;
 
 /**
  *<code><pre>
@@ -0,0 +1,130 @@
+package com.colorcloud.wifichat;
+
+import java.nio.channels.SelectableChannel;
+import java.util.Random;
+
+/**
+ * the state machine of a channel this device opens itself and keeps up: the client connection to the group
+ * owner, a group owner's uplink, or the group owner's listening server socket.
+ *
+ *   CONNECTING -> CONNECTED -> BACKOFF -> CONNECTING -> ...      close() ends it in CLOSED from any phase.
+ *            \______________/
+ *
+ * A failed attempt or a broken connection waits out a backoff before the next attempt. The first retry comes
+ * fast, so a short Wi-Fi Direct flap heals in well under a second, then the wait doubles up to the max. The wait
+ * is jittered, so the clients of a group whose owner flapped do not all come back in the same instant.
+ * Attempts are numbered, a timer or connect event of an earlier attempt finds the number changed and is ignored.
+ *
+ * Connection loop thread only.
+ */
+public class LinkState {
+
+	public enum Phase {
+		CONNECTING,    // connect or bind in progress.
+		CONNECTED,     // up, or listening.
+		BACKOFF,       // down, waiting for the next attempt.
+		CLOSED         // given up on purpose, no more attempts.
+	}
+
+	private final String mHost;
+	private final int mPort;
+	private final long mMinDelay;
+	private final long mMaxDelay;
+	private final Random mRandom = new Random();
+
+	private Phase mPhase = Phase.BACKOFF;
+	private int mAttempt = 0;
+	private int mFailures = 0;          // consecutive failed attempts, sets the backoff.
+	private long mDownSince = 0;        // when the link was last lost, 0 while it never was up.
+	private SelectableChannel mChannel = null;   // the channel of the current attempt.
+
+	public LinkState(String host, int port, long minDelay, long maxDelay) {
+		mHost = host;
+		mPort = port;
+		mMinDelay = minDelay;
+		mMaxDelay = maxDelay;
+	}
+
+	public String getHost() {
+		return mHost;
+	}
+
+	public int getPort() {
+		return mPort;
+	}
+
+	public Phase getPhase() {
+		return mPhase;
+	}
+
+	public int getAttempt() {
+		return mAttempt;
+	}
+
+	public SelectableChannel getChannel() {
+		return mChannel;
+	}
+
+	/**
+	 * a new connect or bind begins on the channel.
+	 * @return the number of the attempt, for isPending.
+	 */
+	public int startAttempt(SelectableChannel channel) {
+		mPhase = Phase.CONNECTING;
+		mChannel = channel;
+		return ++mAttempt;
+	}
+
+	/**
+	 * whether the attempt is still the current one and in the phase, so its timer or event still applies.
+	 */
+	public boolean isPending(int attempt, Phase phase) {
+		return mAttempt == attempt && mPhase == phase;
+	}
+
+	/**
+	 * the attempt succeeded.
+	 * @return ms the link was down before, 0 on the first connect.
+	 */
+	public long onConnected(long now) {
+		mPhase = Phase.CONNECTED;
+		mFailures = 0;
+		long down = mDownSince > 0 ? now - mDownSince : 0;
+		mDownSince = 0;
+		return down;
+	}
+
+	/**
+	 * the attempt failed, or the connected link broke.
+	 * @return ms to wait before the next attempt, -1 if the link is closed.
+	 */
+	public long onFailed(long now) {
+		if (mPhase == Phase.CLOSED) {
+			return -1;
+		}
+		if (mPhase == Phase.CONNECTED) {
+			mDownSince = now;
+		}
+		mPhase = Phase.BACKOFF;
+		mChannel = null;
+		long delay = Math.min(mMaxDelay, mMinDelay << Math.min(mFailures, 16));
+		mFailures++;
+		return delay - delay / 4 + (long)(mRandom.nextDouble() * (delay / 2));    // +-25%
+	}
+
+	/**
+	 * stop for good, no more attempts.
+	 * @return the channel of the current attempt, for the caller to close.
+	 */
+	public SelectableChannel close() {
+		mPhase = Phase.CLOSED;
+		SelectableChannel channel = mChannel;
+		mChannel = null;
+		return channel;
+	}
+
+	@Override
+	public String toString() {
+		return "LinkState " + mHost + ":" + mPort + " " + mPhase + " attempt: " + mAttempt + " failures: " + mFailures;
+	}
+}
@@ -0,0 +1,132 @@
+package com.colorcloud.wifichat;
+
+import org.json.JSONObject;
+
+/**
+ * microbenchmark of the logging a chat message costs on its way out and in: the lines of pushOutMessage,
+ * connectionSendData, sendUpstream, pubDataToAllClients, parseMessageRow, onDataIn, showNotification and
+ * showInActivity. Compares the old eager concatenation, which built every line even when logcat dropped it,
+ * against PTPLog off (release), and on with the async ring. Lines go to a sink that drops them, so the numbers
+ * are the cost in the calling thread, without logcat itself.
+ *
+ * Runs on a device, or on a desktop JVM with org.json ahead of the android.jar stubs on the classpath:
+ *   java -cp bin/classes:json.jar:android.jar com.colorcloud.wifichat.LogBenchmark [iterations]
+ */
+public class LogBenchmark {
+
+	private static final String TAG = "PTP_Bench";
+	private static final String ADDR = "192.168.49.23";
+	private static final String PEER = "192.168.49.1";
+	private static final String[] TEXTS = { "hi", "on my way", "meet at the north gate in 10 minutes",
+		"did anyone get the slides from the morning session? the link in the agenda is broken" };
+
+	private static volatile long sSink = 0;   // keeps the dropped lines observable.
+
+	private static final PTPLog.Sink DROP = new PTPLog.Sink() {
+		@Override
+		public void write(int level, String tag, String msg) {
+			sSink += msg.length();
+		}
+	};
+
+	public static void main(String[] args) {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		System.out.println(run(iterations));
+	}
+
+	public static String run(int iterations) {
+		MessageRow[] rows = new MessageRow[TEXTS.length];
+		JSONObject[] jsons = new JSONObject[TEXTS.length];
+		for (int i = 0; i < rows.length; i++) {
+			rows[i] = new MessageRow("Android_4a1f", TEXTS[i], System.currentTimeMillis());
+			jsons[i] = MessageRow.getAsJSONObject(rows[i]);
+		}
+		int level = PTPLog.getLevel();
+		PTPLog.setSink(DROP);
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("log benchmark, ").append(iterations).append(" messages, 8 lines each, alloc counter ")
+			.append(AllocationMeter.isAvailable() ? "on" : "off").append('\n');
+		for (int round = 0; round < 2; round++) {   // first round is warm up.
+			Result eager = eager(rows, jsons, iterations);
+			PTPLog.setAsync(0);
+			PTPLog.setLevel(PTPLog.INFO);
+			Result off = gated(rows, jsons, iterations);
+			PTPLog.setLevel(PTPLog.DEBUG);
+			Result on = gated(rows, jsons, iterations);
+			PTPLog.setAsync(Constants.LOG_RING_SIZE);
+			Result async = gated(rows, jsons, iterations);
+			long dropped = PTPLog.getDropped();
+			PTPLog.setAsync(0);
+			if (round == 1) {
+				sb.append(eager.format("eager concat")).append(off.format("ptplog off"));
+				sb.append(on.format("ptplog on")).append(async.format("ptplog on async"));
+				sb.append("async ring dropped lines: ").append(dropped).append('\n');
+			}
+		}
+		PTPLog.setSink(PTPLog.LOGCAT);
+		PTPLog.setLevel(level);
+		return sb.toString();
+	}
+
+	/**
+	 * the lines as they were, built before the call.
+	 */
+	private static Result eager(MessageRow[] rows, JSONObject[] jsons, int iterations) {
+		Result r = new Result(iterations);
+		for (int i = 0; i < iterations; i++) {
+			MessageRow row = rows[i % rows.length];
+			DROP.write(PTPLog.DEBUG, TAG, "pushOutMessage : " + row.mMsg);
+			DROP.write(PTPLog.DEBUG, TAG, "connectionSendData : " + row.mMsg);
+			DROP.write(PTPLog.DEBUG, TAG, "sendUpstream: " + ADDR + " -> " + PEER + " : " +  row.mMsg);
+			DROP.write(PTPLog.DEBUG, TAG, "pubDataToAllClients : to peers: " + (i & 7));
+			DROP.write(PTPLog.DEBUG, TAG, "parseMessageRow : " + jsons[i % jsons.length].toString());
+			DROP.write(PTPLog.DEBUG, TAG, "onDataIn : recvd msg : " + row.mMsg);
+			DROP.write(PTPLog.DEBUG, TAG, "showNotification: " + row.mMsg);
+			DROP.write(PTPLog.DEBUG, TAG, "showInActivity : " + row.mMsg);
+		}
+		return r.done();
+	}
+
+	private static Result gated(MessageRow[] rows, JSONObject[] jsons, int iterations) {
+		Result r = new Result(iterations);
+		for (int i = 0; i < iterations; i++) {
+			MessageRow row = rows[i % rows.length];
+			PTPLog.d(TAG, "pushOutMessage : {}", row.mMsg);
+			PTPLog.d(TAG, "connectionSendData : {}", row.mMsg);
+			PTPLog.d(TAG, "sendUpstream: {} -> {} : {}", ADDR, PEER, row.mMsg);
+			PTPLog.d(TAG, "pubDataToAllClients : to peers: {}", i & 7);
+			PTPLog.d(TAG, "parseMessageRow : {}", jsons[i % jsons.length]);
+			PTPLog.d(TAG, "onDataIn : recvd msg : {}", row.mMsg);
+			PTPLog.d(TAG, "showNotification: {}", row.mMsg);
+			PTPLog.d(TAG, "showInActivity : {}", row.mMsg);
+		}
+		return r.done();
+	}
+
+	private static class Result {
+		final int mIterations;
+		final long mStartNanos;
+		final long mStartAlloc;
+		long mNanos;
+		long mAlloc;
+
+		Result(int iterations) {
+			mIterations = iterations;
+			mStartAlloc = AllocationMeter.threadAllocatedBytes();
+			mStartNanos = System.nanoTime();
+		}
+
+		Result done() {
+			mNanos = System.nanoTime() - mStartNanos;
+			mAlloc = AllocationMeter.threadAllocatedBytes() - mStartAlloc;
+			return this;
+		}
+
+		String format(String name) {
+			double nsPerOp = (double)mNanos / mIterations;
+			double allocPerOp = mStartAlloc < 0 ? -1 : (double)mAlloc / mIterations;
+			return String.format("%-16s %8.1f ns/msg   %8.1f bytes alloc/msg%n", name, nsPerOp, allocPerOp);
+		}
+	}
+}
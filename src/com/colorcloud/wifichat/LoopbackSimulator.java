@@ -0,0 +1,462 @@
+package com.colorcloud.wifichat;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * load generator for the chat transport, one group owner and N clients in one JVM over loopback sockets.
+ * Every device is a ConnectionManager with its own SelectorLoop, the code that ships, with the device side
+ * behind its Host.
+ *
+ * Stands in for WifiP2pManager and group formation: the group owner listens on a free port, and every client
+ * connects to it from its own loopback address, 127.0.0.2 and up, as devices have their own group address.
+ * This needs an OS that answers on all of 127/8, like Linux. The hosts hand every received row to one service
+ * thread, like ConnectionService, where deliveries are checked and timed.
+ *
+ * Reports p50/p99/max delivery latency from a client's send to every other client's service thread,
+ * delivered messages per second and bytes allocated per sent message, summed over the JVM's threads.
+ * A manual tool, the build does not run it. It needs the org.json and android jars on the classpath only to
+ * load MessageRow and PTPLog, nothing in them is called:
+ *   java -cp bin/classes:json.jar:android.jar com.colorcloud.wifichat.LoopbackSimulator
+ *        [clients] [msgs/s] [msg bytes] [seconds] [max p99 ms] [metrics]
+ * Exits with 1 if a delivery went missing, came twice or out of order, or the p99 went over the optional budget.
+ * With metrics, the managers collect TransportMetrics and the report ends with the dumps of the group owner
+ * and the first client.
+ */
+public class LoopbackSimulator {
+
+	private static final int DRAIN_TIMEOUT = 5000;    // ms to wait for in flight messages after the run.
+	private static final int FORM_TIMEOUT = 10000;    // ms for every client to hear from every other one.
+	private static final long PROBE_INTERVAL = 100;   // ms between probe rounds while the group forms.
+	private static final String SENDER = "sim-";      // client i sends as sim-i.
+	private static final String PROBE = "probe";
+
+	/**
+	 * the load to generate.
+	 */
+	public static class Config {
+		public int mClients = 4;
+		public int mRate = 1000;         // messages per second, from all clients in turn.
+		public int mSize = 64;           // message text length, at least the embedded send time.
+		public int mSeconds = 10;
+		public int mWarmupSeconds = 2;   // not measured, lets the JIT settle.
+		public boolean mMetrics = false;
+	}
+
+	/**
+	 * the measured part of a run.
+	 */
+	public static class Report {
+		public long mSent;
+		public long mExpected;
+		public long mDelivered;
+		public long mErrors;         // duplicate, out of order or echoed rows, never expected on loopback.
+		public double mSeconds;
+		public long mP50Micros;
+		public long mP99Micros;
+		public long mMaxMicros;
+		public double mAllocPerMessage = -1;
+		public String mMetrics = null;
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format("sent %d, delivered %d of %d, errors %d, in %.1f s%n", mSent, mDelivered, mExpected, mErrors, mSeconds));
+			sb.append(String.format("throughput       %10.0f deliveries/s%n", mDelivered / mSeconds));
+			sb.append(String.format("latency          p50 %.3f ms   p99 %.3f ms   max %.3f ms%n", mP50Micros / 1000.0, mP99Micros / 1000.0, mMaxMicros / 1000.0));
+			sb.append(String.format("allocation       %10.1f bytes/msg%n", mAllocPerMessage));
+			if (mMetrics != null) {
+				sb.append(mMetrics).append('\n');
+			}
+			return sb.toString();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Config config = new Config();
+		if (args.length > 0) config.mClients = Integer.parseInt(args[0]);
+		if (args.length > 1) config.mRate = Integer.parseInt(args[1]);
+		if (args.length > 2) config.mSize = Integer.parseInt(args[2]);
+		if (args.length > 3) config.mSeconds = Integer.parseInt(args[3]);
+		double maxP99 = args.length > 4 ? Double.parseDouble(args[4]) : -1;
+		for (int i = 5; i < args.length; i++) {
+			config.mMetrics |= "metrics".equals(args[i]);
+		}
+
+		PTPLog.setLevel(PTPLog.WARN);
+		PTPLog.setSink(new PTPLog.Sink() {
+			@Override
+			public void write(int level, String tag, String msg) {
+				System.err.println(tag + ": " + msg);
+			}
+		});
+		System.out.println("loopback simulator, " + config.mClients + " clients, " + config.mRate + " msg/s, "
+				+ config.mSize + " bytes, " + config.mSeconds + " s, alloc counter " + (AllocationMeter.isAvailable() ? "on" : "off"));
+		Report report = new LoopbackSimulator(config).run();
+		System.out.print(report);
+		boolean ok = report.mDelivered == report.mExpected && report.mErrors == 0
+				&& (maxP99 < 0 || report.mP99Micros <= maxP99 * 1000);
+		System.exit(ok ? 0 : 1);
+	}
+
+	private final Config mConfig;
+	private final File mReceiveDir = new File(System.getProperty("java.io.tmpdir"), "loopsim");
+	private final Service mService = new Service();
+	private Thread mServiceThread;
+	private Node mOwner;
+	private final Node[] mClients;
+
+	// service thread only.
+	private volatile boolean mMeasuring = false;
+	private final long[] mLatencies;
+	private int mLatencyCount = 0;
+	private final long[][] mLastStamp;      // [receiver][sender] send time of the last measured row.
+	private final boolean[][] mProbed;      // [receiver][sender] a probe arrived.
+	private long mErrors = 0;
+	// service thread, read by the generator.
+	private long mDelivered = 0;
+	private int mProbedPairs = 0;
+
+	public LoopbackSimulator(Config config) {
+		mConfig = config;
+		mClients = new Node[config.mClients];
+		mLastStamp = new long[config.mClients][config.mClients];
+		mProbed = new boolean[config.mClients][config.mClients];
+		long expected = (long)config.mRate * (config.mSeconds + 1) * (config.mClients - 1);
+		mLatencies = new long[(int)Math.min(expected, 10000000)];
+	}
+
+	/**
+	 * form the group, generate the load, wait for the deliveries to drain and stop.
+	 */
+	public Report run() throws Exception {
+		mServiceThread = new Thread(mService, "sim-service");
+		mServiceThread.setDaemon(true);
+		mServiceThread.start();
+		try {
+			return load();
+		} finally {
+			stop();
+		}
+	}
+
+	private Report load() throws Exception {
+		int port = freePort();
+		mOwner = new Node(-1, port);
+		if (mOwner.mConnMan.startServerSelector() < 0) {
+			throw new IOException("group owner can not listen on " + port);
+		}
+		for (int i = 0; i < mClients.length; i++) {
+			mClients[i] = new Node(i, port);
+			mClients[i].mConnMan.setLocalAddress("127.0.0." + (i + 2));
+			mClients[i].mConnMan.startClientSelector("127.0.0.1");
+		}
+		if (mConfig.mMetrics) {
+			mOwner.mConnMan.setMetricsEnabled(true, 0);
+			for (Node client : mClients) {
+				client.mConnMan.setMetricsEnabled(true, 0);
+			}
+		}
+		form();
+
+		Report report = new Report();
+		String[] pads = pads(mConfig.mSize);
+		int npad = 0;
+		long interval = 1000000000L / mConfig.mRate;
+		long start = System.nanoTime();
+		long measureStart = start + mConfig.mWarmupSeconds * 1000000000L;
+		long end = measureStart + mConfig.mSeconds * 1000000000L;
+		long next = start;
+		int turn = 0;
+		Map<Thread, Long> allocStart = null;
+		long measuredSent = 0;
+		while (true) {
+			long now = System.nanoTime();
+			if (now >= end) {
+				break;
+			}
+			if (now < next) {
+				long sleep = next - now;
+				if (sleep > 1000000) {
+					Thread.sleep(sleep / 1000000);
+				}
+				continue;
+			}
+			boolean measured = now >= measureStart;
+			if (measured && !mMeasuring) {
+				allocStart = allocatedBytes();
+				mMeasuring = true;
+			}
+			send(turn, stamp(measured ? System.nanoTime() : 0, pads[npad++ % pads.length]));
+			turn = (turn + 1) % mClients.length;
+			if (measured) {
+				measuredSent++;
+			}
+			next += interval;
+		}
+		long alloc = allocStart != null ? allocatedSince(allocStart) : -1;
+		double seconds = (System.nanoTime() - measureStart) / 1e9;
+
+		long expected = measuredSent * (mClients.length - 1);
+		long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+		while (deliveredCount() < expected && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		mMeasuring = false;
+		if (mConfig.mMetrics) {
+			report.mMetrics = "owner " + mOwner.mConnMan.getMetricsSnapshot().dump()
+					+ "\nclient 0 " + mClients[0].mConnMan.getMetricsSnapshot().dump();
+		}
+
+		synchronized (this) {
+			report.mSent = measuredSent;
+			report.mExpected = expected;
+			report.mDelivered = mDelivered;
+			report.mErrors = mErrors;
+		}
+		report.mSeconds = seconds;
+		int n = mLatencyCount;
+		Arrays.sort(mLatencies, 0, n);
+		if (n > 0) {
+			report.mP50Micros = mLatencies[(int)(n * 0.50)] / 1000;
+			report.mP99Micros = mLatencies[Math.min(n - 1, (int)(n * 0.99))] / 1000;
+			report.mMaxMicros = mLatencies[n - 1] / 1000;
+		}
+		if (alloc >= 0 && measuredSent > 0) {
+			report.mAllocPerMessage = (double)alloc / measuredSent;
+		}
+		return report;
+	}
+
+	/**
+	 * every client sends probes until each one heard from every other one, so all sessions are up.
+	 */
+	private void form() throws Exception {
+		int pairs = mClients.length * (mClients.length - 1);
+		long deadline = System.currentTimeMillis() + FORM_TIMEOUT;
+		while (probedPairs() < pairs) {
+			if (System.currentTimeMillis() > deadline) {
+				throw new IOException("group formation timed out, " + probedPairs() + " of " + pairs + " client pairs");
+			}
+			for (int i = 0; i < mClients.length; i++) {
+				send(i, PROBE);
+			}
+			Thread.sleep(PROBE_INTERVAL);
+		}
+	}
+
+	private void send(int client, String text) {
+		mClients[client].mConnMan.pushOutData(new MessageRow(SENDER + client, text, System.currentTimeMillis()));
+	}
+
+	private synchronized long deliveredCount() {
+		return mDelivered;
+	}
+
+	private synchronized int probedPairs() {
+		return mProbedPairs;
+	}
+
+	private void stop() throws InterruptedException {
+		if (mOwner != null) {
+			mOwner.mConnMan.shutdown();
+		}
+		for (Node client : mClients) {
+			if (client != null) {
+				client.mConnMan.shutdown();
+			}
+		}
+		mService.mRunning = false;
+		mServiceThread.join(2000);
+	}
+
+	private static int freePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+
+	private static Map<Thread, Long> allocatedBytes() {
+		Map<Thread, Long> bytes = new HashMap<Thread, Long>();
+		for (Thread t : Thread.getAllStackTraces().keySet()) {
+			bytes.put(t, AllocationMeter.threadAllocatedBytes(t));
+		}
+		return bytes;
+	}
+
+	/**
+	 * bytes allocated since the snapshot by the threads still alive, -1 without an allocation counter.
+	 */
+	private static long allocatedSince(Map<Thread, Long> start) {
+		long sum = 0;
+		for (Map.Entry<Thread, Long> e : start.entrySet()) {
+			long now = AllocationMeter.threadAllocatedBytes(e.getKey());
+			if (e.getValue() < 0 || now < 0) {
+				return -1;
+			}
+			sum += now - e.getValue();
+		}
+		return sum;
+	}
+
+	private static final String[] WORDS = { "the", "meet", "at", "north", "gate", "in", "minutes", "did", "anyone",
+		"get", "slides", "from", "morning", "session", "link", "agenda", "is", "broken", "on", "my", "way", "ok",
+		"see", "you", "there", "lunch", "room", "after", "talk", "who", "has", "charger", "thanks", "later" };
+
+	/**
+	 * message texts: the send time in 16 hex digits, padded to the message size with chat like words.
+	 * A fixed set, so sending does not allocate more than a device would.
+	 */
+	private static String[] pads(int size) {
+		Random random = new Random(1);
+		String[] pads = new String[64];
+		for (int i = 0; i < pads.length; i++) {
+			StringBuilder sb = new StringBuilder();
+			while (sb.length() < size - 16) {
+				sb.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+			}
+			sb.setLength(Math.max(0, size - 16));
+			pads[i] = sb.toString();
+		}
+		return pads;
+	}
+
+	private static String stamp(long nanos, String pad) {
+		char[] c = new char[16];
+		for (int i = 15; i >= 0; i--) {
+			c[i] = Character.forDigit((int)(nanos & 0xF), 16);
+			nanos >>>= 4;
+		}
+		return new String(c).concat(pad);
+	}
+
+	private static long parseStamp(String msg) {
+		long v = 0;
+		for (int i = 0; i < 16 && i < msg.length(); i++) {
+			v = (v << 4) | Character.digit(msg.charAt(i), 16);
+		}
+		return v;
+	}
+
+	/**
+	 * service thread, a row reached client receiver. Checks it against the sender's previous row, then times it.
+	 */
+	private void deliver(int receiver, MessageRow row) {
+		int sender = -1;
+		if (row.mSender != null && row.mSender.startsWith(SENDER)) {
+			sender = Integer.parseInt(row.mSender.substring(SENDER.length()));
+		}
+		if (sender < 0 || sender >= mClients.length || sender == receiver) {
+			synchronized (this) {
+				mErrors++;
+			}
+			return;
+		}
+		if (PROBE.equals(row.mMsg)) {
+			if (!mProbed[receiver][sender]) {
+				mProbed[receiver][sender] = true;
+				synchronized (this) {
+					mProbedPairs++;
+				}
+			}
+			return;
+		}
+		long sent = parseStamp(row.mMsg);
+		if (sent == 0 || !mMeasuring) {
+			return;     // warm up
+		}
+		if (sent <= mLastStamp[receiver][sender]) {
+			synchronized (this) {
+				mErrors++;     // duplicate, or overtook a later row.
+			}
+			return;
+		}
+		mLastStamp[receiver][sender] = sent;
+		long latency = System.nanoTime() - sent;
+		if (mLatencyCount < mLatencies.length) {
+			mLatencies[mLatencyCount++] = latency;
+		}
+		synchronized (this) {
+			mDelivered++;
+		}
+	}
+
+	/**
+	 * the service thread of the devices, the Handler loop of ConnectionService.
+	 */
+	private class Service implements Runnable {
+		private final LinkedBlockingQueue<Runnable> mQueue = new LinkedBlockingQueue<Runnable>();
+		private volatile boolean mRunning = true;
+
+		void post(Runnable r) {
+			mQueue.offer(r);
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (mRunning) {
+					Runnable r = mQueue.poll(100, TimeUnit.MILLISECONDS);
+					if (r != null) {
+						r.run();
+					}
+				}
+			} catch (InterruptedException e) {
+				// stopped.
+			}
+		}
+	}
+
+	/**
+	 * a simulated device, the manager and the host it runs on.
+	 */
+	private class Node implements ConnectionManager.Host {
+		final int mIndex;      // client index, -1 for the group owner.
+		final File mDir;
+		final ConnectionManager mConnMan;
+
+		Node(int index, int port) {
+			mIndex = index;
+			mDir = new File(mReceiveDir, index < 0 ? "owner" : "client" + index);
+			mConnMan = new ConnectionManager(this, port);
+		}
+
+		@Override
+		public File getReceiveDir() {
+			return mDir;
+		}
+
+		@Override
+		public void setMyAddr(String addr) {
+		}
+
+		@Override
+		public void onRowIn(final MessageRow row) {
+			if (mIndex < 0) {
+				return;    // the group owner only relays.
+			}
+			mService.post(new Runnable() {
+				@Override
+				public void run() {
+					deliver(mIndex, row);
+				}
+			});
+		}
+
+		@Override
+		public void onFileReceived(String origin, String name, File file) {
+		}
+	}
+}
@@ -147,27 +147,19 @@ public class MainActivity extends Activity {
     }
     
     /**
-     * post send msg to service to handle it in background.
+     * hand the msg to the connection loop, which sends it in background.
      */
-    public void pushOutMessage(String jsonstring) {
-    	Log.d(TAG, "pushOutMessage : " + jsonstring);
-    	Message msg = ConnectionService.getInstance().getHandler().obtainMessage();
-    	msg.what = MSG_PUSHOUT_DATA;
-    	msg.obj = jsonstring;
-    	ConnectionService.getInstance().getHandler().sendMessage(msg);
+    public void pushOutMessage(MessageRow row) {
+    	PTPLog.d(TAG, "pushOutMessage : {}", row.mMsg);
+    	ConnectionService.getInstance().connectionSendData(row);
     }
     
     /**
-     * show the msg in chat fragment, update view must be from ui thread.
+     * show the msg in chat fragment. The fragment coalesces the view update onto the ui thread.
      */
     public void showMessage(final MessageRow row){
-    	runOnUiThread(new Runnable() {
-    		@Override public void run() {
-    			Log.d(TAG, "showMessage : " + row.mMsg);
-    			if( mChatFrag != null ){
-    				mChatFrag.appendChatMessage(row);
-    			}
-    		}
-    	});
+    	if( mChatFrag != null ){
+    		mChatFrag.appendChatMessage(row);
+    	}
     }
 }
@@ -0,0 +1,351 @@
+package com.colorcloud.wifichat;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * mesh relay across wifi direct groups. A group owner that also connects up to the owner of another group bridges
+ * the two, and every row floods the mesh once.
+ *
+ *   MESH    [type][origin][seq][ttl]            envelope of the data frame that follows, per link.
+ *   ROUTES  [type][node]{count}{[dest][hops]}   the sender's distance vector, sent on link up and on change.
+ *
+ * Every device is a node with a random id per process. The node that first puts a row on the mesh stamps it with
+ * its id and its own sequence, the pair is the row's identity all over the mesh. Like the SEQ frame, the envelope
+ * is a small per link frame in front of the data frame, so the encoded row body stays shared across the fan-out.
+ *
+ * Receivers drop a row whose (origin, seq) they saw before, in a sliding window of WINDOW seqs per origin and a
+ * bounded LRU of origins, so memory stays bounded however big the mesh. The ttl is the number of mesh hops a row
+ * may still be forwarded; the origin sets it from its route table to just reach the farthest node, capped at the
+ * configured max, each time it sends the row. Without routes, offline or before the neighbors advertised, the
+ * origin does not know the mesh and sends the max. Peers without mesh support are leaves and always get the row.
+ *
+ * Routes are a distance vector over the mesh links: a neighbor is one hop, anything it advertises one more.
+ * A route is advertised back to the link it goes through as unreachable (poisoned reverse), and anything at
+ * INFINITY hops is dropped, so a broken bridge does not count to infinity for long.
+ *
+ * Connection loop thread only, except the static codec helpers.
+ */
+public class MeshRouter {
+
+	public static final byte FRAME_MESH = 0x0C;
+	public static final byte FRAME_ROUTES = 0x0D;
+
+	public static final int INFINITY = 16;
+	private static final int WINDOW = 64;    // seqs per origin in the dedup window, one bit each.
+
+	/**
+	 * the best known way to a node.
+	 */
+	static class Route {
+		final PeerConnection mVia;
+		final int mHops;
+
+		Route(PeerConnection via, int hops) {
+			mVia = via;
+			mHops = hops;
+		}
+	}
+
+	/**
+	 * the seqs seen from one origin: the highest, and a bit for each of the WINDOW seqs below it.
+	 */
+	static class Window {
+		long mHigh = 0;
+		long mBits = 0;
+	}
+
+	private final long mNodeId;
+	private final int mMaxTtl;
+	private long mNextSeq = 1;
+
+	private final Map<PeerConnection, long[]> mLinks = new IdentityHashMap<PeerConnection, long[]>();   // link -> last advert.
+	private Map<Long, Route> mRoutes = new HashMap<Long, Route>();
+	private final LinkedHashMap<Long, Window> mSeen;
+	private long mDuplicates = 0;
+
+	public MeshRouter(long nodeId, int maxTtl, final int maxOrigins) {
+		mNodeId = nodeId;
+		mMaxTtl = maxTtl;
+		mSeen = new LinkedHashMap<Long, Window>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Window> eldest) {
+				return size() > maxOrigins;
+			}
+		};
+	}
+
+	public long getNodeId() {
+		return mNodeId;
+	}
+
+	public long getDuplicates() {
+		return mDuplicates;
+	}
+
+	public boolean isLink(PeerConnection conn) {
+		return mLinks.containsKey(conn);
+	}
+
+	public List<PeerConnection> getLinks() {
+		return new ArrayList<PeerConnection>(mLinks.keySet());
+	}
+
+	/**
+	 * reachable nodes and their hop counts.
+	 */
+	public Map<Long, Integer> getRoutes() {
+		Map<Long, Integer> routes = new HashMap<Long, Integer>();
+		for (Map.Entry<Long, Route> e : mRoutes.entrySet()) {
+			routes.put(e.getKey(), e.getValue().mHops);
+		}
+		return routes;
+	}
+
+	/**
+	 * a mesh capable peer connected. Its node is known once its routes arrive.
+	 */
+	public void addLink(PeerConnection conn) {
+		if (!mLinks.containsKey(conn)) {
+			mLinks.put(conn, null);
+		}
+	}
+
+	/**
+	 * a link went down. @return true if the routes changed and should be advertised.
+	 */
+	public boolean removeLink(PeerConnection conn) {
+		if (!mLinks.containsKey(conn)) {
+			return false;
+		}
+		mLinks.remove(conn);
+		return recompute();
+	}
+
+	/**
+	 * a neighbor advertised its routes, as decoded by decodeRoutes. @return true if our routes changed.
+	 */
+	public boolean onRoutes(PeerConnection conn, long[] advert) {
+		if (!mLinks.containsKey(conn)) {
+			return false;
+		}
+		mLinks.put(conn, advert);
+		return recompute();
+	}
+
+	/**
+	 * rebuild the route table from the neighbors' adverts. An existing route wins a tie, so routes do not flap.
+	 */
+	private boolean recompute() {
+		Map<Long, Route> routes = new HashMap<Long, Route>();
+		for (Map.Entry<PeerConnection, long[]> e : mLinks.entrySet()) {
+			long[] advert = e.getValue();
+			if (advert == null) {
+				continue;
+			}
+			offer(routes, advert[0], e.getKey(), 1);
+			for (int i = 1; i + 1 < advert.length; i += 2) {
+				offer(routes, advert[i], e.getKey(), (int)advert[i + 1] + 1);
+			}
+		}
+		boolean changed = routes.size() != mRoutes.size();
+		for (Map.Entry<Long, Route> e : routes.entrySet()) {
+			Route old = mRoutes.get(e.getKey());
+			if (old == null || old.mHops != e.getValue().mHops || old.mVia != e.getValue().mVia) {
+				changed = true;
+			}
+		}
+		mRoutes = routes;
+		return changed;
+	}
+
+	private void offer(Map<Long, Route> routes, long dest, PeerConnection via, int hops) {
+		if (dest == mNodeId || hops >= INFINITY) {
+			return;
+		}
+		Route best = routes.get(dest);
+		if (best == null || hops < best.mHops || (hops == best.mHops && isCurrent(dest, via))) {
+			routes.put(dest, new Route(via, hops));
+		}
+	}
+
+	private boolean isCurrent(long dest, PeerConnection via) {
+		Route cur = mRoutes.get(dest);
+		return cur != null && cur.mVia == via;
+	}
+
+	/**
+	 * hops to the farthest reachable node, 0 if we have no mesh neighbor.
+	 */
+	public int getFarthest() {
+		int max = 0;
+		for (Route r : mRoutes.values()) {
+			max = Math.max(max, r.mHops);
+		}
+		return max;
+	}
+
+	/**
+	 * stamp a row entering the mesh here, ours or from a peer without mesh support.
+	 */
+	public void originate(MessageRow row) {
+		row.mOrigin = mNodeId;
+		row.mMeshSeq = mNextSeq++;
+		row.mTtl = originTtl();
+		markSeen(mNodeId, row.mMeshSeq);
+	}
+
+	/**
+	 * the ttl a row goes out with now. A row that entered the mesh here is stamped from the current routes,
+	 * so one originated while the routes were not known yet is not cut short.
+	 */
+	public int ttl(MessageRow row) {
+		return row.mOrigin == mNodeId ? originTtl() : row.mTtl;
+	}
+
+	/**
+	 * enough hops to reach the farthest node, at least one so a group owner relays to its group, the max if
+	 * there are no routes to go by.
+	 */
+	private int originTtl() {
+		int farthest = getFarthest();
+		if (farthest == 0) {
+			return mMaxTtl;
+		}
+		return Math.max(1, Math.min(mMaxTtl, farthest - 1));
+	}
+
+	/**
+	 * a mesh row arrived. @return false if it was seen before and must be dropped.
+	 */
+	public boolean accept(MessageRow row) {
+		if (!markSeen(row.mOrigin, row.mMeshSeq)) {
+			mDuplicates++;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if (origin, seq) is new. Seqs that fell behind the window count as seen.
+	 */
+	private boolean markSeen(long origin, long seq) {
+		Long key = Long.valueOf(origin);
+		Window w = mSeen.get(key);
+		if (w == null) {
+			w = new Window();
+			mSeen.put(key, w);
+		}
+		if (seq > w.mHigh) {
+			long shift = seq - w.mHigh;
+			w.mBits = (shift >= WINDOW ? 0 : w.mBits << shift) | 1;
+			w.mHigh = seq;
+			return true;
+		}
+		long behind = w.mHigh - seq;
+		if (behind >= WINDOW) {
+			return false;
+		}
+		long bit = 1L << behind;
+		if ((w.mBits & bit) != 0) {
+			return false;
+		}
+		w.mBits |= bit;
+		return true;
+	}
+
+	/**
+	 * our routes frame body for one link, routes through that link advertised as unreachable.
+	 */
+	public ByteBuffer routesBody(PeerConnection to) {
+		ByteBuffer body = ByteBuffer.allocate(1 + 10 + 5 + mRoutes.size() * 11);
+		body.put(FRAME_ROUTES);
+		MessageCodec.putVarLong(body, mNodeId);
+		MessageCodec.putVarLong(body, mRoutes.size());
+		for (Map.Entry<Long, Route> e : mRoutes.entrySet()) {
+			MessageCodec.putVarLong(body, e.getKey());
+			MessageCodec.putVarLong(body, e.getValue().mVia == to ? INFINITY : e.getValue().mHops);
+		}
+		body.flip();
+		return body.asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return the advertising node followed by (dest, hops) pairs.
+	 */
+	public static long[] decodeRoutes(ByteBuffer body) throws IOException {
+		try {
+			body.get();    // FRAME_ROUTES
+			long node = MessageCodec.getVarLong(body);
+			int count = (int)MessageCodec.getVarLong(body);
+			if (count < 0 || count > body.remaining()) {
+				throw new IOException("bad routes count: " + count);
+			}
+			long[] advert = new long[1 + 2 * count];
+			advert[0] = node;
+			for (int i = 1; i < advert.length; i += 2) {
+				advert[i] = MessageCodec.getVarLong(body);
+				long hops = MessageCodec.getVarLong(body);
+				advert[i + 1] = hops < 0 || hops > INFINITY ? INFINITY : hops;    // no int overflow in recompute.
+			}
+			return advert;
+		} catch (BufferUnderflowException e) {
+			throw new IOException("truncated routes frame");
+		}
+	}
+
+	/**
+	 * the per link header of a mesh row: a whole MESH frame, the SEQ frame if the link is sequenced, and the
+	 * length header of the data body, with the row's ttl on this send. A row that may not travel further goes out
+	 * with ttl 0, delivered but not forwarded.
+	 */
+	public static ByteBuffer encodeHeader(int headerMode, MessageRow row, int ttl, long seq, int bodyLen) {
+		int meshlen = 1 + MessageCodec.varIntLength(row.mOrigin) + MessageCodec.varIntLength(row.mMeshSeq) + 1;
+		int seqlen = seq > 0 ? 1 + MessageCodec.varIntLength(seq) : 0;
+		ByteBuffer header = ByteBuffer.allocate(FrameDecoder.headerLength(headerMode, meshlen) + meshlen
+				+ (seq > 0 ? FrameDecoder.headerLength(headerMode, seqlen) + seqlen : 0)
+				+ FrameDecoder.headerLength(headerMode, bodyLen));
+		FrameDecoder.putHeader(headerMode, header, meshlen);
+		header.put(FRAME_MESH);
+		MessageCodec.putVarLong(header, row.mOrigin);
+		MessageCodec.putVarLong(header, row.mMeshSeq);
+		header.put((byte)Math.max(0, ttl));
+		if (seq > 0) {
+			FrameDecoder.putHeader(headerMode, header, seqlen);
+			header.put(ReliableSession.FRAME_SEQ);
+			MessageCodec.putVarLong(header, seq);
+		}
+		FrameDecoder.putHeader(headerMode, header, bodyLen);
+		header.flip();
+		return header;
+	}
+
+	/**
+	 * @return origin, seq and ttl of a mesh envelope.
+	 */
+	public static long[] decodeEnvelope(ByteBuffer body) throws IOException {
+		try {
+			body.get();    // FRAME_MESH
+			long origin = MessageCodec.getVarLong(body);
+			long seq = MessageCodec.getVarLong(body);
+			int ttl = body.get() & 0xFF;
+			return new long[] { origin, seq, ttl };
+		} catch (BufferUnderflowException e) {
+			throw new IOException("truncated mesh frame");
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "MeshRouter " + Long.toHexString(mNodeId) + " links: " + mLinks.size() + " routes: " + mRoutes.size()
+				+ " farthest: " + getFarthest() + " duplicates: " + mDuplicates;
+	}
+}
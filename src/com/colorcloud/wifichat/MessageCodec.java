@@ -0,0 +1,340 @@
+package com.colorcloud.wifichat;
+
+import static com.colorcloud.wifichat.Constants.*;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * wire format of a frame body. A body starting with '{' is a json message row, the legacy format every peer
+ * understands. Otherwise the first byte is the frame type:
+ *
+ *   HELLO    [type][version][caps]              sent by both ends on connect, announces the best binary version
+ *                                                and optional capabilities, CAP_RELIABLE: sequenced delivery,
+ *                                                CAP_STREAMS: multiplexed file streams, CAP_MESH: mesh relay,
+ *                                                CAP_ATTACH: content hash offers on file streams,
+ *                                                CAP_DEFLATE: inflates FrameCompressor frames,
+ *                                                CAP_RESUME: resumes StreamMux streams.
+ *   SENDERS  [type][count]{[id][len][utf8]}      sender id definitions, sent before the first row that uses them.
+ *   MSG      [type][flags][sender][ts][len][utf8]  binary message row, v1.
+ *
+ * All integers are varints. The sender is an id into the sender table. The table is shared by the device,
+ * but each connection defines an id to its peer with a SENDERS frame the first time it sends a row using it,
+ * so a peer never depends on a row another peer got, or on a row its queue dropped. Older builds defined
+ * the sender inline in the first row using it, the decoder still reads that.
+ * Timestamps are epoch millis, the display time is formatted by the receiver.
+ *
+ * A peer only gets binary rows after its HELLO said it can read them, json stays the fallback.
+ * Frame types 4-6 and 17 belong to ReliableSession, 7-11, 14 and 16 to StreamMux, 12-13 to MeshRouter, 15 to FrameCompressor.
+ */
+public class MessageCodec {
+
+	public static final int FORMAT_JSON = 0;
+	public static final int FORMAT_BINARY_V1 = 1;
+	public static final int MAX_FORMAT = FORMAT_BINARY_V1;   // the best format this build reads.
+
+	public static final byte FRAME_JSON = '{';
+	public static final byte FRAME_HELLO = 0x01;
+	public static final byte FRAME_SENDERS = 0x02;
+	public static final byte FRAME_MSG = 0x03;
+
+	public static final int CAP_RELIABLE = 0x01;    // hello caps: peer speaks ReliableSession frames.
+	public static final int CAP_STREAMS = 0x02;     // hello caps: peer speaks StreamMux frames.
+	public static final int CAP_MESH = 0x04;        // hello caps: peer speaks MeshRouter frames.
+	public static final int CAP_ATTACH = 0x08;      // hello caps: peer answers StreamMux offers.
+	public static final int CAP_DEFLATE = 0x10;     // hello caps: peer inflates FrameCompressor frames.
+	public static final int CAP_RESUME = 0x20;      // hello caps: peer answers StreamMux OPEN_RESUME streams.
+
+	private static final int FLAG_DEFINE = 0x01;    // sender definition inline: id, name. Only older builds send it.
+	private static final int FLAG_INLINE = 0x02;    // sender table full, name inline without id
+
+	private static final int MAX_SENDERS = 1024;
+
+	/**
+	 * the type of a frame body, the first byte. Does not move the buffer position.
+	 */
+	public static byte frameType(ByteBuffer body) {
+		if (!body.hasRemaining()) {
+			return 0;
+		}
+		return body.get(body.position());
+	}
+
+	/**
+	 * the hello frame body announcing the best wire format this device reads.
+	 */
+	public static ByteBuffer encodeHello() {
+		ByteBuffer body = ByteBuffer.allocate(3);
+		body.put(FRAME_HELLO);
+		body.put((byte)MAX_FORMAT);
+		body.put((byte)(CAP_RELIABLE | CAP_STREAMS | CAP_MESH | CAP_ATTACH | CAP_DEFLATE | CAP_RESUME));
+		body.flip();
+		return body.asReadOnlyBuffer();
+	}
+
+	/**
+	 * the wire format to use when sending to a peer that sent us this hello.
+	 */
+	public static int decodeHello(ByteBuffer body) {
+		if (body.remaining() < 2) {
+			return FORMAT_JSON;
+		}
+		int version = body.get(body.position() + 1) & 0xFF;
+		return Math.min(version, MAX_FORMAT);
+	}
+	
+	/**
+	 * the capabilities in a hello, 0 for a peer that sends none.
+	 */
+	public static int decodeHelloCaps(ByteBuffer body) {
+		if (body.remaining() < 3) {
+			return 0;
+		}
+		return body.get(body.position() + 2) & 0xFF;
+	}
+
+	/**
+	 * legacy json body of a message row.
+	 */
+	public static ByteBuffer encodeJson(MessageRow row) {
+		return ByteBuffer.wrap(MessageRow.getAsJSONObject(row).toString().getBytes(UTF8)).asReadOnlyBuffer();
+	}
+
+	/**
+	 * legacy json body back to a message row.
+	 */
+	public static MessageRow decodeJson(ByteBuffer body) {
+		String jsonString = getUtf8(body, body.remaining());
+		return MessageRow.parseMesssageRow(JSONUtils.getJsonObject(jsonString));
+	}
+	
+	/**
+	 * decode len utf8 bytes at the buffer position and move past them.
+	 */
+	static String getUtf8(ByteBuffer body, int len) {
+		String s;
+		if (body.hasArray()) {
+			s = new String(body.array(), body.arrayOffset() + body.position(), len, UTF8);
+			body.position(body.position() + len);
+		} else {
+			byte[] bytes = new byte[len];    // read only or direct buffer
+			body.get(bytes);
+			s = new String(bytes, UTF8);
+		}
+		return s;
+	}
+
+	/**
+	 * binary encoder. One instance is shared by all connections of the device, so a broadcast row is encoded once
+	 * for every binary peer. Rows only carry the sender id, each connection sends senderDefinition() itself.
+	 */
+	public static class Encoder {
+		private final Map<String, Integer> mSenderIds = new HashMap<String, Integer>();
+		private final ArrayList<String> mSenderNames = new ArrayList<String>();   // by id.
+		private final CharsetEncoder mUtf8 = UTF8.newEncoder();
+		private ByteBuffer mScratch = ByteBuffer.allocate(1024);
+
+		/**
+		 * encode a row into an exact size read only body. Only the result buffer is allocated.
+		 */
+		public synchronized ByteBuffer encode(MessageRow row) {
+			mScratch.clear();
+			int senderId = senderId(row.mSender);
+			int flags = senderId < 0 ? FLAG_INLINE : 0;
+
+			ensureScratch(16);
+			mScratch.put(FRAME_MSG);
+			mScratch.put((byte)flags);
+			if (flags == FLAG_INLINE) {
+				putString(row.mSender);
+			} else {
+				putVarLong(mScratch, senderId);
+			}
+			ensureScratch(10);
+			putVarLong(mScratch, row.mTimestamp);
+			putString(row.mMsg);
+
+			mScratch.flip();
+			ByteBuffer body = ByteBuffer.allocate(mScratch.remaining());
+			body.put(mScratch);
+			body.flip();
+			return body.asReadOnlyBuffer();
+		}
+
+		/**
+		 * the id rows from this sender are encoded with, assigned on first use. Ids are never reused.
+		 * @return the id, or -1 once the table is full; such rows carry the sender inline.
+		 */
+		public synchronized int senderId(String sender) {
+			Integer senderId = mSenderIds.get(sender);
+			if (senderId != null) {
+				return senderId;
+			}
+			if (mSenderIds.size() >= MAX_SENDERS) {
+				return -1;
+			}
+			senderId = mSenderIds.size();
+			mSenderIds.put(sender, senderId);
+			mSenderNames.add(sender);
+			return senderId;
+		}
+
+		/**
+		 * a SENDERS body defining one sender id, queue it to a peer before its first row with that id.
+		 */
+		public synchronized ByteBuffer senderDefinition(int id) {
+			mScratch.clear();
+			ensureScratch(11);
+			mScratch.put(FRAME_SENDERS);
+			putVarLong(mScratch, 1);
+			putVarLong(mScratch, id);
+			putString(mSenderNames.get(id));
+			mScratch.flip();
+			ByteBuffer body = ByteBuffer.allocate(mScratch.remaining());
+			body.put(mScratch);
+			body.flip();
+			return body.asReadOnlyBuffer();
+		}
+
+		/**
+		 * utf8 encode a string with a varint length prefix into the scratch buffer, no intermediate byte[].
+		 */
+		private void putString(String s) {
+			if (s == null) {
+				s = "";
+			}
+			ensureScratch(5 + (int)(s.length() * mUtf8.maxBytesPerChar()));
+			int lenpos = mScratch.position();
+			mScratch.position(lenpos + 5);     // reserve max varint, fixed up below.
+			CharBuffer chars = CharBuffer.wrap(s);
+			mUtf8.reset();
+			CoderResult cr = mUtf8.encode(chars, mScratch, true);
+			if (!cr.isUnderflow()) {
+				// malformed surrogate, fall back to the lenient String encoder.
+				mScratch.position(lenpos + 5);
+				mScratch.put(s.getBytes(UTF8));
+			}
+			mUtf8.flush(mScratch);
+			int end = mScratch.position();
+			int len = end - lenpos - 5;
+			int hdr = varIntLength(len);
+			// move the encoded bytes right behind the real length header.
+			mScratch.position(lenpos);
+			putVarLong(mScratch, len);
+			if (hdr != 5) {
+				System.arraycopy(mScratch.array(), lenpos + 5, mScratch.array(), lenpos + hdr, len);
+			}
+			mScratch.position(lenpos + hdr + len);
+		}
+
+		private void ensureScratch(int more) {
+			if (mScratch.remaining() >= more) {
+				return;
+			}
+			int cap = mScratch.capacity();
+			while (cap - mScratch.position() < more) {
+				cap <<= 1;
+			}
+			ByteBuffer newbuf = ByteBuffer.allocate(cap);
+			mScratch.flip();
+			newbuf.put(mScratch);
+			mScratch = newbuf;
+		}
+	}
+
+	/**
+	 * binary decoder, one per connection, it keeps the sender table that peer defined.
+	 */
+	public static class Decoder {
+		private final Map<Integer, String> mSenders = new HashMap<Integer, String>();
+
+		/**
+		 * decode a binary row body.
+		 */
+		public MessageRow decode(ByteBuffer body) throws IOException {
+			try {
+				body.get();   // FRAME_MSG
+				int flags = body.get();
+				String sender;
+				if ((flags & FLAG_INLINE) != 0) {
+					sender = getString(body);
+				} else {
+					int id = (int)getVarLong(body);
+					if ((flags & FLAG_DEFINE) != 0) {
+						sender = getString(body);
+						mSenders.put(id, sender);
+					} else {
+						sender = mSenders.get(id);
+						if (sender == null) {
+							throw new IOException("unknown sender id " + id);
+						}
+					}
+				}
+				long timestamp = getVarLong(body);
+				String msg = getString(body);
+				return new MessageRow(sender, msg, timestamp);
+			} catch (BufferUnderflowException e) {
+				throw new IOException("truncated binary row");
+			}
+		}
+
+		/**
+		 * apply a sender table snapshot.
+		 */
+		public void decodeSenderTable(ByteBuffer body) throws IOException {
+			try {
+				body.get();   // FRAME_SENDERS
+				int count = (int)getVarLong(body);
+				for (int i = 0; i < count; i++) {
+					int id = (int)getVarLong(body);
+					mSenders.put(id, getString(body));
+				}
+			} catch (BufferUnderflowException e) {
+				throw new IOException("truncated sender table");
+			}
+		}
+
+		private static String getString(ByteBuffer body) throws IOException {
+			int len = (int)getVarLong(body);
+			if (len < 0 || len > body.remaining()) {
+				throw new IOException("bad string length " + len);
+			}
+			return getUtf8(body, len);
+		}
+	}
+
+	public static void putVarLong(ByteBuffer dst, long v) {
+		while ((v & ~0x7FL) != 0) {
+			dst.put((byte)((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		dst.put((byte)v);
+	}
+
+	public static long getVarLong(ByteBuffer src) throws IOException {
+		long v = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = src.get();
+			v |= (long)(b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return v;
+			}
+		}
+		throw new IOException("bad varint");
+	}
+
+	public static int varIntLength(long v) {
+		int n = 1;
+		while ((v >>>= 7) != 0) {
+			n++;
+		}
+		return n;
+	}
+}
@@ -0,0 +1,127 @@
+package com.colorcloud.wifichat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * microbenchmark of the message row wire formats: the legacy json path (MessageRow -> JSONObject -> String -> bytes
+ * and back) against the binary v1 codec. Reports throughput, bytes allocated per message and bytes on the wire.
+ *
+ * Runs on a device, or on a desktop JVM with org.json ahead of the android.jar stubs on the classpath:
+ *   java -cp bin/classes:json.jar:android.jar com.colorcloud.wifichat.MessageCodecBenchmark [iterations]
+ */
+public class MessageCodecBenchmark {
+
+	private static final String[] SENDERS = { "Android_4a1f", "Nexus 7", "Galaxy Nexus", "Android_91c2",
+		"Xoom", "Droid RAZR", "Nexus 4", "Android_03bd" };
+	private static final String[] TEXTS = { "hi", "on my way", "meet at the north gate in 10 minutes",
+		"did anyone get the slides from the morning session? the link in the agenda is broken",
+		"ok", "你好, see you there ☺" };
+
+	public static void main(String[] args) throws IOException {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		System.out.println(run(iterations));
+	}
+
+	public static String run(int iterations) throws IOException {
+		MessageRow[] rows = new MessageRow[64];
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < rows.length; i++) {
+			rows[i] = new MessageRow(SENDERS[i % SENDERS.length], TEXTS[i % TEXTS.length], now + i*1000);
+		}
+
+		// binary frames are decoded in stream order, the first use of each sender carries its definition.
+		MessageCodec.Encoder encoder = new MessageCodec.Encoder();
+		ByteBuffer[] binFrames = new ByteBuffer[rows.length];
+		ByteBuffer[] jsonFrames = new ByteBuffer[rows.length];
+		long binWire = 0, jsonWire = 0;
+		for (int i = 0; i < rows.length; i++) {
+			binFrames[i] = encoder.encode(rows[i]);
+			jsonFrames[i] = MessageCodec.encodeJson(rows[i]);
+			binWire += binFrames[i].remaining();
+			jsonWire += jsonFrames[i].remaining();
+		}
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("message codec benchmark, ").append(iterations).append(" messages, alloc counter ")
+			.append(AllocationMeter.isAvailable() ? "on" : "off").append('\n');
+		sb.append(String.format("wire bytes/msg     json %.1f   binary %.1f%n", (double)jsonWire / rows.length, (double)binWire / rows.length));
+
+		for (int round = 0; round < 2; round++) {   // first round is warm up.
+			Result je = jsonEncode(rows, iterations);
+			Result jd = jsonDecode(jsonFrames, iterations);
+			Result be = binaryEncode(encoder, rows, iterations);
+			Result bd = binaryDecode(binFrames, iterations);
+			if (round == 1) {
+				sb.append(je.format("json encode")).append(jd.format("json decode"));
+				sb.append(be.format("binary encode")).append(bd.format("binary decode"));
+			}
+		}
+		return sb.toString();
+	}
+
+	private static Result jsonEncode(MessageRow[] rows, int iterations) {
+		long sink = 0;
+		Result r = new Result(iterations);
+		for (int i = 0; i < iterations; i++) {
+			sink += MessageCodec.encodeJson(rows[i % rows.length]).remaining();
+		}
+		return r.done(sink);
+	}
+
+	private static Result jsonDecode(ByteBuffer[] frames, int iterations) {
+		long sink = 0;
+		Result r = new Result(iterations);
+		for (int i = 0; i < iterations; i++) {
+			sink += MessageCodec.decodeJson(frames[i % frames.length].duplicate()).mMsg.length();
+		}
+		return r.done(sink);
+	}
+
+	private static Result binaryEncode(MessageCodec.Encoder encoder, MessageRow[] rows, int iterations) {
+		long sink = 0;
+		Result r = new Result(iterations);
+		for (int i = 0; i < iterations; i++) {
+			sink += encoder.encode(rows[i % rows.length]).remaining();
+		}
+		return r.done(sink);
+	}
+
+	private static Result binaryDecode(ByteBuffer[] frames, int iterations) throws IOException {
+		MessageCodec.Decoder decoder = new MessageCodec.Decoder();
+		long sink = 0;
+		Result r = new Result(iterations);
+		for (int i = 0; i < iterations; i++) {
+			sink += decoder.decode(frames[i % frames.length].duplicate()).mMsg.length();
+		}
+		return r.done(sink);
+	}
+
+	private static class Result {
+		final int mIterations;
+		final long mStartNanos;
+		final long mStartAlloc;
+		long mNanos;
+		long mAlloc;
+		long mSink;   // keeps the work observable.
+
+		Result(int iterations) {
+			mIterations = iterations;
+			mStartAlloc = AllocationMeter.threadAllocatedBytes();
+			mStartNanos = System.nanoTime();
+		}
+
+		Result done(long sink) {
+			mNanos = System.nanoTime() - mStartNanos;
+			mAlloc = AllocationMeter.threadAllocatedBytes() - mStartAlloc;
+			mSink = sink;
+			return this;
+		}
+
+		String format(String name) {
+			double opsPerSec = mIterations * 1e9 / mNanos;
+			double allocPerOp = mStartAlloc < 0 ? -1 : (double)mAlloc / mIterations;
+			return String.format("%-16s %10.0f msg/s   %8.1f bytes alloc/msg%n", name, opsPerSec, allocPerOp);
+		}
+	}
+}
@@ -1,7 +1,9 @@
 package com.colorcloud.wifichat;
 
 import static com.colorcloud.wifichat.Constants.*;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.Calendar;
 import java.util.Date;
 import java.util.StringTokenizer;
 
@@ -11,7 +13,6 @@ import org.json.JSONObject;
 import android.os.Parcel;
 import android.os.Parcelable;
 
-import com.colorcloud.wifichat.WiFiDirectApp.PTPLog;
 
 
 public class MessageRow implements Parcelable {
@@ -20,8 +21,18 @@ public class MessageRow implements Parcelable {
 	public String mSender;
 	public String mMsg;
 	public String mTime;
+	public long mTimestamp;     // epoch millis, derived from mTime for rows of older peers.
+	// mesh identity of the row, see MeshRouter. 0 origin if the row never entered the mesh.
+	public long mOrigin;
+	public long mMeshSeq;
+	public int mTtl;            // mesh hops the row may still be forwarded, negative when it may not.
 	public static final String mDel = "^&^";
 	
+	// the display time only has minute granularity, messages in the same minute share the formatted string.
+	private static final SimpleDateFormat sTimeFormat = new SimpleDateFormat("h:mm a");
+	private static long sLastMinute = -1;
+	private static String sLastTime = null;
+	
 	private MessageRow() { 
 	    this.mSender = null;
 		this.mTime = null;
@@ -31,15 +42,66 @@ public class MessageRow implements Parcelable {
 	public MessageRow(String sender, String msg, String time){
 		mTime = time;
 		if( time == null ){
-			Date now = new Date();
-			//SimpleDateFormat timingFormat = new SimpleDateFormat("mm/dd hh:mm");
-			//mTime = new SimpleDateFormat("dd/MM HH:mm").format(now);
-			mTime = new SimpleDateFormat("h:mm a").format(now);
+			mTimestamp = System.currentTimeMillis();
+			mTime = formatTime(mTimestamp);
 		} 
 		mSender = sender;
 		mMsg = msg;
 	}
 	
+	public MessageRow(String sender, String msg, long timestamp){
+		mSender = sender;
+		mMsg = msg;
+		mTimestamp = timestamp;
+		mTime = formatTime(timestamp);
+	}
+	
+	/**
+	 * format epoch millis into display time, with one cached formatter instead of a new one per message.
+	 */
+	public static String formatTime(long timestamp) {
+		long minute = timestamp / 60000;
+		synchronized (sTimeFormat) {
+			if( minute != sLastMinute ){
+				sLastTime = sTimeFormat.format(new Date(timestamp));
+				sLastMinute = minute;
+			}
+			return sLastTime;
+		}
+	}
+	
+	/**
+	 * epoch millis of a display time, for rows from older peers that only send that. The most recent
+	 * such minute not in the future, now if the time does not parse.
+	 */
+	public static long parseTime(String time, long now) {
+		Date parsed = null;
+		if( time != null ){
+			synchronized (sTimeFormat) {
+				try{
+					parsed = sTimeFormat.parse(time);
+				}catch(ParseException e){
+					PTPLog.d(TAG, "parseTime : " + time + " : " + e.toString());
+				}
+			}
+		}
+		if( parsed == null ){
+			return now;
+		}
+		Calendar hm = Calendar.getInstance();
+		hm.setTime(parsed);
+		Calendar cal = Calendar.getInstance();
+		cal.setTimeInMillis(now);
+		cal.set(Calendar.HOUR_OF_DAY, hm.get(Calendar.HOUR_OF_DAY));
+		cal.set(Calendar.MINUTE, hm.get(Calendar.MINUTE));
+		cal.set(Calendar.SECOND, 0);
+		cal.set(Calendar.MILLISECOND, 0);
+		if( cal.getTimeInMillis() > now + 60000 ){
+			cal.add(Calendar.DAY_OF_MONTH, -1);    // sent before midnight.
+		}
+		return cal.getTimeInMillis();
+	}
+	
 	public MessageRow(Parcel in) {
         readFromParcel(in);
     }
@@ -54,6 +116,7 @@ public class MessageRow implements Parcelable {
 		try{
 			jsonobj.put(MSG_SENDER, msgrow.mSender);
 			jsonobj.put(MSG_TIME, msgrow.mTime);
+			jsonobj.put(MSG_TIMESTAMP, msgrow.mTimestamp);
 			jsonobj.put(MSG_CONTENT, msgrow.mMsg);
 		}catch(JSONException e){
 			PTPLog.e(TAG, "getAsJSONObject : " + e.toString());
@@ -62,13 +125,18 @@ public class MessageRow implements Parcelable {
 	}
 	
 	/**
-	 * convert json object to message row.
+	 * convert json object to message row. Older peers send no timestamp, it is derived from the display time
+	 * so that the row keeps it when relayed in binary.
 	 */
 	public static MessageRow parseMesssageRow(JSONObject jsonobj) {
 		MessageRow row = null;
 		if( jsonobj != null ){
 			try{
 				row = new MessageRow(jsonobj.getString(MSG_SENDER), jsonobj.getString(MSG_CONTENT), jsonobj.getString(MSG_TIME)); 
+				row.mTimestamp = jsonobj.optLong(MSG_TIMESTAMP, 0);
+				if( row.mTimestamp == 0 ){
+					row.mTimestamp = parseTime(row.mTime, System.currentTimeMillis());
+				}
 			}catch(JSONException e){
 				PTPLog.e(TAG, "parseMessageRow: " + e.toString());
 			}
@@ -81,7 +149,7 @@ public class MessageRow implements Parcelable {
 	 */
 	public static MessageRow parseMessageRow(String jsonMsg){
 		JSONObject jsonobj = JSONUtils.getJsonObject(jsonMsg);
-		PTPLog.d(TAG, "parseMessageRow : " + jsonobj.toString());
+		PTPLog.d(TAG, "parseMessageRow : {}", jsonobj);
 		return parseMesssageRow(jsonobj);
 	}
 
@@ -105,11 +173,19 @@ public class MessageRow implements Parcelable {
 		dest.writeString(mSender);
 		dest.writeString(mMsg);
 		dest.writeString(mTime);
+		dest.writeLong(mTimestamp);
+		dest.writeLong(mOrigin);
+		dest.writeLong(mMeshSeq);
+		dest.writeInt(mTtl);
 	}
 	
 	public void readFromParcel(Parcel in) {
 		mSender = in.readString();
 		mMsg = in.readString();
 		mTime = in.readString();
+		mTimestamp = in.readLong();
+		mOrigin = in.readLong();
+		mMeshSeq = in.readLong();
+		mTtl = in.readInt();
     }
 }
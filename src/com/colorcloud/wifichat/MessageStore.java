@@ -0,0 +1,414 @@
+package com.colorcloud.wifichat;
+
+import static com.colorcloud.wifichat.Constants.*;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * persistent append-only chat history.
+ *
+ * Messages are appended to fixed size segment files named by the sequence number of their first message.
+ * The tail segment is memory mapped read/write, an append is a few puts into the mapping. Sealed segments
+ * are mapped read only on demand, the last few mappings are cached. Heap use stays bounded no matter how long
+ * the history is: a ring of the offsets of the most recent messages, plus a sparse offset index per segment.
+ *
+ * Record: [int len][int crc32][payload], payload = [varint ts][str sender][str msg][str time], str = varint len + utf8.
+ * A zero length marks the end of the written part of a segment; on open the tail is scanned up to the first
+ * zero length or bad crc, which also drops a torn last record.
+ */
+public class MessageStore {
+
+	public static final int SEGMENT_SIZE = 1024*1024;
+	private static final int MAX_SEGMENTS = 64;         // oldest segments are deleted beyond this.
+	private static final int RING_SIZE = 1024;          // recent messages with a direct offset.
+	private static final int SPARSE_STEP = 64;          // one index entry per 64 records in a segment.
+	private static final int MAPPED_CACHE = 2;          // sealed segment mappings kept around.
+	private static final int RECORD_HEADER = 8;
+	private static final String SEGMENT_SUFFIX = ".log";
+
+	/**
+	 * one segment file and its sparse index: the offset of every SPARSE_STEP-th record.
+	 */
+	private static class Segment {
+		final File mFile;
+		final long mFirstSeq;
+		int mCount = 0;
+		int mEnd = 0;                     // write position
+		int[] mSparse = new int[16];
+		MappedByteBuffer mMap;            // tail: read/write, sealed: read only while cached.
+
+		Segment(File file, long firstSeq) {
+			mFile = file;
+			mFirstSeq = firstSeq;
+		}
+
+		void indexRecord(int offset) {
+			if (mCount % SPARSE_STEP == 0) {
+				int slot = mCount / SPARSE_STEP;
+				if (slot == mSparse.length) {
+					mSparse = Arrays.copyOf(mSparse, slot * 2);
+				}
+				mSparse[slot] = offset;
+			}
+			mCount++;
+		}
+	}
+
+	private final File mDir;
+	private final ArrayList<Segment> mSegments = new ArrayList<Segment>();
+	private final ArrayList<Segment> mMappedSealed = new ArrayList<Segment>();   // LRU, most recent last
+	private final long[] mRing = new long[RING_SIZE];   // seq % RING_SIZE -> segment first seq index << 32 | offset
+	private final CRC32 mCrc = new CRC32();
+	private ByteBuffer mScratch = ByteBuffer.allocate(1024);
+	private long mNextSeq = 0;
+
+	public MessageStore(File dir) throws IOException {
+		mDir = dir;
+		if (!mDir.isDirectory() && !mDir.mkdirs()) {
+			throw new IOException("can not create message store " + dir);
+		}
+		open();
+	}
+
+	/**
+	 * load existing segments, rebuild the indexes by scanning record headers.
+	 */
+	private void open() throws IOException {
+		String[] names = mDir.list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		if (names == null) {
+			names = new String[0];
+		}
+		Arrays.sort(names);    // zero padded seq numbers sort in order.
+		for (String name : names) {
+			long firstSeq;
+			try {
+				firstSeq = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+			} catch (NumberFormatException e) {
+				continue;
+			}
+			Segment seg = new Segment(new File(mDir, name), firstSeq);
+			mSegments.add(seg);
+		}
+
+		for (int i = 0; i < mSegments.size(); i++) {
+			Segment seg = mSegments.get(i);
+			boolean tail = (i == mSegments.size() - 1);
+			ByteBuffer buf = tail ? mapTail(seg) : mapSealed(seg);
+			scanSegment(seg, i, buf);
+			if (!tail) {
+				releaseSealed(seg);
+			}
+			mNextSeq = seg.mFirstSeq + seg.mCount;
+		}
+		if (mSegments.isEmpty()) {
+			rollSegment();
+		}
+	}
+
+	/**
+	 * walk the records of a segment, build its sparse index and find the write position.
+	 */
+	private void scanSegment(Segment seg, int segIndex, ByteBuffer buf) {
+		int pos = 0;
+		while (pos + RECORD_HEADER <= buf.limit()) {
+			int len = buf.getInt(pos);
+			if (len <= 0 || pos + RECORD_HEADER + len > buf.limit()) {
+				break;
+			}
+			int crc = buf.getInt(pos + 4);
+			if (crc != checksum(buf, pos + RECORD_HEADER, len)) {
+				break;    // torn write, everything after it is garbage.
+			}
+			seg.indexRecord(pos);
+			long seq = seg.mFirstSeq + seg.mCount - 1;
+			mRing[(int)(seq % RING_SIZE)] = ringEntry(segIndex, pos);
+			pos += RECORD_HEADER + len;
+		}
+		seg.mEnd = pos;
+	}
+
+	private int checksum(ByteBuffer buf, int offset, int len) {
+		mCrc.reset();
+		if (buf.hasArray()) {
+			mCrc.update(buf.array(), buf.arrayOffset() + offset, len);
+		} else {
+			for (int i = 0; i < len; i++) {
+				mCrc.update(buf.get(offset + i));
+			}
+		}
+		return (int)mCrc.getValue();
+	}
+
+	private static long ringEntry(int segIndex, int offset) {
+		return ((long)segIndex << 32) | (offset & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * append a message, O(1): encode into scratch, copy into the mapped tail.
+	 * @return the sequence number of the message.
+	 */
+	public synchronized long append(MessageRow row) throws IOException {
+		mScratch.clear();
+		ensureScratch(RECORD_HEADER + 10);
+		mScratch.position(RECORD_HEADER);
+		MessageCodec.putVarLong(mScratch, row.mTimestamp);
+		putString(row.mSender);
+		putString(row.mMsg);
+		putString(row.mTimestamp == 0 ? row.mTime : null);   // the time string is only kept if there is no timestamp.
+		int len = mScratch.position() - RECORD_HEADER;
+		mScratch.putInt(0, len);
+		mScratch.putInt(4, checksum(mScratch, RECORD_HEADER, len));
+		mScratch.flip();
+
+		Segment tail = mSegments.get(mSegments.size() - 1);
+		if (tail.mEnd + mScratch.remaining() > SEGMENT_SIZE) {
+			tail = rollSegment();
+		}
+		int offset = tail.mEnd;
+		tail.mMap.position(offset);
+		tail.mMap.put(mScratch);
+		tail.mEnd = tail.mMap.position();
+		tail.indexRecord(offset);
+
+		long seq = mNextSeq++;
+		mRing[(int)(seq % RING_SIZE)] = ringEntry(mSegments.size() - 1, offset);
+		return seq;
+	}
+
+	/**
+	 * total number of messages in the store, including deleted old segments.
+	 */
+	public synchronized long size() {
+		return mNextSeq;
+	}
+
+	/**
+	 * the sequence number of the oldest message still stored.
+	 */
+	public synchronized long firstSeq() {
+		return mSegments.get(0).mFirstSeq;
+	}
+
+	/**
+	 * read up to count messages starting at fromSeq, in order.
+	 */
+	public synchronized List<MessageRow> readPage(long fromSeq, int count) throws IOException {
+		List<MessageRow> rows = new ArrayList<MessageRow>(Math.max(0, count));
+		long seq = Math.max(fromSeq, firstSeq());
+		long end = Math.min(mNextSeq, fromSeq + count);
+		while (seq < end) {
+			int segIndex = findSegment(seq);
+			Segment seg = mSegments.get(segIndex);
+			ByteBuffer buf = segmentBuffer(seg, segIndex);
+			int offset = locate(seg, segIndex, seq);
+			long segEnd = Math.min(end, seg.mFirstSeq + seg.mCount);
+			for (; seq < segEnd; seq++) {
+				int len = buf.getInt(offset);
+				rows.add(readRecord(buf, offset + RECORD_HEADER, len));
+				offset += RECORD_HEADER + len;
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * the latest count messages, oldest first.
+	 */
+	public synchronized List<MessageRow> readRecent(int count) throws IOException {
+		return readPage(Math.max(firstSeq(), mNextSeq - count), count);
+	}
+
+	/**
+	 * record offset of seq within its segment: the ring for recent messages, else a short walk from the sparse index.
+	 */
+	private int locate(Segment seg, int segIndex, long seq) {
+		if (mNextSeq - seq <= RING_SIZE) {
+			long entry = mRing[(int)(seq % RING_SIZE)];
+			if ((int)(entry >>> 32) == segIndex) {
+				return (int)entry;
+			}
+		}
+		int rel = (int)(seq - seg.mFirstSeq);
+		int offset = seg.mSparse[rel / SPARSE_STEP];
+		ByteBuffer buf = seg.mMap;
+		for (int i = 0; i < rel % SPARSE_STEP; i++) {
+			offset += RECORD_HEADER + buf.getInt(offset);
+		}
+		return offset;
+	}
+
+	private int findSegment(long seq) {
+		int lo = 0, hi = mSegments.size() - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (mSegments.get(mid).mFirstSeq <= seq) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return lo;
+	}
+
+	private MessageRow readRecord(ByteBuffer buf, int offset, int len) throws IOException {
+		ByteBuffer rec = buf.duplicate();
+		rec.limit(offset + len);
+		rec.position(offset);
+		try {
+			long ts = MessageCodec.getVarLong(rec);
+			String sender = getString(rec);
+			String msg = getString(rec);
+			String time = getString(rec);
+			if (ts == 0) {
+				return new MessageRow(sender, msg, time);
+			}
+			return new MessageRow(sender, msg, ts);
+		} catch (BufferUnderflowException e) {
+			throw new IOException("corrupt record at " + offset);
+		}
+	}
+
+	/**
+	 * the mapping for a segment, mapping a sealed one read only if it is not cached.
+	 */
+	private ByteBuffer segmentBuffer(Segment seg, int segIndex) throws IOException {
+		if (segIndex == mSegments.size() - 1) {
+			return seg.mMap;
+		}
+		if (seg.mMap == null) {
+			mapSealed(seg);
+		} else {
+			mMappedSealed.remove(seg);
+			mMappedSealed.add(seg);
+		}
+		return seg.mMap;
+	}
+
+	private MappedByteBuffer mapTail(Segment seg) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(seg.mFile, "rw");
+		try {
+			seg.mMap = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+		} finally {
+			raf.close();    // the mapping stays valid after the channel is closed.
+		}
+		return seg.mMap;
+	}
+
+	private MappedByteBuffer mapSealed(Segment seg) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(seg.mFile, "r");
+		try {
+			seg.mMap = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, Math.min(raf.length(), SEGMENT_SIZE));
+		} finally {
+			raf.close();
+		}
+		mMappedSealed.add(seg);
+		while (mMappedSealed.size() > MAPPED_CACHE) {
+			releaseSealed(mMappedSealed.get(0));
+		}
+		return seg.mMap;
+	}
+
+	private void releaseSealed(Segment seg) {
+		mMappedSealed.remove(seg);
+		seg.mMap = null;     // unmapped when collected.
+	}
+
+	/**
+	 * seal the tail and start a new segment at the next sequence number. Drops the oldest segments beyond the cap.
+	 */
+	private Segment rollSegment() throws IOException {
+		if (!mSegments.isEmpty()) {
+			Segment old = mSegments.get(mSegments.size() - 1);
+			old.mMap.force();
+			old.mMap = null;
+		}
+		String name = String.format("%020d%s", mNextSeq, SEGMENT_SUFFIX);
+		Segment seg = new Segment(new File(mDir, name), mNextSeq);
+		mSegments.add(seg);
+		mapTail(seg);
+
+		if (mSegments.size() > MAX_SEGMENTS) {
+			Segment oldest = mSegments.remove(0);
+			releaseSealed(oldest);
+			oldest.mFile.delete();
+			// ring entries keep segment indexes, shift them with the list.
+			for (int i = 0; i < RING_SIZE; i++) {
+				mRing[i] -= (1L << 32);
+			}
+		}
+		return seg;
+	}
+
+	/**
+	 * drop the whole history.
+	 */
+	public synchronized void clear() throws IOException {
+		for (Segment seg : mSegments) {
+			seg.mMap = null;
+			seg.mFile.delete();
+		}
+		mSegments.clear();
+		mMappedSealed.clear();
+		Arrays.fill(mRing, 0);
+		mNextSeq = 0;
+		rollSegment();
+	}
+
+	/**
+	 * flush the tail mapping to storage.
+	 */
+	public synchronized void sync() {
+		Segment tail = mSegments.get(mSegments.size() - 1);
+		if (tail.mMap != null) {
+			tail.mMap.force();
+		}
+	}
+
+	private void putString(String s) {
+		if (s == null) {
+			s = "";
+		}
+		byte[] bytes = s.getBytes(UTF8);
+		ensureScratch(5 + bytes.length);
+		MessageCodec.putVarLong(mScratch, bytes.length);
+		mScratch.put(bytes);
+	}
+
+	private static String getString(ByteBuffer rec) throws IOException {
+		int len = (int)MessageCodec.getVarLong(rec);
+		if (len < 0 || len > rec.remaining()) {
+			throw new IOException("bad string length " + len);
+		}
+		return MessageCodec.getUtf8(rec, len);
+	}
+
+	private void ensureScratch(int more) {
+		if (mScratch.remaining() >= more) {
+			return;
+		}
+		int cap = mScratch.capacity();
+		while (cap - mScratch.position() < more) {
+			cap <<= 1;
+		}
+		ByteBuffer newbuf = ByteBuffer.allocate(cap);
+		mScratch.flip();
+		newbuf.put(mScratch);
+		mScratch = newbuf;
+	}
+}
@@ -0,0 +1,328 @@
+package com.colorcloud.wifichat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * per channel outbound frame queue. Producers enqueue encoded frames from any thread, only the selector
+ * thread writes them out to the channel when the channel is writable.
+ * A frame is queued as two buffers, the length header and the body, and written with gathering writes.
+ * The buffers can be duplicates of read only buffers shared with other peers' queues, so a broadcast
+ * is encoded once and never copied per peer.
+ *
+ * A frame transform, the connection's compressor, rewrites each frame when it is first handed to the channel,
+ * in wire order. Transformed frames are never dropped, the peer's decoder depends on them. Neither are pinned
+ * frames, the control frames the peer's state depends on, like a sender definition.
+ *
+ * The queue tracks the bytes pending for the peer. When a producer pushes the queue above the high watermark,
+ * the overflow policy decides what happens: drop the oldest frames not yet on the wire, block the producer
+ * until the selector drains the queue below the low watermark, or give up on the slow peer.
+ * The writer thread is never blocked, it also produces for every peer; under BLOCK_PRODUCER its frames
+ * fall back to DROP_OLDEST, so one slow peer can not stall the others. When pinned frames alone keep the queue
+ * over the low watermark, nothing more can be dropped: a new pinned frame overflows the queue as with
+ * DISCONNECT, and a new droppable one is dropped.
+ */
+public class OutboundQueue {
+
+	public enum OverflowPolicy {
+		DROP_OLDEST,      // drop queued frames that have not started on the wire, keep the newest.
+		BLOCK_PRODUCER,   // producer waits until queue drains below low watermark, the writer thread drops.
+		DISCONNECT        // the peer is too slow, drop the connection.
+	}
+
+	/**
+	 * rewrites a frame, header and body, right before its first write. Selector thread only.
+	 */
+	public interface FrameTransform {
+		/** replace frame[0] and frame[1], or leave them. */
+		void transform(ByteBuffer[] frame);
+	}
+
+	// enqueue results
+	public static final int ENQUEUED = 0;
+	public static final int DROPPED = 1;      // frame not queued, peer stays connected.
+	public static final int OVERFLOW = 2;     // peer exceeded the high watermark with disconnect policy.
+	public static final int CLOSED = 3;
+
+	private static final int MAX_GATHER = 32;   // buffers written in one gathering write, header and body per frame.
+
+	private final ArrayDeque<ByteBuffer> mFrames = new ArrayDeque<ByteBuffer>();   // header, body, header, body...
+	private final ArrayDeque<Boolean> mPinned = new ArrayDeque<Boolean>();         // per frame, never dropped if true.
+	private final ByteBuffer[] mGather = new ByteBuffer[MAX_GATHER];   // selector thread only.
+	private final ByteBuffer[] mKeep = new ByteBuffer[MAX_GATHER];     // scratch, under lock.
+	private final OverflowPolicy mPolicy;
+	private final int mHighWatermark;
+	private final int mLowWatermark;
+	private final long mBlockTimeout;
+
+	private int mInFlight = 0;    // head buffers handed to the channel write, never dropped.
+	private int mSealed = 0;      // head buffers already transformed, never dropped either.
+	private FrameTransform mTransform = null;
+	private final ByteBuffer[] mFrame = new ByteBuffer[2];      // selector thread only.
+	private long mQueuedBytes = 0;
+	private long mDroppedFrames = 0;
+	private long mMaxQueuedBytes = 0;
+	private long mBytesWritten = 0;
+	private long mFramesWritten = 0;
+	private boolean mClosed = false;
+	private volatile Thread mWriter = null;    // the thread that writes the queue out, it must never block on it.
+
+	public OutboundQueue(OverflowPolicy policy, int highWatermark, int lowWatermark, long blockTimeout) {
+		mPolicy = policy;
+		mHighWatermark = highWatermark;
+		mLowWatermark = lowWatermark;
+		mBlockTimeout = blockTimeout;
+	}
+
+	/**
+	 * the thread that writes the queue out. Producing on it never blocks, set it before the first enqueue.
+	 */
+	public void setWriter(Thread writer) {
+		mWriter = writer;
+	}
+
+	/**
+	 * install the transform for the frames not written yet. Selector thread only.
+	 */
+	public synchronized void setTransform(FrameTransform transform) {
+		mTransform = transform;
+	}
+
+	/**
+	 * queue a frame, header and body buffers in read mode, for writing. Called from producer threads.
+	 * The queue owns the position of both buffers, pass duplicates of shared buffers.
+	 * @return ENQUEUED, DROPPED, OVERFLOW or CLOSED.
+	 */
+	public int enqueue(ByteBuffer header, ByteBuffer body) {
+		return enqueue(header, body, false);
+	}
+
+	/**
+	 * queue a frame that the overflow policy may drop, or a pinned one that it never drops.
+	 * @return ENQUEUED, DROPPED, OVERFLOW or CLOSED.
+	 */
+	public synchronized int enqueue(ByteBuffer header, ByteBuffer body, boolean pinned) {
+		if (mClosed) {
+			return CLOSED;
+		}
+		int framelen = header.remaining() + body.remaining();
+		if (mQueuedBytes + framelen > mHighWatermark) {
+			switch (mPolicy) {
+			case BLOCK_PRODUCER:
+				if (Thread.currentThread() != mWriter) {
+					if (!waitForDrain()) {
+						mDroppedFrames++;
+						return mClosed ? CLOSED : DROPPED;
+					}
+					break;
+				}
+				// the writer can not wait for its own drain, fall through.
+			case DROP_OLDEST:
+				dropOldest(Math.max(0, mLowWatermark - framelen));
+				if (mQueuedBytes > mLowWatermark) {
+					// only frames that can not be dropped are left.
+					if (pinned) {
+						return OVERFLOW;
+					}
+					mDroppedFrames++;
+					return DROPPED;
+				}
+				break;
+			case DISCONNECT:
+				return OVERFLOW;
+			}
+		}
+		mFrames.addLast(header);
+		mFrames.addLast(body);
+		mPinned.addLast(pinned);
+		mQueuedBytes += framelen;
+		if (mQueuedBytes > mMaxQueuedBytes) {
+			mMaxQueuedBytes = mQueuedBytes;
+		}
+		return ENQUEUED;
+	}
+
+	/**
+	 * drop whole frames, oldest first, until queued bytes fall to the target. Frames handed to the channel,
+	 * or partially written, stay at the head; cutting them would corrupt the stream. Pinned frames stay too.
+	 * The queue is rotated once, the frames kept keep their order.
+	 */
+	private void dropOldest(long target) {
+		int keep = Math.max(mInFlight, mSealed) / 2;
+		if (keep == 0 && !mFrames.isEmpty() && mFrames.peekFirst().position() != 0) {
+			keep = 1;    // only the head frame can be partially written between writes.
+		}
+		int frames = mPinned.size();
+		for (int i = 0; i < frames; i++) {
+			ByteBuffer header = mFrames.pollFirst();
+			ByteBuffer body = mFrames.pollFirst();
+			Boolean pinned = mPinned.pollFirst();
+			if (i >= keep && !pinned && mQueuedBytes > target) {
+				mQueuedBytes -= header.remaining() + body.remaining();
+				mDroppedFrames++;
+				continue;
+			}
+			mFrames.addLast(header);
+			mFrames.addLast(body);
+			mPinned.addLast(pinned);
+		}
+	}
+
+	/**
+	 * block the producer until the selector thread drains the queue below the low watermark.
+	 * @return true if the queue drained, false on timeout or close.
+	 */
+	private boolean waitForDrain() {
+		long deadline = System.currentTimeMillis() + mBlockTimeout;
+		while (!mClosed && mQueuedBytes > mLowWatermark) {
+			long wait = deadline - System.currentTimeMillis();
+			if (wait <= 0) {
+				return false;
+			}
+			try {
+				wait(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return !mClosed;
+	}
+
+	/**
+	 * write as much as the channel accepts. Called from the selector thread only.
+	 * @return true when the queue is empty after the write, false if data is still pending.
+	 */
+	public boolean writeTo(GatheringByteChannel channel) throws IOException {
+		mWriter = Thread.currentThread();
+		while (true) {
+			int n = 0;
+			synchronized (this) {
+				if (mTransform != null) {
+					sealFrames();
+				}
+				for (ByteBuffer frame : mFrames) {
+					if (n == MAX_GATHER) {
+						break;
+					}
+					mGather[n++] = frame;
+				}
+				mInFlight = n;
+			}
+			if (n == 0) {
+				return true;
+			}
+
+			long nwritten = channel.write(mGather, 0, n);
+			boolean full = mGather[n-1].hasRemaining();   // socket buffer full before the last frame went out.
+			Arrays.fill(mGather, 0, n, null);
+
+			synchronized (this) {
+				mInFlight = 0;
+				if (mClosed) {
+					return true;
+				}
+				mQueuedBytes -= nwritten;
+				mBytesWritten += nwritten;
+				removeWrittenFrames();
+				if (mQueuedBytes <= mLowWatermark) {
+					notifyAll();    // wake up blocked producers.
+				}
+				if (full) {
+					return mFrames.isEmpty();
+				}
+			}
+		}
+	}
+
+	/**
+	 * transform the frames the next gathering write takes, the ones not transformed yet, in queue order.
+	 */
+	private void sealFrames() {
+		int n = Math.min(mFrames.size(), MAX_GATHER);
+		if (mSealed >= n) {
+			return;
+		}
+		for (int i = 0; i < n; i++) {
+			mKeep[i] = mFrames.pollFirst();
+		}
+		for (int i = mSealed; i < n; i += 2) {
+			mFrame[0] = mKeep[i];
+			mFrame[1] = mKeep[i+1];
+			long before = mFrame[0].remaining() + mFrame[1].remaining();
+			mTransform.transform(mFrame);
+			mKeep[i] = mFrame[0];
+			mKeep[i+1] = mFrame[1];
+			mQueuedBytes += mFrame[0].remaining() + mFrame[1].remaining() - before;
+		}
+		mFrame[0] = null;
+		mFrame[1] = null;
+		for (int i = n - 1; i >= 0; i--) {
+			mFrames.addFirst(mKeep[i]);
+			mKeep[i] = null;
+		}
+		mSealed = n;
+	}
+
+	/**
+	 * remove fully written frames from the head, always header and body together to keep the queue in pairs.
+	 */
+	private void removeWrittenFrames() {
+		while (!mFrames.isEmpty()) {
+			Iterator<ByteBuffer> it = mFrames.iterator();
+			ByteBuffer header = it.next();
+			ByteBuffer body = it.next();
+			if (header.hasRemaining() || body.hasRemaining()) {
+				return;
+			}
+			mFrames.pollFirst();
+			mFrames.pollFirst();
+			mPinned.pollFirst();
+			mFramesWritten++;
+			mSealed = Math.max(0, mSealed - 2);
+		}
+	}
+
+	public synchronized boolean isEmpty() {
+		return mFrames.isEmpty();
+	}
+
+	public synchronized long getQueuedBytes() {
+		return mQueuedBytes;
+	}
+
+	public synchronized long getDroppedFrames() {
+		return mDroppedFrames;
+	}
+
+	/**
+	 * the most bytes ever pending at once.
+	 */
+	public synchronized long getMaxQueuedBytes() {
+		return mMaxQueuedBytes;
+	}
+
+	public synchronized long getBytesWritten() {
+		return mBytesWritten;
+	}
+
+	public synchronized long getFramesWritten() {
+		return mFramesWritten;
+	}
+
+	/**
+	 * discard all pending frames and release blocked producers, the channel is gone.
+	 */
+	public synchronized void close() {
+		mClosed = true;
+		mFrames.clear();
+		mPinned.clear();
+		mSealed = 0;
+		mQueuedBytes = 0;
+		notifyAll();
+	}
+}
@@ -0,0 +1,310 @@
+package com.colorcloud.wifichat;
+
+import android.util.Log;
+
+/**
+ * the app's logger. Level gated: a call below the level returns after one compare, before any string is built.
+ *
+ * Messages take '{}' placeholders filled from up to three arguments, formatted only when the level is on, so the
+ * hot paths can log a row or a peer without building a string in a release build:
+ *   PTPLog.d(TAG, "sendUpstream: {} -> {} : {}", addr, peer, row.mMsg);
+ * Primitive arguments get boxed before the check, small ints are cached and free, guard a call with isDebug()
+ * when it needs more than that, or pass a Msg built only when the level is on.
+ *
+ * Lines go to a Sink, logcat by default. setAsync() puts a ring in front of it, drained by a daemon thread, so
+ * the connection loop does not wait on logcat. A full ring drops lines and reports how many.
+ */
+public final class PTPLog {
+
+	public static final int VERBOSE = Log.VERBOSE;
+	public static final int DEBUG = Log.DEBUG;
+	public static final int INFO = Log.INFO;
+	public static final int WARN = Log.WARN;
+	public static final int ERROR = Log.ERROR;
+	public static final int OFF = Log.ASSERT + 1;
+
+	/**
+	 * a message built only when its level is on.
+	 */
+	public interface Msg {
+		String build();
+	}
+
+	/**
+	 * where the formatted lines go.
+	 */
+	public interface Sink {
+		void write(int level, String tag, String msg);
+	}
+
+	public static final Sink LOGCAT = new Sink() {
+		@Override
+		public void write(int level, String tag, String msg) {
+			Log.println(level, tag, msg);
+		}
+	};
+
+	private static volatile int sLevel = INFO;
+	private static volatile Sink sSink = LOGCAT;
+	private static AsyncSink sAsync = null;     // guarded by PTPLog.class.
+
+	private PTPLog() {}
+
+	public static void setLevel(int level) {
+		sLevel = level;
+	}
+
+	public static int getLevel() {
+		return sLevel;
+	}
+
+	public static boolean isLoggable(int level) {
+		return level >= sLevel;
+	}
+
+	public static boolean isDebug() {
+		return DEBUG >= sLevel;
+	}
+
+	/**
+	 * the sink lines go to, or through the ring when async is on.
+	 */
+	public static synchronized void setSink(Sink sink) {
+		if (sAsync != null) {
+			sAsync.mTarget = sink;
+		} else {
+			sSink = sink;
+		}
+	}
+
+	/**
+	 * write lines from a daemon thread through a ring of the capacity, or back in the caller with 0.
+	 */
+	public static synchronized void setAsync(int capacity) {
+		Sink target = sAsync != null ? sAsync.mTarget : sSink;
+		if (sAsync != null) {
+			sAsync.stop();
+			sAsync = null;
+		}
+		if (capacity > 0) {
+			sAsync = new AsyncSink(target, capacity);
+			sSink = sAsync;
+		} else {
+			sSink = target;
+		}
+	}
+
+	/**
+	 * lines the async ring dropped because it was full, 0 when not async.
+	 */
+	public static synchronized long getDropped() {
+		return sAsync != null ? sAsync.getDropped() : 0;
+	}
+
+	public static void v(String tag, String msg) {
+		if (VERBOSE >= sLevel) {
+			sSink.write(VERBOSE, tag, msg);
+		}
+	}
+
+	public static void d(String tag, String msg) {
+		if (DEBUG >= sLevel) {
+			sSink.write(DEBUG, tag, msg);
+		}
+	}
+
+	public static void d(String tag, String fmt, Object a) {
+		if (DEBUG >= sLevel) {
+			sSink.write(DEBUG, tag, format(fmt, a, null, null, 1));
+		}
+	}
+
+	public static void d(String tag, String fmt, Object a, Object b) {
+		if (DEBUG >= sLevel) {
+			sSink.write(DEBUG, tag, format(fmt, a, b, null, 2));
+		}
+	}
+
+	public static void d(String tag, String fmt, Object a, Object b, Object c) {
+		if (DEBUG >= sLevel) {
+			sSink.write(DEBUG, tag, format(fmt, a, b, c, 3));
+		}
+	}
+
+	public static void d(String tag, Msg msg) {
+		if (DEBUG >= sLevel) {
+			sSink.write(DEBUG, tag, msg.build());
+		}
+	}
+
+	public static void i(String tag, String msg) {
+		if (INFO >= sLevel) {
+			sSink.write(INFO, tag, msg);
+		}
+	}
+
+	public static void i(String tag, String fmt, Object a) {
+		if (INFO >= sLevel) {
+			sSink.write(INFO, tag, format(fmt, a, null, null, 1));
+		}
+	}
+
+	public static void i(String tag, String fmt, Object a, Object b) {
+		if (INFO >= sLevel) {
+			sSink.write(INFO, tag, format(fmt, a, b, null, 2));
+		}
+	}
+
+	public static void w(String tag, String msg) {
+		if (WARN >= sLevel) {
+			sSink.write(WARN, tag, msg);
+		}
+	}
+
+	public static void e(String tag, String msg) {
+		if (ERROR >= sLevel) {
+			sSink.write(ERROR, tag, msg);
+		}
+	}
+
+	public static void e(String tag, String fmt, Object a) {
+		if (ERROR >= sLevel) {
+			sSink.write(ERROR, tag, format(fmt, a, null, null, 1));
+		}
+	}
+
+	public static void e(String tag, String fmt, Object a, Object b) {
+		if (ERROR >= sLevel) {
+			sSink.write(ERROR, tag, format(fmt, a, b, null, 2));
+		}
+	}
+
+	/**
+	 * fill the '{}' of fmt in turn with the first n args, extra placeholders stay as they are.
+	 */
+	static String format(String fmt, Object a, Object b, Object c, int n) {
+		String sa = String.valueOf(a);
+		String sb2 = n > 1 ? String.valueOf(b) : "";
+		String sc = n > 2 ? String.valueOf(c) : "";
+		StringBuilder sb = new StringBuilder(fmt.length() + sa.length() + sb2.length() + sc.length());
+		int from = 0;
+		for (int i = 0; i < n; i++) {
+			int at = fmt.indexOf("{}", from);
+			if (at < 0) {
+				break;
+			}
+			sb.append(fmt, from, at).append(i == 0 ? sa : i == 1 ? sb2 : sc);
+			from = at + 2;
+		}
+		return sb.append(fmt, from, fmt.length()).toString();
+	}
+
+	/**
+	 * a fixed ring of lines in front of the target sink. Writers never block, a full ring drops the line.
+	 */
+	private static class AsyncSink implements Sink, Runnable {
+		private static final long FLUSH_INTERVAL = 50;   // ms a line may wait for a batch.
+		private final int[] mLevels;
+		private final String[] mTags;
+		private final String[] mMsgs;
+		private int mHead = 0;            // next line to drain.
+		private int mCount = 0;
+		private long mDropped = 0;
+		private long mDroppedReported = 0;
+		private boolean mStopped = false;
+		private boolean mWaiting = false;  // the log thread waits for lines.
+		private final Thread mThread;
+		volatile Sink mTarget;
+
+		AsyncSink(Sink target, int capacity) {
+			mTarget = target;
+			mLevels = new int[capacity];
+			mTags = new String[capacity];
+			mMsgs = new String[capacity];
+			mThread = new Thread(this, "PTPLog");
+			mThread.setDaemon(true);
+			mThread.start();
+		}
+
+		@Override
+		public synchronized void write(int level, String tag, String msg) {
+			if (mStopped || mCount == mMsgs.length) {
+				mDropped++;
+				return;
+			}
+			int tail = (mHead + mCount) % mMsgs.length;
+			mLevels[tail] = level;
+			mTags[tail] = tag;
+			mMsgs[tail] = msg;
+			mCount++;
+			// a wakeup costs more than the line, wake the log thread for a batch or a warning only.
+			if (mWaiting && (mCount >= mMsgs.length / 4 || level >= WARN)) {
+				mWaiting = false;
+				notify();
+			}
+		}
+
+		synchronized long getDropped() {
+			return mDropped;
+		}
+
+		/**
+		 * write out what is queued, then end the thread.
+		 */
+		synchronized void stop() {
+			mStopped = true;
+			notify();
+		}
+
+		/**
+		 * takes all queued lines at once and writes them out of the lock, so writers rarely wait on it.
+		 */
+		@Override
+		public void run() {
+			int capacity = mMsgs.length;
+			int[] levels = new int[capacity];
+			String[] tags = new String[capacity];
+			String[] msgs = new String[capacity];
+			while (true) {
+				int n;
+				long dropped;
+				synchronized (this) {
+					while (mCount == 0 && !mStopped) {
+						mWaiting = true;
+						try {
+							wait(FLUSH_INTERVAL);
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					mWaiting = false;
+					if (mCount == 0) {
+						return;
+					}
+					n = mCount;
+					for (int i = 0; i < n; i++) {
+						int at = (mHead + i) % capacity;
+						levels[i] = mLevels[at];
+						tags[i] = mTags[at];
+						msgs[i] = mMsgs[at];
+						mTags[at] = null;
+						mMsgs[at] = null;
+					}
+					mHead = (mHead + n) % capacity;
+					mCount = 0;
+					dropped = mDropped - mDroppedReported;
+					mDroppedReported = mDropped;
+				}
+				Sink target = mTarget;
+				if (dropped > 0) {
+					target.write(WARN, "PTPLog", "log ring full, lines dropped: " + dropped);
+				}
+				for (int i = 0; i < n; i++) {
+					target.write(levels[i], tags[i], msgs[i]);
+					tags[i] = null;
+					msgs[i] = null;
+				}
+			}
+		}
+	}
+}
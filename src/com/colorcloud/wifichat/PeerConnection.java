@@ -0,0 +1,299 @@
+package com.colorcloud.wifichat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.BitSet;
+
+/**
+ * the state of one socket channel to a peer, attached to the channel's selection key.
+ * Holds the inbound frame decoder and the outbound frame queue. Both are driven by the selector thread,
+ * other threads only enqueue frames and ask the selector to flush.
+ */
+public class PeerConnection {
+
+	/**
+	 * frames pulled by the selector thread whenever the outbound queue is written out, for bulk data that
+	 * must not get ahead of queued chat frames. A pulled frame is fully written before the next pull.
+	 */
+	public interface FrameSource {
+		/**
+		 * fill frame[0] with the header and frame[1] with the body of the next frame.
+		 * @return false if there is nothing to send right now.
+		 */
+		boolean nextFrame(ByteBuffer[] frame) throws IOException;
+	}
+
+	private final SocketChannel mChannel;
+	private final String mPeerAddr;
+	private final FrameDecoder mDecoder;
+	private final OutboundQueue mOutQueue;
+	private final MessageCodec.Decoder mMsgDecoder = new MessageCodec.Decoder();   // selector thread only.
+	private volatile int mWireFormat = MessageCodec.FORMAT_JSON;   // what the peer reads, json until its hello.
+	private volatile int mCaps = 0;                // the capabilities the peer's hello announced.
+	private final BitSet mSendersDefined = new BitSet();   // sender ids the peer learned on this connection, loop thread only.
+	private ReliableSession mSession = null;      // loop thread only.
+	private long mInSeq = 0;                      // seq of the next inbound data frame, selector thread only.
+	private long[] mInMesh = null;                // mesh envelope of the next inbound data frame, selector thread only.
+	private SelectionKey mKey;
+	private FrameSource mFrameSource = null;
+	private final ByteBuffer[] mSourceFrame = new ByteBuffer[2];   // the pulled frame being written, selector thread only.
+	private long mSourceBytes = 0;                // pulled frames written, selector thread only.
+	private long mSourceFrames = 0;
+	private TransportMetrics.PeerMetrics mMetrics = null;   // null while metrics are off, loop thread only.
+	private FrameCompressor mCompressor = null;   // created on first use, loop thread only.
+	private boolean mCompressOut = false;         // frames to the peer go through the compressor.
+
+	public PeerConnection(SocketChannel channel, String peerAddr, FrameDecoder decoder, OutboundQueue outqueue) {
+		mChannel = channel;
+		mPeerAddr = peerAddr;
+		mDecoder = decoder;
+		mOutQueue = outqueue;
+	}
+
+	public SocketChannel getChannel() {
+		return mChannel;
+	}
+
+	public String getPeerAddr() {
+		return mPeerAddr;
+	}
+
+	public FrameDecoder getDecoder() {
+		return mDecoder;
+	}
+
+	public OutboundQueue getOutQueue() {
+		return mOutQueue;
+	}
+
+	public MessageCodec.Decoder getMessageDecoder() {
+		return mMsgDecoder;
+	}
+
+	public int getWireFormat() {
+		return mWireFormat;
+	}
+
+	void setWireFormat(int format) {
+		mWireFormat = format;
+	}
+
+	public boolean isReliable() {
+		return (mCaps & MessageCodec.CAP_RELIABLE) != 0;
+	}
+
+	public boolean isStreamCapable() {
+		return (mCaps & MessageCodec.CAP_STREAMS) != 0;
+	}
+
+	public boolean isMeshLink() {
+		return (mCaps & MessageCodec.CAP_MESH) != 0;
+	}
+
+	public boolean isAttachCapable() {
+		return (mCaps & MessageCodec.CAP_ATTACH) != 0;
+	}
+
+	public boolean isDeflateCapable() {
+		return (mCaps & MessageCodec.CAP_DEFLATE) != 0;
+	}
+
+	public boolean isResumeCapable() {
+		return (mCaps & MessageCodec.CAP_RESUME) != 0;
+	}
+
+	void setCaps(int caps) {
+		mCaps = caps;
+	}
+
+	/**
+	 * note that the peer is sent the definition of a sender id. Loop thread only.
+	 * @return false if it was sent before on this connection.
+	 */
+	boolean defineSender(int id) {
+		if (mSendersDefined.get(id)) {
+			return false;
+		}
+		mSendersDefined.set(id);
+		return true;
+	}
+
+	public ReliableSession getSession() {
+		return mSession;
+	}
+
+	void setSession(ReliableSession session) {
+		mSession = session;
+	}
+
+	/**
+	 * a SEQ frame announced the seq of the next data frame. Selector thread only.
+	 */
+	void setInSeq(long seq) {
+		mInSeq = seq;
+	}
+
+	/**
+	 * the seq of the data frame just read, 0 if it was not sequenced. Selector thread only.
+	 */
+	long takeInSeq() {
+		long seq = mInSeq;
+		mInSeq = 0;
+		return seq;
+	}
+
+	/**
+	 * a MESH frame announced the envelope of the next data frame. Selector thread only.
+	 */
+	void setInMesh(long[] envelope) {
+		mInMesh = envelope;
+	}
+
+	/**
+	 * move the mesh envelope of the data frame just read into its row. The row may be forwarded one hop
+	 * less than it arrived with. Selector thread only.
+	 */
+	void takeInMesh(MessageRow row) {
+		long[] envelope = mInMesh;
+		if (envelope == null) {
+			return;
+		}
+		mInMesh = null;
+		row.mOrigin = envelope[0];
+		row.mMeshSeq = envelope[1];
+		row.mTtl = (int)envelope[2] - 1;
+	}
+
+	public TransportMetrics.PeerMetrics getMetrics() {
+		return mMetrics;
+	}
+
+	void setMetrics(TransportMetrics.PeerMetrics metrics) {
+		mMetrics = metrics;
+	}
+
+	/**
+	 * bytes written to the channel, queued and pulled frames.
+	 */
+	public long getBytesWritten() {
+		return mOutQueue.getBytesWritten() + mSourceBytes;
+	}
+
+	public long getFramesWritten() {
+		return mOutQueue.getFramesWritten() + mSourceFrames;
+	}
+
+	/**
+	 * the compressor of the connection, it also inflates the frames the peer compressed.
+	 */
+	public FrameCompressor getCompressor() {
+		if (mCompressor == null) {
+			mCompressor = new FrameCompressor(Constants.FRAME_HEADER_MODE);
+		}
+		return mCompressor;
+	}
+
+	boolean hasCompressor() {
+		return mCompressor != null;
+	}
+
+	/**
+	 * compress the frames to the peer from now on, queued and pulled. Loop thread only.
+	 */
+	void enableCompression() {
+		mCompressOut = true;
+		mOutQueue.setTransform(getCompressor());
+	}
+
+	public boolean isCompressing() {
+		return mCompressOut;
+	}
+
+	void setFrameSource(FrameSource source) {
+		mFrameSource = source;
+	}
+
+	public SelectionKey getKey() {
+		return mKey;
+	}
+
+	void setKey(SelectionKey key) {
+		mKey = key;
+	}
+
+	/**
+	 * queue an encoded frame for this peer, producer side. Pass duplicates when the buffers are shared.
+	 * A pinned frame is never dropped by the queue's overflow policy.
+	 * @return one of OutboundQueue enqueue results.
+	 */
+	public int enqueue(ByteBuffer header, ByteBuffer body, boolean pinned) {
+		return mOutQueue.enqueue(header, body, pinned);
+	}
+
+	/**
+	 * write pending frames and keep OP_WRITE interest only while data is still pending. Selector thread only.
+	 * Queued frames go first; frames from the frame source are pulled only when the queue is written out,
+	 * and a partially written source frame completes before anything else.
+	 */
+	public void flush() throws IOException {
+		boolean drained = writeSourceFrame() && mOutQueue.writeTo(mChannel);
+		while (drained && mFrameSource != null && mFrameSource.nextFrame(mSourceFrame)) {
+			if (mCompressOut) {
+				mCompressor.compress(mSourceFrame, true);    // in wire order, written before the next pull.
+			}
+			drained = writeSourceFrame() && mOutQueue.writeTo(mChannel);
+		}
+		if (mKey != null && mKey.isValid()) {
+			int ops = mKey.interestOps();
+			int newops = drained ? (ops & ~SelectionKey.OP_WRITE) : (ops | SelectionKey.OP_WRITE);
+			if (newops != ops) {
+				mKey.interestOps(newops);
+			}
+		}
+		if (mMetrics != null) {
+			mMetrics.onFlush(drained, System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * @return true if no pulled frame is left to write.
+	 */
+	private boolean writeSourceFrame() throws IOException {
+		if (mSourceFrame[1] == null) {
+			return true;
+		}
+		mSourceBytes += mChannel.write(mSourceFrame);
+		if (mSourceFrame[1].hasRemaining()) {
+			return false;
+		}
+		mSourceFrames++;
+		mSourceFrame[0] = null;
+		mSourceFrame[1] = null;
+		return true;
+	}
+
+	/**
+	 * the channel is gone, release the queue and any blocked producer.
+	 */
+	public void close() {
+		if (mMetrics != null) {
+			mMetrics.detach(this);
+		}
+		mOutQueue.close();
+		if (mCompressor != null) {
+			mCompressor.close();
+		}
+		try {
+			mChannel.close();
+		} catch (IOException e) {
+			// already closed.
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "PeerConnection " + mPeerAddr;
+	}
+}
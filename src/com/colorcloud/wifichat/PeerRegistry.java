@@ -0,0 +1,194 @@
+package com.colorcloud.wifichat;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import android.net.wifi.p2p.WifiP2pDevice;
+
+/**
+ * the peers discovery found, by device address. Each WIFI_P2P_PEERS_CHANGED_ACTION hands in the whole list again;
+ * update() compares it with the one before and returns only what changed: peers added, peers gone, and peers
+ * whose status or name changed. The ui applies the delta instead of rebuilding its list, and a storm of
+ * unchanged lists in a crowded room costs a map lookup per peer and nothing else.
+ *
+ * Wifi p2p reports no signal strength, so the quality of a peer is how steadily discovery sees it: the number of
+ * the last QUALITY_ROUNDS lists it was in. A peer gone from the list is kept out of sight for PEER_LINGER, so
+ * one that flaps in and out keeps its history and shows a low quality.
+ *
+ * Thread safe; updated from the service thread, read from the ui thread.
+ */
+public class PeerRegistry {
+
+	public static final int QUALITY_ROUNDS = 8;
+	public static final long PEER_LINGER = 60*1000;    // ms a gone peer's history is kept.
+
+	/**
+	 * a peer and what discovery knows about it.
+	 */
+	public static class Peer {
+		WifiP2pDevice mDevice;
+		long mFirstSeen;
+		long mLastSeen;
+		int mSeen;              // bit i set: in the list i lists ago.
+		long mRound;            // the latest list it was in.
+		boolean mPresent;       // in the latest list.
+
+		public WifiP2pDevice getDevice() {
+			return mDevice;
+		}
+
+		public long getFirstSeen() {
+			return mFirstSeen;
+		}
+
+		public long getLastSeen() {
+			return mLastSeen;
+		}
+
+		/**
+		 * in how many of the last QUALITY_ROUNDS peer lists the peer was, 0 to QUALITY_ROUNDS.
+		 */
+		public int getQuality() {
+			return Integer.bitCount(mSeen);
+		}
+	}
+
+	/**
+	 * what changed between two peer lists. Immutable, safe to hand to the ui thread.
+	 */
+	public static class Delta {
+		public final List<WifiP2pDevice> mAdded;
+		public final List<WifiP2pDevice> mRemoved;
+		public final List<WifiP2pDevice> mChanged;    // status or name changed, the new device.
+
+		Delta(List<WifiP2pDevice> added, List<WifiP2pDevice> removed, List<WifiP2pDevice> changed) {
+			mAdded = added;
+			mRemoved = removed;
+			mChanged = changed;
+		}
+
+		public boolean isEmpty() {
+			return mAdded.isEmpty() && mRemoved.isEmpty() && mChanged.isEmpty();
+		}
+
+		@Override
+		public String toString() {
+			return "+" + mAdded.size() + " -" + mRemoved.size() + " ~" + mChanged.size();
+		}
+	}
+
+	private final LinkedHashMap<String, Peer> mPeers = new LinkedHashMap<String, Peer>();   // discovery order
+	private int mPresent = 0;
+	private String mConnected = null;     // address of the connected peer, if any.
+	private long mRound = 0;
+
+	/**
+	 * take in the full peer list discovery reported.
+	 * @return the changes against the list before, empty if nothing changed.
+	 */
+	public synchronized Delta update(Collection<WifiP2pDevice> devices, long now) {
+		mRound++;
+		List<WifiP2pDevice> added = null;
+		List<WifiP2pDevice> changed = null;
+		for (WifiP2pDevice d : devices) {
+			Peer p = mPeers.get(d.deviceAddress);
+			if (p == null) {
+				p = new Peer();
+				p.mFirstSeen = now;
+				mPeers.put(d.deviceAddress, p);
+			}
+			if (p.mRound == mRound) {
+				continue;     // listed twice.
+			}
+			if (!p.mPresent) {
+				added = add(added, d);
+				p.mPresent = true;
+				mPresent++;
+			} else if (p.mDevice.status != d.status || !same(p.mDevice.deviceName, d.deviceName)) {
+				changed = add(changed, d);
+			}
+			p.mDevice = d;
+			p.mRound = mRound;
+			p.mLastSeen = now;
+		}
+
+		List<WifiP2pDevice> removed = null;
+		mConnected = null;
+		Iterator<Peer> it = mPeers.values().iterator();
+		while (it.hasNext()) {
+			Peer p = it.next();
+			if (p.mRound != mRound) {
+				if (p.mPresent) {
+					removed = add(removed, p.mDevice);
+					p.mPresent = false;
+					mPresent--;
+				} else if (now - p.mLastSeen > PEER_LINGER) {
+					it.remove();
+					continue;
+				}
+			} else if (p.mDevice.status == WifiP2pDevice.CONNECTED) {
+				mConnected = p.mDevice.deviceAddress;
+			}
+			p.mSeen = ((p.mSeen << 1) | (p.mRound == mRound ? 1 : 0)) & ((1 << QUALITY_ROUNDS) - 1);
+		}
+		return new Delta(list(added), list(removed), list(changed));
+	}
+
+	/**
+	 * a connected peer, null if there is none.
+	 */
+	public synchronized WifiP2pDevice getConnectedPeer() {
+		return mConnected != null ? mPeers.get(mConnected).mDevice : null;
+	}
+
+	public synchronized Peer getPeer(String address) {
+		Peer p = mPeers.get(address);
+		return p != null && p.mPresent ? p : null;
+	}
+
+	/**
+	 * the peers in the latest list, in the order they were first found.
+	 */
+	public synchronized List<WifiP2pDevice> getDevices() {
+		List<WifiP2pDevice> devices = new ArrayList<WifiP2pDevice>(mPresent);
+		for (Peer p : mPeers.values()) {
+			if (p.mPresent) {
+				devices.add(p.mDevice);
+			}
+		}
+		return devices;
+	}
+
+	public synchronized int size() {
+		return mPresent;
+	}
+
+	/**
+	 * forget all peers, p2p is off.
+	 */
+	public synchronized void clear() {
+		mPeers.clear();
+		mPresent = 0;
+		mConnected = null;
+	}
+
+	private static List<WifiP2pDevice> add(List<WifiP2pDevice> list, WifiP2pDevice d) {
+		if (list == null) {
+			list = new ArrayList<WifiP2pDevice>(4);
+		}
+		list.add(d);
+		return list;
+	}
+
+	private static List<WifiP2pDevice> list(List<WifiP2pDevice> list) {
+		return list == null ? Collections.<WifiP2pDevice>emptyList() : Collections.unmodifiableList(list);
+	}
+
+	private static boolean same(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+}
@@ -0,0 +1,451 @@
+package com.colorcloud.wifichat;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * reliable delivery state for one peer. It outlives the socket connection, so messages written while the link
+ * flaps are kept and resent once the peer reconnects, and only the missing ones.
+ *
+ * Each side numbers the message rows it sends to the peer, starting at 1, and keeps the rows the peer has not
+ * acked yet in a bounded retransmit buffer. The receiver acks the highest sequence received without gap,
+ * every ACK_EVERY rows or ACK_DELAY ms after the last row. On a gap it sends a nack, and the sender goes
+ * back and resends everything after the acked sequence. The nack is repeated, on a further row past the gap
+ * or on a timer, every NACK_RETRY ms until the gap is filled, so a lost nack or resend can not stall the stream. The seq of a row travels in a small per peer frame in
+ * front of the data frame, queued together with it, so the data body can stay shared across the fan-out.
+ * Rows that fell out of the full retransmit buffer can not be resent: a resend that has to start past the
+ * peer's ack is led by a SKIP frame, and the peer counts the rows in between as lost and moves on.
+ *
+ *   SESSION  [type][epoch][your epoch][last recv][acked]   sent by both ends on connect, after the hello.
+ *   SEQ      [type][seq]                                  the seq of the data frame that follows.
+ *   ACK      [type][flags][seq]                           cumulative ack, flags NACK_FLAG on a gap.
+ *   SKIP     [type][seq]                                  the lowest seq the sender can still resend.
+ *
+ * The epoch is random per process. A peer whose epoch changed has restarted and lost its seq state; the receive
+ * side then restarts at the acked seq the peer announced, the send side resends all unacked rows.
+ *
+ * Connection loop thread only, except the static codec helpers.
+ */
+public class ReliableSession {
+
+	public static final byte FRAME_SESSION = 0x04;
+	public static final byte FRAME_SEQ = 0x05;
+	public static final byte FRAME_ACK = 0x06;
+	public static final byte FRAME_SKIP = 0x11;
+
+	public static final int NACK_FLAG = 0x01;
+
+	// data in results
+	public static final int DELIVER = 0;
+	public static final int DUPLICATE = 1;
+	public static final int GAP = 2;
+
+	// decoded session frame fields
+	public static final int SESSION_EPOCH = 0;
+	public static final int SESSION_YOUR_EPOCH = 1;
+	public static final int SESSION_LAST_RECV = 2;
+	public static final int SESSION_ACKED = 3;
+
+	/**
+	 * a sent row waiting for the peer's ack.
+	 */
+	static class Unacked {
+		final long mSeq;
+		final MessageRow mRow;
+		final long mSent;     // nanoTime when numbered, 0 while the session is not timed.
+
+		Unacked(long seq, MessageRow row, long sent) {
+			mSeq = seq;
+			mRow = row;
+			mSent = sent;
+		}
+	}
+
+	private final String mPeerKey;
+	private final int mMaxUnacked;
+	private final int mAckEvery;
+
+	// send side
+	private long mNextSeq = 1;
+	private long mAckedSeq = 0;
+	private final ArrayDeque<Unacked> mUnacked = new ArrayDeque<Unacked>();
+	private long mLostRows = 0;       // fell out of the full retransmit buffer before the peer acked.
+	private boolean mTimed = false;   // stamp rows for the ack latency metric.
+
+	// receive side
+	private long mPeerEpoch = 0;      // 0 until the first handshake.
+	private long mRecvSeq = 0;        // highest seq received without gap.
+	private long mAckSentSeq = 0;
+	private long mHighestSeen = 0;    // highest seq received, past mRecvSeq while there is a gap.
+	private long mNackAt = 0;         // when the last nack for the current gap went out, 0 if none.
+	private boolean mNackScheduled = false;
+	private boolean mAckScheduled = false;
+	private long mSkippedRows = 0;    // the peer could not resend them any more.
+
+	private PeerConnection mConn = null;     // current connection, null while the peer is away.
+	private boolean mEstablished = false;     // handshake done on mConn, rows go out sequenced.
+	private long mDetachedAt = 0;
+
+	public ReliableSession(String peerKey, int maxUnacked, int ackEvery) {
+		mPeerKey = peerKey;
+		mMaxUnacked = maxUnacked;
+		mAckEvery = ackEvery;
+	}
+
+	public String getPeerKey() {
+		return mPeerKey;
+	}
+
+	public PeerConnection getConn() {
+		return mConn;
+	}
+
+	public boolean isEstablished() {
+		return mEstablished;
+	}
+
+	/**
+	 * whether the peer ever completed a handshake, i.e. it is worth buffering rows while it is away.
+	 */
+	public boolean isKnownPeer() {
+		return mPeerEpoch != 0;
+	}
+
+	public long getAckedSeq() {
+		return mAckedSeq;
+	}
+
+	public long getRecvSeq() {
+		return mRecvSeq;
+	}
+
+	public int getUnackedCount() {
+		return mUnacked.size();
+	}
+
+	public long getLostRows() {
+		return mLostRows;
+	}
+
+	public long getSkippedRows() {
+		return mSkippedRows;
+	}
+
+	/**
+	 * the lowest seq still in the retransmit buffer, the next seq if it is empty.
+	 */
+	public long getFirstResendable() {
+		return mUnacked.isEmpty() ? mNextSeq : mUnacked.peekFirst().mSeq;
+	}
+
+	/**
+	 * the peer connected, rows are buffered until its session frame arrives.
+	 */
+	public void attach(PeerConnection conn) {
+		mConn = conn;
+		mEstablished = false;
+		conn.setSession(this);
+	}
+
+	/**
+	 * the connection broke, keep the state for the peer's return.
+	 */
+	public void detach(PeerConnection conn, long now) {
+		if (mConn == conn) {
+			mConn = null;
+			mEstablished = false;
+			mDetachedAt = now;
+		}
+	}
+
+	/**
+	 * whether the peer has been away longer than linger ms.
+	 */
+	public boolean isExpired(long now, long linger) {
+		return mConn == null && now - mDetachedAt > linger;
+	}
+
+	/**
+	 * number a row for sending and keep it until acked. Drops the oldest unacked row when the buffer is full.
+	 */
+	public long assignSeq(MessageRow row) {
+		long seq = mNextSeq++;
+		mUnacked.addLast(new Unacked(seq, row, mTimed ? System.nanoTime() : 0));
+		if (mUnacked.size() > mMaxUnacked) {
+			mUnacked.pollFirst();
+			mLostRows++;
+		}
+		return seq;
+	}
+
+	/**
+	 * the peer's session frame arrived on conn. Sync both directions and mark the session established.
+	 * The caller then resends unackedAfter(getAckedSeq()).
+	 */
+	public void onSession(PeerConnection conn, long myEpoch, long[] info) {
+		long theirEpoch = info[SESSION_EPOCH];
+		if (theirEpoch != mPeerEpoch) {
+			// new or restarted peer, its seq space starts after what it says we acked.
+			mPeerEpoch = theirEpoch;
+			mRecvSeq = info[SESSION_ACKED];
+			mAckSentSeq = mRecvSeq;
+			mHighestSeen = mRecvSeq;
+			mNackAt = 0;
+		}
+		if (info[SESSION_YOUR_EPOCH] == myEpoch) {
+			onAck(info[SESSION_LAST_RECV]);
+		}
+		mConn = conn;
+		mEstablished = true;
+	}
+
+	/**
+	 * time rows from numbering to ack, for the transport metrics.
+	 */
+	public void setTimed(boolean timed) {
+		mTimed = timed;
+	}
+
+	/**
+	 * cumulative ack from the peer, release everything up to seq.
+	 * @return micros from numbering the newest released row to its ack, -1 if not timed or nothing released.
+	 */
+	public long onAck(long seq) {
+		if (seq <= mAckedSeq) {
+			return -1;
+		}
+		mAckedSeq = Math.min(seq, mNextSeq - 1);
+		long sent = 0;
+		while (!mUnacked.isEmpty() && mUnacked.peekFirst().mSeq <= mAckedSeq) {
+			sent = mUnacked.pollFirst().mSent;
+		}
+		return sent > 0 ? (System.nanoTime() - sent) / 1000 : -1;
+	}
+
+	/**
+	 * the unacked rows after seq, in order, for resending.
+	 */
+	public Iterator<Unacked> unackedAfter(long seq) {
+		Iterator<Unacked> it = mUnacked.iterator();
+		ArrayDeque<Unacked> rows = new ArrayDeque<Unacked>();
+		while (it.hasNext()) {
+			Unacked u = it.next();
+			if (u.mSeq > seq) {
+				rows.addLast(u);
+			}
+		}
+		return rows.iterator();
+	}
+
+	/**
+	 * the peer turned out to not support sequencing, hand back the buffered rows to send plain.
+	 */
+	public Iterator<Unacked> drainUnacked() {
+		ArrayDeque<Unacked> rows = new ArrayDeque<Unacked>(mUnacked);
+		mUnacked.clear();
+		mAckedSeq = mNextSeq - 1;
+		return rows.iterator();
+	}
+
+	/**
+	 * a sequenced row arrived.
+	 * @return DELIVER for the next expected row, DUPLICATE for a row already delivered, GAP if rows are missing.
+	 */
+	public int onData(long seq) {
+		if (seq <= mRecvSeq) {
+			return DUPLICATE;
+		}
+		mHighestSeen = Math.max(mHighestSeen, seq);
+		if (seq > mRecvSeq + 1) {
+			return GAP;
+		}
+		mRecvSeq = seq;
+		mNackAt = 0;
+		return DELIVER;
+	}
+
+	/**
+	 * the peer can resend nothing before seq. Give up on the rows missing in front of it, the ack then moves
+	 * past them. @return the number of rows given up.
+	 */
+	public long onSkip(long seq) {
+		long skipped = seq - 1 - mRecvSeq;
+		if (skipped <= 0) {
+			return 0;
+		}
+		mRecvSeq = seq - 1;
+		mHighestSeen = Math.max(mHighestSeen, mRecvSeq);
+		mNackAt = 0;
+		mSkippedRows += skipped;
+		return skipped;
+	}
+
+	/**
+	 * whether enough rows arrived since the last ack to ack right away.
+	 */
+	public boolean isAckDue() {
+		return mRecvSeq - mAckSentSeq >= mAckEvery;
+	}
+
+	public boolean hasUnackedRecv() {
+		return mRecvSeq > mAckSentSeq;
+	}
+
+	/**
+	 * mark a delayed ack as scheduled. @return false if one is already pending.
+	 */
+	public boolean scheduleAck() {
+		if (mAckScheduled) {
+			return false;
+		}
+		mAckScheduled = true;
+		return true;
+	}
+
+	public void onAckTimer() {
+		mAckScheduled = false;
+	}
+
+	/**
+	 * build the ack frame body for the current receive state.
+	 */
+	public ByteBuffer ackBody() {
+		mAckSentSeq = mRecvSeq;
+		return encodeAck(mRecvSeq, false);
+	}
+
+	/**
+	 * whether rows past a gap arrived and the rows missing in front of them did not yet.
+	 */
+	public boolean hasGap() {
+		return mHighestSeen > mRecvSeq;
+	}
+
+	/**
+	 * build a nack for a gap, at most once per retry ms. @return null if the last nack for this gap is more recent.
+	 */
+	public ByteBuffer nackBody(long now, long retry) {
+		if (mNackAt != 0 && now - mNackAt < retry) {
+			return null;
+		}
+		mNackAt = now;
+		mAckSentSeq = mRecvSeq;
+		return encodeAck(mRecvSeq, true);
+	}
+
+	/**
+	 * mark a nack retry as scheduled. @return false if one is already pending.
+	 */
+	public boolean scheduleNack() {
+		if (mNackScheduled) {
+			return false;
+		}
+		mNackScheduled = true;
+		return true;
+	}
+
+	public void onNackTimer() {
+		mNackScheduled = false;
+	}
+
+	/**
+	 * our session frame body for the peer.
+	 */
+	public ByteBuffer sessionBody(long myEpoch) {
+		ByteBuffer body = ByteBuffer.allocate(1 + 4 * 10);
+		body.put(FRAME_SESSION);
+		MessageCodec.putVarLong(body, myEpoch);
+		MessageCodec.putVarLong(body, mPeerEpoch);
+		MessageCodec.putVarLong(body, mRecvSeq);
+		MessageCodec.putVarLong(body, mAckedSeq);
+		body.flip();
+		return body.asReadOnlyBuffer();
+	}
+
+	public static long[] decodeSession(ByteBuffer body) throws IOException {
+		try {
+			body.get();    // FRAME_SESSION
+			long[] info = new long[4];
+			for (int i = 0; i < info.length; i++) {
+				info[i] = MessageCodec.getVarLong(body);
+			}
+			return info;
+		} catch (BufferUnderflowException e) {
+			throw new IOException("truncated session frame");
+		}
+	}
+
+	public static ByteBuffer encodeAck(long seq, boolean nack) {
+		ByteBuffer body = ByteBuffer.allocate(2 + MessageCodec.varIntLength(seq));
+		body.put(FRAME_ACK);
+		body.put((byte)(nack ? NACK_FLAG : 0));
+		MessageCodec.putVarLong(body, seq);
+		body.flip();
+		return body.asReadOnlyBuffer();
+	}
+
+	/**
+	 * decode an ack frame. @return the acked seq, negative if the ack is a nack.
+	 */
+	public static long decodeAck(ByteBuffer body) throws IOException {
+		try {
+			body.get();    // FRAME_ACK
+			int flags = body.get();
+			long seq = MessageCodec.getVarLong(body);
+			return (flags & NACK_FLAG) != 0 ? -seq - 1 : seq;
+		} catch (BufferUnderflowException e) {
+			throw new IOException("truncated ack frame");
+		}
+	}
+
+	public static ByteBuffer encodeSkip(long seq) {
+		ByteBuffer body = ByteBuffer.allocate(1 + MessageCodec.varIntLength(seq));
+		body.put(FRAME_SKIP);
+		MessageCodec.putVarLong(body, seq);
+		body.flip();
+		return body.asReadOnlyBuffer();
+	}
+
+	public static long decodeSkip(ByteBuffer body) throws IOException {
+		try {
+			body.get();    // FRAME_SKIP
+			return MessageCodec.getVarLong(body);
+		} catch (BufferUnderflowException e) {
+			throw new IOException("truncated skip frame");
+		}
+	}
+
+	public static long decodeSeq(ByteBuffer body) throws IOException {
+		try {
+			body.get();    // FRAME_SEQ
+			return MessageCodec.getVarLong(body);
+		} catch (BufferUnderflowException e) {
+			throw new IOException("truncated seq frame");
+		}
+	}
+
+	/**
+	 * the per peer header of a sequenced data frame: a whole SEQ frame followed by the length header of the
+	 * data body. Queued as the header of the data frame, so the two can never be split by a queue drop.
+	 */
+	public static ByteBuffer encodeSeqHeader(int headerMode, long seq, int bodyLen) {
+		int seqlen = 1 + MessageCodec.varIntLength(seq);
+		ByteBuffer header = ByteBuffer.allocate(FrameDecoder.headerLength(headerMode, seqlen) + seqlen
+				+ FrameDecoder.headerLength(headerMode, bodyLen));
+		FrameDecoder.putHeader(headerMode, header, seqlen);
+		header.put(FRAME_SEQ);
+		MessageCodec.putVarLong(header, seq);
+		FrameDecoder.putHeader(headerMode, header, bodyLen);
+		header.flip();
+		return header;
+	}
+
+	@Override
+	public String toString() {
+		return "ReliableSession " + mPeerKey + " sent: " + (mNextSeq - 1) + " acked: " + mAckedSeq + " recv: " + mRecvSeq
+				+ (mLostRows > 0 ? " lost: " + mLostRows : "") + (mSkippedRows > 0 ? " skipped: " + mSkippedRows : "");
+	}
+}
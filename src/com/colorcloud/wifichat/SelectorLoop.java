@@ -0,0 +1,519 @@
+package com.colorcloud.wifichat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * the connection thread. It owns the selector and every channel on it, reads, decodes, relays and writes, and
+ * runs all of ConnectionManager's connection state, so the state needs no locks.
+ *
+ * Other threads hand work over with execute(), a lock-free multi producer queue drained by the loop, and one
+ * selector wakeup per batch. Delayed work, like the ack timer, runs from a timer queue on the loop.
+ *
+ * The selector monitors OP_ACCEPT, OP_CONNECT and OP_READ. OP_WRITE is only monitored while a peer has
+ * pending outbound frames, otherwise the always writable channel would spin the selector.
+ *
+ * When the selector fails, or keeps returning early with nothing selected (the epoll spin some devices have),
+ * the loop opens a new selector and moves every registered channel to it, with its interest ops and attachment,
+ * so no connection is lost to a selector restart.
+ * Decoded frames go straight to the connection manager as plain objects. A received row is relayed on this
+ * thread, then handed to the service once, to be stored and shown.
+ */
+public class SelectorLoop implements Runnable {
+	private static final String TAG = "PTP_SEL";
+
+	private static final long CALL_TIMEOUT = 10000;   // ms, max wait of a caller blocked in call().
+	private static final int SPIN_REBUILD_THRESHOLD = 512;   // early empty selects in a row before a rebuild.
+	private static final long REBUILD_RETRY_DELAY = 1000;    // ms, wait before another rebuild if one failed.
+	private static final int MAX_TASKS_PER_ROUND = 1024;    // then the channels get their turn.
+
+	/**
+	 * delayed task, ordered by due time, then by schedule order.
+	 */
+	private static class Timer implements Comparable<Timer> {
+		final long mDue;
+		final long mOrder;
+		final Runnable mTask;
+
+		Timer(long due, long order, Runnable task) {
+			mDue = due;
+			mOrder = order;
+			mTask = task;
+		}
+
+		@Override
+		public int compareTo(Timer other) {
+			if (mDue != other.mDue) {
+				return mDue < other.mDue ? -1 : 1;
+			}
+			return mOrder < other.mOrder ? -1 : (mOrder == other.mOrder ? 0 : 1);
+		}
+	}
+
+	private final ConnectionManager mConnMan;
+	private volatile Selector mSelector;
+	private final Thread mThread;
+	private volatile boolean mRunning = true;
+
+	// work handed over from other threads, and peers with newly queued frames.
+	private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<Runnable>();
+	private final ConcurrentLinkedQueue<PeerConnection> mPendingFlush = new ConcurrentLinkedQueue<PeerConnection>();
+	private final AtomicBoolean mWakeupPending = new AtomicBoolean(false);
+
+	// loop thread only
+	private final PriorityQueue<Timer> mTimers = new PriorityQueue<Timer>();
+	private long mTimerOrder = 0;
+	private int mEarlySelects = 0;    // selects in a row that returned early with nothing to do.
+	private int mRebuilds = 0;
+	private long mTaskCount = 0;
+	private PeerConnection mReadConn = null;    // the connection whose frames the frame handler gets.
+	private final FrameDecoder.FrameHandler mFrameHandler = new FrameDecoder.FrameHandler() {
+		@Override
+		public void onFrame(ByteBuffer frame) throws IOException {
+			onFrameIn(mReadConn, frame);
+		}
+	};
+
+	public SelectorLoop(ConnectionManager connman) throws IOException {
+		mConnMan = connman;
+		mSelector = Selector.open();
+		mThread = new Thread(this, TAG);
+	}
+
+	public void start() {
+		mThread.start();
+	}
+
+	/**
+	 * stop the loop, it closes the selector and every channel on it.
+	 */
+	public void shutdown() {
+		mRunning = false;
+		mSelector.wakeup();
+	}
+
+	/**
+	 * tasks run so far. Loop thread.
+	 */
+	public long getTaskCount() {
+		return mTaskCount;
+	}
+
+	/**
+	 * selector rebuilds so far. Loop thread.
+	 */
+	public int getRebuilds() {
+		return mRebuilds;
+	}
+
+	/**
+	 * the loop thread, it writes every outbound queue.
+	 */
+	public Thread getThread() {
+		return mThread;
+	}
+
+	/**
+	 * whether the caller runs on the loop thread.
+	 */
+	public boolean inLoop() {
+		return Thread.currentThread() == mThread;
+	}
+
+	/**
+	 * run the task on the loop thread, from any thread. Tasks run in the order they were handed over.
+	 */
+	public void execute(Runnable task) {
+		mTasks.offer(task);
+		wakeup();
+	}
+
+	/**
+	 * run the task on the loop thread and wait for its result, from a thread other than the loop.
+	 * @return the result, or fallback if the task failed or timed out.
+	 */
+	public <T> T call(Callable<T> task, T fallback) {
+		FutureTask<T> future = new FutureTask<T>(task);
+		execute(future);
+		try {
+			return future.get(CALL_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (Exception e) {
+			PTPLog.e(TAG, "call : task failed: " + e.toString());
+			return fallback;
+		}
+	}
+
+	/**
+	 * run the task on the loop thread after delay ms. Loop thread only.
+	 */
+	public void schedule(Runnable task, long delay) {
+		mTimers.add(new Timer(System.currentTimeMillis() + delay, mTimerOrder++, task));
+	}
+
+	/**
+	 * register a channel with the selector. Loop thread only.
+	 */
+	public SelectionKey register(SelectableChannel channel, int ops, Object attachment) throws IOException {
+		return channel.register(mSelector, ops, attachment);
+	}
+
+	/**
+	 * called from any thread after frames were queued for the peer. The loop thread does the write.
+	 */
+	public void requestFlush(PeerConnection conn) {
+		queueFlush(conn);
+		wakeup();
+	}
+
+	/**
+	 * like requestFlush without the selector wakeup, for fan-out to many peers followed by one wakeup().
+	 */
+	public void queueFlush(PeerConnection conn) {
+		mPendingFlush.offer(conn);
+	}
+
+	/**
+	 * wake the loop up, once for all the work handed over until it wakes. Costs nothing on the loop thread,
+	 * which looks at its queues before it selects again anyway.
+	 */
+	public void wakeup() {
+		if (!inLoop() && mWakeupPending.compareAndSet(false, true)) {
+			mSelector.wakeup();
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			select();
+		} finally {
+			closeAll();
+		}
+	}
+
+	private void select() {
+		boolean broken = false;
+		while (mRunning) {
+			if (broken) {
+				broken = !rebuild();
+				continue;
+			}
+			try {
+				int nselected;
+				if (mTasks.isEmpty()) {
+					long timeout = nextTimeout();
+					long start = System.currentTimeMillis();
+					nselected = mSelector.select(timeout);
+					if (isEarly(nselected, timeout, start) && ++mEarlySelects >= SPIN_REBUILD_THRESHOLD) {
+						PTPLog.e(TAG, "select : selector spins, returned early " + mEarlySelects + " times.");
+						broken = true;
+						continue;
+					}
+				} else {
+					nselected = mSelector.selectNow();    // tasks the loop handed to itself.
+				}
+				if (nselected > 0 || mWakeupPending.get()) {
+					mEarlySelects = 0;
+				}
+				mWakeupPending.set(false);    // work handed over from now on wakes the next select.
+				runTasks();
+				runTimers();
+				processPendingFlush();
+
+				// Get list of selection keys with pending events, and process it.
+				Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					// Get the selection key, and remove it from the list to indicate that it's being processed
+					SelectionKey selKey = keys.next();
+					keys.remove();
+					try {
+						processSelectionKey(selKey);  // process the selection key.
+					} catch (IOException e) {
+						PTPLog.e(TAG, "select : io exception in processing selector event: " + e.toString());
+						mConnMan.onKeyError(selKey);
+					}
+				}
+				processPendingFlush();    // frames the relay queued while reading.
+			} catch (Exception e) {  // catch all exception in select() and the following ops in mSelector.
+				PTPLog.e(TAG, "Exception in selector: " + e.toString());
+				broken = true;
+			}
+		}
+	}
+
+	/**
+	 * whether a select returned before its timeout with nothing selected, and nobody woke it up.
+	 */
+	private boolean isEarly(int nselected, long timeout, long start) {
+		if (nselected > 0 || mWakeupPending.get() || Thread.interrupted()) {
+			return false;
+		}
+		return timeout == 0 || System.currentTimeMillis() - start < timeout;
+	}
+
+	/**
+	 * replace the selector, moving every registered channel to the new one with its interest ops and attachment.
+	 * @return false if no new selector could be opened, the loop tries again later.
+	 */
+	private boolean rebuild() {
+		Selector fresh;
+		try {
+			fresh = Selector.open();
+		} catch (IOException e) {
+			PTPLog.e(TAG, "rebuild : can not open selector: " + e.toString());
+			try {
+				Thread.sleep(REBUILD_RETRY_DELAY);
+			} catch (InterruptedException ie) {
+				mRunning = false;
+			}
+			return false;
+		}
+		Selector old = mSelector;
+		int moved = 0;
+		for (SelectionKey key : old.keys()) {
+			try {
+				if (!key.isValid() || !key.channel().isOpen()) {
+					continue;
+				}
+				int ops = key.interestOps();
+				Object attachment = key.attachment();
+				key.cancel();
+				SelectionKey freshKey = key.channel().register(fresh, ops, attachment);
+				if (attachment instanceof PeerConnection) {
+					((PeerConnection)attachment).setKey(freshKey);
+				}
+				moved++;
+			} catch (Exception e) {
+				PTPLog.e(TAG, "rebuild : can not move channel: " + e.toString());
+			}
+		}
+		mSelector = fresh;
+		mEarlySelects = 0;
+		mRebuilds++;
+		try {
+			old.close();
+		} catch (Exception e) {
+			// closed.
+		}
+		PTPLog.e(TAG, "rebuild : selector rebuilt, channels moved: " + moved + " rebuilds: " + mRebuilds);
+		mConnMan.onSelectorError();
+		return true;
+	}
+
+	/**
+	 * ms until the next timer is due, 0 to block until woken up.
+	 */
+	private long nextTimeout() {
+		Timer next = mTimers.peek();
+		if (next == null) {
+			return 0;
+		}
+		return Math.max(1, next.mDue - System.currentTimeMillis());
+	}
+
+	/**
+	 * run the tasks handed over, at most MAX_TASKS_PER_ROUND, so a busy producer can not starve the channels.
+	 */
+	private void runTasks() {
+		for (int n = MAX_TASKS_PER_ROUND; n > 0; n--) {
+			Runnable task = mTasks.poll();
+			if (task == null) {
+				break;
+			}
+			mTaskCount++;
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				PTPLog.e(TAG, "runTasks : task failed: " + e.toString());
+			}
+		}
+	}
+
+	private void runTimers() {
+		long now = System.currentTimeMillis();
+		while (!mTimers.isEmpty() && mTimers.peek().mDue <= now) {
+			try {
+				mTimers.poll().mTask.run();
+			} catch (RuntimeException e) {
+				PTPLog.e(TAG, "runTimers : timer failed: " + e.toString());
+			}
+		}
+	}
+
+	/**
+	 * try to write out newly queued frames right away, OP_WRITE is registered only if the socket buffer is full.
+	 */
+	private void processPendingFlush() {
+		PeerConnection conn;
+		while ((conn = mPendingFlush.poll()) != null) {
+			if (conn.getKey() == null || !conn.getKey().isValid()) {
+				continue;
+			}
+			doWritable(conn);
+		}
+	}
+
+	/**
+	 * process the event popped to the selector
+	 */
+	private void processSelectionKey(SelectionKey selKey) throws IOException {
+		if (selKey.isValid() && selKey.isAcceptable()) {  // there is a connection to the server socket channel
+			ServerSocketChannel ssChannel = (ServerSocketChannel)selKey.channel();
+			SocketChannel sChannel = ssChannel.accept();  // accept the connect and get a new socket channel.
+			if (sChannel == null) {
+				return;
+			}
+			sChannel.configureBlocking(false);
+
+			// let the selector monitor read/write the accepted connections.
+			// the peer connection attached to the key holds partial frames and pending writes.
+			String peeraddr = sChannel.socket().getInetAddress().getHostAddress();
+			PeerConnection conn = mConnMan.createPeerConnection(sChannel, peeraddr);
+			conn.setKey(register(sChannel, SelectionKey.OP_READ, conn));
+			PTPLog.d(TAG, "processSelectionKey : accepted a client connection: " + peeraddr);
+			mConnMan.onNewClient(conn);
+		} else if (selKey.isValid() && selKey.isConnectable()) {   // client connect to server got the response.
+			mConnMan.onFinishConnect(selKey);
+		} else {
+			// we can retrieve the peer connection we attached earlier, so we know where the data is coming from
+			PeerConnection conn = (PeerConnection)selKey.attachment();
+			if (selKey.isValid() && selKey.isReadable()) {
+				readData(conn);
+			}
+			if (selKey.isValid() && selKey.isWritable()) {
+				// only selected while the peer has pending frames.
+				doWritable(conn);
+			}
+		}
+	}
+
+	/**
+	 * handle the writable event, or newly queued frames. Write as much as the socket takes.
+	 */
+	private void doWritable(PeerConnection conn) {
+		try {
+			conn.flush();
+		} catch (Exception e) {
+			PTPLog.e(TAG, "doWritable : exception: " + e.toString());
+			conn.getKey().cancel();
+			mConnMan.onBrokenConn(conn);
+		}
+	}
+
+	/**
+	 * read data when OP_READ event, dispatch every complete frame.
+	 * @return number of frames read, -1 when the channel is broken.
+	 */
+	private int readData(PeerConnection conn) {
+		int nframes = -1;
+		mReadConn = conn;
+		try {
+			nframes = conn.getDecoder().readFrames(conn.getChannel(), mFrameHandler);
+			if (nframes >= 0 && conn.getMetrics() != null) {
+				conn.getMetrics().onRead(nframes);
+			}
+			if (nframes == -1) {
+				// read -1 means socket channel is broken. remove it from the selector
+				PTPLog.e(TAG, "readData : channel closed due to read -1: " + conn.getPeerAddr());
+				mConnMan.onBrokenConn(conn);
+			}
+		} catch (Exception e) {
+			PTPLog.e(TAG, "readData : exception: " + e.toString());
+			mConnMan.onBrokenConn(conn);
+		} finally {
+			mReadConn = null;
+		}
+		return nframes;
+	}
+
+	/**
+	 * dispatch one complete frame body by its wire format, in stream order, to the connection manager.
+	 */
+	private void onFrameIn(PeerConnection conn, ByteBuffer frame) throws IOException {
+		MessageRow row = null;
+		switch (MessageCodec.frameType(frame)) {
+		case MessageCodec.FRAME_JSON:
+			row = MessageCodec.decodeJson(frame);
+			break;
+		case MessageCodec.FRAME_MSG:
+			row = conn.getMessageDecoder().decode(frame);
+			break;
+		case MessageCodec.FRAME_SENDERS:
+			conn.getMessageDecoder().decodeSenderTable(frame);
+			break;
+		case MessageCodec.FRAME_HELLO:
+			mConnMan.onPeerHello(conn, MessageCodec.decodeHello(frame), MessageCodec.decodeHelloCaps(frame));
+			break;
+		case ReliableSession.FRAME_SEQ:
+			conn.setInSeq(ReliableSession.decodeSeq(frame));   // applies to the data frame right after it.
+			break;
+		case ReliableSession.FRAME_SESSION:
+			mConnMan.onPeerSession(conn, ReliableSession.decodeSession(frame));
+			break;
+		case ReliableSession.FRAME_ACK:
+			mConnMan.onPeerAck(conn, ReliableSession.decodeAck(frame));
+			break;
+		case ReliableSession.FRAME_SKIP:
+			mConnMan.onPeerSkip(conn, ReliableSession.decodeSkip(frame));
+			break;
+		case MeshRouter.FRAME_MESH:
+			conn.setInMesh(MeshRouter.decodeEnvelope(frame));   // applies to the data frame right after it.
+			break;
+		case MeshRouter.FRAME_ROUTES:
+			mConnMan.onMeshRoutes(conn, MeshRouter.decodeRoutes(frame));
+			break;
+		case StreamMux.FRAME_STREAM_OPEN:
+		case StreamMux.FRAME_STREAM_DATA:
+		case StreamMux.FRAME_STREAM_WINDOW:
+		case StreamMux.FRAME_STREAM_CLOSE:
+		case StreamMux.FRAME_STREAM_RESET:
+		case StreamMux.FRAME_STREAM_HAVE:
+		case StreamMux.FRAME_STREAM_RESUME:
+			mConnMan.getStreamMux().onFrame(conn, frame);   // file data goes to disk right here.
+			break;
+		case FrameCompressor.FRAME_DEFLATE:
+			ByteBuffer inner = conn.getCompressor().inflate(frame);
+			if (MessageCodec.frameType(inner) == FrameCompressor.FRAME_DEFLATE) {
+				throw new IOException("nested deflate frame from " + conn.getPeerAddr());
+			}
+			onFrameIn(conn, inner);
+			return;
+		default:
+			PTPLog.e(TAG, "onFrameIn : unknown frame type: " + MessageCodec.frameType(frame) + " from " + conn.getPeerAddr());
+			break;
+		}
+		if (row != null) {
+			long seq = conn.takeInSeq();
+			conn.takeInMesh(row);
+			mConnMan.onRowIn(conn, row, seq);
+		}
+	}
+
+	private void closeAll() {
+		for (SelectionKey key : mSelector.keys()) {
+			try {
+				key.channel().close();
+			} catch (IOException e) {
+				// closed.
+			}
+		}
+		try {
+			mSelector.close();
+		} catch (IOException e) {
+			// closed.
+		}
+	}
+}
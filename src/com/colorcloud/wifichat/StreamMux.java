@@ -0,0 +1,1040 @@
+package com.colorcloud.wifichat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * logical file streams multiplexed over the chat connections, next to the chat frames.
+ *
+ *   OPEN    [type][id][size][origin][target][name][hash][flags]   sender opens a stream, strings are varint len +
+ *                                                              utf8, the content hash is optional, varint len +
+ *                                                              bytes, the flags only go to CAP_RESUME peers, with
+ *                                                              an empty hash if there is none.
+ *   DATA    [type][id][bytes]                        at most DATA_CHUNK bytes, never more than the window.
+ *   WINDOW  [type][id][credit]                       receiver grants credit bytes.
+ *   CLOSE   [type][id][status]                       sender is done, status 0 ok.
+ *   RESET   [type][id]                               receiver aborts the stream.
+ *   HAVE    [type][id]                               receiver has the content of an offer, nothing to send.
+ *   RESUME  [type][id][offset]                       receiver has the first offset bytes, the data starts there.
+ *
+ * A stream id belongs to the side that opened it; OPEN, DATA and CLOSE carry the sender's id, WINDOW, RESET and
+ * HAVE the id of the stream they answer. Every stream starts with INITIAL_WINDOW bytes of credit, the receiver
+ * gives credit back as it writes the data out, so a stream never has more than a window in flight.
+ *
+ * A file to a peer whose hello announced CAP_ATTACH is an offer: the OPEN carries the sha-256 of the content
+ * and the stream starts without credit. A receiver that finds the content in its AttachmentStore answers HAVE
+ * and the stream ends there, otherwise it answers with the initial window, the need, and the data flows.
+ * Received offers are checked against their hash and land in the store, once per content.
+ *
+ * A stream to a peer whose hello announced CAP_RESUME is opened with OPEN_RESUME and, like an offer, starts without
+ * credit. A receiver that kept the partial file of the same stream from a connection that dropped answers RESUME
+ * with the bytes it has, then the initial window. Partial files are named after the stream, the content hash of
+ * an offer or the origin, name and size of a plain file, so the same file sent again picks up where it stopped.
+ * They are kept when the connection drops and deleted when the stream is aborted.
+ *
+ * Stream frames are not queued on the connection's outbound queue. The connection pulls them from its
+ * FrameSource, one frame at a time, only when its chat frames are written out. A chat message waits behind at
+ * most one data frame however many files are moving, and the streams of a connection take turns.
+ *
+ * The group owner relays a stream whose target is another client: it opens a stream to the target and forwards
+ * the data, and gives credit upstream only when the data left for the target. So it holds at most one window
+ * per relayed stream, never a whole file. An offer is relayed as an offer, the target's answer goes back
+ * upstream, and one without CAP_ATTACH gets the data.
+ *
+ * All state is guarded by the mux lock. Frames are handled on the selector thread, other threads only open streams.
+ * No disk work runs there, so a slow disk never stalls the chat frames. The read ahead and the hash of sent files
+ * run on the mux reader thread. Received files are opened, written, checked and stored, and their parts deleted,
+ * on the mux writer thread, in frame order; a chunk's credit goes back only once it is written, so the window
+ * still bounds what is buffered. The file state of a received stream belongs to the writer thread.
+ */
+public class StreamMux {
+
+	public static final byte FRAME_STREAM_OPEN = 0x07;
+	public static final byte FRAME_STREAM_DATA = 0x08;
+	public static final byte FRAME_STREAM_WINDOW = 0x09;
+	public static final byte FRAME_STREAM_CLOSE = 0x0A;
+	public static final byte FRAME_STREAM_RESET = 0x0B;
+	public static final byte FRAME_STREAM_HAVE = 0x0E;
+	public static final byte FRAME_STREAM_RESUME = 0x10;
+
+	public static final int DATA_CHUNK = 16*1024;
+	public static final int INITIAL_WINDOW = 128*1024;
+	private static final int STATUS_OK = 0;
+	private static final int STATUS_ABORT = 1;
+	private static final int OPEN_RESUME = 0x01;              // open flags: the sender waits for RESUME or WINDOW.
+	private static final int READ_BLOCK = 64*1024;            // file read ahead, per read.
+	private static final int READ_AHEAD = INITIAL_WINDOW;     // file read ahead, max buffered per stream.
+	private static final String PART_SUFFIX = ".part";
+	private static final String TAG = "PTP_MUX";
+
+	/**
+	 * what the mux needs from the connection layer.
+	 */
+	public interface Callback {
+		/** the connection has stream frames to write. Any thread. */
+		void requestFlush(PeerConnection conn);
+		/** a file stream completed, or an offer found its content stored. Writer thread, mux lock held. */
+		void onFileReceived(String origin, String name, File file);
+		/** a stream was aborted. Any mux thread, mux lock held. */
+		void onStreamFailed(String peer, String name);
+	}
+
+	/**
+	 * a stream we send on a connection.
+	 */
+	abstract class OutStream {
+		final int mId;
+		final PeerConnection mConn;
+		final String mName;
+		long mWindow = INITIAL_WINDOW;
+		byte[] mHash = null;         // content hash of an offer, waits for HAVE or credit.
+		boolean mAwaiting = false;   // no data before the receiver answers.
+		boolean mResumable = false;  // the receiver may answer RESUME.
+
+		OutStream(ConnStreams cs, String name) {
+			mId = cs.mNextId++;
+			mConn = cs.mConn;
+			mName = name;
+		}
+
+		/**
+		 * turn the stream into an offer of the content, no data before the receiver answers.
+		 */
+		void offer(byte[] hash) {
+			mHash = hash;
+			mAwaiting = true;
+			mWindow = 0;
+		}
+
+		/**
+		 * let the receiver resume the stream from a partial file, no data before it answers.
+		 */
+		void resumable() {
+			mResumable = true;
+			mAwaiting = true;
+			mWindow = 0;
+		}
+
+		/** fill dst with up to max bytes. @return bytes put, 0 if none ready, -1 at end of data. */
+		abstract int read(ByteBuffer dst, int max) throws IOException;
+
+		/** the receiver has the first offset bytes, start the data there. Before any data. */
+		abstract void skip(long offset);
+
+		/** the stream left the connection, done or aborted. */
+		abstract void release(boolean ok);
+	}
+
+	/**
+	 * a local file sent to the peer. The reader thread reads ahead of the connection, the selector thread only
+	 * copies out what was read.
+	 */
+	class FileOutStream extends OutStream {
+		private final FileChannel mSource;
+		private final long mSize;
+		private long mPos = 0;                 // next file byte to read ahead.
+		private final ArrayDeque<ByteBuffer> mReady = new ArrayDeque<ByteBuffer>();
+		private int mReadyBytes = 0;
+		private boolean mReading = false;      // a read ahead is on the reader thread.
+		private boolean mReleased = false;
+
+		FileOutStream(ConnStreams cs, FileChannel source, long size, String name) {
+			super(cs, name);
+			mSource = source;
+			mSize = size;
+		}
+
+		@Override
+		int read(ByteBuffer dst, int max) {
+			ByteBuffer head = mReady.peekFirst();
+			if (head == null) {
+				if (mPos >= mSize && !mReading) {
+					return -1;
+				}
+				readAhead();
+				return 0;      // pulled again once the read is done.
+			}
+			int n = Math.min(max, head.remaining());
+			int limit = head.limit();
+			head.limit(head.position() + n);
+			dst.put(head);
+			head.limit(limit);
+			if (!head.hasRemaining()) {
+				mReady.pollFirst();
+			}
+			mReadyBytes -= n;
+			readAhead();
+			return n;
+		}
+
+		@Override
+		void skip(long offset) {
+			mPos = offset;
+		}
+
+		/**
+		 * read the next block on the reader thread, unless one is in flight or enough is buffered. Mux lock held.
+		 */
+		private void readAhead() {
+			if (mReading || mReleased || mPos >= mSize || mReadyBytes >= READ_AHEAD) {
+				return;
+			}
+			mReading = true;
+			final long pos = mPos;
+			final int len = (int)Math.min(READ_BLOCK, mSize - pos);
+			reader().execute(new Runnable() {
+				@Override
+				public void run() {
+					readBlock(pos, len);
+				}
+			});
+		}
+
+		/**
+		 * reader thread, outside the mux lock.
+		 */
+		private void readBlock(long pos, int len) {
+			ByteBuffer block = ByteBuffer.allocate(len);
+			IOException error = null;
+			try {
+				while (block.hasRemaining()) {
+					if (mSource.read(block, pos + block.position()) < 0) {
+						throw new IOException("file shrank while sending: " + mName);
+					}
+				}
+			} catch (IOException e) {
+				error = e;
+			}
+			block.flip();
+			synchronized (StreamMux.this) {
+				mReading = false;
+				if (mReleased) {
+					return;
+				}
+				if (error != null) {
+					PTPLog.e(TAG, "readBlock : " + mName + " : " + error.toString());
+					abortOut(this);
+					return;
+				}
+				mReady.addLast(block);
+				mReadyBytes += len;
+				mPos = pos + len;
+				mCallback.requestFlush(mConn);
+			}
+		}
+
+		@Override
+		void release(boolean ok) {
+			mReleased = true;
+			mReady.clear();
+			try {
+				mSource.close();
+			} catch (IOException e) {
+				// closed.
+			}
+		}
+	}
+
+	/**
+	 * the group owner's leg of a relayed stream, fed by the upstream InStream.
+	 */
+	class RelayOutStream extends OutStream {
+		private final ArrayDeque<ByteBuffer> mData = new ArrayDeque<ByteBuffer>();
+		private InStream mUpstream;
+		private boolean mEnd = false;
+
+		RelayOutStream(ConnStreams cs, String name) {
+			super(cs, name);
+		}
+
+		@Override
+		int read(ByteBuffer dst, int max) {
+			ByteBuffer head = mData.peekFirst();
+			if (head == null) {
+				return mEnd ? -1 : 0;
+			}
+			int n = Math.min(max, head.remaining());
+			int limit = head.limit();
+			head.limit(head.position() + n);
+			dst.put(head);
+			head.limit(limit);
+			if (!head.hasRemaining()) {
+				mData.pollFirst();
+			}
+			mUpstream.grant(n);     // the bytes left us, the sender may send more.
+			return n;
+		}
+
+		@Override
+		void skip(long offset) {
+			// the sender upstream waits for the answer too, it starts at the offset.
+			mUpstream.mReceived = offset;
+			mUpstream.mCs.queueControl(control(FRAME_STREAM_RESUME, mUpstream.mId, offset));
+		}
+
+		@Override
+		void release(boolean ok) {
+			mData.clear();
+			if (!ok && mUpstream != null) {
+				mUpstream.abort();
+			}
+		}
+	}
+
+	/**
+	 * a stream the peer sends us, written to a file, or relayed on to another client.
+	 */
+	class InStream {
+		final int mId;
+		final ConnStreams mCs;
+		final String mOrigin;
+		final String mName;
+		final long mSize;
+		long mReceived = 0;
+		long mConsumed = 0;          // bytes written out since the last credit.
+		RelayOutStream mRelay;
+		// writer thread only
+		byte[] mHash;                // content hash of an offer, checked at close.
+		MessageDigest mDigest;
+		FileChannel mFile;           // null until opened, or if the open failed.
+		File mPartFile;
+		boolean mResumable = false;  // the part file is named after the stream, kept when the connection drops.
+		boolean mFailed = false;     // a write failed, the stream is aborted.
+
+		InStream(ConnStreams cs, int id, String origin, String name, long size) {
+			mId = id;
+			mCs = cs;
+			mOrigin = origin;
+			mName = name;
+			mSize = size;
+		}
+
+		/**
+		 * give credit back once half a window is consumed, fewer window frames.
+		 */
+		void grant(int n) {
+			mConsumed += n;
+			if (mConsumed >= INITIAL_WINDOW / 2 || mReceived == mSize) {
+				mCs.queueControl(control(FRAME_STREAM_WINDOW, mId, mConsumed));
+				mConsumed = 0;
+			}
+		}
+
+		void abort() {
+			if (mCs.mIn.remove(mId) != null) {
+				mCs.queueControl(control(FRAME_STREAM_RESET, mId, -1));
+				release(false);
+			}
+		}
+
+		void release(boolean ok) {
+			release(ok, false);
+		}
+
+		/**
+		 * @param keepPart keep a resumable partial file, the connection dropped.
+		 */
+		void release(final boolean ok, final boolean keepPart) {
+			if (mRelay == null) {
+				writer().execute(new Runnable() {
+					@Override
+					public void run() {
+						closeFile(!ok && !(keepPart && mResumable));
+					}
+				});
+			} else if (!ok) {
+				abortOut(mRelay);
+			}
+			if (!ok) {
+				mCallback.onStreamFailed(mOrigin, mName);
+			}
+		}
+
+		/**
+		 * close the part file, and delete it. Writer thread.
+		 */
+		void closeFile(boolean delete) {
+			if (mFile != null) {
+				try {
+					mFile.close();
+				} catch (IOException e) {
+					// closed.
+				}
+				mFile = null;
+			}
+			if (mPartFile == null) {
+				return;
+			}
+			synchronized (StreamMux.this) {
+				mOpenParts.remove(mPartFile);
+			}
+			if (delete) {
+				mPartFile.delete();
+			}
+		}
+
+		/**
+		 * a writer task failed, abort the stream unless it is gone already. Writer thread.
+		 */
+		void fail(IOException e) {
+			PTPLog.e(TAG, "receive " + mName + " : " + e.toString());
+			mFailed = true;
+			synchronized (StreamMux.this) {
+				abort();
+			}
+		}
+	}
+
+	/**
+	 * the streams of one connection, and the frame source the connection pulls from.
+	 */
+	class ConnStreams implements PeerConnection.FrameSource {
+		final PeerConnection mConn;
+		int mNextId = 1;
+		final Map<Integer, OutStream> mOut = new HashMap<Integer, OutStream>();
+		final Map<Integer, InStream> mIn = new HashMap<Integer, InStream>();
+		final ArrayDeque<OutStream> mActive = new ArrayDeque<OutStream>();    // round robin
+		final ArrayDeque<ByteBuffer> mControl = new ArrayDeque<ByteBuffer>();
+		final ByteBuffer mDataBody = ByteBuffer.allocate(1 + 5 + DATA_CHUNK);   // reused, written before the next pull.
+		final ByteBuffer mDataHeader = ByteBuffer.allocate(5);
+
+		ConnStreams(PeerConnection conn) {
+			mConn = conn;
+		}
+
+		void queueControl(ByteBuffer body) {
+			mControl.addLast(body);
+			mCallback.requestFlush(mConn);
+		}
+
+		@Override
+		public boolean nextFrame(ByteBuffer[] frame) throws IOException {
+			synchronized (StreamMux.this) {
+				ByteBuffer ctl = mControl.pollFirst();
+				if (ctl != null) {
+					frame[0] = FrameDecoder.encodeHeader(mHeaderMode, ctl.remaining());
+					frame[1] = ctl;
+					return true;
+				}
+				for (int i = 0, n = mActive.size(); i < n; i++) {
+					OutStream s = mActive.pollFirst();
+					if (s.mWindow <= 0) {
+						mActive.addLast(s);
+						continue;
+					}
+					mDataBody.clear();
+					mDataBody.put(FRAME_STREAM_DATA);
+					MessageCodec.putVarLong(mDataBody, s.mId);
+					int len = s.read(mDataBody, (int)Math.min(s.mWindow, DATA_CHUNK));
+					if (len < 0) {
+						finishOut(s);     // queues the close, sent on the next pull.
+						return nextFrame(frame);
+					}
+					mActive.addLast(s);
+					if (len == 0) {
+						continue;
+					}
+					s.mWindow -= len;
+					mDataBody.flip();
+					mDataHeader.clear();
+					FrameDecoder.putHeader(mHeaderMode, mDataHeader, mDataBody.remaining());
+					mDataHeader.flip();
+					frame[0] = mDataHeader;
+					frame[1] = mDataBody;
+					return true;
+				}
+				return false;
+			}
+		}
+	}
+
+	private final int mHeaderMode;
+	private final File mReceiveDir;
+	private final AttachmentStore mStore;     // null, offers are received like plain files.
+	private final Callback mCallback;
+	private final Map<PeerConnection, ConnStreams> mConns = new IdentityHashMap<PeerConnection, ConnStreams>();
+	private final Map<String, PeerConnection> mPeers = new HashMap<String, PeerConnection>();   // relay targets by addr
+	private final Set<File> mOpenParts = new HashSet<File>();    // part files of streams in progress.
+	private ExecutorService mReader = null;
+	private ExecutorService mWriter = null;
+
+	public StreamMux(int headerMode, File receiveDir, AttachmentStore store, Callback callback) {
+		mHeaderMode = headerMode;
+		mReceiveDir = receiveDir;
+		mStore = store;
+		mCallback = callback;
+	}
+
+	/**
+	 * the reader thread, started on first use. Mux lock held.
+	 */
+	private ExecutorService reader() {
+		if (mReader == null) {
+			mReader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "StreamMuxReader");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return mReader;
+	}
+
+	/**
+	 * the writer thread, started on first use. Mux lock held.
+	 */
+	private ExecutorService writer() {
+		if (mWriter == null) {
+			mWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "StreamMuxWriter");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return mWriter;
+	}
+
+	/**
+	 * stop the reader and writer threads, after the connections are detached. The writer finishes closing
+	 * the part files first.
+	 */
+	public synchronized void shutdown() {
+		if (mReader != null) {
+			mReader.shutdownNow();
+			mReader = null;
+		}
+		if (mWriter != null) {
+			mWriter.shutdown();
+			mWriter = null;
+		}
+	}
+
+	/**
+	 * a new connection, returns the frame source to install on it.
+	 */
+	public synchronized PeerConnection.FrameSource attach(PeerConnection conn) {
+		ConnStreams cs = new ConnStreams(conn);
+		mConns.put(conn, cs);
+		mPeers.put(conn.getPeerAddr(), conn);
+		return cs;
+	}
+
+	/**
+	 * the connection is gone, abort its streams and the relay legs that depend on them.
+	 */
+	public synchronized void detach(PeerConnection conn) {
+		ConnStreams cs = mConns.remove(conn);
+		if (cs == null) {
+			return;
+		}
+		if (mPeers.get(conn.getPeerAddr()) == conn) {
+			mPeers.remove(conn.getPeerAddr());
+		}
+		// releasing a relay leg touches the maps of the other connection, and may come back to these.
+		ArrayList<OutStream> outs = new ArrayList<OutStream>(cs.mOut.values());
+		ArrayList<InStream> ins = new ArrayList<InStream>(cs.mIn.values());
+		cs.mOut.clear();
+		cs.mIn.clear();
+		cs.mActive.clear();
+		for (OutStream s : outs) {
+			s.release(false);
+		}
+		for (InStream s : ins) {
+			s.release(false, true);
+		}
+	}
+
+	/**
+	 * send a file on a connection. The target is the address of another client the group owner relays to,
+	 * null for the peer itself. With offer, a peer that speaks attachments is offered the file by its content hash
+	 * first and gets the bytes only if it does not have them. The hash is taken on the reader thread, the stream
+	 * opens after it. The mux closes the source when the stream ends.
+	 * @return false if the connection is not attached.
+	 */
+	public synchronized boolean sendFile(final PeerConnection conn, final FileChannel source, final long size, final String name, final String target, boolean offer) {
+		final ConnStreams cs = mConns.get(conn);
+		if (cs == null) {
+			return false;
+		}
+		if (!offer || !conn.isAttachCapable()) {
+			openFile(cs, source, size, name, target, null);
+			return true;
+		}
+		reader().execute(new Runnable() {
+			@Override
+			public void run() {
+				byte[] hash = null;
+				try {
+					hash = AttachmentStore.hash(source, size);
+				} catch (IOException e) {
+					PTPLog.e(TAG, "sendFile : hash " + name + " : " + e.toString());    // sent without the offer.
+				}
+				synchronized (StreamMux.this) {
+					if (mConns.get(conn) != cs) {
+						PTPLog.d(TAG, "sendFile : connection gone while hashing: " + name);
+						try {
+							source.close();
+						} catch (IOException e) {
+							// closed.
+						}
+						return;
+					}
+					openFile(cs, source, size, name, target, hash);
+				}
+			}
+		});
+		return true;
+	}
+
+	private void openFile(ConnStreams cs, FileChannel source, long size, String name, String target, byte[] hash) {
+		OutStream s = new FileOutStream(cs, source, size, name);
+		if (hash != null) {
+			s.offer(hash);
+		}
+		if (cs.mConn.isResumeCapable()) {
+			s.resumable();
+		}
+		openOut(cs, s, size, "", target == null ? "" : target);
+	}
+
+	private void openOut(ConnStreams cs, OutStream s, long size, String origin, String target) {
+		int hashLen = s.mHash != null ? 5 + s.mHash.length : 0;
+		ByteBuffer open = ByteBuffer.allocate(1 + 5 + 10 + 3 * 5 + utf8Len(origin) + utf8Len(target) + utf8Len(s.mName) + hashLen + 1 + 5);
+		open.put(FRAME_STREAM_OPEN);
+		MessageCodec.putVarLong(open, s.mId);
+		MessageCodec.putVarLong(open, size);
+		putString(open, origin);
+		putString(open, target);
+		putString(open, s.mName);
+		if (s.mHash != null) {
+			MessageCodec.putVarLong(open, s.mHash.length);
+			open.put(s.mHash);
+		} else if (cs.mConn.isResumeCapable()) {
+			MessageCodec.putVarLong(open, 0);
+		}
+		if (cs.mConn.isResumeCapable()) {
+			MessageCodec.putVarLong(open, s.mResumable ? OPEN_RESUME : 0);
+		}
+		open.flip();
+		cs.mOut.put(s.mId, s);
+		cs.mControl.addLast(open);     // OPEN goes out before the first DATA of the stream.
+		cs.mActive.addLast(s);
+		mCallback.requestFlush(cs.mConn);
+	}
+
+	private void finishOut(OutStream s) {
+		ConnStreams cs = mConns.get(s.mConn);
+		cs.mActive.remove(s);
+		cs.mOut.remove(s.mId);
+		cs.mControl.addLast(control(FRAME_STREAM_CLOSE, s.mId, STATUS_OK));
+		s.release(true);
+	}
+
+	private void abortOut(OutStream s) {
+		ConnStreams cs = mConns.get(s.mConn);
+		if (cs == null || cs.mOut.remove(s.mId) == null) {
+			return;
+		}
+		cs.mActive.remove(s);
+		cs.queueControl(control(FRAME_STREAM_CLOSE, s.mId, STATUS_ABORT));
+		s.release(false);
+	}
+
+	/**
+	 * a stream frame from the peer. Selector thread.
+	 */
+	public synchronized void onFrame(PeerConnection conn, ByteBuffer body) throws IOException {
+		ConnStreams cs = mConns.get(conn);
+		if (cs == null) {
+			return;
+		}
+		try {
+			byte type = body.get();
+			int id = (int)MessageCodec.getVarLong(body);
+			switch (type) {
+			case FRAME_STREAM_OPEN:
+				onOpen(cs, id, body);
+				break;
+			case FRAME_STREAM_DATA:
+				onData(cs, id, body);
+				break;
+			case FRAME_STREAM_WINDOW:
+				OutStream out = cs.mOut.get(id);
+				if (out != null) {
+					if (out.mAwaiting) {
+						onNeed(out);
+					}
+					out.mWindow += MessageCodec.getVarLong(body);
+					mCallback.requestFlush(conn);
+				}
+				break;
+			case FRAME_STREAM_HAVE:
+				OutStream had = cs.mOut.remove(id);
+				if (had != null) {
+					cs.mActive.remove(had);
+					onHave(had);
+				}
+				break;
+			case FRAME_STREAM_RESUME:
+				OutStream resumed = cs.mOut.get(id);
+				if (resumed != null) {
+					onResume(resumed, MessageCodec.getVarLong(body));
+				}
+				break;
+			case FRAME_STREAM_CLOSE:
+				onClose(cs, id, (int)MessageCodec.getVarLong(body));
+				break;
+			case FRAME_STREAM_RESET:
+				OutStream reset = cs.mOut.remove(id);
+				if (reset != null) {
+					cs.mActive.remove(reset);
+					reset.release(false);
+				}
+				break;
+			default:
+				break;
+			}
+		} catch (BufferUnderflowException e) {
+			throw new IOException("truncated stream frame from " + conn.getPeerAddr());
+		}
+	}
+
+	/**
+	 * the receiver wants the offered content. A relay leg passes the need upstream, with the initial window
+	 * the upstream sender held back.
+	 */
+	private void onNeed(OutStream out) {
+		out.mHash = null;
+		out.mAwaiting = false;
+		if (out instanceof RelayOutStream) {
+			InStream up = ((RelayOutStream)out).mUpstream;
+			up.mCs.queueControl(control(FRAME_STREAM_WINDOW, up.mId, INITIAL_WINDOW));
+		}
+	}
+
+	/**
+	 * the receiver has the offered content, the stream ends without data. A relay leg passes it upstream.
+	 */
+	private void onHave(OutStream out) {
+		if (out instanceof RelayOutStream) {
+			InStream up = ((RelayOutStream)out).mUpstream;
+			if (up.mCs.mIn.remove(up.mId) != null) {
+				up.mCs.queueControl(control(FRAME_STREAM_HAVE, up.mId, -1));
+			}
+		}
+		out.release(true);
+	}
+
+	/**
+	 * the receiver has the first offset bytes of a resumable stream, the credit follows.
+	 */
+	private void onResume(OutStream out, long offset) {
+		if (!out.mResumable || !out.mAwaiting || offset < 0) {
+			abortOut(out);
+			return;
+		}
+		out.skip(offset);
+	}
+
+	private void onOpen(ConnStreams cs, int id, ByteBuffer body) throws IOException {
+		long size = MessageCodec.getVarLong(body);
+		String origin = getString(body);
+		String target = getString(body);
+		String name = getString(body);
+		byte[] hash = body.hasRemaining() ? getBytes(body) : null;
+		int flags = body.hasRemaining() ? (int)MessageCodec.getVarLong(body) : 0;
+		if (hash != null && hash.length == 0) {
+			hash = null;
+		}
+		boolean resumable = (flags & OPEN_RESUME) != 0;
+		boolean awaits = hash != null || resumable;     // the sender waits for our answer.
+		if (origin.length() == 0) {
+			origin = cs.mConn.getPeerAddr();
+		}
+		InStream in = new InStream(cs, id, origin, name, size);
+		if (target.length() > 0) {
+			// relay leg to another client, the data goes through memory, one window at a time.
+			PeerConnection targetConn = mPeers.get(target);
+			ConnStreams tcs = targetConn == null ? null : mConns.get(targetConn);
+			if (tcs == null) {
+				cs.queueControl(control(FRAME_STREAM_RESET, id, -1));
+				return;
+			}
+			RelayOutStream relay = new RelayOutStream(tcs, name);
+			relay.mUpstream = in;
+			in.mRelay = relay;
+			cs.mIn.put(id, in);
+			if (hash != null && targetConn.isAttachCapable()) {
+				relay.offer(hash);      // the target answers the offer.
+			}
+			if (resumable && targetConn.isResumeCapable()) {
+				relay.resumable();      // the target's RESUME goes upstream.
+			}
+			openOut(tcs, relay, size, origin, "");
+			if (awaits && !relay.mAwaiting) {
+				cs.queueControl(control(FRAME_STREAM_WINDOW, id, INITIAL_WINDOW));
+			}
+			return;
+		}
+		// the data of a sender that does not wait queues behind the open on the writer.
+		cs.mIn.put(id, in);
+		openFile(in, hash, resumable, awaits);
+	}
+
+	/**
+	 * open the part file of a received stream on the writer thread. An offer whose content is in the store
+	 * ends with HAVE. A stream that waits for us is answered once the file is open, a resumed offer after the
+	 * hash of its partial file is taken.
+	 */
+	private void openFile(final InStream in, final byte[] hash, final boolean resumable, final boolean awaits) {
+		writer().execute(new Runnable() {
+			@Override
+			public void run() {
+				File dir;
+				String part;
+				if (hash != null && mStore != null) {
+					File blob = mStore.get(hash, in.mSize);
+					if (blob != null) {
+						synchronized (StreamMux.this) {
+							if (in.mCs.mIn.remove(in.mId) == in) {
+								in.mCs.queueControl(control(FRAME_STREAM_HAVE, in.mId, -1));
+								mCallback.onFileReceived(in.mOrigin, in.mName, blob);
+							}
+						}
+						return;
+					}
+					in.mHash = hash;
+					in.mDigest = AttachmentStore.newDigest();
+					dir = mStore.getDir();
+					part = AttachmentStore.toHex(hash);
+				} else {
+					dir = mReceiveDir;
+					part = Long.toHexString(FileTransferEngine.transferId(in.mOrigin + "/" + in.mName, in.mSize, new byte[0]));
+				}
+				long offset;
+				try {
+					if (!dir.isDirectory() && !dir.mkdirs()) {
+						throw new IOException("can not create " + dir);
+					}
+					File partFile = new File(dir, part + PART_SUFFIX);
+					synchronized (StreamMux.this) {
+						if (mOpenParts.add(partFile)) {
+							in.mPartFile = partFile;
+							in.mResumable = resumable;
+						}
+					}
+					if (in.mPartFile == null) {
+						in.mPartFile = File.createTempFile(part, PART_SUFFIX, dir);    // the same stream twice at once.
+					}
+					offset = in.mResumable ? Math.min(in.mPartFile.length(), in.mSize) : 0;
+					in.mFile = new RandomAccessFile(in.mPartFile, "rw").getChannel();
+					in.mFile.truncate(offset);
+					in.mFile.position(offset);
+					if (offset > 0 && in.mDigest != null) {
+						AttachmentStore.update(in.mDigest, in.mFile, offset);
+					}
+				} catch (IOException e) {
+					in.mResumable = false;
+					in.fail(e);
+					return;
+				}
+				if (!awaits) {
+					return;       // the sender started with the initial window.
+				}
+				synchronized (StreamMux.this) {
+					if (in.mCs.mIn.get(in.mId) != in) {
+						return;     // gone meanwhile, the release queued behind us closes the file.
+					}
+					in.mReceived = offset;
+					if (offset > 0) {
+						in.mCs.queueControl(control(FRAME_STREAM_RESUME, in.mId, offset));
+					}
+					in.mCs.queueControl(control(FRAME_STREAM_WINDOW, in.mId, INITIAL_WINDOW));    // need it.
+				}
+			}
+		});
+	}
+
+	private void onData(ConnStreams cs, int id, ByteBuffer body) throws IOException {
+		InStream in = cs.mIn.get(id);
+		if (in == null) {
+			return;      // reset already, drop the in flight data.
+		}
+		int len = body.remaining();
+		in.mReceived += len;
+		if (in.mRelay != null) {
+			ByteBuffer copy = ByteBuffer.allocate(len);   // the frame is a view into the decoder buffer.
+			copy.put(body);
+			copy.flip();
+			in.mRelay.mData.addLast(copy);
+			mCallback.requestFlush(in.mRelay.mConn);
+			return;
+		}
+		final ByteBuffer copy = ByteBuffer.allocate(len);    // the frame is a view into the decoder buffer.
+		copy.put(body);
+		copy.flip();
+		writeData(in, copy);
+	}
+
+	/**
+	 * write a chunk on the writer thread, and give its credit back once it is written.
+	 */
+	private void writeData(final InStream in, final ByteBuffer data) {
+		writer().execute(new Runnable() {
+			@Override
+			public void run() {
+				if (in.mFile == null || in.mFailed) {
+					return;       // the open or an earlier write failed, the stream is aborted.
+				}
+				int len = data.remaining();
+				try {
+					if (in.mDigest != null) {
+						in.mDigest.update(data.duplicate());
+					}
+					while (data.hasRemaining()) {
+						in.mFile.write(data);
+					}
+				} catch (IOException e) {
+					in.fail(e);
+					return;
+				}
+				synchronized (StreamMux.this) {
+					if (in.mCs.mIn.get(in.mId) == in) {
+						in.grant(len);
+					}
+				}
+			}
+		});
+	}
+
+	private void onClose(ConnStreams cs, int id, int status) throws IOException {
+		InStream in = cs.mIn.remove(id);
+		if (in == null) {
+			return;
+		}
+		boolean ok = status == STATUS_OK && in.mReceived == in.mSize;
+		if (in.mRelay != null) {
+			if (ok) {
+				in.mRelay.mEnd = true;     // the relay leg closes after its data drained.
+				mCallback.requestFlush(in.mRelay.mConn);
+			} else {
+				in.release(false);
+			}
+			return;
+		}
+		if (!ok) {
+			in.release(false);
+			return;
+		}
+		finishFile(in);
+	}
+
+	/**
+	 * the whole file arrived. Check, sync and move it in place on the writer thread, after its last chunk.
+	 */
+	private void finishFile(final InStream in) {
+		writer().execute(new Runnable() {
+			@Override
+			public void run() {
+				File received = null;
+				if (in.mFile != null && !in.mFailed && (in.mDigest == null || Arrays.equals(in.mDigest.digest(), in.mHash))) {
+					try {
+						in.mFile.force(false);
+					} catch (IOException e) {
+						PTPLog.e(TAG, "finishFile : " + in.mName + " : " + e.toString());
+					}
+					in.closeFile(false);
+					if (in.mHash != null) {
+						received = mStore.put(in.mPartFile, in.mHash, in.mName);
+					} else {
+						received = FileTransferEngine.uniqueFile(mReceiveDir, in.mName);
+						if (!in.mPartFile.renameTo(received)) {
+							in.mPartFile.delete();
+							received = null;
+						}
+					}
+				} else {
+					in.closeFile(true);
+				}
+				synchronized (StreamMux.this) {
+					if (received == null) {
+						mCallback.onStreamFailed(in.mOrigin, in.mName);
+					} else {
+						mCallback.onFileReceived(in.mOrigin, in.mName, received);
+					}
+				}
+			}
+		});
+	}
+
+	private static ByteBuffer control(byte type, int id, long value) {
+		ByteBuffer body = ByteBuffer.allocate(1 + 5 + 10);
+		body.put(type);
+		MessageCodec.putVarLong(body, id);
+		if (value >= 0) {
+			MessageCodec.putVarLong(body, value);
+		}
+		body.flip();
+		return body;
+	}
+
+	private static int utf8Len(String s) {
+		return s.getBytes(Constants.UTF8).length;
+	}
+
+	private static void putString(ByteBuffer dst, String s) {
+		byte[] bytes = s.getBytes(Constants.UTF8);
+		MessageCodec.putVarLong(dst, bytes.length);
+		dst.put(bytes);
+	}
+
+	private static byte[] getBytes(ByteBuffer src) throws IOException {
+		int len = (int)MessageCodec.getVarLong(src);
+		if (len < 0 || len > src.remaining()) {
+			throw new IOException("bad bytes length " + len);
+		}
+		byte[] bytes = new byte[len];
+		src.get(bytes);
+		return bytes;
+	}
+
+	private static String getString(ByteBuffer src) throws IOException {
+		int len = (int)MessageCodec.getVarLong(src);
+		if (len < 0 || len > src.remaining()) {
+			throw new IOException("bad string length " + len);
+		}
+		return MessageCodec.getUtf8(src, len);
+	}
+
+	/**
+	 * number of streams in progress, both directions, over all connections.
+	 */
+	public synchronized int getStreamCount() {
+		int n = 0;
+		for (ConnStreams cs : mConns.values()) {
+			n += cs.mOut.size() + cs.mIn.size();
+		}
+		return n;
+	}
+}
@@ -0,0 +1,400 @@
+package com.colorcloud.wifichat;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * metrics of the connection layer: per peer traffic, queue depth, write stalls, read batches, reconnects,
+ * latencies and compression, and the connection loop's own counters.
+ *
+ * A peer's metrics outlive its connections, keyed by the peer address, so a reconnect adds up instead of
+ * starting over. Byte and frame counts come from counters the decoder and the outbound queue keep anyway,
+ * folded in when a connection closes and read live for a snapshot.
+ *
+ * Disabled, there is no registry and connections carry no PeerMetrics, so the hot paths only test a null field.
+ * Connection loop thread only; other threads get a snapshot() copy, made on the loop.
+ */
+public class TransportMetrics {
+
+	/**
+	 * power of two histogram of non negative values, fixed size, no allocation when recording.
+	 */
+	public static class Histogram {
+		private static final int BUCKETS = 40;
+		private final long[] mBuckets = new long[BUCKETS];   // bucket i counts values below 2^i, at least 2^(i-1).
+		private long mCount = 0;
+		private long mSum = 0;
+		private long mMax = 0;
+
+		public void record(long value) {
+			if (value < 0) {
+				value = 0;
+			}
+			mBuckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value))]++;
+			mCount++;
+			mSum += value;
+			if (value > mMax) {
+				mMax = value;
+			}
+		}
+
+		public long getCount() {
+			return mCount;
+		}
+
+		public long getSum() {
+			return mSum;
+		}
+
+		public long getMax() {
+			return mMax;
+		}
+
+		/**
+		 * the upper bound of the bucket holding the p-th value, 0 < p <= 1, capped at the max seen.
+		 */
+		public long percentile(double p) {
+			long rank = (long)Math.ceil(p * mCount);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += mBuckets[i];
+				if (seen >= rank && seen > 0) {
+					return Math.min(mMax, i == 0 ? 0 : (1L << i) - 1);
+				}
+			}
+			return mMax;
+		}
+
+		void copyTo(Histogram h) {
+			System.arraycopy(mBuckets, 0, h.mBuckets, 0, BUCKETS);
+			h.mCount = mCount;
+			h.mSum = mSum;
+			h.mMax = mMax;
+		}
+
+		/**
+		 * count/p50/p99/max, or - when empty.
+		 */
+		@Override
+		public String toString() {
+			if (mCount == 0) {
+				return "-";
+			}
+			return mCount + "/" + percentile(0.5) + "/" + percentile(0.99) + "/" + mMax;
+		}
+	}
+
+	/**
+	 * the metrics of one peer, over all its connections.
+	 */
+	public static class PeerMetrics {
+		private final String mPeer;
+
+		// closed connections, plus the live one in a snapshot.
+		long mBytesIn = 0;
+		long mBytesOut = 0;
+		long mFramesOut = 0;
+		long mDroppedFrames = 0;
+		long mMaxQueued = 0;
+		long mStallMillis = 0;
+		long mZipRaw = 0;            // frame bytes compressed, before
+		long mZipWire = 0;           // and after.
+		long mZipPassed = 0;         // frames that looked compressed already.
+		long mDeflateNanos = 0;
+		long mInflateNanos = 0;
+
+		long mRowsIn = 0;
+		long mRowsOut = 0;
+		int mConnects = 0;
+		long mQueued = 0;            // queue depth when the snapshot was taken.
+		final Histogram mReadBatch = new Histogram();    // frames per read event, the sum is frames in.
+		final Histogram mAckLatency = new Histogram();   // micros from sending a sequenced row to its ack.
+		final Histogram mRecovery = new Histogram();     // ms a link we open was down before it came back.
+
+		private PeerConnection mConn = null;
+		private long mStallStart = 0;
+
+		PeerMetrics(String peer) {
+			mPeer = peer;
+		}
+
+		public String getPeer() {
+			return mPeer;
+		}
+
+		public long getBytesIn() {
+			return mBytesIn;
+		}
+
+		public long getBytesOut() {
+			return mBytesOut;
+		}
+
+		public long getFramesIn() {
+			return mReadBatch.getSum();
+		}
+
+		public long getFramesOut() {
+			return mFramesOut;
+		}
+
+		public long getRowsIn() {
+			return mRowsIn;
+		}
+
+		public long getRowsOut() {
+			return mRowsOut;
+		}
+
+		public long getDroppedFrames() {
+			return mDroppedFrames;
+		}
+
+		public long getQueuedBytes() {
+			return mQueued;
+		}
+
+		public long getMaxQueuedBytes() {
+			return mMaxQueued;
+		}
+
+		public long getStallMillis() {
+			return mStallMillis;
+		}
+
+		/**
+		 * compressed size over original size of the frames compressed to the peer, 1 when none were.
+		 */
+		public double getCompressionRatio() {
+			return mZipRaw > 0 ? (double)mZipWire / mZipRaw : 1;
+		}
+
+		public long getCompressedBytes() {
+			return mZipRaw;
+		}
+
+		public long getPassedFrames() {
+			return mZipPassed;
+		}
+
+		public long getDeflateMicros() {
+			return mDeflateNanos / 1000;
+		}
+
+		public long getInflateMicros() {
+			return mInflateNanos / 1000;
+		}
+
+		public int getReconnects() {
+			return Math.max(0, mConnects - 1);
+		}
+
+		public Histogram getReadBatch() {
+			return mReadBatch;
+		}
+
+		public Histogram getAckLatency() {
+			return mAckLatency;
+		}
+
+		public Histogram getRecovery() {
+			return mRecovery;
+		}
+
+		/**
+		 * a new connection to the peer.
+		 */
+		void attach(PeerConnection conn) {
+			if (mConn != null) {
+				detach(mConn);
+			}
+			mConn = conn;
+			mConnects++;
+		}
+
+		/**
+		 * the connection closed, keep its counts.
+		 */
+		void detach(PeerConnection conn) {
+			if (conn != mConn) {
+				return;
+			}
+			onFlush(true, System.currentTimeMillis());
+			fold(conn, this);
+			mConn = null;
+		}
+
+		private static void fold(PeerConnection conn, PeerMetrics into) {
+			OutboundQueue queue = conn.getOutQueue();
+			into.mBytesIn += conn.getDecoder().getBytesRead();
+			into.mBytesOut += conn.getBytesWritten();
+			into.mFramesOut += conn.getFramesWritten();
+			into.mDroppedFrames += queue.getDroppedFrames();
+			into.mMaxQueued = Math.max(into.mMaxQueued, queue.getMaxQueuedBytes());
+			if (conn.hasCompressor()) {
+				FrameCompressor zip = conn.getCompressor();
+				into.mZipRaw += zip.getRawBytes();
+				into.mZipWire += zip.getWireBytes();
+				into.mZipPassed += zip.getPassedFrames();
+				into.mDeflateNanos += zip.getDeflateNanos();
+				into.mInflateNanos += zip.getInflateNanos();
+			}
+		}
+
+		public void onRead(int nframes) {
+			mReadBatch.record(nframes);
+		}
+
+		public void onRowIn() {
+			mRowsIn++;
+		}
+
+		public void onRowOut() {
+			mRowsOut++;
+		}
+
+		public void onAckLatency(long micros) {
+			mAckLatency.record(micros);
+		}
+
+		public void onRecovered(long downMillis) {
+			mRecovery.record(downMillis);
+		}
+
+		/**
+		 * a flush left the socket buffer full, or drained it. The time in between is a write stall.
+		 */
+		public void onFlush(boolean drained, long now) {
+			if (!drained && mStallStart == 0) {
+				mStallStart = now;
+			} else if (drained && mStallStart != 0) {
+				mStallMillis += now - mStallStart;
+				mStallStart = 0;
+			}
+		}
+
+		PeerMetrics snapshot(long now) {
+			PeerMetrics s = new PeerMetrics(mPeer);
+			s.mBytesIn = mBytesIn;
+			s.mBytesOut = mBytesOut;
+			s.mFramesOut = mFramesOut;
+			s.mDroppedFrames = mDroppedFrames;
+			s.mMaxQueued = mMaxQueued;
+			s.mStallMillis = mStallMillis + (mStallStart != 0 ? now - mStallStart : 0);
+			s.mZipRaw = mZipRaw;
+			s.mZipWire = mZipWire;
+			s.mZipPassed = mZipPassed;
+			s.mDeflateNanos = mDeflateNanos;
+			s.mInflateNanos = mInflateNanos;
+			s.mRowsIn = mRowsIn;
+			s.mRowsOut = mRowsOut;
+			s.mConnects = mConnects;
+			mReadBatch.copyTo(s.mReadBatch);
+			mAckLatency.copyTo(s.mAckLatency);
+			mRecovery.copyTo(s.mRecovery);
+			if (mConn != null) {
+				fold(mConn, s);
+				s.mQueued = mConn.getOutQueue().getQueuedBytes();
+			}
+			return s;
+		}
+
+		/**
+		 * one compact line: traffic in and out, queue, stall, compression ratio with passed frames and
+		 * deflate/inflate cpu, reconnects, then count/p50/p99/max histograms.
+		 */
+		@Override
+		public String toString() {
+			return mPeer + " in " + mBytesIn + "B " + getFramesIn() + "f " + mRowsIn + "r"
+					+ " out " + mBytesOut + "B " + mFramesOut + "f " + mRowsOut + "r " + mDroppedFrames + "drop"
+					+ " q " + mQueued + "/" + mMaxQueued + "B stall " + mStallMillis + "ms"
+					+ " zip " + Math.round(getCompressionRatio() * 100) + "% of " + mZipRaw + "B pass " + mZipPassed
+					+ " cpu " + getDeflateMicros() + "/" + getInflateMicros() + "us reconn " + getReconnects()
+					+ " batch " + mReadBatch + " ack_us " + mAckLatency + " down_ms " + mRecovery;
+		}
+	}
+
+	private final Map<String, PeerMetrics> mPeers = new LinkedHashMap<String, PeerMetrics>();
+	private final long mStart;
+	private long mTime;                // when the snapshot was taken.
+	private long mLoopTasks = 0;       // loop counters, filled in a snapshot.
+	private int mLoopRebuilds = 0;
+
+	public TransportMetrics() {
+		this(System.currentTimeMillis());
+	}
+
+	private TransportMetrics(long start) {
+		mStart = start;
+		mTime = start;
+	}
+
+	/**
+	 * the metrics of the peer, created on first use.
+	 */
+	public PeerMetrics peer(String addr) {
+		PeerMetrics m = mPeers.get(addr);
+		if (m == null) {
+			m = new PeerMetrics(addr);
+			mPeers.put(addr, m);
+		}
+		return m;
+	}
+
+	public List<PeerMetrics> getPeers() {
+		return new ArrayList<PeerMetrics>(mPeers.values());
+	}
+
+	public long getLoopTasks() {
+		return mLoopTasks;
+	}
+
+	public int getLoopRebuilds() {
+		return mLoopRebuilds;
+	}
+
+	/**
+	 * ms covered by the metrics.
+	 */
+	public long getElapsed() {
+		return mTime - mStart;
+	}
+
+	/**
+	 * a consistent copy with the live connections' counts folded in, readable from any thread.
+	 * @param loop the loop to read its counters from, or null.
+	 */
+	public TransportMetrics snapshot(SelectorLoop loop) {
+		TransportMetrics s = new TransportMetrics(mStart);
+		long now = System.currentTimeMillis();
+		for (Map.Entry<String, PeerMetrics> e : mPeers.entrySet()) {
+			s.mPeers.put(e.getKey(), e.getValue().snapshot(now));
+		}
+		if (loop != null) {
+			s.mLoopTasks = loop.getTaskCount();
+			s.mLoopRebuilds = loop.getRebuilds();
+		}
+		s.mTime = now;
+		return s;
+	}
+
+	/**
+	 * compact dump, a summary line then a line per peer.
+	 */
+	public String dump() {
+		StringBuilder sb = new StringBuilder(128 + 256 * mPeers.size());
+		sb.append("transport ").append(getElapsed() / 1000).append("s peers ").append(mPeers.size())
+		  .append(" loop tasks ").append(mLoopTasks).append(" rebuilds ").append(mLoopRebuilds);
+		for (PeerMetrics m : mPeers.values()) {
+			sb.append('\n').append(m);
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return dump();
+	}
+}
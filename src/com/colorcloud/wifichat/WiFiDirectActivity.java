@@ -18,6 +18,8 @@ package com.colorcloud.wifichat;
 
 import static com.colorcloud.wifichat.Constants.*;
 
+import java.util.List;
+
 import jade.android.AgentContainerHandler;
 import jade.android.AgentHandler;
 import jade.android.RuntimeCallback;
@@ -35,7 +37,6 @@ import android.content.Intent;
 import android.content.ServiceConnection;
 import android.net.wifi.p2p.WifiP2pConfig;
 import android.net.wifi.p2p.WifiP2pDevice;
-import android.net.wifi.p2p.WifiP2pDeviceList;
 import android.net.wifi.p2p.WifiP2pInfo;
 import android.net.wifi.p2p.WifiP2pManager;
 import android.net.wifi.p2p.WifiP2pManager.ActionListener;
@@ -54,7 +55,6 @@ import com.colorcloud.agent.MainContainerInterface;
 import com.colorcloud.agent.ManagerAgent;
 import com.colorcloud.agent.ManagerInterface;
 import com.colorcloud.wifichat.DeviceListFragment.DeviceActionListener;
-import com.colorcloud.wifichat.WiFiDirectApp.PTPLog;
 
 /**
  * An activity that uses WiFi Direct APIs to discover and connect with available
@@ -171,26 +171,34 @@ public class WiFiDirectActivity extends Activity implements DeviceActionListener
     }
 
     /**
-     * update the device list fragment.
+     * update the device list fragment with the peers that changed.
      */
-    public void onPeersAvailable(final WifiP2pDeviceList peerList) {
+    public void onPeersChanged(final PeerRegistry.Delta delta) {
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
                 DeviceListFragment fragmentList = (DeviceListFragment) getFragmentManager().findFragmentById(R.id.frag_list);
-                fragmentList.onPeersAvailable(mApp.mPeers);  // use application cached list.
+                fragmentList.onPeersChanged(delta);
                 DeviceDetailFragment fragmentDetails = (DeviceDetailFragment) getFragmentManager().findFragmentById(R.id.frag_detail);
 
-                for (WifiP2pDevice d : peerList.getDeviceList()) {
-                    if (d.status == WifiP2pDevice.FAILED) {
-                        PTPLog.d(TAG, "onPeersAvailable: Peer status is failed " + d.deviceName);
-                        fragmentDetails.resetViews();
-                    }
+                // a peer reports failed once, when it turns failed.
+                if (hasFailed(delta.mAdded) || hasFailed(delta.mChanged)) {
+                    fragmentDetails.resetViews();
                 }
             }
         });
     }
 
+    private boolean hasFailed(List<WifiP2pDevice> devices) {
+        for (WifiP2pDevice d : devices) {
+            if (d.status == WifiP2pDevice.FAILED) {
+                PTPLog.d(TAG, "onPeersChanged: Peer status is failed " + d.deviceName);
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * handle p2p connection available, update UI.
      */
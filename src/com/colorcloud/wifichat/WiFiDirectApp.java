@@ -2,20 +2,20 @@ package com.colorcloud.wifichat;
 
 import static com.colorcloud.wifichat.Constants.*;
 
-import java.util.ArrayList;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
-
 import android.app.Application;
 import android.content.Intent;
+import android.content.pm.ApplicationInfo;
 import android.net.wifi.p2p.WifiP2pDevice;
 import android.net.wifi.p2p.WifiP2pInfo;
 import android.net.wifi.p2p.WifiP2pManager;
 import android.net.wifi.p2p.WifiP2pManager.Channel;
+import android.os.Handler;
 import android.os.Message;
-import android.util.Log;
 
 public class WiFiDirectApp extends Application {
 
@@ -30,15 +30,37 @@ public class WiFiDirectApp extends Application {
 	WifiP2pDevice mThisDevice = null;
 	WifiP2pInfo mP2pInfo = null;  // set when connection info available, reset when WIFI_P2P_CONNECTION_CHANGED_ACTION
 	
-	boolean mIsServer = false;
-	
 	WiFiDirectActivity mHomeActivity = null;
-	List<WifiP2pDevice> mPeers = new ArrayList<WifiP2pDevice>();  // update on every peers available
-	JSONArray mMessageArray = new JSONArray();		// limit to the latest 50 messages
+	final PeerRegistry mPeers = new PeerRegistry();  // diffed on every peers available
+	volatile MessageStore mMessageStore = null;		// persistent chat history, null until open or if storage is not available.
+	WorkHandler mStoreThread = null;		// opens the message store and appends to it, off the ui thread.
 	
 	@Override
     public void onCreate() {
         super.onCreate();
+        // debug lines only in a debuggable build, written off the calling thread.
+        boolean debuggable = (getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+        PTPLog.setLevel(debuggable ? PTPLog.DEBUG : PTPLog.INFO);
+        PTPLog.setAsync(LOG_RING_SIZE);
+        // opening scans the history segments, the store thread does it before any append queued to it.
+        mStoreThread = new WorkHandler("PTP_STORE");
+        final File dir = new File(getFilesDir(), MSG_STORE_DIR);
+        mStoreThread.getHandler().post(new Runnable() {
+        	@Override public void run() {
+        		try {
+        			mMessageStore = new MessageStore(dir);
+        		} catch (IOException e) {
+        			PTPLog.e(TAG, "onCreate: message store not available: " + e.toString());
+        		}
+        	}
+        });
+    }
+    
+    /**
+     * run r on the store thread, after the store is open and the appends queued before it are written.
+     */
+    public void postToStore(Runnable r) {
+    	mStoreThread.getHandler().post(r);
     }
 	
 	/**
@@ -67,47 +89,110 @@ public class WiFiDirectApp extends Application {
      * upon p2p connection available, non group owner start socket channel connect to group owner.
      */
     public void startSocketClient(String hostname) {
-    	Log.d(TAG, "startSocketClient : client connect to group owner : " + hostname);
+    	PTPLog.d(TAG, "startSocketClient : client connect to group owner : " + hostname);
     	Message msg = ConnectionService.getInstance().getHandler().obtainMessage();
     	msg.what = MSG_STARTCLIENT;
     	msg.obj = hostname;
     	ConnectionService.getInstance().getHandler().sendMessage(msg);
     }
     
+    /**
+     * as group owner, also connect to the group owner at hostname and relay between the two groups.
+     */
+    public void startMeshUplink(String hostname) {
+    	PTPLog.d(TAG, "startMeshUplink : bridge to group owner : " + hostname);
+    	Message msg = ConnectionService.getInstance().getHandler().obtainMessage();
+    	msg.what = MSG_START_UPLINK;
+    	msg.obj = hostname;
+    	ConnectionService.getInstance().getHandler().sendMessage(msg);
+    }
+    
     /**
      * check whether there exists a connected peer.
      */
     public WifiP2pDevice getConnectedPeer(){
-    	WifiP2pDevice peer = null;
-		for(WifiP2pDevice d : mPeers ){ 
-    		PTPLog.d(TAG, "getConnectedPeer : device : " + d.deviceName + " status: " + ConnectionService.getDeviceStatus(d.status));
-    		if( d.status == WifiP2pDevice.CONNECTED){
-    			peer = d;
-    		}
-    	}
-    	return peer;
+    	return mPeers.getConnectedPeer();
     }
     
     /**
-     * insert a json string msg into messages json array
+     * insert a json string msg into the chat history
      */
     public void shiftInsertMessage(String jsonmsg){
-    	JSONObject jsonobj = JSONUtils.getJsonObject(jsonmsg);
-    	mMessageArray.put(jsonobj);
-    	mMessageArray = JSONUtils.truncateJSONArray(mMessageArray, 10);  // truncate the oldest 10.
+    	MessageRow row = MessageRow.parseMesssageRow(JSONUtils.getJsonObject(jsonmsg));
+    	if( row != null ){
+    		shiftInsertMessage(row, null, null);
+    	}
     }
     
-    public String shiftInsertMessage(MessageRow row) {
-    	JSONObject jsonobj = MessageRow.getAsJSONObject(row);
-    	if( jsonobj != null ){
-    		mMessageArray.put(jsonobj);
+    /**
+     * append a message to the persistent chat history on the store thread, from any thread.
+     * onStored, if not null, is posted to handler once the row is in the store, or failed to go in.
+     */
+    public void shiftInsertMessage(final MessageRow row, final Handler handler, final Runnable onStored) {
+    	postToStore(new Runnable() {
+    		@Override public void run() {
+    			MessageStore store = mMessageStore;
+    			if( store != null ){
+    				try {
+    					store.append(row);
+    				} catch (IOException e) {
+    					PTPLog.e(TAG, "shiftInsertMessage: " + e.toString());
+    				}
+    			}
+    			if( onStored != null ){
+    				handler.post(onStored);
+    			}
+    		}
+    	});
+    }
+    
+    /**
+     * page in count messages of the chat history starting at sequence number fromSeq, oldest first.
+     */
+    public List<MessageRow> loadMessages(long fromSeq, int count) {
+    	if( mMessageStore == null ){
+    		return Collections.emptyList();
+    	}
+    	try {
+    		return mMessageStore.readPage(fromSeq, count);
+    	} catch (IOException e) {
+    		PTPLog.e(TAG, "loadMessages: " + e.toString());
+    		return Collections.emptyList();
     	}
-    	mMessageArray = JSONUtils.truncateJSONArray(mMessageArray, 10);  // truncate the oldest 10.
-    	return jsonobj.toString();
     }
     
+    /**
+     * the latest count messages of the chat history, oldest first.
+     */
+    public List<MessageRow> loadRecentMessages(int count) {
+    	if( mMessageStore == null ){
+    		return Collections.emptyList();
+    	}
+    	try {
+    		return mMessageStore.readRecent(count);
+    	} catch (IOException e) {
+    		PTPLog.e(TAG, "loadRecentMessages: " + e.toString());
+    		return Collections.emptyList();
+    	}
+    }
+    
+    /**
+     * clear the chat history, on the store thread.
+     */
     public void clearMessages() {
-    	mMessageArray = new JSONArray();
+    	postToStore(new Runnable() {
+    		@Override public void run() {
+    			MessageStore store = mMessageStore;
+    			if( store == null ){
+    				return;
+    			}
+    			try {
+    				store.clear();
+    			} catch (IOException e) {
+    				PTPLog.e(TAG, "clearMessages: " + e.toString());
+    			}
+    		}
+    	});
     }
     
     /**
@@ -123,17 +208,5 @@ public class WiFiDirectApp extends Application {
     public void setMyAddr(String addr){
     	mMyAddr = addr;
     }
-    
-	public static class PTPLog {
-		public static void i(String tag, String msg) {
-            Log.i(tag, msg);
-        }
-		public static void d(String tag, String msg) {
-            Log.d(tag, msg);
-        }
-		public static void e(String tag, String msg) {
-            Log.e(tag, msg);
-        }
-	}
 
 }
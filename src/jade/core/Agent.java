@@ -97,6 +97,24 @@ public class Agent implements Runnable, Serializable
 		}
 	}  // END of inner class Interrupted
 
+	//#J2ME_EXCLUDE_BEGIN
+	/**
+	 Inner class Parked.
+	 Thrown when an agent running on the agent pool has no ready
+	 behaviour, to unwind the task and give the pool thread back.
+	 */
+	private static class Parked extends Error {
+		public Throwable fillInStackTrace() {
+			return this;
+		}
+	}  // END of inner class Parked
+
+	private static final Parked PARKED = new Parked();
+
+	// Steps an agent runs on the pool before letting the others go on
+	private static final int SEGMENT_STEPS = 32;
+	//#J2ME_EXCLUDE_END
+
 
 	/**
 	 Inner class AssociationTB.
@@ -294,6 +312,15 @@ public class Agent implements Runnable, Serializable
 			}
 		}
 
+		public synchronized boolean waitOn(long millis) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + millis;
+			while(!value && millis > 0) {
+				wait(millis);
+				millis = deadline - System.currentTimeMillis();
+			}
+			return value;
+		}
+
 		public synchronized void set() {
 			value = true;
 			notifyAll();
@@ -487,6 +514,13 @@ public class Agent implements Runnable, Serializable
 
 	private transient Thread myThread;
 	private transient TimerDispatcher theDispatcher;
+	//#J2ME_EXCLUDE_BEGIN
+	// The pool running this agent, null if it has a thread of its own. In that
+	// case myThread is the pool thread running it, null while it is parked.
+	private transient AgentPool myPool;
+	private transient Runnable mySegment;
+	private transient CondVar poolTerminated;
+	//#J2ME_EXCLUDE_END
 
 	private Scheduler myScheduler;
 
@@ -817,6 +851,15 @@ public class Agent implements Runnable, Serializable
 	public void join() {
 		//#MIDP_EXCLUDE_BEGIN
 		try {
+			//#J2ME_EXCLUDE_BEGIN
+			if (myPool != null) {
+				// No thread of its own, wait for the task that ends it
+				if (!poolTerminated.waitOn(5000)) {
+					System.out.println("*** Warning: Agent " + myName + " did not terminate when requested to do so.");
+				}
+				return;
+			}
+			//#J2ME_EXCLUDE_END
 			if(myThread == null) {
 				return;
 			}
@@ -1098,6 +1141,10 @@ public class Agent implements Runnable, Serializable
 	 block, stopping all its activities until  
 	 a message arrives or 	the
 	 <code>doWake()</code> method is called. 
+	 When the agent runs on the agent pool (see
+	 <code>Profile.AGENT_POOL</code>) without virtual threads, the wait
+	 holds a thread for its whole duration: block the waiting behaviour
+	 instead.
 	 @see jade.core.Agent#doWake()
 	 */
 	public void doWait() {
@@ -1143,6 +1190,12 @@ public class Agent implements Runnable, Serializable
 	 @see jade.core.Agent#doWait()
 	 */
 	public void doWake() {
+		wake(null);
+	}
+
+	// Resumes agent execution. If msg is not null it has just been posted and
+	// only the behaviours that may be waiting for it are restarted.
+	private void wake(ACLMessage msg) {
 		synchronized(stateLock) {
 			int previous = myLifeCycle.getState();
 			if((previous == AP_WAITING) || (previous == AP_IDLE)) {
@@ -1150,7 +1203,12 @@ public class Agent implements Runnable, Serializable
 			}
 		}
 		if(myLifeCycle.isMessageAware()) {
-			activateAllBehaviours();
+			if (msg != null) {
+				myScheduler.restartMatching(msg);
+			}
+			else {
+				activateAllBehaviours();
+			}
 			synchronized(msgQueue) {
 				msgQueue.notifyAll(); // Wakes up the embedded thread
 			}
@@ -1174,6 +1232,19 @@ public class Agent implements Runnable, Serializable
 
 	// This is called only by the scheduler
 	void idle() throws InterruptedException {
+		//#J2ME_EXCLUDE_BEGIN
+		if (myPool != null) {
+			// Serve a change state request that came in meanwhile, otherwise 
+			// park: adding or restarting a behaviour resumes the agent.
+			// No need for synchronized block here either.
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			setActiveState(AP_IDLE);
+			myScheduler.park();
+			throw PARKED;
+		}
+		//#J2ME_EXCLUDE_END
 		setActiveState(AP_IDLE);
 		// No need for synchronized block since this is only called by the 
 		// scheduler in the synchronized schedule() method
@@ -1467,27 +1538,9 @@ public class Agent implements Runnable, Serializable
 		try {
 			myLifeCycle.init();
 			while (myLifeCycle.alive()) {
-				try {
-					myLifeCycle.execute();
-					// Let other agents go on
-					Thread.yield();
-				}
-				catch (JADESecurityException jse) {
-					// FIXME: maybe we should send a message to the agent
-					System.out.println("JADESecurityException: "+jse.getMessage());
-				}
-				catch (InterruptedException ie) {
-					// Change LC state request from the outside. Just do nothing
-					// and let the new LC state do its job
-				}
-				catch (InterruptedIOException ie) {
-					// Change LC state request from the outside. Just do nothing
-					// and let the new LC state do its job
-				}
-				catch (Interrupted i) {
-					// Change LC state request from the outside. Just do nothing
-					// and let the new LC state do its job
-				}
+				step();
+				// Let other agents go on
+				Thread.yield();
 			}
 		}
 		catch(Throwable t) {
@@ -1499,6 +1552,98 @@ public class Agent implements Runnable, Serializable
 	}		
 	//#APIDOC_EXCLUDE_END
 
+	// Executes the current LifeCycle state once
+	private void step() {
+		try {
+			myLifeCycle.execute();
+		}
+		catch (JADESecurityException jse) {
+			// FIXME: maybe we should send a message to the agent
+			System.out.println("JADESecurityException: "+jse.getMessage());
+		}
+		catch (InterruptedException ie) {
+			// Change LC state request from the outside. Just do nothing
+			// and let the new LC state do its job
+		}
+		catch (InterruptedIOException ie) {
+			// Change LC state request from the outside. Just do nothing
+			// and let the new LC state do its job
+		}
+		catch (Interrupted i) {
+			// Change LC state request from the outside. Just do nothing
+			// and let the new LC state do its job
+		}
+	}
+
+	//#J2ME_EXCLUDE_BEGIN
+	/**
+	 The body of an agent running on the agent pool: the same as run(),
+	 split in tasks. A task runs until the agent parks, or for at most
+	 SEGMENT_STEPS steps and then submits the next one.
+	 */
+	private void runSegment(boolean first) {
+		Thread current = Thread.currentThread();
+		synchronized (myScheduler) {
+			myThread = current;
+		}
+		boolean again = false;
+		boolean over = false;
+		try {
+			if (first) {
+				myLifeCycle.init();
+			}
+			else if (myLifeCycle.getState() == AP_IDLE) {
+				try {
+					setActiveState(AP_ACTIVE);
+				}
+				catch (Interrupted i) {
+					// Change LC state request from the outside. The new LC state runs below
+				}
+			}
+			for (int i = 0; myLifeCycle.alive(); i++) {
+				if (i == SEGMENT_STEPS) {
+					again = true;
+					break;
+				}
+				step();
+			}
+			over = !again;
+		}
+		catch (Parked p) {
+			// Another task may already be running the agent. Just give the thread back
+		}
+		catch(Throwable t) {
+			System.err.println("***  Uncaught Exception for agent " + myName + "  ***");
+			t.printStackTrace();
+			over = true;
+		}
+		if (over) {
+			try {
+				terminating = true;
+				myLifeCycle.end();
+			}
+			finally {
+				poolTerminated.set();
+			}
+		}
+		synchronized (myScheduler) {
+			if (myThread == current) {
+				myThread = null;
+			}
+		}
+		// Interruptions were meant for this agent, not for the next task of the pool
+		Thread.interrupted();
+		if (again) {
+			myPool.execute(mySegment);
+		}
+	}
+
+	// Submits a parked agent to the pool again
+	void resumeSegment() {
+		myPool.execute(mySegment);
+	}
+	//#J2ME_EXCLUDE_END
+
 
 
 	/**
@@ -1529,7 +1674,13 @@ public class Agent implements Runnable, Serializable
 			long oldRestartCounter = currentBehaviour.getRestartCounter();
 
 			// Just do it!
-			currentBehaviour.actionWrapper();
+			myScheduler.setRunning(currentBehaviour);
+			try {
+				currentBehaviour.actionWrapper();
+			}
+			finally {
+				myScheduler.setRunning(null);
+			}
 
 			// When it is needed no more, delete it from the behaviours queue
 			if(currentBehaviour.done()) {
@@ -1759,6 +1910,32 @@ public class Agent implements Runnable, Serializable
 		}
 	}
 
+	//#J2ME_EXCLUDE_BEGIN
+	// This method is used by the Agent Container to fire up a new agent on the agent pool
+	synchronized void powerUp(AID id, AgentPool pool) {
+		if (myThread == null && myPool == null) {
+			myName = id.getLocalName();
+			myHap = id.getHap();
+
+			myAID = id;
+			myToolkit.setPlatformAddresses(myAID);
+
+			myPool = pool;
+			poolTerminated = new CondVar();
+			mySegment = new Runnable() {
+				public void run() {
+					runSegment(false);
+				}
+			};
+			myPool.execute(new Runnable() {
+				public void run() {
+					runSegment(true);
+				}
+			});
+		}
+	}
+	//#J2ME_EXCLUDE_END
+
 	//#J2ME_EXCLUDE_BEGIN
 	// Return agent thread
 	// Package scooped as it is called by JadeMisc add-on for container monitor purpose
@@ -1903,6 +2080,13 @@ public class Agent implements Runnable, Serializable
 	public final ACLMessage receive(MessageTemplate pattern) {
 		ACLMessage msg = null;
 		synchronized (msgQueue) {
+			// Record what the running behaviour waits for before looking: a message
+			// posted after the look restarts it. Only receives on the agent's own
+			// thread are the running behaviour's, other threads leave it waiting
+			// for any message
+			if (Thread.currentThread() == myThread) {
+				myScheduler.noteReceive(pattern);
+			}
 			msg = msgQueue.receive(pattern);
 			//#MIDP_EXCLUDE_BEGIN
 			if (msg != null) {
@@ -1917,6 +2101,10 @@ public class Agent implements Runnable, Serializable
 	 Receives an <b>ACL</b> message from the agent message
 	 queue. This method is blocking and suspends the whole agent until
 	 a message is available in the queue. 
+	 When the agent runs on the agent pool (see
+	 <code>Profile.AGENT_POOL</code>) without virtual threads, the wait
+	 holds a thread for its whole duration: use <code>receive()</code>
+	 and block the behaviour instead.
 	 @return A new ACL message, blocking the agent until one is
 	 available.
 	 @see jade.core.Agent#receive()
@@ -2117,7 +2305,7 @@ public class Agent implements Runnable, Serializable
 				myToolkit.handlePosted(myAID, msg);
 				//#MIDP_EXCLUDE_END
 				msgQueue.addLast(msg);
-				doWake();
+				wake(msg);
 			}
 		}
 	}
@@ -2212,6 +2400,20 @@ public class Agent implements Runnable, Serializable
 	 */
 	private void interruptThread() {
 		//#MIDP_EXCLUDE_BEGIN
+		//#J2ME_EXCLUDE_BEGIN
+		if (myPool != null) {
+			// A parked agent has no thread: resume it to let the new state take place
+			synchronized (myScheduler) {
+				if (myScheduler.unpark()) {
+					resumeSegment();
+				}
+				else if (myThread != null) {
+					myThread.interrupt();
+				}
+			}
+			return;
+		}
+		//#J2ME_EXCLUDE_END
 		myThread.interrupt();
 		//#MIDP_EXCLUDE_END
 		/*#MIDP_INCLUDE_BEGIN
@@ -2242,6 +2444,13 @@ public class Agent implements Runnable, Serializable
 		 }
 		 } 
 		 #MIDP_INCLUDE_END*/
+		//#J2ME_EXCLUDE_BEGIN
+		if (myPool != null) {
+			// Let the pool run the other agents meanwhile
+			myPool.await(getLocalName(), lock, millis);
+		}
+		else
+		//#J2ME_EXCLUDE_END
 		lock.wait(millis);
 		/*#MIDP_INCLUDE_BEGIN
 		 synchronized (this) {
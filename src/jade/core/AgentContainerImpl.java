@@ -108,6 +108,11 @@ class AgentContainerImpl implements AgentContainer, AgentToolkit {
 	// The Object managing Thread resources in this container
 	private ResourceManager myResourceManager;
 
+	//#J2ME_EXCLUDE_BEGIN
+	// The pool running the user agents, null if each has its own thread
+	private AgentPool myAgentPool;
+	//#J2ME_EXCLUDE_END
+
 	protected ContainerID myID;
 	
 	protected NodeDescriptor myNodeDescriptor;
@@ -367,6 +372,23 @@ class AgentContainerImpl implements AgentContainer, AgentToolkit {
 		myResourceManager = myProfile.getResourceManager();
 		myResourceManager.initialize(myProfile);
 
+		//#J2ME_EXCLUDE_BEGIN
+		// Create the agent pool if required
+		String poolSize = myProfile.getParameter(Profile.AGENT_POOL, "0");
+		try {
+			int size = Integer.parseInt(poolSize);
+			if (size > 0) {
+				// Tasks on virtual threads let agents wait in blockingReceive() without a thread
+				VirtualThreads virtual = VirtualThreads.lookup(myProfile);
+				myAgentPool = new AgentPool(size, virtual);
+				myLogger.log(Logger.INFO, "Agent pool of "+size+(virtual != null ? " on virtual threads" : " threads"));
+			}
+		}
+		catch (NumberFormatException nfe) {
+			myLogger.log(Logger.WARNING, "Invalid "+Profile.AGENT_POOL+" value "+poolSize+". Agents will run on their own threads");
+		}
+		//#J2ME_EXCLUDE_END
+
 		// Initialize the Container ID
 		TransportAddress addr = (TransportAddress) myIMTPManager.getLocalAddresses().get(0);
 		myID = new ContainerID(myProfile.getParameter(Profile.CONTAINER_NAME, PlatformManager.NO_NAME), addr);
@@ -656,6 +678,11 @@ class AgentContainerImpl implements AgentContainer, AgentToolkit {
 		}
 
 		// Release Thread resources
+		//#J2ME_EXCLUDE_BEGIN
+		if (myAgentPool != null) {
+			myAgentPool.shutdown();
+		}
+		//#J2ME_EXCLUDE_END
 		myResourceManager.releaseResources();
 
 		// Notify the JADE Runtime that the container has terminated execution
@@ -956,6 +983,13 @@ class AgentContainerImpl implements AgentContainer, AgentToolkit {
 			throw new NotFoundException("powerUpLocalAgent() failed to find agent "+agentID.getName());
 		}
 		int type = (agentID.equals(theAMS) || agentID.equals(theDefaultDF) ? ResourceManager.SYSTEM_AGENTS : ResourceManager.USER_AGENTS);
+		//#J2ME_EXCLUDE_BEGIN
+		if (myAgentPool != null && type == ResourceManager.USER_AGENTS) {
+			instance.powerUp(agentID, myAgentPool);
+			localAgents.release(agentID);
+			return;
+		}
+		//#J2ME_EXCLUDE_END
 		Thread t = myResourceManager.getThread(type, agentID.getLocalName(), instance);
 		instance.powerUp(agentID, t);
 		localAgents.release(agentID);
@@ -997,10 +1031,9 @@ class AgentContainerImpl implements AgentContainer, AgentToolkit {
 
 		// (Mutual exclusion with Scheduler.add(), remove()...)
 		synchronized (s) {
-			Iterator it = s.readyBehaviours.iterator();
-			while (it.hasNext()) {
-				Behaviour b = (Behaviour) it.next();
-				behaviours.add(new BehaviourID(b));
+			Behaviour[] bb = s.getReadyBehaviours();
+			for (int i = 0; i < bb.length; i++) {
+				behaviours.add(new BehaviourID(bb[i]));
 			}
 
 		}
@@ -1014,10 +1047,9 @@ class AgentContainerImpl implements AgentContainer, AgentToolkit {
 
 		// (Mutual exclusion with Scheduler.add(), remove()...)
 		synchronized (s) {
-			Iterator it = s.blockedBehaviours.iterator();
-			while (it.hasNext()) {
-				Behaviour b = (Behaviour) it.next();
-				behaviours.add(new BehaviourID(b));
+			Behaviour[] bb = s.getBlockedBehaviours();
+			for (int i = 0; i < bb.length; i++) {
+				behaviours.add(new BehaviourID(bb[i]));
 			}
 		}
 	}
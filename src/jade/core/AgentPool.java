@@ -0,0 +1,192 @@
+/*****************************************************************
+ JADE - Java Agent DEvelopment Framework is a framework to develop
+ multi-agent systems in compliance with the FIPA specifications.
+ Copyright (C) 2000 CSELT S.p.A.
+
+ GNU Lesser General Public License
+
+ This library is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation,
+ version 2.1 of the License.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the
+ Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ Boston, MA  02111-1307, USA.
+ *****************************************************************/
+
+package jade.core;
+
+//#J2ME_EXCLUDE_FILE
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jade.util.Logger;
+
+/**
+ A thread pool shared by the user agents of a container, used instead of
+ one thread per agent when the <code>Profile.AGENT_POOL</code> option is
+ set.
+ <p>
+ An agent runs on the pool as a sequence of tasks: a task executes
+ behaviours until none is ready, then gives the thread back and the
+ agent is parked. Adding or restarting a behaviour (e.g. when a message
+ arrives) or a change state request submits the agent again. An agent
+ that is never parked yields its thread every few steps, so that a busy
+ agent does not hold back the others.
+ <p>
+ A task can not give its stack back while its agent waits inside
+ <code>doWait()</code>, <code>blockingReceive()</code> or a suspended
+ state: these waits go through <code>await()</code>. When the JVM has
+ virtual threads that do not pin in <code>Object.wait()</code> (see
+ <code>VirtualThreads</code>), each task runs on a virtual thread of its
+ own, and a semaphore with as many permits as the pool size bounds the
+ tasks that run at once. A waiting task gives its permit back and its
+ virtual thread unmounts, so the wait holds no thread. Otherwise the
+ tasks run on a work-stealing pool, and a wait is a managed block: the
+ pool starts a spare thread for the time of the wait so the other agents
+ keep running, and a warning is logged when their number grows.
+
+ @see Profile#AGENT_POOL
+ */
+class AgentPool {
+
+	private static final Logger myLogger = Logger.getMyLogger(AgentPool.class.getName());
+
+	private final int parallelism;
+
+	// Virtual thread mode: the factory, the run permits, and whether the
+	// current thread runs a task holding a permit
+	private final VirtualThreads virtual;
+	private final Semaphore permits;
+	private final ThreadLocal<Boolean> holdsPermit;
+
+	// Work-stealing mode
+	private final ForkJoinPool pool;
+	// Agents in a blocking wait on a pool thread, and the count at which
+	// the next warning is logged
+	private final AtomicInteger blocked = new AtomicInteger();
+	private final AtomicInteger warnAt = new AtomicInteger(1);
+
+	/**
+	 @param virtual The virtual thread factory, null to run the tasks on a
+	 work-stealing pool.
+	 */
+	AgentPool(int parallelism, VirtualThreads virtual) {
+		this.parallelism = parallelism;
+		this.virtual = virtual;
+		if (virtual != null) {
+			permits = new Semaphore(parallelism, true);
+			holdsPermit = new ThreadLocal<Boolean>();
+			pool = null;
+			return;
+		}
+		permits = null;
+		holdsPermit = null;
+		// FIFO order: agent tasks are never joined
+		pool = new ForkJoinPool(parallelism, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+			public ForkJoinWorkerThread newThread(ForkJoinPool p) {
+				ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+				t.setName("JADE Agent Pool-" + t.getPoolIndex());
+				return t;
+			}
+		}, null, true);
+	}
+
+	void execute(final Runnable task) {
+		if (virtual == null) {
+			pool.execute(task);
+			return;
+		}
+		Runnable r = new Runnable() {
+			public void run() {
+				// Parks the virtual thread, not a carrier, while all permits are taken
+				permits.acquireUninterruptibly();
+				holdsPermit.set(Boolean.TRUE);
+				try {
+					task.run();
+				}
+				finally {
+					if (holdsPermit.get() != null) {
+						holdsPermit.remove();
+						permits.release();
+					}
+				}
+			}
+		};
+		try {
+			virtual.newThread("JADE Agent Pool", r).start();
+		}
+		catch (Exception e) {
+			myLogger.log(Logger.SEVERE, "Cannot start virtual thread for an agent pool task", e);
+		}
+	}
+
+	/**
+	 Waits on the monitor of a lock the caller holds, like
+	 <code>lock.wait(millis)</code>. In a task of this pool the wait holds
+	 no thread on virtual threads: the task gives its permit back and runs
+	 without one until it ends, as reacquiring it while holding the lock
+	 could deadlock with a task that needs the lock. On a work-stealing
+	 pool the wait is a managed block that starts a spare thread; the
+	 first such wait, and every time their number doubles, logs a warning
+	 naming the agent.
+	 */
+	void await(String agentName, final Object lock, final long millis) throws InterruptedException {
+		if (virtual != null) {
+			if (holdsPermit.get() != null) {
+				holdsPermit.remove();
+				permits.release();
+			}
+			lock.wait(millis);
+			return;
+		}
+		Thread t = Thread.currentThread();
+		if (!(t instanceof ForkJoinWorkerThread) || ((ForkJoinWorkerThread) t).getPool() != pool) {
+			lock.wait(millis);
+			return;
+		}
+		int n = blocked.incrementAndGet();
+		try {
+			int w = warnAt.get();
+			if (n >= w && warnAt.compareAndSet(w, n * 2)) {
+				myLogger.log(Logger.WARNING, "Agent "+agentName+" waits in doWait(), blockingReceive() or a suspended state on the agent pool: "+n+" agent(s) hold a thread each on top of the "+parallelism+" pool threads. Use behaviours that block(), or a JVM with virtual threads, to wait without a thread");
+			}
+			managedWait(lock, millis);
+		}
+		finally {
+			blocked.decrementAndGet();
+		}
+	}
+
+	private void managedWait(final Object lock, final long millis) throws InterruptedException {
+		ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+			private boolean done = false;
+
+			public boolean block() throws InterruptedException {
+				lock.wait(millis);
+				done = true;
+				return true;
+			}
+
+			public boolean isReleasable() {
+				return done;
+			}
+		});
+	}
+
+	void shutdown() {
+		if (pool != null) {
+			pool.shutdown();
+		}
+	}
+}
@@ -66,6 +66,23 @@ class FullResourceManager implements ResourceManager {
 		criticalThreads.setMaxPriority(Thread.MAX_PRIORITY);
 	}
 
+	/**
+	 The thread group the threads of a given type belong to, null for
+	 an unknown type or once the resources have been released.
+	 */
+	ThreadGroup getThreadGroup(int type) {
+		switch (type) {
+		case USER_AGENTS:
+			return agentThreads;
+		case SYSTEM_AGENTS:
+			return systemAgentThreads;
+		case TIME_CRITICAL:
+			return criticalThreads;
+		default:
+			return null;
+		}
+	}
+
 	public Thread getThread(int type, String name, Runnable r) {
 		Thread t = null;
 		switch (type) {
@@ -101,9 +118,7 @@ class FullResourceManager implements ResourceManager {
 						e.printStackTrace();
 					}
 					
-					if (parent != null) {
-						parent.interrupt();
-					}
+					interruptThreads();
 	
 					agentThreads = null;
 					systemAgentThreads = null;
@@ -115,6 +130,16 @@ class FullResourceManager implements ResourceManager {
 		}
 	}
 
+	/**
+	 Interrupts the threads still running once the resources are
+	 released and the interrupt timeout has elapsed.
+	 */
+	void interruptThreads() {
+		if (parent != null) {
+			parent.interrupt();
+		}
+	}
+
 	public void initialize(Profile p) {
 		myProfile = p;
 		
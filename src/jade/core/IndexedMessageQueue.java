@@ -0,0 +1,320 @@
+/*****************************************************************
+ JADE - Java Agent DEvelopment Framework is a framework to develop
+ multi-agent systems in compliance with the FIPA specifications.
+ Copyright (C) 2000 CSELT S.p.A.
+
+ GNU Lesser General Public License
+
+ This library is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation,
+ version 2.1 of the License.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the
+ Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ Boston, MA  02111-1307, USA.
+ *****************************************************************/
+
+package jade.core;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+import jade.util.Logger;
+import jade.util.leap.List;
+
+/**
+ A message queue that keeps secondary hash indexes on the conversation-id,
+ in-reply-to, sender and performative of the queued messages.
+ <p>
+ A <code>receive()</code> with a template that requires a value for one of
+ these slots (a literal, or an <em>and</em> of literals, see
+ <code>MessageTemplate.getRequiredValue()</code>) only looks at the
+ messages with that key, taking the smallest of the candidate sets, and
+ returns <code>null</code> at once when no queued message has the key.
+ A template that is nothing but one key takes the oldest message of the
+ bucket without running the template at all. Other templates fall back to a scan of the whole queue, as in the
+ default queue. Messages are always returned in queue order.
+ <p>
+ Protocol behaviours poll with conversation-id and in-reply-to templates,
+ so an agent holding many queued messages no longer pays a full scan per
+ behaviour per scheduling round. Select it with the
+ <code>Agent.MSG_QUEUE_CLASS</code> property:
+ <pre>
+ jade_core_Agent_msgQueueClass=jade.core.IndexedMessageQueue
+ </pre>
+ Like the default queue it relies on the agent's lock on the queue
+ object, it is not synchronized itself.
+
+ @see Agent#MSG_QUEUE_CLASS
+ */
+public class IndexedMessageQueue implements MessageQueue {
+
+	private static final int CONVERSATION_ID = 0;
+	private static final int IN_REPLY_TO = 1;
+	private static final int SENDER = 2;
+	private static final int PERFORMATIVE = 3;
+	private static final int INDEXES = 4;
+
+	private static final int[] TEMPLATE_KEYS = new int[] {
+		MessageTemplate.KEY_CONVERSATION_ID,
+		MessageTemplate.KEY_IN_REPLY_TO,
+		MessageTemplate.KEY_SENDER,
+		MessageTemplate.KEY_PERFORMATIVE
+	};
+
+	/**
+	 A queued message, linked in the queue and in the bucket of each of its keys.
+	 */
+	private static class Node {
+		final ACLMessage msg;
+		Node prev;
+		Node next;
+		final Node[] keyPrev = new Node[INDEXES];
+		final Node[] keyNext = new Node[INDEXES];
+		final Bucket[] buckets = new Bucket[INDEXES];
+
+		Node(ACLMessage msg) {
+			this.msg = msg;
+		}
+	}
+
+	/**
+	 The queued messages with one key, in queue order.
+	 */
+	private static class Bucket {
+		final Object key;
+		Node head;
+		Node tail;
+		int size;
+
+		Bucket(Object key) {
+			this.key = key;
+		}
+	}
+
+	private final Map<Object, Bucket>[] indexes;
+	private Node head;
+	private Node tail;
+	private int size = 0;
+	private int maxSize;
+	private Agent myAgent;
+	private Logger myLogger = Logger.getJADELogger(getClass().getName());
+
+	@SuppressWarnings("unchecked")
+	public IndexedMessageQueue(int size, Agent a) {
+		maxSize = size;
+		myAgent = a;
+		indexes = new Map[INDEXES];
+		for (int i = 0; i < INDEXES; i++) {
+			indexes[i] = new HashMap<Object, Bucket>();
+		}
+	}
+
+	/**
+	 Used by <code>Agent.createMessageQueue()</code>, the agent sets the size afterwards.
+	 */
+	public IndexedMessageQueue() {
+		this(0, null);
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void setMaxSize(int newSize) throws IllegalArgumentException {
+		if(newSize < 0)
+			throw new IllegalArgumentException("Invalid MsgQueue size");
+		maxSize = newSize;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void addFirst(ACLMessage msg) {
+		if((maxSize != 0) && (size >= maxSize)) {
+			unlink(head); // FIFO replacement policy
+		}
+		link(new Node(msg), true);
+	}
+
+	public void addLast(ACLMessage msg) {
+		if((maxSize != 0) && (size >= maxSize)) {
+			unlink(head); // FIFO replacement policy
+			myLogger.log(Logger.SEVERE, "Agent "+getAgentName()+" - Message queue size exceeded. Message discarded!!!!!");
+		}
+		link(new Node(msg), false);
+	}
+
+	private String getAgentName() {
+		return myAgent != null ? myAgent.getLocalName() : "null";
+	}
+
+	public ACLMessage receive(MessageTemplate pattern) {
+		if (size == 0) {
+			return null;
+		}
+		if (pattern == null) {
+			Node n = head;
+			unlink(n);
+			return n.msg;
+		}
+
+		if (pattern.matchesNothing()) {
+			return null;
+		}
+
+		// The smallest bucket among the keys the template requires
+		Bucket best = null;
+		int bestIndex = -1;
+		int keys = 0;
+		for (int i = 0; i < INDEXES; i++) {
+			Object value = pattern.getRequiredValue(TEMPLATE_KEYS[i]);
+			if (value == null) {
+				continue;
+			}
+			keys++;
+			Bucket b = indexes[i].get(normalize(value));
+			if (b == null) {
+				return null; // No queued message has the required key
+			}
+			if (best == null || b.size < best.size) {
+				best = b;
+				bestIndex = i;
+			}
+		}
+
+		if (best != null && keys == 1 && pattern.isKeyOnly()) {
+			// Every message with the key matches, take the oldest
+			Node n = best.head;
+			unlink(n);
+			return n.msg;
+		}
+		if (best != null) {
+			for (Node n = best.head; n != null; n = n.keyNext[bestIndex]) {
+				if (pattern.match(n.msg)) {
+					unlink(n);
+					return n.msg;
+				}
+			}
+		}
+		else {
+			for (Node n = head; n != null; n = n.next) {
+				if (pattern.match(n.msg)) {
+					unlink(n);
+					return n.msg;
+				}
+			}
+		}
+		return null;
+	}
+
+	public void copyTo(List messages) {
+		for (Node n = head; n != null; n = n.next) {
+			messages.add(n.msg);
+		}
+	}
+
+	private void link(Node n, boolean first) {
+		if (first) {
+			n.next = head;
+			if (head != null) head.prev = n; else tail = n;
+			head = n;
+		}
+		else {
+			n.prev = tail;
+			if (tail != null) tail.next = n; else head = n;
+			tail = n;
+		}
+		size++;
+
+		for (int i = 0; i < INDEXES; i++) {
+			Object key = keyOf(i, n.msg);
+			if (key == null) {
+				continue;
+			}
+			Bucket b = indexes[i].get(key);
+			if (b == null) {
+				b = new Bucket(key);
+				indexes[i].put(key, b);
+			}
+			n.buckets[i] = b;
+			if (first) {
+				n.keyNext[i] = b.head;
+				if (b.head != null) b.head.keyPrev[i] = n; else b.tail = n;
+				b.head = n;
+			}
+			else {
+				n.keyPrev[i] = b.tail;
+				if (b.tail != null) b.tail.keyNext[i] = n; else b.head = n;
+				b.tail = n;
+			}
+			b.size++;
+		}
+	}
+
+	private void unlink(Node n) {
+		if (n.prev != null) n.prev.next = n.next; else head = n.next;
+		if (n.next != null) n.next.prev = n.prev; else tail = n.prev;
+		n.prev = null;
+		n.next = null;
+		size--;
+
+		for (int i = 0; i < INDEXES; i++) {
+			Bucket b = n.buckets[i];
+			if (b == null) {
+				continue;
+			}
+			Node p = n.keyPrev[i];
+			Node q = n.keyNext[i];
+			if (p != null) p.keyNext[i] = q; else b.head = q;
+			if (q != null) q.keyPrev[i] = p; else b.tail = p;
+			n.keyPrev[i] = null;
+			n.keyNext[i] = null;
+			n.buckets[i] = null;
+			if (--b.size == 0) {
+				indexes[i].remove(b.key);
+			}
+		}
+	}
+
+	/**
+	 The key of a message in an index, null if the slot is not set.
+	 */
+	private static Object keyOf(int index, ACLMessage msg) {
+		switch (index) {
+		case CONVERSATION_ID:
+			return normalize(msg.getConversationId());
+		case IN_REPLY_TO:
+			return normalize(msg.getInReplyTo());
+		case SENDER:
+			return msg.getSender();
+		default:
+			return Integer.valueOf(msg.getPerformative());
+		}
+	}
+
+	/**
+	 String slots match ignoring case, they are indexed lower case. AIDs already
+	 compare and hash ignoring case.
+	 */
+	private static Object normalize(Object value) {
+		if (value instanceof String) {
+			return ((String) value).toLowerCase();
+		}
+		return value;
+	}
+}
@@ -230,6 +230,29 @@ public abstract class Profile {
 	public static final String ACCEPT_FOREIGN_AGENTS = "accept-foreign-agents";
 	
 	public static final String STYLE_3_X = "style3-x";
+	
+	/**
+	 This constant is the key of the property whose value indicates the
+	 number of threads of a work-stealing pool shared by the user agents
+	 of the container. Each agent then runs on the pool as a task when it
+	 has ready behaviours and takes no thread while it has none. The
+	 default value 0 gives each agent a thread of its own.
+	 When the JVM has virtual threads that do not pin in
+	 <code>Object.wait()</code> the tasks run on them, and an agent
+	 inside <code>doWait()</code> or <code>blockingReceive()</code> holds
+	 no thread either. Otherwise only agents that wait in blocked
+	 behaviours give their thread back, a blocking wait holds a thread as
+	 without the pool.
+	 */
+	public static final String AGENT_POOL = "agent-pool";
+	
+	/**
+	 This constant is the key of the property whose value (true or false)
+	 indicates whether or not the agents of the container run on virtual
+	 threads, when the JVM supports them (see
+	 <code>jade.core.VirtualThreadResourceManager</code>). Default is false.
+	 */
+	public static final String VIRTUAL_THREADS = "virtual-threads";
 		
 	/**
 	 * This constant is the key of the property whose value contains
@@ -542,7 +542,7 @@ public class ProfileImpl extends Profile {
 	private void createResourceManager() throws ProfileException {
 		//#J2ME_EXCLUDE_BEGIN
 		
-		String className = getParameter(RESOURCE, "jade.core.FullResourceManager");
+		String className = getParameter(RESOURCE, getBooleanProperty(VIRTUAL_THREADS, false) ? "jade.core.VirtualThreadResourceManager" : "jade.core.FullResourceManager");
 		//#J2ME_EXCLUDE_END
 		/*#J2ME_INCLUDE_BEGIN
 		 String className = getParameter(RESOURCE, "jade.core.LightResourceManager");
@@ -21,6 +21,11 @@ import java.util.Random;
 // send-receive iterations, using messages with a content of 10K and waiting 5 secs after each
 // iteration. 
 // FrontEnds connect to the local host (default) on port 2099 and using the ssl protocol.  
+//
+// java -cp .... -jade.port 2099 -measure hold -backend virtual -wait blocking -n 100000
+// Launch a container in this JVM and start up to 100000 agents, all waiting in blockingReceive(), 
+// on virtual threads. Print how many agents the container held, the threads and the heap used 
+// every 1000 agents, then the time it took to wake them all.
 public class ScalabilityTest {
 	// Size of the content of each message exchanged during the test
 	private static final String CONTENT_SIZE = "s";
@@ -68,8 +73,30 @@ public class ScalabilityTest {
 	private static final String MEASURE = "measure";
 	private static final String BITRATE_MEASURE_S = "bitrate";
 	private static final String RTT_MEASURE_S = "rtt";
+	private static final String HOLD_MEASURE_S = "hold";
 	private static final int BITRATE_MEASURE = 0;
 	private static final int RTT_MEASURE = 1;
+	private static final int HOLD_MEASURE = 2;
+
+	// Hold measure only: how the agents of the local container are executed
+	// - platform: each agent has its own platform thread (default)
+	// - virtual: each agent has its own virtual thread, if the JVM supports them
+	// - pool: the agents share the agent pool. Without virtual threads, an agent in
+	//   blockingReceive() holds a spare pool thread for the whole wait
+	private static final String BACKEND = "backend";
+	private static final String PLATFORM_BACKEND_S = "platform";
+	private static final String VIRTUAL_BACKEND_S = "virtual";
+	private static final String POOL_BACKEND_S = "pool";
+	
+	// Hold measure only: how the agents wait for their message
+	// - blocking: in blockingReceive() (default)
+	// - behaviour: with a blocked behaviour
+	private static final String WAIT = "wait";
+	private static final String BEHAVIOUR_WAIT_S = "behaviour";
+	
+	// Hold measure only: agents held so far and agents that got their message
+	private static int heldCnt = 0;
+	private static int wokenCnt = 0;
 
 	private static Object terminatedLock = new Object();
 	private static Object readyLock = new Object();	
@@ -169,10 +196,18 @@ public class ScalabilityTest {
 			if (RTT_MEASURE_S.equals(measureStr)) {
 				measure = RTT_MEASURE;
 			}
+			else if (HOLD_MEASURE_S.equals(measureStr)) {
+				measure = HOLD_MEASURE;
+			}
 		}
 		catch (Exception e) {
 			// Keep default
 		}
+		
+		if (measure == HOLD_MEASURE) {
+			hold(jadeProps, pp.getProperty(BACKEND, PLATFORM_BACKEND_S), !BEHAVIOUR_WAIT_S.equals(pp.getProperty(WAIT)));
+			System.exit(0);
+		}
 
 		String prefix = Profile.getDefaultNetworkName();
 		for (int i = base; i < base+nCouples; i++) {
@@ -341,6 +376,96 @@ public class ScalabilityTest {
 		fer.start(pp);
 	}
 
+	/**
+	   Start up to nCouples agents in a container in this JVM, each waiting for 
+	   a message, until the container can hold no more. Then send each one its
+	   message and wait until they all got it.
+	 */
+	private static void hold(Properties jadeProps, String backend, boolean blocking) {
+		if (jadeProps.getProperty(Profile.MAIN) == null) {
+			jadeProps.setProperty(Profile.MAIN, "true");
+		}
+		if (jadeProps.getProperty(Profile.NO_MTP) == null) {
+			jadeProps.setProperty(Profile.NO_MTP, "true");
+		}
+		if (POOL_BACKEND_S.equals(backend)) {
+			jadeProps.setProperty(Profile.AGENT_POOL, String.valueOf(java.lang.Runtime.getRuntime().availableProcessors()));
+		}
+		else if (VIRTUAL_BACKEND_S.equals(backend)) {
+			jadeProps.setProperty(Profile.VIRTUAL_THREADS, "true");
+		}
+		jade.wrapper.AgentContainer container = jade.core.Runtime.instance().createMainContainer(new ProfileImpl(jadeProps));
+		String agentClass = "jade.core.ScalabilityTest$"+(blocking ? "BlockingHolderAgent" : "BehaviourHolderAgent");
+		System.out.println("Hold measure: backend "+backend+", agents waiting in "+(blocking ? "blockingReceive()" : "a blocked behaviour"));
+
+		long start = System.currentTimeMillis();
+		int started = 0;
+		try {
+			for (; started < nCouples; started++) {
+				container.createNewAgent("H-"+started, agentClass, null).start();
+				if ((started+1) % 1000 == 0) {
+					waitUntilHeld(started+1);
+					printHeld(started+1, start);
+				}
+			}
+		}
+		catch (Throwable t) {
+			// E.g. OutOfMemoryError: unable to create new native thread
+			System.out.println("Agent #"+started+" could not be started: "+t);
+		}
+		waitUntilHeld(started);
+		printHeld(started, start);
+
+		try {
+			start = System.currentTimeMillis();
+			container.createNewAgent("Waker", "jade.core.ScalabilityTest$WakerAgent", new Object[]{new Integer(started)}).start();
+			synchronized (terminatedLock) {
+				while (wokenCnt < started) {
+					terminatedLock.wait();
+				}
+			}
+			System.out.println("----------------------------------\nTest completed successufully.\nAgents held = "+started+"\nTime to wake them all (ms) = "+(System.currentTimeMillis() - start)+"\n----------------------------------");
+		}
+		catch (Throwable t) {
+			System.out.println("Held agents could not be woken: "+t);
+		}
+	}
+	
+	private static void waitUntilHeld(int n) {
+		synchronized (readyLock) {
+			while (heldCnt < n) {
+				try {
+					readyLock.wait();
+				}
+				catch (InterruptedException ie) {
+					ie.printStackTrace();
+				}
+			}
+		}
+	}
+	
+	private static void printHeld(int n, long start) {
+		java.lang.Runtime rt = java.lang.Runtime.getRuntime();
+		long usedHeap = (rt.totalMemory() - rt.freeMemory()) / (1024 * 1024);
+		System.out.println(n+" agents held in "+(System.currentTimeMillis() - start)+" ms: "+Thread.activeCount()+" platform threads, "+usedHeap+" MB heap");
+	}
+	
+	private static void notifyHeld() {
+		synchronized (readyLock) {
+			heldCnt++;
+			readyLock.notifyAll();
+		}
+	}
+	
+	private static void notifyWoken() {
+		synchronized (terminatedLock) {
+			wokenCnt++;
+			if (wokenCnt % 1000 == 0 || wokenCnt == heldCnt) {
+				terminatedLock.notifyAll();
+			}
+		}
+	}
+
 	private static void notifyTerminated(long time, long time2) {
 		synchronized (terminatedLock) {
 			totalTime += time;
@@ -579,4 +704,73 @@ public class ScalabilityTest {
 		}
 	} // END of inner class RTTReceiverAgent
 
+
+	/**
+	   Inner class BlockingHolderAgent
+	   Waits for a message in blockingReceive(), then terminates.
+	 */
+	public static class BlockingHolderAgent extends Agent {
+		protected void setup() {
+			addBehaviour(new OneShotBehaviour(this) {
+				public void action() {
+					notifyHeld();
+					myAgent.blockingReceive();
+					notifyWoken();
+					myAgent.doDelete();
+				}
+			} );
+		}
+	} // END of inner class BlockingHolderAgent
+
+
+	/**
+	   Inner class BehaviourHolderAgent
+	   Waits for a message with a blocked behaviour, then terminates.
+	 */
+	public static class BehaviourHolderAgent extends Agent {
+		protected void setup() {
+			addBehaviour(new SimpleBehaviour(this) {
+				private boolean held = false;
+				private boolean woken = false;
+				
+				public void action() {
+					if (!held) {
+						held = true;
+						notifyHeld();
+					}
+					if (myAgent.receive() != null) {
+						woken = true;
+						notifyWoken();
+						myAgent.doDelete();
+					}
+					else {
+						block();
+					}
+				}
+				
+				public boolean done() {
+					return woken;
+				}
+			} );
+		}
+	} // END of inner class BehaviourHolderAgent
+
+
+	/**
+	   Inner class WakerAgent
+	   Sends a message to each held agent.
+	 */
+	public static class WakerAgent extends Agent {
+		protected void setup() {
+			int n = ((Integer) getArguments()[0]).intValue();
+			ACLMessage msg = new ACLMessage(ACLMessage.INFORM);
+			for (int i = 0; i < n; i++) {
+				msg.clearAllReceiver();
+				msg.addReceiver(new AID("H-"+i, AID.ISLOCALNAME));
+				send(msg);
+			}
+			doDelete();
+		}
+	} // END of inner class WakerAgent
+
 }
\ No newline at end of file
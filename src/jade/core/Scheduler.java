@@ -24,15 +24,14 @@
 
 package jade.core;
 
-import java.util.Vector;
+import java.util.HashMap;
+import java.util.Map;
 
-import jade.util.leap.List;
-import jade.util.leap.LinkedList;
-import jade.util.leap.Iterator;
-import jade.util.leap.EnumIterator;
 import jade.util.leap.Serializable;
 
 import jade.core.behaviours.Behaviour;
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
 
 /**
  @author Giovanni Rimassa - Universita' di Parma
@@ -54,20 +53,83 @@ import jade.core.behaviours.Behaviour;
  + Manages the resources needed to synchronize and execute agent
  behaviours, such as thread pools, locks, etc.
  
+ + Restarts the behaviours that may be waiting for a message when
+ the message arrives.
+ (Agent, MessageTemplate)
+ 
  ****************************************************************/
+
+/**
+ Each behaviour holds a slot in the scheduler arrays (see
+ <code>Behaviour.getSchedulerSlot()</code>). The ready and the blocked
+ behaviours are two circular lists linked through the slot indexes, so
+ adding, blocking, restarting and removing a behaviour cost the same
+ whatever the number of behaviours, and the round-robin just follows
+ the links.
+ <p>
+ While a behaviour runs, the templates it passes to
+ <code>Agent.receive()</code> are recorded in its slot. When a message
+ arrives only the behaviours whose recorded templates could match it
+ are restarted; the behaviours waiting for a given conversation-id are
+ indexed on it, so a message for one of many protocol sessions does not
+ visit the others. The templates are forgotten when the behaviour is
+ restarted by a message, then it runs again and polls afresh. A
+ behaviour that recorded no template, called <code>receive()</code>
+ without one, or used too many, is restarted by every message as it
+ always was.
+ */
 class Scheduler implements Serializable {
 	
+	private static final byte FREE = 0;
+	private static final byte READY = 1;
+	private static final byte BLOCKED = 2;
 	
-	//#MIDP_EXCLUDE_BEGIN
-	protected List readyBehaviours = new LinkedList();
-	protected List blockedBehaviours = new LinkedList();
-	//#MIDP_EXCLUDE_END
-	/*#MIDP_INCLUDE_BEGIN
-	 protected Vector readyBehaviours = new Vector();
-	 protected Vector blockedBehaviours = new Vector();
-	 #MIDP_INCLUDE_END*/
+	// Number of templates recorded for a behaviour before it is woken up by any message
+	private static final int MAX_WAITS = 4;
+	// Recorded templates count of a behaviour woken up by any message
+	private static final int ANY = -1;
+	
+	/**
+	 The behaviours waiting for a message, with the same conversation-id or,
+	 when key is null, with no conversation-id in common.
+	 */
+	private static class WaitList implements Serializable {
+		final String key;
+		int head = -1;
+		
+		WaitList(String key) {
+			this.key = key;
+		}
+	}
 	
+	/**
+	 @serial
+	 */
+	private Behaviour[] slots = new Behaviour[8];
+	private byte[] state = new byte[8];
+	// Ready/blocked circular lists, the free slots are linked through next
+	private int[] prev = new int[8];
+	private int[] next = new int[8];
+	private int readyHead = -1;
+	private int blockedHead = -1;
+	private int readyCount = 0;
+	private int blockedCount = 0;
+	private int freeHead = -1;
+	private int used = 0;
+	
+	// Templates recorded by each behaviour and the wait list it is in
+	private MessageTemplate[][] waits = new MessageTemplate[8][];
+	private int[] waitCount = new int[8];
+	private WaitList[] waitList = new WaitList[8];
+	private int[] waitPrev = new int[8];
+	private int[] waitNext = new int[8];
+	private WaitList anyWait = new WaitList(null);
+	private Map<String, WaitList> keyWaits = new HashMap<String, WaitList>();
 	
+	private transient Behaviour[] wakeBuffer;
+	private transient volatile Behaviour running;
+	// The agent runs on the agent pool and gave its thread back
+	private transient boolean parked = false;
 	
 	/**
 	 @serial
@@ -75,27 +137,29 @@ class Scheduler implements Serializable {
 	private Agent owner;
 	
 	/**
+	 The slot of the next ready behaviour to run, -1 if there is none.
 	 @serial
 	 */
 	private int currentIndex;
 	
 	public Scheduler(Agent a) {
 		owner = a;
-		currentIndex = 0;
+		currentIndex = -1;
 	}
 	
 	// Add a behaviour at the end of the behaviours queue. 
-	// This can never change the index of the current behaviour.
+	// This can never change the current behaviour.
 	// If the behaviours queue was empty notifies the embedded thread of
 	// the owner agent that a behaviour is now available.
 	public synchronized void add(Behaviour b) {
-		//#MIDP_EXCLUDE_BEGIN
-		readyBehaviours.add(b);
-		//#MIDP_EXCLUDE_END
-		/*#MIDP_INCLUDE_BEGIN
-		 readyBehaviours.addElement(b);
-		 #MIDP_INCLUDE_END*/
+		if (slotOf(b) >= 0) {
+			return;
+		}
+		link(allocate(b), READY);
 		notify();
+		//#J2ME_EXCLUDE_BEGIN
+		resume();
+		//#J2ME_EXCLUDE_END
 		//#MIDP_EXCLUDE_BEGIN
 		owner.notifyAddBehaviour(b);
 		//#MIDP_EXCLUDE_END
@@ -103,13 +167,10 @@ class Scheduler implements Serializable {
 	
 	// Moves a behaviour from the ready queue to the sleeping queue.
 	public synchronized void block(Behaviour b) {
-		if (removeFromReady(b)) {
-			//#MIDP_EXCLUDE_BEGIN
-			blockedBehaviours.add(b);
-			//#MIDP_EXCLUDE_END
-			/*#MIDP_INCLUDE_BEGIN
-			 blockedBehaviours.addElement(b);
-			 #MIDP_INCLUDE_END*/
+		int s = slotOf(b);
+		if (s >= 0 && state[s] == READY) {
+			unlink(s);
+			link(s, BLOCKED);
 			//#MIDP_EXCLUDE_BEGIN
 			owner.notifyChangeBehaviourState(b, Behaviour.STATE_READY, Behaviour.STATE_BLOCKED);
 			//#MIDP_EXCLUDE_END
@@ -118,14 +179,14 @@ class Scheduler implements Serializable {
 	
 	// Moves a behaviour from the sleeping queue to the ready queue.
 	public synchronized void restart(Behaviour b) {
-		if (removeFromBlocked(b)) {
-			//#MIDP_EXCLUDE_BEGIN
-			readyBehaviours.add(b);
-			//#MIDP_EXCLUDE_END
-			/*#MIDP_INCLUDE_BEGIN
-			 readyBehaviours.addElement(b);
-			 #MIDP_INCLUDE_END*/
+		int s = slotOf(b);
+		if (s >= 0 && state[s] == BLOCKED) {
+			unlink(s);
+			link(s, READY);
 			notify();
+			//#J2ME_EXCLUDE_BEGIN
+			resume();
+			//#J2ME_EXCLUDE_END
 			//#MIDP_EXCLUDE_BEGIN
 			owner.notifyChangeBehaviourState(b, Behaviour.STATE_BLOCKED, Behaviour.STATE_READY);
 			//#MIDP_EXCLUDE_END
@@ -137,64 +198,54 @@ class Scheduler implements Serializable {
 	 Behaviour.restart() on every behaviour. The
 	 Behaviour.restart() method then notifies the agent (with the
 	 Agent.notifyRestarted() method), causing Scheduler.restart() to
-	 be called (this also moves behaviours from the blocked queue to 
-	 the ready queue --> we must copy all behaviours into a temporary
-	 buffer to avoid concurrent modification exceptions).
+	 be called. This moves the restarted behaviour alone from the
+	 blocked queue to the tail of the ready queue, so the queues are
+	 walked in place remembering the next behaviour before each restart.
 	 Why not restarting only blocked behaviours?
 	 Some ready behaviour can be a ParallelBehaviour with some of its
 	 children blocked. These children must be restarted too.
 	 */
 	public synchronized void restartAll() {
-		
-		Behaviour[] behaviours = new Behaviour[readyBehaviours.size()];
-		int counter = 0;
-		//#MIDP_EXCLUDE_BEGIN
-		for(Iterator it = readyBehaviours.iterator(); it.hasNext();)
-			//#MIDP_EXCLUDE_END
-			/*#MIDP_INCLUDE_BEGIN
-			 for(Iterator it = new EnumIterator(readyBehaviours.elements()); it.hasNext();)
-			 #MIDP_INCLUDE_END*/
-			behaviours[counter++] = (Behaviour)it.next();
-		
-		for(int i = 0; i < behaviours.length; i++) {
-			Behaviour b = behaviours[i];
-			b.restart();
+		int s = readyHead;
+		for (int n = readyCount; n > 0 && state[s] == READY; n--) {
+			int following = next[s];
+			clearWaits(s);
+			slots[s].restart();
+			s = following;
 		}
 		
-		behaviours = new Behaviour[blockedBehaviours.size()];
-		counter = 0;
-		//#MIDP_EXCLUDE_BEGIN
-		for(Iterator it = blockedBehaviours.iterator(); it.hasNext();) {
-			//#MIDP_EXCLUDE_END
-			/*#MIDP_INCLUDE_BEGIN
-			 for(Iterator it = new EnumIterator(blockedBehaviours.elements()); it.hasNext();) {
-			 #MIDP_INCLUDE_END*/
-			
-			//#DOTNET_EXCLUDE_BEGIN
-			behaviours[counter++] = (Behaviour)it.next();
-			//#DOTNET_EXCLUDE_END
-			/*#DOTNET_INCLUDE_BEGIN
-			 Object tmpB = null;
-			 try // Hack: sometimes .NET inserts into this array a non-Behaviour object
-			 { 
-			 tmpB = it.next();
-			 behaviours[counter++] = (Behaviour)tmpB;
-			 }
-			 catch(ClassCastException cce) 
-			 {
-			 System.out.println("Found an object of type "+tmpB.getClass().getName()+" instead of Behaviour");
-			 cce.printStackTrace();
-			 }
-			 #DOTNET_INCLUDE_END*/
+		s = blockedHead;
+		for (int n = blockedCount; n > 0 && state[s] == BLOCKED; n--) {
+			int following = next[s];
+			clearWaits(s);
+			slots[s].restart();
+			s = following;
+		}
+	}
+	
+	/**
+	 Restarts the behaviours that may be waiting for a given message,
+	 i.e. those whose templates recorded by <code>noteReceive()</code>
+	 could match it, and those with no usable record.
+	 */
+	public synchronized void restartMatching(ACLMessage msg) {
+		int found = collect(anyWait, msg, 0);
+		String key = msg.getConversationId();
+		if (key != null) {
+			WaitList l = keyWaits.get(key.toLowerCase());
+			if (l != null) {
+				found = collect(l, msg, found);
+			}
 		}
 		
-		for(int i = 0; i < behaviours.length; i++) {
-			Behaviour b = behaviours[i];
-			/*#DOTNET_INCLUDE_BEGIN
-			 if (b != null)
-			 #DOTNET_INCLUDE_END*/
-			b.restart();
-			
+		for (int i = 0; i < found; i++) {
+			Behaviour b = wakeBuffer[i];
+			wakeBuffer[i] = null;
+			int s = slotOf(b);
+			if (s >= 0) {
+				clearWaits(s);
+				b.restart();
+			}
 		}
 	}
 	
@@ -202,11 +253,10 @@ class Scheduler implements Serializable {
 	 Removes a specified behaviour from the scheduler
 	 */
 	public synchronized void remove(Behaviour b) {
-		boolean found = removeFromBlocked(b);
-		if(!found) {
-			found = removeFromReady(b);
-		}
-		if (found) {
+		int s = slotOf(b);
+		if (s >= 0) {
+			unlink(s);
+			release(s);
 			//#MIDP_EXCLUDE_BEGIN
 			owner.notifyRemoveBehaviour(b);    
 			//#MIDP_EXCLUDE_END
@@ -218,100 +268,356 @@ class Scheduler implements Serializable {
 	 round-robin algorithm.
 	 */
 	public synchronized Behaviour schedule() throws InterruptedException {
-		while(readyBehaviours.isEmpty()) {
+		while(readyCount == 0) {
 			owner.idle();
 		}
 		
-		//#MIDP_EXCLUDE_BEGIN
-		Behaviour b = (Behaviour)readyBehaviours.get(currentIndex);
-		//#MIDP_EXCLUDE_END
-		/*#MIDP_INCLUDE_BEGIN
-		 Behaviour b = (Behaviour)readyBehaviours.elementAt(currentIndex);
-		 #MIDP_INCLUDE_END*/
-		currentIndex = (currentIndex + 1) % readyBehaviours.size();
+		Behaviour b = slots[currentIndex];
+		currentIndex = next[currentIndex];
 		return b;
 	}
 	
+	//#J2ME_EXCLUDE_BEGIN
+	/**
+	 Marks the agent as parked, called by Agent.idle() from schedule()
+	 when the agent runs on the agent pool.
+	 */
+	void park() {
+		parked = true;
+	}
 	
-	//#MIDP_EXCLUDE_BEGIN
+	/**
+	 Clears the parked mark.
+	 @return true if the agent was parked and must be submitted again.
+	 */
+	synchronized boolean unpark() {
+		boolean p = parked;
+		parked = false;
+		return p;
+	}
 	
-	// Helper method for persistence service
-	public synchronized Behaviour[] getBehaviours() {
-		
-		Behaviour[] result = new Behaviour[blockedBehaviours.size() + readyBehaviours.size()];
-		Iterator itReady = readyBehaviours.iterator();
-		Iterator itBlocked = blockedBehaviours.iterator();
-		for(int i = 0; i < result.length; i++) {
-			Behaviour b = null;
-			if(itReady.hasNext()) {
-				b = (Behaviour)itReady.next();
-			}
-			else {
-				b = (Behaviour)itBlocked.next();
+	// Submits the agent to the pool again if it is parked
+	private void resume() {
+		if (parked) {
+			parked = false;
+			owner.resumeSegment();
+		}
+	}
+	//#J2ME_EXCLUDE_END
+	
+	/**
+	 Sets the behaviour whose action is being executed, null when none is.
+	 The templates of the receive operations performed meanwhile are
+	 recorded for it.
+	 */
+	void setRunning(Behaviour b) {
+		running = b;
+	}
+	
+	/**
+	 Records that the running behaviour polled the message queue with a
+	 given template (null for any message). To be called on the agent
+	 thread only.
+	 */
+	synchronized void noteReceive(MessageTemplate pattern) {
+		Behaviour b = running;
+		int s = (b != null ? slotOf(b) : -1);
+		if (s < 0 || waitCount[s] == ANY) {
+			return;
+		}
+		int n = waitCount[s];
+		MessageTemplate[] w = waits[s];
+		for (int i = 0; i < n; i++) {
+			if (w[i] == pattern) {
+				return;
 			}
-			
-			result[i] = b;
-			
 		}
+		if (pattern == null || n == MAX_WAITS) {
+			waitCount[s] = ANY;
+			waitOn(s, anyWait);
+			return;
+		}
+		
+		if (w == null) {
+			w = new MessageTemplate[MAX_WAITS];
+			waits[s] = w;
+		}
+		w[n] = pattern;
+		waitCount[s] = n + 1;
 		
+		Object value = pattern.getRequiredValue(MessageTemplate.KEY_CONVERSATION_ID);
+		String key = (value != null ? ((String) value).toLowerCase() : null);
+		if (n > 0 && key != null && !key.equals(waitList[s].key)) {
+			key = null;
+		}
+		if (key == null) {
+			waitOn(s, anyWait);
+		}
+		else {
+			WaitList l = keyWaits.get(key);
+			if (l == null) {
+				l = new WaitList(key);
+				keyWaits.put(key, l);
+			}
+			waitOn(s, l);
+		}
+	}
+	
+	//#MIDP_EXCLUDE_BEGIN
+	
+	// Helper method for persistence service
+	public synchronized Behaviour[] getBehaviours() {
+		Behaviour[] result = new Behaviour[readyCount + blockedCount];
+		int i = copy(readyHead, readyCount, result, 0);
+		copy(blockedHead, blockedCount, result, i);
+		return result;
+	}
+	
+	// Helper methods for the container, to list the behaviours of the agent
+	public synchronized Behaviour[] getReadyBehaviours() {
+		Behaviour[] result = new Behaviour[readyCount];
+		copy(readyHead, readyCount, result, 0);
+		return result;
+	}
+	
+	public synchronized Behaviour[] getBlockedBehaviours() {
+		Behaviour[] result = new Behaviour[blockedCount];
+		copy(blockedHead, blockedCount, result, 0);
 		return result;
 	}
 	
 	// Helper method for persistence service
-	public void setBehaviours(Behaviour[] behaviours) {
+	public synchronized void setBehaviours(Behaviour[] behaviours) {
+		for (int s = 0; s < used; s++) {
+			if (slots[s] != null) {
+				slots[s].setSchedulerSlot(-1);
+			}
+		}
+		slots = new Behaviour[8];
+		state = new byte[8];
+		prev = new int[8];
+		next = new int[8];
+		waits = new MessageTemplate[8][];
+		waitCount = new int[8];
+		waitList = new WaitList[8];
+		waitPrev = new int[8];
+		waitNext = new int[8];
+		anyWait = new WaitList(null);
+		keyWaits.clear();
+		readyHead = blockedHead = freeHead = -1;
+		readyCount = blockedCount = used = 0;
 		
-		readyBehaviours.clear();
-		blockedBehaviours.clear();
+		// The current behaviour is not saved when persisting an agent
+		currentIndex = -1;
 		
 		for(int i = 0; i < behaviours.length; i++) {
 			Behaviour b = behaviours[i];
-			if(b.isRunnable()) {
-				readyBehaviours.add(b);
-			}
-			else {
-				blockedBehaviours.add(b);
+			if (slotOf(b) < 0) {
+				link(allocate(b), b.isRunnable() ? READY : BLOCKED);
 			}
 		}
-		
-		// The current index is not saved when persisting an agent
-		currentIndex = 0;
 	}
 	
 	//#MIDP_EXCLUDE_END
 	
+	// Copies count behaviours of a circular list into an array
+	private int copy(int head, int count, Behaviour[] result, int i) {
+		int s = head;
+		for (int n = 0; n < count; n++) {
+			result[i++] = slots[s];
+			s = next[s];
+		}
+		return i;
+	}
 	
-	// Removes a specified behaviour from the blocked queue.
-	private boolean removeFromBlocked(Behaviour b) {
-		//#MIDP_EXCLUDE_BEGIN
-		return blockedBehaviours.remove(b);
-		//#MIDP_EXCLUDE_END
-		/*#MIDP_INCLUDE_BEGIN
-		 return blockedBehaviours.removeElement(b);
-		 #MIDP_INCLUDE_END*/
+	// Returns the slot of a behaviour in this scheduler, -1 if it is not here.
+	private int slotOf(Behaviour b) {
+		int s = b.getSchedulerSlot();
+		return (s >= 0 && s < used && slots[s] == b) ? s : -1;
 	}
 	
-	// Removes a specified behaviour from the ready queue.
-	// This can change the index of the current behaviour, so a check is
-	// made: if the just removed behaviour has an index lesser than the
-	// current one, then the current index must be decremented.
-	private boolean removeFromReady(Behaviour b) {
-		int index = readyBehaviours.indexOf(b);
-		if(index != -1) {
-			//#MIDP_EXCLUDE_BEGIN
-			readyBehaviours.remove(b);
-			//#MIDP_EXCLUDE_END
-			/*#MIDP_INCLUDE_BEGIN
-			 readyBehaviours.removeElement(b);
-			 #MIDP_INCLUDE_END*/
-			if(index < currentIndex)
-				--currentIndex;
-			//if(currentIndex < 0)
-			//  currentIndex = 0;
-			else if (index == currentIndex && currentIndex == readyBehaviours.size())
-				currentIndex = 0;
-		}
-		return index != -1;
+	// Takes a free slot for a behaviour. It waits for any message until it polls.
+	private int allocate(Behaviour b) {
+		int s = freeHead;
+		if (s >= 0) {
+			freeHead = next[s];
+		}
+		else {
+			if (used == slots.length) {
+				grow();
+			}
+			s = used++;
+		}
+		slots[s] = b;
+		b.setSchedulerSlot(s);
+		waitCount[s] = 0;
+		waitList[s] = null;
+		waitOn(s, anyWait);
+		return s;
+	}
+	
+	private void release(int s) {
+		waitOn(s, null);
+		waits[s] = null;
+		slots[s].setSchedulerSlot(-1);
+		slots[s] = null;
+		state[s] = FREE;
+		next[s] = freeHead;
+		freeHead = s;
+	}
+	
+	private void grow() {
+		int size = slots.length * 2;
+		Behaviour[] newSlots = new Behaviour[size];
+		System.arraycopy(slots, 0, newSlots, 0, used);
+		slots = newSlots;
+		byte[] newState = new byte[size];
+		System.arraycopy(state, 0, newState, 0, used);
+		state = newState;
+		prev = grow(prev, size);
+		next = grow(next, size);
+		MessageTemplate[][] newWaits = new MessageTemplate[size][];
+		System.arraycopy(waits, 0, newWaits, 0, used);
+		waits = newWaits;
+		waitCount = grow(waitCount, size);
+		WaitList[] newWaitList = new WaitList[size];
+		System.arraycopy(waitList, 0, newWaitList, 0, used);
+		waitList = newWaitList;
+		waitPrev = grow(waitPrev, size);
+		waitNext = grow(waitNext, size);
+	}
+	
+	private int[] grow(int[] a, int size) {
+		int[] b = new int[size];
+		System.arraycopy(a, 0, b, 0, used);
+		return b;
+	}
+	
+	// Appends a slot at the tail of the ready or blocked queue.
+	// This can never change the current behaviour unless the ready
+	// queue was empty.
+	private void link(int s, byte where) {
+		int head = (where == READY ? readyHead : blockedHead);
+		if (head < 0) {
+			prev[s] = s;
+			next[s] = s;
+			head = s;
+		}
+		else {
+			int tail = prev[head];
+			prev[s] = tail;
+			next[s] = head;
+			next[tail] = s;
+			prev[head] = s;
+		}
+		state[s] = where;
+		if (where == READY) {
+			readyHead = head;
+			if (readyCount++ == 0) {
+				currentIndex = s;
+			}
+		}
+		else {
+			blockedHead = head;
+			blockedCount++;
+		}
+	}
+	
+	// Removes a slot from its queue. If it is the current behaviour, the
+	// one following it becomes the current one.
+	private void unlink(int s) {
+		boolean ready = (state[s] == READY);
+		int following = next[s];
+		if (following == s) {
+			following = -1;
+		}
+		else {
+			next[prev[s]] = following;
+			prev[following] = prev[s];
+		}
+		if (ready) {
+			if (readyHead == s) {
+				readyHead = following;
+			}
+			if (currentIndex == s) {
+				currentIndex = following;
+			}
+			readyCount--;
+		}
+		else {
+			if (blockedHead == s) {
+				blockedHead = following;
+			}
+			blockedCount--;
+		}
+		state[s] = FREE;
+	}
+	
+	// Moves a slot to a wait list, or out of all wait lists if l is null.
+	private void waitOn(int s, WaitList l) {
+		WaitList old = waitList[s];
+		if (old == l) {
+			return;
+		}
+		if (old != null) {
+			int p = waitPrev[s];
+			int q = waitNext[s];
+			if (p >= 0) waitNext[p] = q; else old.head = q;
+			if (q >= 0) waitPrev[q] = p;
+			if (old.head < 0 && old.key != null) {
+				keyWaits.remove(old.key);
+			}
+		}
+		waitList[s] = l;
+		if (l != null) {
+			waitPrev[s] = -1;
+			waitNext[s] = l.head;
+			if (l.head >= 0) waitPrev[l.head] = s;
+			l.head = s;
+		}
+	}
+	
+	// Forgets the templates of a behaviour that is being restarted, it will poll again.
+	private void clearWaits(int s) {
+		MessageTemplate[] w = waits[s];
+		if (w != null) {
+			for (int i = 0; i < MAX_WAITS; i++) {
+				w[i] = null;
+			}
+		}
+		waitCount[s] = 0;
+		waitOn(s, anyWait);
+	}
+	
+	// Adds to the wake buffer the behaviours of a wait list that may be waiting for msg.
+	private int collect(WaitList l, ACLMessage msg, int found) {
+		for (int s = l.head; s >= 0; s = waitNext[s]) {
+			if (waitsFor(s, msg)) {
+				if (wakeBuffer == null || found == wakeBuffer.length) {
+					Behaviour[] buffer = new Behaviour[wakeBuffer == null ? 16 : found * 2];
+					if (wakeBuffer != null) {
+						System.arraycopy(wakeBuffer, 0, buffer, 0, found);
+					}
+					wakeBuffer = buffer;
+				}
+				wakeBuffer[found++] = slots[s];
+			}
+		}
+		return found;
+	}
+	
+	private boolean waitsFor(int s, ACLMessage msg) {
+		int n = waitCount[s];
+		if (n <= 0) {
+			return true;
+		}
+		MessageTemplate[] w = waits[s];
+		for (int i = 0; i < n; i++) {
+			if (w[i].match(msg)) {
+				return true;
+			}
+		}
+		return false;
 	}
 	
 }
-
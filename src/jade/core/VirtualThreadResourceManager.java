@@ -0,0 +1,113 @@
+/*****************************************************************
+ JADE - Java Agent DEvelopment Framework is a framework to develop
+ multi-agent systems in compliance with the FIPA specifications.
+ Copyright (C) 2000 CSELT S.p.A.
+
+ GNU Lesser General Public License
+
+ This library is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation,
+ version 2.1 of the License.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the
+ Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ Boston, MA  02111-1307, USA.
+ *****************************************************************/
+
+package jade.core;
+
+//#J2ME_EXCLUDE_FILE
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import jade.util.Logger;
+
+/**
+ A <code>ResourceManager</code> that runs agents on virtual threads
+ when the JVM provides them, so that a container can hold as many
+ agents blocked in <code>doWait()</code> or <code>blockingReceive()</code>
+ as its heap allows instead of as many as the OS gives threads.
+ Select it with the <code>Profile.VIRTUAL_THREADS</code> option.
+ <p>
+ Virtual threads are looked up by reflection (see
+ <code>VirtualThreads</code>), JADE still builds and runs on older JVMs:
+ there, before Java 24 unless the
+ <code>jade_core_VirtualThreadResourceManager_allowpinning</code>
+ property is set, and for <code>TIME_CRITICAL</code> threads that rely
+ on their priority, platform threads are created as the
+ <code>FullResourceManager</code> does.
+ <p>
+ Virtual threads cannot belong to the thread groups of the
+ <code>FullResourceManager</code>: the ones still running are tracked
+ here, so that they are interrupted on termination like the groups
+ are, and they report uncaught exceptions to the group of their type.
+
+ @see Profile#VIRTUAL_THREADS
+ */
+class VirtualThreadResourceManager extends FullResourceManager {
+
+	public static final String ALLOW_PINNING = "jade_core_VirtualThreadResourceManager_allowpinning";
+
+	private VirtualThreads virtual;
+
+	// The virtual threads created and not terminated yet
+	private final Set<Thread> virtualThreads = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+
+	private Logger myLogger = Logger.getMyLogger(getClass().getName());
+
+	public Thread getThread(int type, String name, final Runnable r) {
+		if (virtual != null && type != TIME_CRITICAL) {
+			try {
+				Thread t = virtual.newThread(name, new Runnable() {
+					public void run() {
+						try {
+							r.run();
+						}
+						finally {
+							virtualThreads.remove(Thread.currentThread());
+						}
+					}
+				});
+				// The group handles uncaught exceptions as for its own threads
+				ThreadGroup group = getThreadGroup(type);
+				if (group != null) {
+					t.setUncaughtExceptionHandler(group);
+				}
+				virtualThreads.add(t);
+				return t;
+			}
+			catch (Exception e) {
+				myLogger.log(Logger.WARNING, "Cannot create virtual thread "+name+". Using a platform thread", e);
+			}
+		}
+		return super.getThread(type, name, r);
+	}
+
+	void interruptThreads() {
+		super.interruptThreads();
+		for (Thread t : virtualThreads) {
+			t.interrupt();
+		}
+	}
+
+	public void initialize(Profile p) {
+		super.initialize(p);
+
+		virtual = VirtualThreads.lookup(p);
+		if (virtual != null) {
+			myLogger.log(Logger.INFO, "Agents run on virtual threads");
+		}
+		else {
+			myLogger.log(Logger.INFO, "Java "+VirtualThreads.getJavaVersion()+" virtual threads are not supported or pin idle agents. Using platform threads");
+		}
+	}
+}
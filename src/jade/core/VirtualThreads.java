@@ -0,0 +1,101 @@
+/*****************************************************************
+ JADE - Java Agent DEvelopment Framework is a framework to develop
+ multi-agent systems in compliance with the FIPA specifications.
+ Copyright (C) 2000 CSELT S.p.A.
+
+ GNU Lesser General Public License
+
+ This library is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation,
+ version 2.1 of the License.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the
+ Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ Boston, MA  02111-1307, USA.
+ *****************************************************************/
+
+package jade.core;
+
+//#J2ME_EXCLUDE_FILE
+
+import java.lang.reflect.Method;
+
+/**
+ Creates virtual threads by reflection, so that JADE still builds and
+ runs on JVMs without them. Shared by the
+ <code>VirtualThreadResourceManager</code> and the <code>AgentPool</code>.
+ <p>
+ Agents wait in <code>Object.wait()</code> within synchronized blocks.
+ Before Java 24 this pins the virtual thread to its carrier thread, so
+ a few hundred idle agents would take all the carriers: virtual threads
+ are only used from Java 24 on, unless the
+ <code>jade_core_VirtualThreadResourceManager_allowpinning</code>
+ property is set.
+ */
+class VirtualThreads {
+
+	// First Java version whose virtual threads do not pin in Object.wait()
+	private static final int NO_PINNING_VERSION = 24;
+
+	private final Method ofVirtual;
+	private final Method name;
+	private final Method unstarted;
+
+	private VirtualThreads(Method ofVirtual, Method name, Method unstarted) {
+		this.ofVirtual = ofVirtual;
+		this.name = name;
+		this.unstarted = unstarted;
+	}
+
+	/**
+	 The virtual thread factory, null if the JVM has no virtual threads
+	 or they would pin waiting agents and the profile does not allow it.
+	 */
+	static VirtualThreads lookup(Profile p) {
+		boolean allowPinning = p.getBooleanProperty(VirtualThreadResourceManager.ALLOW_PINNING, false);
+		if (getJavaVersion() < NO_PINNING_VERSION && !allowPinning) {
+			return null;
+		}
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			return new VirtualThreads(Thread.class.getMethod("ofVirtual"), builderClass.getMethod("name", String.class), builderClass.getMethod("unstarted", Runnable.class));
+		}
+		catch (Exception e) {
+			// Virtual threads not supported
+			return null;
+		}
+	}
+
+	/**
+	 Creates an unstarted virtual thread.
+	 */
+	Thread newThread(String threadName, Runnable r) throws Exception {
+		Object builder = ofVirtual.invoke(null);
+		builder = name.invoke(builder, threadName);
+		return (Thread) unstarted.invoke(builder, r);
+	}
+
+	/**
+	 The Java feature version, e.g. 8 for "1.8.0_392" and 21 for "21.0.1".
+	 */
+	static int getJavaVersion() {
+		String v = System.getProperty("java.specification.version", "1.0");
+		if (v.startsWith("1.")) {
+			v = v.substring(2);
+		}
+		int end = v.indexOf('.');
+		try {
+			return Integer.parseInt(end < 0 ? v : v.substring(0, end));
+		}
+		catch (NumberFormatException nfe) {
+			return 0;
+		}
+	}
+}
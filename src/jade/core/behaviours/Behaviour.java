@@ -170,6 +170,8 @@ public abstract class Behaviour implements Serializable {
 	private volatile boolean runnableState = true;
 	private volatile long restartCounter = 0;
 	private volatile String executionState = STATE_READY;
+	// The index of this behaviour in the agent scheduler, -1 if not scheduled
+	private int schedulerSlot = -1;
 	
 	//#APIDOC_EXCLUDE_BEGIN
 	
@@ -440,6 +442,20 @@ public abstract class Behaviour implements Serializable {
 	public final long getRestartCounter() {
 		return restartCounter;
 	}
+	
+	/**
+	 * This method is used internally by the framework. Developer should not call or redefine it.
+	 */
+	public final int getSchedulerSlot() {
+		return schedulerSlot;
+	}
+	
+	/**
+	 * This method is used internally by the framework. Developer should not call or redefine it.
+	 */
+	public final void setSchedulerSlot(int slot) {
+		schedulerSlot = slot;
+	}
 	//#APIDOC_EXCLUDE_END
 	
 	/**
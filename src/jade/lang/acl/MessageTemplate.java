@@ -78,6 +78,12 @@ public class MessageTemplate implements Serializable {
 	private static final int SENDER = 13;
 	private static final int REPLY_BY_DATE = 14;
 	
+	/** Slots a template can require one value for, see <code>getRequiredValue()</code>. */
+	public static final int KEY_CONVERSATION_ID = CONVERSATION_ID;
+	public static final int KEY_IN_REPLY_TO = IN_REPLY_TO;
+	public static final int KEY_PERFORMATIVE = PERFORMATIVE;
+	public static final int KEY_SENDER = SENDER;
+	
 	/**
 	 This interface must be overriden in order to define an application 
 	 specific MessageTemplate.
@@ -505,6 +511,353 @@ public class MessageTemplate implements Serializable {
 			return "( Topic: "+name+" )";
 		}
 	}
+	/**
+	 The compiled form of a template: a flat predicate equivalent to the
+	 expression tree. <em>and</em> and <em>or</em> chains are flattened and
+	 their operands sorted so that the cheapest and most selective tests run
+	 first (performative, conversation-id, in-reply-to, ..., custom
+	 expressions last); string values are lower cased once and each test
+	 reads its own slot, without the slot switch of <code>Literal</code>.
+	 Operands that always match or never match are folded away.
+	 */
+	private static abstract class Test {
+		/** lower runs earlier in a chain. */
+		final int cost;
+		
+		Test(int cost) {
+			this.cost = cost;
+		}
+		
+		abstract boolean test(ACLMessage msg);
+	}
+	
+	private static final Test TRUE = new Test(0) {
+		boolean test(ACLMessage msg) {
+			return true;
+		}
+	};
+	
+	private static final Test FALSE = new Test(0) {
+		boolean test(ACLMessage msg) {
+			return false;
+		}
+	};
+	
+	private static class PerformativeTest extends Test {
+		final int value;
+		
+		PerformativeTest(int value) {
+			super(1);
+			this.value = value;
+		}
+		
+		boolean test(ACLMessage msg) {
+			return msg.getPerformative() == value;
+		}
+	}
+	
+	private static class SenderTest extends Test {
+		final AID value;
+		
+		SenderTest(AID value) {
+			super(5);
+			this.value = value;
+		}
+		
+		boolean test(ACLMessage msg) {
+			return value.equals(msg.getSender());
+		}
+	}
+	
+	/**
+	 A string slot compared ignoring case with a lower cased value.
+	 */
+	private static abstract class StringTest extends Test {
+		final int slot;
+		final String value;
+		
+		StringTest(int slot, int cost, String value) {
+			super(cost);
+			this.slot = slot;
+			this.value = value.toLowerCase();
+		}
+		
+		abstract String get(ACLMessage msg);
+		
+		boolean test(ACLMessage msg) {
+			String s = get(msg);
+			return s != null && s.length() == value.length() && s.regionMatches(true, 0, value, 0, value.length());
+		}
+	}
+	
+	private static Test stringTest(int slot, String value) {
+		if (value == null) {
+			return FALSE; // A null value matches nothing
+		}
+		switch (slot) {
+		case CONVERSATION_ID:
+			return new StringTest(slot, 2, value) {
+				String get(ACLMessage msg) { return msg.getConversationId(); }
+			};
+		case IN_REPLY_TO:
+			return new StringTest(slot, 3, value) {
+				String get(ACLMessage msg) { return msg.getInReplyTo(); }
+			};
+		case REPLY_WITH:
+			return new StringTest(slot, 4, value) {
+				String get(ACLMessage msg) { return msg.getReplyWith(); }
+			};
+		case PROTOCOL:
+			return new StringTest(slot, 6, value) {
+				String get(ACLMessage msg) { return msg.getProtocol(); }
+			};
+		case ONTOLOGY:
+			return new StringTest(slot, 7, value) {
+				String get(ACLMessage msg) { return msg.getOntology(); }
+			};
+		case LANGUAGE:
+			return new StringTest(slot, 8, value) {
+				String get(ACLMessage msg) { return msg.getLanguage(); }
+			};
+		case ENCODING:
+			return new StringTest(slot, 9, value) {
+				String get(ACLMessage msg) { return msg.getEncoding(); }
+			};
+		default:
+			return new StringTest(slot, 11, value) {
+				String get(ACLMessage msg) { return msg.getContent(); }
+			};
+		}
+	}
+	
+	/**
+	 Any other expression, matched as it is.
+	 */
+	private static class ExpressionTest extends Test {
+		final MatchExpression expression;
+		
+		ExpressionTest(MatchExpression expression, int cost) {
+			super(cost);
+			this.expression = expression;
+		}
+		
+		boolean test(ACLMessage msg) {
+			return expression.match(msg);
+		}
+	}
+	
+	private static abstract class ChainTest extends Test {
+		final Test[] operands;
+		
+		ChainTest(Test[] operands, int cost) {
+			super(cost);
+			this.operands = operands;
+		}
+	}
+	
+	private static class AndTest extends ChainTest {
+		AndTest(Test[] operands, int cost) {
+			super(operands, cost);
+		}
+		
+		boolean test(ACLMessage msg) {
+			for (int i = 0; i < operands.length; i++) {
+				if (!operands[i].test(msg)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+	
+	private static class OrTest extends ChainTest {
+		OrTest(Test[] operands, int cost) {
+			super(operands, cost);
+		}
+		
+		boolean test(ACLMessage msg) {
+			for (int i = 0; i < operands.length; i++) {
+				if (operands[i].test(msg)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+	
+	private static class NotTest extends Test {
+		final Test operand;
+		
+		NotTest(Test operand) {
+			super(operand.cost + 1);
+			this.operand = operand;
+		}
+		
+		boolean test(ACLMessage msg) {
+			return !operand.test(msg);
+		}
+	}
+	
+	private static final int COMPOSITE_COST = 20;
+	private static final int EXPRESSION_COST = 30;
+	
+	private static Test compile(MatchExpression e) {
+		if (e instanceof Literal) {
+			Literal l = (Literal) e;
+			switch (l.slotName) {
+			case PERFORMATIVE:
+				return new PerformativeTest(l.perfValue);
+			case SENDER:
+				return l.matchValue != null ? new SenderTest((AID) l.matchValue) : FALSE;
+			case CONVERSATION_ID:
+			case IN_REPLY_TO:
+			case REPLY_WITH:
+			case PROTOCOL:
+			case ONTOLOGY:
+			case LANGUAGE:
+			case ENCODING:
+			case CONTENT:
+				return stringTest(l.slotName, (String) l.matchValue);
+			case REPLY_BY_DATE:
+				return new ExpressionTest(e, 10);
+			default:
+				return new ExpressionTest(e, EXPRESSION_COST);
+			}
+		}
+		if (e instanceof MatchAllLiteral) {
+			return TRUE;
+		}
+		if (e instanceof NotExpression) {
+			Test t = compile(((NotExpression) e).op);
+			return t == TRUE ? FALSE : (t == FALSE ? TRUE : new NotTest(t));
+		}
+		if (e instanceof AndExpression || e instanceof OrExpression) {
+			boolean and = e instanceof AndExpression;
+			ArrayList operands = new ArrayList();
+			flatten(e, and, operands);
+			// Fold constants: TRUE drops out of an and, decides an or; FALSE the other way round
+			Test neutral = and ? TRUE : FALSE;
+			Test absorbing = and ? FALSE : TRUE;
+			Test[] tests = new Test[operands.size()];
+			int n = 0;
+			for (Iterator it = operands.iterator(); it.hasNext(); ) {
+				Test t = compile((MatchExpression) it.next());
+				if (t == absorbing) {
+					return absorbing;
+				}
+				if (t != neutral) {
+					// Insertion sort by cost, stable
+					int i = n++;
+					while (i > 0 && tests[i-1].cost > t.cost) {
+						tests[i] = tests[i-1];
+						i--;
+					}
+					tests[i] = t;
+				}
+			}
+			if (n == 0) {
+				return neutral;
+			}
+			if (n == 1) {
+				return tests[0];
+			}
+			if (n < tests.length) {
+				Test[] tmp = new Test[n];
+				System.arraycopy(tests, 0, tmp, 0, n);
+				tests = tmp;
+			}
+			return and ? new AndTest(tests, COMPOSITE_COST) : new OrTest(tests, COMPOSITE_COST);
+		}
+		return new ExpressionTest(e, EXPRESSION_COST);
+	}
+	
+	private static void flatten(MatchExpression e, boolean and, List operands) {
+		if (and && e instanceof AndExpression) {
+			flatten(((AndExpression) e).op1, and, operands);
+			flatten(((AndExpression) e).op2, and, operands);
+		}
+		else if (!and && e instanceof OrExpression) {
+			flatten(((OrExpression) e).op1, and, operands);
+			flatten(((OrExpression) e).op2, and, operands);
+		}
+		else {
+			operands.add(e);
+		}
+	}
+	
+	/**
+	 A compiled template with its key constraints: the values every matching
+	 message has in the indexable slots.
+	 */
+	private static class Compiled {
+		final Test test;
+		final Object conversationId;   // lower case
+		final Object inReplyTo;        // lower case
+		final Object performative;     // Integer
+		final Object sender;           // AID
+		final boolean keyOnly;
+		
+		Compiled(Test t) {
+			Test[] tests = t instanceof AndTest ? ((AndTest) t).operands : new Test[] {t};
+			Object convId = null, replyTo = null, perf = null, snd = null;
+			boolean onlyKeys = t != FALSE;
+			for (int i = 0; i < tests.length; i++) {
+				Test o = tests[i];
+				Object value = null;
+				Object previous = null;
+				if (o instanceof PerformativeTest) {
+					value = new Integer(((PerformativeTest) o).value);
+					previous = perf;
+					perf = value;
+				}
+				else if (o instanceof SenderTest) {
+					value = ((SenderTest) o).value;
+					previous = snd;
+					snd = value;
+				}
+				else if (o instanceof StringTest && ((StringTest) o).slot == CONVERSATION_ID) {
+					value = ((StringTest) o).value;
+					previous = convId;
+					convId = value;
+				}
+				else if (o instanceof StringTest && ((StringTest) o).slot == IN_REPLY_TO) {
+					value = ((StringTest) o).value;
+					previous = replyTo;
+					replyTo = value;
+				}
+				else if (o != TRUE) {
+					onlyKeys = false;
+				}
+				if (previous != null && !previous.equals(value)) {
+					// Two different values required for the same slot
+					t = FALSE;
+				}
+			}
+			if (t == FALSE) {
+				convId = replyTo = perf = snd = null;
+				onlyKeys = false;
+			}
+			test = t;
+			conversationId = convId;
+			inReplyTo = replyTo;
+			performative = perf;
+			sender = snd;
+			keyOnly = onlyKeys;
+		}
+	}
+	
+	private transient Compiled compiled;
+	
+	private Compiled compiled() {
+		Compiled c = compiled;
+		if (c == null) {
+			// Templates are immutable, racing threads compile equal forms
+			c = new Compiled(compile(toMatch));
+			compiled = c;
+		}
+		return c;
+	}
+	
 	/**
 	 @serial
 	 */
@@ -768,7 +1121,56 @@ public class MessageTemplate implements Serializable {
 	 template, <code>false</code> otherwise.
 	 */
 	public boolean match(ACLMessage msg) {
-		return toMatch.match(msg);
+		return compiled().test.test(msg);
+	}
+	
+	/**
+	 Retrieve the value a slot must have in every message matching this
+	 template. The value is found when the template is a literal on the
+	 slot, or an <em>and</em> with such a literal among its operands;
+	 message queues use it to look up candidate messages by key instead
+	 of matching every queued message. The constraints are computed once,
+	 when the template is first used.
+	 @param key One of <code>KEY_CONVERSATION_ID</code>, <code>KEY_IN_REPLY_TO</code>
+	 (<code>String</code> values in lower case, compared ignoring case),
+	 <code>KEY_PERFORMATIVE</code> (<code>Integer</code>) and <code>KEY_SENDER</code>
+	 (<code>AID</code>).
+	 @return The required value, or <code>null</code> if the template does not
+	 constrain the slot to a single value.
+	 */
+	public Object getRequiredValue(int key) {
+		Compiled c = compiled();
+		switch (key) {
+		case CONVERSATION_ID:
+			return c.conversationId;
+		case IN_REPLY_TO:
+			return c.inReplyTo;
+		case PERFORMATIVE:
+			return c.performative;
+		case SENDER:
+			return c.sender;
+		default:
+			return null;
+		}
+	}
+	
+	/**
+	 Tell whether this template is nothing but its required key values:
+	 a message matches as soon as it has them, so a queue or dispatcher
+	 that routes messages by these keys does not need to call
+	 <code>match()</code>.
+	 @see #getRequiredValue(int)
+	 */
+	public boolean isKeyOnly() {
+		return compiled().keyOnly;
+	}
+	
+	/**
+	 Tell whether this template can not match any message, e.g. because it
+	 requires two different values for the same slot.
+	 */
+	public boolean matchesNothing() {
+		return compiled().test == FALSE;
 	}
 	
 	/**